@@ -1,5 +1,8 @@
 package info.ginj;
 
+import info.ginj.export.ExportQueue;
+import info.ginj.history.HistoryMaintenance;
+import info.ginj.history.HistoryWriter;
 import info.ginj.model.Prefs;
 import info.ginj.model.TargetPrefs;
 import info.ginj.ui.StarWindow;
@@ -86,6 +89,14 @@ public class Ginj {
         // Check ffpmeg availability
         Jaffree.checkAvailability();
 
+        // Start the history writer, which completes the history saves interrupted during previous session.
+        // This must take place before the temp dir is cleaned up, as it may contain original files of these captures
+        HistoryWriter.getInstance();
+        // Apply history retention and recompression in the background
+        HistoryMaintenance.start();
+        // Resume the exports interrupted during previous session
+        ExportQueue.getInstance();
+
         // Creating a JFileChooser can take time if you have network drives. So start loading one now, in a separate thread...
         // TODO check if this is really effective...
         futureFileChooser = new FutureTask<>(JFileChooser::new);
@@ -187,6 +198,10 @@ public class Ginj {
         return new File(historyPath);
     }
 
+    public static File getExportQueueFolder() {
+        return new File(getAppFolder(), "exports");
+    }
+
     public static File getPrefsFile() {
         return new File(getAppFolder(), "settings.properties");
     }
@@ -1,13 +1,64 @@
 package info.ginj.action;
 
 import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 
 public abstract class AbstractUndoableAction extends AbstractUndoableEdit {
+
+    /**
+     * Two consecutive actions of the same kind on the same overlay are merged if the second one starts
+     * less than this delay after the first one ended
+     */
+    public static final long COALESCE_DELAY_MS = 1000;
+
+    /**
+     * Rough size of an action object and its fields, used when no better estimate is available
+     */
+    public static final long BASE_ESTIMATED_SIZE = 64;
+
+    private final long startTime = System.currentTimeMillis();
+    private long endTime = startTime;
+
     public abstract void execute();
 
     public void setTargetPoint(Point point) {
-        // default empty implementation
+        endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns an estimate of the memory retained by this action (including objects only referenced by the undo history)
+     * @return the estimated size, in bytes
+     */
+    public long getEstimatedSize() {
+        return BASE_ESTIMATED_SIZE;
+    }
+
+    /**
+     * Called by the UndoManager when a new edit is added right after this one. If it returns true,
+     * the new edit is absorbed and undoing will revert both at once.
+     * @param anEdit the edit that was just performed
+     * @return true if the edit was merged in this one
+     */
+    @Override
+    public boolean addEdit(UndoableEdit anEdit) {
+        if (anEdit instanceof AbstractUndoableAction && canUndo()) {
+            final AbstractUndoableAction nextAction = (AbstractUndoableAction) anEdit;
+            if (nextAction.startTime - endTime <= COALESCE_DELAY_MS && coalesce(nextAction)) {
+                endTime = nextAction.endTime;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges the given action, which was executed just after this one, into this one, if they are of the same kind and target the same overlay
+     * @param nextAction the action to merge
+     * @return true if it could be merged, false by default
+     */
+    protected boolean coalesce(AbstractUndoableAction nextAction) {
+        return false;
     }
 
     public String toString() {
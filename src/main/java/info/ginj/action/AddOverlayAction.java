@@ -23,6 +23,14 @@ public class AddOverlayAction extends AbstractUndoableAction {
         panel.add(overlay, Integer.valueOf(panel.highestLayer() + 1));
     }
 
+    /**
+     * Once undone, the overlay is only referenced by the undo history
+     */
+    @Override
+    public long getEstimatedSize() {
+        return BASE_ESTIMATED_SIZE + overlay.getEstimatedSize();
+    }
+
     public void undo() {
         super.undo();
         panel.remove(overlay);
@@ -6,7 +6,7 @@ import java.awt.*;
 
 public class ChangeOverlayColorAction extends AbstractUndoableAction {
     private final Overlay overlay;
-    private final Color newColor;
+    private Color newColor;
     private final Color originalColor;
 
 
@@ -35,4 +35,12 @@ public class ChangeOverlayColorAction extends AbstractUndoableAction {
         execute();
     }
 
+    @Override
+    protected boolean coalesce(AbstractUndoableAction nextAction) {
+        if (nextAction instanceof ChangeOverlayColorAction && ((ChangeOverlayColorAction) nextAction).overlay == overlay) {
+            newColor = ((ChangeOverlayColorAction) nextAction).newColor;
+            return true;
+        }
+        return false;
+    }
 }
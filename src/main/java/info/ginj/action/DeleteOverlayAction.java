@@ -26,6 +26,14 @@ public class DeleteOverlayAction extends AbstractUndoableAction {
         panel.remove(overlay);
     }
 
+    /**
+     * Once deleted, the overlay is only referenced by the undo history
+     */
+    @Override
+    public long getEstimatedSize() {
+        return BASE_ESTIMATED_SIZE + overlay.getEstimatedSize();
+    }
+
     public void undo() {
         super.undo();
         panel.add(overlay, layer);
@@ -0,0 +1,62 @@
+package info.ginj.action;
+
+import info.ginj.tool.text.TextOverlay;
+
+import javax.swing.undo.UndoableEdit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wraps the edits performed by the text area of a text overlay, so that consecutive keystrokes
+ * in the same overlay are undone as a single action
+ */
+public class EditTextAction extends AbstractUndoableAction {
+
+    // Rough size of a document edit, including the inserted or removed text
+    private static final long DOCUMENT_EDIT_ESTIMATED_SIZE = 200;
+
+    private final TextOverlay overlay;
+    private final List<UndoableEdit> edits = new ArrayList<>();
+
+    public EditTextAction(TextOverlay overlay, UndoableEdit edit) {
+        super();
+        this.overlay = overlay;
+        edits.add(edit);
+    }
+
+    public String getPresentationName() {
+        return "edit " + overlay.getPresentationName().toLowerCase();
+    }
+
+    public void execute() {
+        // Edit has already been performed by the text area
+    }
+
+    public void undo() {
+        super.undo();
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            edits.get(i).undo();
+        }
+    }
+
+    public void redo() {
+        super.redo();
+        for (UndoableEdit edit : edits) {
+            edit.redo();
+        }
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        return BASE_ESTIMATED_SIZE + edits.size() * DOCUMENT_EDIT_ESTIMATED_SIZE;
+    }
+
+    @Override
+    protected boolean coalesce(AbstractUndoableAction nextAction) {
+        if (nextAction instanceof EditTextAction && ((EditTextAction) nextAction).overlay == overlay) {
+            edits.addAll(((EditTextAction) nextAction).edits);
+            return true;
+        }
+        return false;
+    }
+}
@@ -6,12 +6,15 @@ import java.awt.*;
 
 public class MoveOverlayAction extends AbstractUndoableAction {
     private final Overlay overlay;
-    private final Point initialPosition;
-    private Point finalPosition;
+    private final int initialX;
+    private final int initialY;
+    private int deltaX;
+    private int deltaY;
 
     public MoveOverlayAction(Overlay overlay, Point initialPosition) {
         this.overlay = overlay;
-        this.initialPosition = initialPosition;
+        this.initialX = initialPosition.x;
+        this.initialY = initialPosition.y;
     }
 
     public String getPresentationName() {
@@ -19,16 +22,18 @@ public class MoveOverlayAction extends AbstractUndoableAction {
     }
 
     public void setTargetPoint(Point finalPosition) {
-        this.finalPosition = finalPosition;
+        super.setTargetPoint(finalPosition);
+        deltaX = finalPosition.x - initialX;
+        deltaY = finalPosition.y - initialY;
     }
 
     public void execute() {
-        overlay.moveDrawing(finalPosition.x - initialPosition.x, finalPosition.y - initialPosition.y);
+        overlay.moveDrawing(deltaX, deltaY);
     }
 
     public void undo() {
         super.undo();
-        overlay.moveDrawing(- finalPosition.x + initialPosition.x, - finalPosition.y + initialPosition.y);
+        overlay.moveDrawing(-deltaX, -deltaY);
     }
 
     public void redo() {
@@ -36,4 +41,13 @@ public class MoveOverlayAction extends AbstractUndoableAction {
         execute();
     }
 
+    @Override
+    protected boolean coalesce(AbstractUndoableAction nextAction) {
+        if (nextAction instanceof MoveOverlayAction && ((MoveOverlayAction) nextAction).overlay == overlay) {
+            deltaX += ((MoveOverlayAction) nextAction).deltaX;
+            deltaY += ((MoveOverlayAction) nextAction).deltaY;
+            return true;
+        }
+        return false;
+    }
 }
@@ -7,13 +7,16 @@ import java.awt.*;
 public class ResizeOverlayAction extends AbstractUndoableAction {
     private final Overlay overlay;
     private final int handleIndex;
-    private final Point initialPosition;
-    private Point finalPosition;
+    private final int initialX;
+    private final int initialY;
+    private int finalX;
+    private int finalY;
 
     public ResizeOverlayAction(Overlay overlay, int handleIndex, Point initialPosition) {
         this.overlay = overlay;
         this.handleIndex = handleIndex;
-        this.initialPosition = initialPosition;
+        this.initialX = initialPosition.x;
+        this.initialY = initialPosition.y;
     }
 
     public String getPresentationName() {
@@ -21,18 +24,20 @@ public class ResizeOverlayAction extends AbstractUndoableAction {
     }
 
     public void setTargetPoint(Point finalPosition) {
-        this.finalPosition = finalPosition;
+        super.setTargetPoint(finalPosition);
+        this.finalX = finalPosition.x;
+        this.finalY = finalPosition.y;
     }
 
 
     public void execute() {
-        overlay.moveHandle(handleIndex, finalPosition);
+        overlay.moveHandle(handleIndex, new Point(finalX, finalY));
     }
 
 
     public void undo() {
         super.undo();
-        overlay.moveHandle(handleIndex, initialPosition);
+        overlay.moveHandle(handleIndex, new Point(initialX, initialY));
     }
 
     public void redo() {
@@ -40,4 +45,18 @@ public class ResizeOverlayAction extends AbstractUndoableAction {
         execute();
     }
 
+    @Override
+    protected boolean coalesce(AbstractUndoableAction nextAction) {
+        if (nextAction instanceof ResizeOverlayAction) {
+            final ResizeOverlayAction nextResize = (ResizeOverlayAction) nextAction;
+            // Only merge if the same handle is dragged again from where it was released
+            if (nextResize.overlay == overlay && nextResize.handleIndex == handleIndex
+                    && nextResize.initialX == finalX && nextResize.initialY == finalY) {
+                finalX = nextResize.finalX;
+                finalY = nextResize.finalY;
+                return true;
+            }
+        }
+        return false;
+    }
 }
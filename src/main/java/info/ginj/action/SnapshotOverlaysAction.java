@@ -0,0 +1,90 @@
+package info.ginj.action;
+
+import info.ginj.tool.Overlay;
+import info.ginj.ui.ImageEditorPane;
+
+import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An action for bulk operations on the overlays of a capture.
+ * Instead of recording each individual change, it records which overlays (and layers) were present
+ * before and after the operation, and undoing or redoing simply restores one of these snapshots.
+ * Usage: create it before the operation, perform the operation, then call execute() to take the "after" snapshot.
+ */
+public class SnapshotOverlaysAction extends AbstractUndoableAction {
+
+    private final ImageEditorPane panel;
+    private final String presentationName;
+    private final Map<Overlay, Integer> beforeSnapshot;
+    private Map<Overlay, Integer> afterSnapshot;
+
+    public SnapshotOverlaysAction(ImageEditorPane panel, String presentationName) {
+        super();
+        this.panel = panel;
+        this.presentationName = presentationName;
+        beforeSnapshot = takeSnapshot();
+    }
+
+    public String getPresentationName() {
+        return presentationName;
+    }
+
+    public void execute() {
+        afterSnapshot = takeSnapshot();
+    }
+
+    public void undo() {
+        super.undo();
+        restoreSnapshot(beforeSnapshot);
+    }
+
+    public void redo() {
+        super.redo();
+        restoreSnapshot(afterSnapshot);
+    }
+
+    /**
+     * Overlays only present in one of the snapshots are only referenced by the undo history when the other one is active
+     */
+    @Override
+    public long getEstimatedSize() {
+        long size = BASE_ESTIMATED_SIZE + (beforeSnapshot.size() + afterSnapshot.size()) * BASE_ESTIMATED_SIZE;
+        for (Overlay overlay : beforeSnapshot.keySet()) {
+            if (!afterSnapshot.containsKey(overlay)) {
+                size += overlay.getEstimatedSize();
+            }
+        }
+        for (Overlay overlay : afterSnapshot.keySet()) {
+            if (!beforeSnapshot.containsKey(overlay)) {
+                size += overlay.getEstimatedSize();
+            }
+        }
+        return size;
+    }
+
+    private Map<Overlay, Integer> takeSnapshot() {
+        Map<Overlay, Integer> snapshot = new LinkedHashMap<>();
+        for (Component component : panel.getComponents()) {
+            if (component instanceof Overlay) {
+                snapshot.put((Overlay) component, panel.getLayer(component));
+            }
+        }
+        return snapshot;
+    }
+
+    private void restoreSnapshot(Map<Overlay, Integer> snapshot) {
+        panel.setSelectedOverlay(null);
+        // Only overlays are part of the snapshot: other components of the panel are left untouched
+        for (Component component : panel.getComponents()) {
+            if (component instanceof Overlay) {
+                panel.remove(component);
+            }
+        }
+        // Snapshot is ordered topmost first, and add() puts components at the bottom of their layer
+        for (Map.Entry<Overlay, Integer> entry : snapshot.entrySet()) {
+            panel.add(entry.getKey(), entry.getValue());
+        }
+    }
+}
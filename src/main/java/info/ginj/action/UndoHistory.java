@@ -0,0 +1,65 @@
+package info.ginj.action;
+
+import info.ginj.util.Misc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * An UndoManager bounded by the estimated memory retained by its edits instead of their number.
+ * When the budget is exceeded, the oldest edits are forgotten (the most recent one is always kept).
+ * Consecutive edits of the same kind on the same overlay are coalesced by AbstractUndoableAction.addEdit().
+ */
+public class UndoHistory extends UndoManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(UndoHistory.class);
+
+    private final long maxBytes;
+
+    public UndoHistory(long maxBytes) {
+        super();
+        this.maxBytes = maxBytes;
+        // The byte budget replaces the default limit of 100 edits
+        setLimit(-1);
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        final boolean added = super.addEdit(anEdit);
+        trimForBudget();
+        return added;
+    }
+
+    /**
+     * @return the estimated memory retained by all edits in this history, in bytes
+     */
+    public synchronized long getEstimatedSize() {
+        long size = 0;
+        for (UndoableEdit edit : edits) {
+            size += getEstimatedSize(edit);
+        }
+        return size;
+    }
+
+    private void trimForBudget() {
+        long size = getEstimatedSize();
+        int trimmedEdits = 0;
+        while (size > maxBytes && edits.size() > 1) {
+            size -= getEstimatedSize(edits.firstElement());
+            trimEdits(0, 0);
+            trimmedEdits++;
+        }
+        if (trimmedEdits > 0) {
+            logger.debug("Undo history over budget: forgot " + trimmedEdits + " oldest edit(s), " + Misc.getPrettySize(size) + " retained");
+        }
+    }
+
+    private static long getEstimatedSize(UndoableEdit edit) {
+        if (edit instanceof AbstractUndoableAction) {
+            return ((AbstractUndoableAction) edit).getEstimatedSize();
+        }
+        return AbstractUndoableAction.BASE_ESTIMATED_SIZE;
+    }
+}
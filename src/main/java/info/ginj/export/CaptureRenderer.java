@@ -0,0 +1,141 @@
+package info.ginj.export;
+
+import info.ginj.Ginj;
+import info.ginj.model.Capture;
+import info.ginj.model.Target;
+import info.ginj.tool.Overlay;
+import info.ginj.tool.RedactionOverlay;
+import info.ginj.util.ImageResizer;
+import info.ginj.util.Jaffree;
+import info.ginj.util.Misc;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * This class flattens a capture (original image + overlays) to a single image, without any selection handles.
+ * Contrary to painting the ImageEditorPane, it does not go through the Swing component tree:
+ * each overlay is drawn directly onto the target canvas, so rendering can take place on any thread,
+ * including in headless mode (e.g. for exports, thumbnails or re-exports from the history).
+ */
+public class CaptureRenderer {
+
+    /**
+     * Renders the given capture for export to the given target, and stores the result in the capture:
+     * images get their overlays and are resized according to the target settings, videos are trimmed.
+     * If the same rendering was kept in the render cache by a previous export, it is reused instead.
+     * A rendered file from the render cache is pinned there until ExportQueue.export() is done with it.
+     * @param capture the capture to render
+     * @param sourceImage the original image, or null to use the one of the capture (loading it from disk if needed)
+     * @param target the target to render the capture for
+     * @throws IOException if the original could not be read, or the rendering could not be written
+     */
+    public static void render(Capture capture, BufferedImage sourceImage, Target target) throws IOException {
+        render(capture, sourceImage, target, target.getExporter().isRenderedFileUsed(target), target.getExporter().isRenderedImageUsed(target));
+    }
+
+    /**
+     * Renders the given capture like {@link #render(Capture, BufferedImage, Target)}, for one or several exporters
+     * @param isFileNeeded true if an image must also be encoded to a file
+     * @param isImageNeeded true if an image must also be kept in memory
+     */
+    public static void render(Capture capture, BufferedImage sourceImage, Target target, boolean isFileNeeded, boolean isImageNeeded) throws IOException {
+        final String renderKey = RenderCache.computeRenderKey(capture, target);
+        capture.setRenderKey(renderKey);
+        if (!capture.isVideo()) {
+            final File cachedFile = RenderCache.get(renderKey, Misc.IMAGE_EXTENSION_PNG);
+            if (cachedFile != null) {
+                final BufferedImage cachedImage = isImageNeeded ? ImageIO.read(cachedFile) : null;
+                if (!isImageNeeded || cachedImage != null) {
+                    capture.setRenderedFile(cachedFile);
+                    capture.setRenderedImage(cachedImage);
+                    return;
+                }
+            }
+            // Image and overlays, but no handles
+            BufferedImage renderedImage = (sourceImage == null) ? render(capture) : render(sourceImage, capture.getOverlays());
+            // Then resize if requested by the target
+            if (target.getSettings() != null) {
+                final Dimension exportSize = target.getSettings().computeExportSize(renderedImage.getWidth(), renderedImage.getHeight());
+                if (exportSize.width != renderedImage.getWidth() || exportSize.height != renderedImage.getHeight()) {
+                    renderedImage = ImageResizer.resize(renderedImage, exportSize.width, exportSize.height);
+                }
+            }
+            capture.setRenderedImage(renderedImage);
+            // Only worth writing if it must be written anyway
+            capture.setRenderedFile(isFileNeeded ? RenderCache.storeImage(renderKey, renderedImage) : null);
+        }
+        else {
+            // By default, just point to the original file
+            File renderedFile = capture.getOriginalFile();
+
+            if (capture.getVideoLowerBoundMs() > 0 || capture.getVideoHigherBoundMs() < capture.getVideoDurationMs()) {
+                // TODO should also "render" video file if it has overlays
+                renderedFile = RenderCache.get(renderKey, Misc.VIDEO_EXTENSION);
+                if (renderedFile == null) {
+                    final File trimmedFile = new File(Ginj.getTempDir(), capture.getId() + "_trim" + Misc.VIDEO_EXTENSION);
+                    Jaffree.trim(capture.getOriginalFile(), capture.getVideoLowerBoundMs(), capture.getVideoHigherBoundMs(), trimmedFile);
+                    renderedFile = RenderCache.store(renderKey, Misc.VIDEO_EXTENSION, trimmedFile);
+                }
+            }
+
+            capture.setRenderedFile(renderedFile);
+        }
+    }
+
+    /**
+     * Renders the given capture, loading its original image from disk if it is not in memory
+     * @param capture the capture to render
+     * @return the rendered image
+     * @throws IOException if the original image could not be read
+     */
+    public static BufferedImage render(Capture capture) throws IOException {
+        BufferedImage originalImage = capture.getOriginalImage();
+        if (originalImage == null) {
+            originalImage = ImageIO.read(capture.getOriginalFile());
+            if (originalImage == null) {
+                throw new IOException("Could not decode capture file '" + capture.getOriginalFile() + "'");
+            }
+        }
+        return render(originalImage, capture.getOverlays());
+    }
+
+    /**
+     * Renders the given overlays over the given image
+     * @param originalImage the image to draw overlays on. It is not modified.
+     * @param overlays the overlays to draw, topmost first (as returned by JLayeredPane.getComponents())
+     * @return a new image, with the same size as the original one
+     */
+    public static BufferedImage render(BufferedImage originalImage, List<Overlay> overlays) {
+        BufferedImage renderedImage = new BufferedImage(originalImage.getWidth(), originalImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = renderedImage.createGraphics();
+        try {
+            g2d.drawImage(originalImage, 0, 0, null);
+            if (overlays != null) {
+                // Paint from the bottom layer to the top one
+                for (int i = overlays.size() - 1; i >= 0; i--) {
+                    final Overlay overlay = overlays.get(i);
+                    if (overlay instanceof RedactionOverlay) {
+                        // Redactions are computed from the original pixels, and burnt into the result
+                        ((RedactionOverlay) overlay).setSourceImage(originalImage);
+                    }
+                    Graphics2D overlayG2d = (Graphics2D) g2d.create();
+                    try {
+                        overlay.render(overlayG2d);
+                    }
+                    finally {
+                        overlayG2d.dispose();
+                    }
+                }
+            }
+        }
+        finally {
+            g2d.dispose();
+        }
+        return renderedImage;
+    }
+}
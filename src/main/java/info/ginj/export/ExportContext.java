@@ -1,14 +1,19 @@
 package info.ginj.export;
 
+import info.ginj.model.UploadSession;
 import info.ginj.ui.StarWindow;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.function.Consumer;
 
 public class ExportContext {
     private Component parentFrame;
     private StarWindow starWindow;
     private ExportMonitor exportMonitor;
+    private boolean isHistorySaveDeferred = false;
+    private UploadSession uploadSession;
+    private Consumer<UploadSession> uploadSessionListener;
 
     public ExportContext(JFrame parentFrame, StarWindow starWindow, ExportMonitor exportMonitor) {
         this.parentFrame = parentFrame;
@@ -39,4 +44,37 @@ public class ExportContext {
     public void setExportMonitor(ExportMonitor exportMonitor) {
         this.exportMonitor = exportMonitor;
     }
+
+    /**
+     * @return true if the exporter must not save the capture to history on completion, because the caller does it
+     * (e.g. once for all targets of a multi-target export)
+     */
+    public boolean isHistorySaveDeferred() {
+        return isHistorySaveDeferred;
+    }
+
+    public void setHistorySaveDeferred(boolean historySaveDeferred) {
+        isHistorySaveDeferred = historySaveDeferred;
+    }
+
+    /**
+     * @return the upload session started by a previous attempt of this export, if any, so that it can be resumed
+     */
+    public UploadSession getUploadSession() {
+        return uploadSession;
+    }
+
+    /**
+     * Records the upload session started by this export, so that it can be resumed if the export is interrupted
+     */
+    public void setUploadSession(UploadSession uploadSession) {
+        this.uploadSession = uploadSession;
+        if (uploadSessionListener != null) {
+            uploadSessionListener.accept(uploadSession);
+        }
+    }
+
+    public void setUploadSessionListener(Consumer<UploadSession> uploadSessionListener) {
+        this.uploadSessionListener = uploadSessionListener;
+    }
 }
@@ -0,0 +1,827 @@
+package info.ginj.export;
+
+import info.ginj.Ginj;
+import info.ginj.export.online.AbstractOnlineExporter;
+import info.ginj.export.online.exception.CommunicationException;
+import info.ginj.history.HistoryEntry;
+import info.ginj.history.HistoryIndex;
+import info.ginj.history.HistoryWriter;
+import info.ginj.model.Capture;
+import info.ginj.model.Export;
+import info.ginj.model.Prefs;
+import info.ginj.model.Target;
+import info.ginj.model.UploadSession;
+import info.ginj.util.ImageEncoding;
+import info.ginj.util.Misc;
+import info.ginj.util.UI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs exports to online services so that they survive network errors and application restarts:
+ * <ul>
+ *     <li>Each export is recorded in a journal, with its own copy of the rendered (and original) media, before its
+ *     first attempt. Exports still in the journal at next start are resumed.</li>
+ *     <li>The upload sessions started by exporters are recorded too, so that an interrupted upload goes on from the
+ *     last byte received by the service instead of starting over.</li>
+ *     <li>The first attempt runs immediately, in the thread of the caller, monitored by the export window.</li>
+ *     <li>Exports failing with a transient error (network error, 5xx or 429 status) are retried in the background,
+ *     with an exponentially growing delay. Only server errors count as attempts: when the service cannot be reached,
+ *     the export waits until a periodic connectivity probe succeeds, then it is retried at once.</li>
+ *     <li>At most a few exports run at the same time for each online service.</li>
+ * </ul>
+ * Exports to other targets (disk, clipboard) are just run directly.
+ */
+public class ExportQueue {
+    private static final Logger logger = LoggerFactory.getLogger(ExportQueue.class);
+
+    public static final String JOURNAL_FILENAME = "exports.journal";
+
+    private static final byte RECORD_QUEUED = 1;
+    private static final byte RECORD_DONE = 2;
+    // Records the upload session started by a job, so that its upload can be resumed
+    private static final byte RECORD_SESSION = 3;
+
+    private static final String RENDERED_SUFFIX = ".rendered";
+    private static final String ORIGINAL_SUFFIX = ".original";
+
+    private static final long CONNECTIVITY_PROBE_PERIOD_MS = 30_000;
+    private static final int CONNECTIVITY_PROBE_TIMEOUT_MS = 5_000;
+    private static final int HTTPS_PORT = 443;
+    // Files of the queue folder that are not referenced anymore are deleted after that delay (see finish())
+    private static final long ORPHAN_FILE_AGE_MS = 24 * 3_600_000;
+
+    public enum State {
+        RUNNING("Exporting"),
+        WAITING_RETRY("Waiting to retry"),
+        WAITING_NETWORK("Waiting for network"),
+        CANCELLED("Cancelled");
+
+        private final String label;
+
+        State(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static ExportQueue instance;
+
+    private final File queueFolder;
+    private final File journalFile;
+    private final List<Job> jobs = new ArrayList<>();
+    private final Map<String, Integer> numRunningJobsByExporter = new HashMap<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private ScheduledFuture<?> nextDispatch;
+    private long nextJobId = 1;
+
+    public static synchronized ExportQueue getInstance() {
+        if (instance == null) {
+            instance = new ExportQueue(Ginj.getExportQueueFolder());
+            instance.start();
+        }
+        return instance;
+    }
+
+    private ExportQueue(File queueFolder) {
+        this.queueFolder = queueFolder;
+        this.journalFile = new File(queueFolder, JOURNAL_FILENAME);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Export queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Queued export " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Exports the given capture, which must already be rendered.
+     * For online services, the export is queued then attempted immediately, and retried in the background if it fails
+     * with a transient error.
+     * This method blocks during the first attempt, so it must be run in its own thread, like Exporter.exportCapture()
+     *
+     * @param context the export context, as returned by the exporter's prepare()
+     * @param capture the capture to export
+     * @param target  the target to export this capture to
+     */
+    public void export(ExportContext context, Capture capture, Target target) {
+        // The rendering was pinned in the render cache by CaptureRenderer. Queued jobs have their own copy
+        final File renderedFile = capture.getRenderedFile();
+        try {
+            if (!(target.getExporter() instanceof AbstractOnlineExporter)) {
+                target.getExporter().exportCapture(context, capture, target);
+                return;
+            }
+            final Job job;
+            try {
+                job = enqueue(capture, target);
+            }
+            catch (IOException e) {
+                logger.error("Could not queue export of " + capture + " to " + target + ". It will not be retried in case of error", e);
+                target.getExporter().exportCapture(context, capture, target);
+                return;
+            }
+            // If the caller saves the capture to history itself, let it do so. Otherwise, the queue does it
+            final boolean isHistorySaveNeeded = !context.isHistorySaveDeferred();
+            context.setHistorySaveDeferred(true);
+            context.setUploadSessionListener(uploadSession -> onUploadSession(job, uploadSession));
+            attempt(job, context, capture, isHistorySaveNeeded);
+        }
+        finally {
+            RenderCache.unpin(renderedFile);
+        }
+    }
+
+    /**
+     * Retries all waiting exports immediately
+     */
+    public void retryNow() {
+        synchronized (this) {
+            for (Job job : jobs) {
+                if (job.state != State.RUNNING) {
+                    job.state = State.WAITING_RETRY;
+                    job.nextAttemptTime = 0;
+                }
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Abandons all waiting exports. Running ones go on
+     */
+    public void cancelWaiting() {
+        List<Job> cancelledJobs = new ArrayList<>();
+        synchronized (this) {
+            // Cancelled under lock, so that they cannot be dispatched meanwhile
+            for (Job job : new ArrayList<>(jobs)) {
+                if (job.state != State.RUNNING) {
+                    job.state = State.CANCELLED;
+                    removeJob(job);
+                    cancelledJobs.add(job);
+                }
+            }
+        }
+        for (Job job : cancelledJobs) {
+            logger.info("Export of " + job.captureName + " to " + job.target + " cancelled");
+            deleteJobFiles(job);
+        }
+        if (!cancelledJobs.isEmpty()) {
+            notifyListeners();
+        }
+    }
+
+    /**
+     * @return the number of exports in the queue, running or waiting
+     */
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    /**
+     * @return a description of each export in the queue, for display
+     */
+    public synchronized List<String> getJobDescriptions() {
+        List<String> descriptions = new ArrayList<>();
+        for (Job job : jobs) {
+            String description = job.captureName + " to " + job.target + ": " + job.state;
+            if (job.numAttempts > 0) {
+                description += " (" + job.numAttempts + " failed attempt" + (job.numAttempts > 1 ? "s" : "") + ")";
+            }
+            descriptions.add(description);
+        }
+        return descriptions;
+    }
+
+    /**
+     * Registers a listener called (from any thread) when exports are added to or removed from the queue
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+
+    ////////////////////////////////
+    // Execution
+
+    private void start() {
+        recoverJournal();
+        scheduler.scheduleWithFixedDelay(this::probeConnectivity, CONNECTIVITY_PROBE_PERIOD_MS, CONNECTIVITY_PROBE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        dispatch();
+    }
+
+    /**
+     * Starts the exports that are due, within the concurrency limits, and schedules the next call
+     */
+    private synchronized void dispatch() {
+        final long now = System.currentTimeMillis();
+        final int maxRunningJobs = Math.max(1, Prefs.getAsInt(Prefs.Key.EXPORT_QUEUE_MAX_CONCURRENT_PER_EXPORTER));
+        long nextAttemptTime = Long.MAX_VALUE;
+        for (Job job : jobs) {
+            if (job.state != State.WAITING_RETRY) {
+                continue;
+            }
+            if (job.nextAttemptTime > now) {
+                nextAttemptTime = Math.min(nextAttemptTime, job.nextAttemptTime);
+                continue;
+            }
+            final String exporterName = job.target.getExporter().getExporterName();
+            final int numRunningJobs = numRunningJobsByExporter.getOrDefault(exporterName, 0);
+            if (numRunningJobs < maxRunningJobs) {
+                job.state = State.RUNNING;
+                numRunningJobsByExporter.put(exporterName, numRunningJobs + 1);
+                // Retries are not monitored by a window, and notify the user through the star window when complete
+                final ExportContext context = new ExportContext(null, Ginj.starWindow, null);
+                context.setHistorySaveDeferred(true);
+                context.setUploadSession(job.uploadSession);
+                context.setUploadSessionListener(uploadSession -> onUploadSession(job, uploadSession));
+                workers.submit(() -> attempt(job, context, job.createRetryCapture(), true));
+            }
+            // else dispatch() will be called again when a running job ends
+        }
+        if (nextDispatch != null) {
+            nextDispatch.cancel(false);
+            nextDispatch = null;
+        }
+        if (nextAttemptTime != Long.MAX_VALUE) {
+            nextDispatch = scheduler.schedule(this::dispatch, nextAttemptTime - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Attempts a job, which must have been marked RUNNING (by enqueue() or dispatch())
+     */
+    private void attempt(Job job, ExportContext context, Capture capture, boolean isHistorySaveNeeded) {
+        final AbstractOnlineExporter exporter = (AbstractOnlineExporter) job.target.getExporter();
+        final String exporterName = exporter.getExporterName();
+        try {
+            if (exporter.uploadAndComplete(context, capture, job.target) && isHistorySaveNeeded) {
+                // Checked before submitting, as the HistoryWriter points the capture to history once it is saved
+                job.isOriginalHandedToHistory = (capture.getOriginalFile() != null && capture.getOriginalFile().equals(job.originalFile));
+                saveToHistory(capture);
+            }
+            finish(job);
+        }
+        catch (CommunicationException e) {
+            if (e.isTransient()) {
+                onTransientError(job, context, capture, isHistorySaveNeeded, e);
+            }
+            else {
+                onError(job, context, capture, isHistorySaveNeeded, e);
+            }
+        }
+        catch (Exception e) {
+            onError(job, context, capture, isHistorySaveNeeded, e);
+        }
+        finally {
+            synchronized (this) {
+                numRunningJobsByExporter.merge(exporterName, -1, Integer::sum);
+            }
+            dispatch();
+        }
+    }
+
+    private void onTransientError(Job job, ExportContext context, Capture capture, boolean isHistorySaveNeeded, CommunicationException e) {
+        final AbstractOnlineExporter exporter = (AbstractOnlineExporter) job.target.getExporter();
+        final boolean isReachable = isReachable(exporter.getApiHost());
+        final int maxAttempts = Prefs.getAsInt(Prefs.Key.EXPORT_QUEUE_MAX_ATTEMPTS);
+        final boolean isGivingUp;
+        synchronized (this) {
+            if (isReachable) {
+                job.numAttempts++;
+            }
+            isGivingUp = job.numAttempts >= maxAttempts;
+            if (isGivingUp) {
+                // Handled below
+            }
+            else if (isReachable) {
+                final long maxDelayMs = Prefs.getAsLong(Prefs.Key.EXPORT_QUEUE_MAX_RETRY_DELAY_MS);
+                final long delayMs = Math.min(maxDelayMs, Prefs.getAsLong(Prefs.Key.EXPORT_QUEUE_RETRY_DELAY_MS) << Math.min(job.numAttempts - 1, 20));
+                // Add up to 20% of jitter, so that exports failing together are not retried together
+                job.nextAttemptTime = System.currentTimeMillis() + delayMs + ThreadLocalRandom.current().nextLong(delayMs / 5 + 1);
+                job.state = State.WAITING_RETRY;
+            }
+            else {
+                job.state = State.WAITING_NETWORK;
+            }
+        }
+        if (isGivingUp) {
+            onError(job, context, capture, isHistorySaveNeeded, e);
+            return;
+        }
+        logger.info("Export of " + job.captureName + " to " + job.target + " failed (" + e.getMessage() + "). State: " + job.state);
+        exporter.failed(context, "Queued for retry");
+        notifyListeners();
+        if (context.getExportMonitor() != null) {
+            // Tell the user only once, when the export window closes
+            notifyUser(exporterName(job) + " export postponed", "Export of " + job.captureName + " to " + job.target + " will be retried " + (isReachable ? "later." : "when the network is back."), TrayIcon.MessageType.WARNING);
+        }
+    }
+
+    private void onError(Job job, ExportContext context, Capture capture, boolean isHistorySaveNeeded, Exception e) {
+        final Exporter exporter = job.target.getExporter();
+        UI.alertException(context.getParentFrame(), exporter.getExporterName() + " Error", "There was an error exporting " + job.captureName + " to " + exporter.getExporterName(), e, logger);
+        exporter.failed(context, "Upload error");
+        if (isHistorySaveNeeded) {
+            // Nobody else will save this capture: keep it in history, so that it is not lost with the job
+            job.isOriginalHandedToHistory = (capture.getOriginalFile() != null && capture.getOriginalFile().equals(job.originalFile));
+            saveToHistory(capture);
+        }
+        finish(job);
+    }
+
+    /**
+     * Retries the exports waiting for a service that can be reached again
+     */
+    private void probeConnectivity() {
+        final Map<String, List<Job>> waitingJobsByHost = new HashMap<>();
+        synchronized (this) {
+            for (Job job : jobs) {
+                if (job.state == State.WAITING_NETWORK) {
+                    waitingJobsByHost.computeIfAbsent(((AbstractOnlineExporter) job.target.getExporter()).getApiHost(), k -> new ArrayList<>()).add(job);
+                }
+            }
+        }
+        boolean isAnyReachable = false;
+        for (Map.Entry<String, List<Job>> entry : waitingJobsByHost.entrySet()) {
+            if (isReachable(entry.getKey())) {
+                logger.info(entry.getKey() + " can be reached again. Resuming " + entry.getValue().size() + " export(s)");
+                synchronized (this) {
+                    for (Job job : entry.getValue()) {
+                        if (job.state == State.WAITING_NETWORK) {
+                            job.state = State.WAITING_RETRY;
+                            job.nextAttemptTime = 0;
+                        }
+                    }
+                }
+                isAnyReachable = true;
+            }
+        }
+        if (isAnyReachable) {
+            dispatch();
+        }
+    }
+
+    /**
+     * @return true if a connection to the given host can be opened (or if the host is unknown)
+     */
+    private static boolean isReachable(String host) {
+        if (host == null) {
+            return true;
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, HTTPS_PORT), CONNECTIVITY_PROBE_TIMEOUT_MS);
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the capture to history, keeping the exports recorded there since the job was queued (e.g. by the other
+     * targets of a multi-target export)
+     */
+    private void saveToHistory(Capture capture) {
+        final HistoryEntry entry = HistoryIndex.getInstance().get(capture.getBaseFilename());
+        if (entry != null) {
+            try (XMLDecoder xmlDecoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(entry.getMetadataFile(Ginj.getHistoryFolder()))))) {
+                final Capture historyCapture = (Capture) xmlDecoder.readObject();
+                for (Export historyExport : historyCapture.getExports()) {
+                    if (capture.getExports().stream().noneMatch(export -> isSameExport(export, historyExport))) {
+                        capture.getExports().add(0, historyExport);
+                    }
+                }
+            }
+            catch (Exception e) {
+                logger.warn("Could not read exports of " + capture + " from history", e);
+            }
+        }
+        HistoryWriter.getInstance().submit(capture);
+    }
+
+    private static boolean isSameExport(Export export1, Export export2) {
+        return Objects.equals(export1.getExporterName(), export2.getExporterName())
+                && Objects.equals(export1.getMediaId(), export2.getMediaId())
+                && Objects.equals(export1.getLocation(), export2.getLocation());
+    }
+
+    private void notifyUser(String caption, String text, TrayIcon.MessageType type) {
+        if (Ginj.starWindow != null && Ginj.starWindow.isTrayAvailable()) {
+            Ginj.starWindow.popupTrayMessage(caption, text, type);
+        }
+    }
+
+    private static String exporterName(Job job) {
+        return job.target.getExporter().getExporterName();
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+
+    ////////////////////////////////
+    // Journal
+
+    /**
+     * Records a new job, with its own copy of the media, so that it can be resumed after the application exits
+     */
+    private Job enqueue(Capture capture, Target target) throws IOException {
+        if (!queueFolder.exists() && !queueFolder.mkdirs()) {
+            throw new IOException("Could not create folder '" + queueFolder.getAbsolutePath() + "'");
+        }
+        final long jobId;
+        synchronized (this) {
+            jobId = nextJobId++;
+        }
+        final File queuedRenderedFile;
+        ImageEncoding renderedFileEncoding = null;
+        if (capture.getRenderedFile() == null && capture.getRenderedFileEncoding() == null && capture.getRenderedImage() != null) {
+            // Not encoded yet (see AbstractOnlineExporter.isRenderedFileUsed()): encode it straight to the queue, in the
+            // background, so that the upload can start meanwhile.
+            // If the application exits before the end of the encoding, the job will be abandoned at next start.
+            // Once encoded, the file is also kept in the render cache, as if it had been rendered to it
+            queuedRenderedFile = new File(queueFolder, jobId + RENDERED_SUFFIX + Misc.IMAGE_EXTENSION_PNG);
+            final String renderKey = capture.getRenderKey();
+            renderedFileEncoding = ImageEncoding.start(capture.getRenderedImage(), queuedRenderedFile, (renderKey == null) ? null : encodedFile -> {
+                try {
+                    RenderCache.storeCopy(renderKey, Misc.IMAGE_EXTENSION_PNG, encodedFile);
+                }
+                catch (IOException e) {
+                    logger.warn("Could not keep " + encodedFile.getAbsolutePath() + " in render cache", e);
+                }
+            });
+            capture.setRenderedFileEncoding(renderedFileEncoding);
+        }
+        else {
+            final File renderedFile = capture.toRenderedFile();
+            queuedRenderedFile = new File(queueFolder, jobId + RENDERED_SUFFIX + Misc.getExtension(renderedFile));
+            linkOrCopy(renderedFile, queuedRenderedFile);
+        }
+        File queuedOriginalFile = null;
+        if (capture.getOriginalHash() != null) {
+            // The original is already in history
+        }
+        else if (capture.getOriginalFile() != null && capture.getOriginalFile().exists()) {
+            queuedOriginalFile = new File(queueFolder, jobId + ORIGINAL_SUFFIX + capture.defaultExtension());
+            linkOrCopy(capture.getOriginalFile(), queuedOriginalFile);
+        }
+        else if (!capture.isVideo() && capture.getOriginalImage() != null) {
+            queuedOriginalFile = new File(queueFolder, jobId + ORIGINAL_SUFFIX + Misc.IMAGE_EXTENSION_PNG);
+            ImageIO.write(capture.getOriginalImage(), Misc.IMAGE_FORMAT_PNG, queuedOriginalFile);
+        }
+
+        final Job job = new Job(jobId, target, capture.getDefaultName(), encode(capture), capture.getRenderKey(), queuedRenderedFile, queuedOriginalFile);
+        job.renderedFileEncoding = renderedFileEncoding;
+        synchronized (this) {
+            appendToJournal(journalRecord(RECORD_QUEUED, job));
+            // The first attempt is run by the caller
+            job.state = State.RUNNING;
+            numRunningJobsByExporter.merge(target.getExporter().getExporterName(), 1, Integer::sum);
+            jobs.add(job);
+        }
+        notifyListeners();
+        return job;
+    }
+
+    private synchronized void onUploadSession(Job job, UploadSession uploadSession) {
+        job.uploadSession = uploadSession;
+        if (jobs.contains(job)) {
+            try {
+                appendToJournal(journalRecord(RECORD_SESSION, job));
+            }
+            catch (IOException e) {
+                logger.error("Error recording upload session in export journal. The upload will not be resumed if interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Removes a running job from the queue, and deletes its files
+     */
+    private void finish(Job job) {
+        synchronized (this) {
+            if (job.state != State.RUNNING || !removeJob(job)) {
+                // E.g. cancelled
+                return;
+            }
+        }
+        deleteJobFiles(job);
+        notifyListeners();
+    }
+
+    /**
+     * Removes a job from the queue and records it in the journal. Must be called with the queue locked
+     * @return false if the job was not in the queue anymore
+     */
+    private boolean removeJob(Job job) {
+        if (!jobs.remove(job)) {
+            return false;
+        }
+        try {
+            if (jobs.isEmpty()) {
+                // Nothing left to resume: start a new journal
+                Files.deleteIfExists(journalFile.toPath());
+            }
+            else {
+                appendToJournal(journalRecord(RECORD_DONE, job));
+            }
+        }
+        catch (IOException e) {
+            logger.error("Error updating export journal", e);
+        }
+        return true;
+    }
+
+    private void deleteJobFiles(Job job) {
+        deleteFile(job.renderedFile);
+        // An original handed to history is linked or copied there by the HistoryWriter, which deletes it once the
+        // capture is saved. If it was already in history, it is left over and deleted on a later start
+        if (job.originalFile != null && !job.isOriginalHandedToHistory) {
+            deleteFile(job.originalFile);
+        }
+    }
+
+    /**
+     * Loads the jobs that were not completed during the previous session
+     */
+    private synchronized void recoverJournal() {
+        if (journalFile.exists()) {
+            Map<Long, Job> pendingJobs = new LinkedHashMap<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                while (true) {
+                    final byte type;
+                    final long jobId;
+                    final String renderedFilename;
+                    final String originalFilename;
+                    final String renderKey;
+                    final byte[] targetXml;
+                    final byte[] metadata;
+                    try {
+                        type = in.readByte();
+                        jobId = in.readLong();
+                        renderedFilename = in.readUTF();
+                        originalFilename = in.readUTF();
+                        renderKey = in.readUTF();
+                        targetXml = new byte[in.readInt()];
+                        in.readFully(targetXml);
+                        metadata = new byte[in.readInt()];
+                        in.readFully(metadata);
+                    }
+                    catch (EOFException e) {
+                        // End of journal, or record interrupted by a crash
+                        break;
+                    }
+                    if (type == RECORD_QUEUED) {
+                        try {
+                            final Target target = findTarget(targetXml);
+                            final Capture capture = (Capture) decode(metadata);
+                            final File renderedFile = new File(queueFolder, renderedFilename);
+                            if (!renderedFile.exists()) {
+                                logger.error("Rendered file of queued export " + jobId + " is missing. Export of " + capture + " to " + target + " abandoned.");
+                            }
+                            else {
+                                pendingJobs.put(jobId, new Job(jobId, target, capture.getDefaultName(), metadata, renderKey.isEmpty() ? null : renderKey,
+                                        renderedFile, originalFilename.isEmpty() ? null : new File(queueFolder, originalFilename)));
+                            }
+                        }
+                        catch (Exception e) {
+                            logger.error("Skipping unreadable export journal record " + jobId, e);
+                        }
+                    }
+                    else if (type == RECORD_SESSION) {
+                        final Job job = pendingJobs.get(jobId);
+                        if (job != null) {
+                            job.uploadSession = (metadata.length == 0) ? null : (UploadSession) decode(metadata);
+                        }
+                    }
+                    else {
+                        pendingJobs.remove(jobId);
+                    }
+                    nextJobId = Math.max(nextJobId, jobId + 1);
+                }
+            }
+            catch (IOException e) {
+                logger.error("Error reading export journal", e);
+            }
+
+            try {
+                Files.delete(journalFile.toPath());
+                if (!pendingJobs.isEmpty()) {
+                    logger.info("Resuming " + pendingJobs.size() + " export(s) left over by previous session");
+                    // Give the application some time to start before retrying them
+                    final long firstAttemptTime = System.currentTimeMillis() + Prefs.getAsLong(Prefs.Key.EXPORT_QUEUE_RETRY_DELAY_MS);
+                    for (Job job : pendingJobs.values()) {
+                        job.state = State.WAITING_RETRY;
+                        job.nextAttemptTime = firstAttemptTime;
+                        appendToJournal(journalRecord(RECORD_QUEUED, job));
+                        if (job.uploadSession != null) {
+                            appendToJournal(journalRecord(RECORD_SESSION, job));
+                        }
+                        jobs.add(job);
+                    }
+                }
+            }
+            catch (IOException e) {
+                logger.error("Error rewriting export journal", e);
+            }
+        }
+        deleteOrphanFiles();
+    }
+
+    /**
+     * Deletes old files that are not used by any job (see finish())
+     */
+    private void deleteOrphanFiles() {
+        final File[] files = queueFolder.listFiles((dir, name) -> !name.equals(JOURNAL_FILENAME));
+        if (files == null) {
+            return;
+        }
+        Set<File> usedFiles = new HashSet<>();
+        for (Job job : jobs) {
+            usedFiles.add(job.renderedFile);
+            usedFiles.add(job.originalFile);
+        }
+        final long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (!usedFiles.contains(file) && now - file.lastModified() > ORPHAN_FILE_AGE_MS) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the target of the current configuration matching the given serialized one, so that changes to its
+     * settings since the job was queued are taken into account
+     */
+    private static Target findTarget(byte[] targetXml) {
+        final Target queuedTarget;
+        try (XMLDecoder xmlDecoder = new XMLDecoder(new ByteArrayInputStream(targetXml))) {
+            queuedTarget = (Target) xmlDecoder.readObject();
+        }
+        for (Target target : Ginj.getTargetPrefs().getTargetList()) {
+            if (target.getExporter().getClass() == queuedTarget.getExporter().getClass()
+                    && Objects.equals(target.getDisplayName(), queuedTarget.getDisplayName())
+                    && Objects.equals(target.getAccount() == null ? null : target.getAccount().getId(), queuedTarget.getAccount() == null ? null : queuedTarget.getAccount().getId())) {
+                return target;
+            }
+        }
+        return queuedTarget;
+    }
+
+    private static byte[] journalRecord(byte type, Job job) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(type);
+            out.writeLong(job.id);
+            if (type == RECORD_QUEUED) {
+                out.writeUTF(job.renderedFile.getName());
+                out.writeUTF(job.originalFile == null ? "" : job.originalFile.getName());
+                out.writeUTF(job.renderKey == null ? "" : job.renderKey);
+                final byte[] targetXml = encode(job.target);
+                out.writeInt(targetXml.length);
+                out.write(targetXml);
+                out.writeInt(job.metadata.length);
+                out.write(job.metadata);
+            }
+            else {
+                out.writeUTF("");
+                out.writeUTF("");
+                out.writeUTF("");
+                out.writeInt(0);
+                final byte[] sessionXml = (type == RECORD_SESSION && job.uploadSession != null) ? encode(job.uploadSession) : new byte[0];
+                out.writeInt(sessionXml.length);
+                out.write(sessionXml);
+            }
+            return record.toByteArray();
+        }
+        catch (IOException e) {
+            // Cannot happen with a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends the given record to the journal, and makes sure it is on disk before returning
+     */
+    private void appendToJournal(byte[] record) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(record);
+            out.getChannel().force(false);
+        }
+    }
+
+    private static byte[] encode(Object object) {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        try (XMLEncoder xmlEncoder = new XMLEncoder(xml)) {
+            xmlEncoder.writeObject(object);
+        }
+        return xml.toByteArray();
+    }
+
+    private static Object decode(byte[] xml) {
+        try (XMLDecoder xmlDecoder = new XMLDecoder(new ByteArrayInputStream(xml))) {
+            return xmlDecoder.readObject();
+        }
+    }
+
+    private static void linkOrCopy(File source, File destination) throws IOException {
+        try {
+            Files.createLink(destination.toPath(), source.toPath());
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            // E.g. different file systems
+            Files.copy(source.toPath(), destination.toPath());
+        }
+    }
+
+    private static void deleteFile(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        }
+        catch (IOException e) {
+            logger.warn("Could not delete " + file.getAbsolutePath());
+        }
+    }
+
+    private static class Job {
+        private final long id;
+        private final Target target;
+        private final String captureName;
+        // The capture, serialized when queued
+        private final byte[] metadata;
+        private final String renderKey;
+        // The copies of the media owned by this job
+        private final File renderedFile;
+        private final File originalFile;
+        // Set if the rendered file was queued before being encoded. Not journaled
+        private ImageEncoding renderedFileEncoding;
+        // The following fields are guarded by the queue
+        private State state;
+        private int numAttempts = 0;
+        private long nextAttemptTime = 0;
+        private boolean isOriginalHandedToHistory = false;
+        private UploadSession uploadSession;
+
+        private Job(long id, Target target, String captureName, byte[] metadata, String renderKey, File renderedFile, File originalFile) {
+            this.id = id;
+            this.target = target;
+            this.captureName = captureName;
+            this.metadata = metadata;
+            this.renderKey = renderKey;
+            this.renderedFile = renderedFile;
+            this.originalFile = originalFile;
+        }
+
+        /**
+         * @return a fresh copy of the capture, using the media of this job
+         */
+        private Capture createRetryCapture() {
+            final Capture capture = (Capture) decode(metadata);
+            capture.setRenderKey(renderKey);
+            if (renderedFileEncoding != null) {
+                // The file may still be being encoded if the first attempt failed early
+                capture.setRenderedFileEncoding(renderedFileEncoding);
+            }
+            else {
+                capture.setRenderedFile(renderedFile);
+            }
+            if (originalFile != null) {
+                capture.setOriginalFile(originalFile);
+            }
+            return capture;
+        }
+    }
+}
@@ -1,38 +1,25 @@
 package info.ginj.export;
 
-import info.ginj.Ginj;
 import info.ginj.export.clipboard.ClipboardExporter;
 import info.ginj.export.disk.DiskExporter;
 import info.ginj.export.online.dropbox.DropboxExporter;
 import info.ginj.export.online.google.GoogleDriveExporter;
 import info.ginj.export.online.google.GooglePhotosExporter;
+import info.ginj.history.HistoryWriter;
 import info.ginj.model.Capture;
 import info.ginj.model.Export;
 import info.ginj.model.Prefs;
 import info.ginj.model.Target;
 import info.ginj.ui.ExportCompletionFrame;
-import info.ginj.ui.HistoryFrame;
 import info.ginj.ui.StarWindow;
-import info.ginj.util.Jaffree;
-import info.ginj.util.Misc;
 import info.ginj.util.UI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
-import java.awt.image.BufferedImage;
-import java.beans.XMLEncoder;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -78,6 +65,22 @@ public abstract class Exporter implements Cancellable {
     @java.beans.Transient
     public abstract boolean isVideoSupported();
 
+    /**
+     * @param target the target to export to
+     * @return true if this exporter uses the rendered file of captures, so it is worth encoding it before exporting
+     */
+    public boolean isRenderedFileUsed(Target target) {
+        return isOnlineService();
+    }
+
+    /**
+     * @param target the target to export to
+     * @return true if this exporter uses the rendered image of captures, so it must be in memory before exporting
+     */
+    public boolean isRenderedImageUsed(Target target) {
+        return !isOnlineService();
+    }
+
     @java.beans.Transient
     public ImageIcon getButtonIcon(int size) {
         if (isOnlineService()) {
@@ -134,17 +137,30 @@ public abstract class Exporter implements Cancellable {
         if (exportMonitor != null) exportMonitor.log(state);
     }
 
-    protected void complete(ExportContext context, Capture capture, String state) {
+    /**
+     * Records the given export in the capture, saves the capture to history and notifies the user
+     *
+     * @param context the export context
+     * @param capture the exported capture
+     * @param export  the export that just completed
+     * @param state   a message describing the result
+     */
+    protected void complete(ExportContext context, Capture capture, Export export, String state) {
         logger.debug("Exporter.complete");
         if (context.getExportMonitor() != null) context.getExportMonitor().complete(state);
 
-        // Store image in history, no matter the export type
-        saveToHistory(context, capture);
+        if (capture.getRenderKey() != null) {
+            // Remember what was exported, to be able to tell if the capture changed when exporting it again
+            export.setRenderKey(capture.getRenderKey());
+        }
+        capture.addExport(export);
 
-        final List<Export> exports = capture.getExports();
-        final Export export = exports.get(exports.size() - 1); // last export
+        if (!context.isHistorySaveDeferred()) {
+            // Store image in history, no matter the export type. This takes place in the background
+            HistoryWriter.getInstance().submit(capture);
+        }
 
-        if (Prefs.isTrue(Prefs.Key.USE_TRAY_NOTIFICATION_ON_EXPORT_COMPLETION) && context.getStarWindow().isTrayAvailable()) {
+        if (Prefs.isTrue(Prefs.Key.USE_TRAY_NOTIFICATION_ON_EXPORT_COMPLETION) && context.getStarWindow() != null && context.getStarWindow().isTrayAvailable()) {
             context.getStarWindow().popupTrayNotification(export);
         }
         else {
@@ -153,118 +169,6 @@ public abstract class Exporter implements Cancellable {
         }
     }
 
-    // TODO Should probably be in a separate thread
-    private boolean saveToHistory(ExportContext context, Capture capture) {
-        Component parentFrame = context.getParentFrame();
-        File historyFolder = Ginj.getHistoryFolder();
-        if (!historyFolder.exists()) {
-            if (!historyFolder.mkdirs()) {
-                UI.alertError(parentFrame, "Save error", "Could not create history folder (" + historyFolder.getAbsolutePath() + ")");
-                return false;
-            }
-        }
-
-        // Save the original file to history
-        // ENHANCEMENT we store the source, not the rendered version !
-        // Compute filename (no version involved here)
-        File originalFile = new File(historyFolder, capture.getId() + capture.defaultExtension());
-        try {
-            // Original file could be shared between multiple captures, only store it once
-            if (!originalFile.exists()) {
-                // Save capture itself
-                if (capture.getOriginalFile() != null) {
-                    // Move file to history
-                    Files.move(capture.getOriginalFile().toPath(), originalFile.toPath());
-                }
-                else {
-                    if (capture.isVideo()) {
-                        UI.alertError(parentFrame, "Save error", "Cannot move original video file to history: capture.getOriginalFile() is null!");
-                        return false;
-                    }
-                    else {
-                        // No original file on disk, write image from memory (should not be null !)
-                        if (!ImageIO.write(capture.getOriginalImage(), Misc.IMAGE_FORMAT_PNG, originalFile)) {
-                            UI.alertError(parentFrame, "Save error", "Writing capture to history failed (" + originalFile.getAbsolutePath() + ")");
-                            return false;
-                        }
-                    }
-                }
-            }
-        }
-        catch (IOException e) {
-            UI.alertException(parentFrame, "Save error", "Saving capture to history failed (" + originalFile.getAbsolutePath() + ")", e, logger);
-            return false;
-        }
-
-        // Save metadata and overlays to XML
-        // Compute filename (including version)
-        File metadataFile = new File(historyFolder, capture.getBaseFilename() + Misc.METADATA_EXTENSION);
-        try (XMLEncoder xmlEncoder = new XMLEncoder(new BufferedOutputStream(new FileOutputStream(metadataFile)))) {
-            xmlEncoder.writeObject(capture);
-        }
-        catch (Exception e) {
-            UI.alertError(parentFrame, "Save error", "Saving metadata and overlays to history failed (" + metadataFile.getAbsolutePath() + ")");
-            return false;
-        }
-
-
-        // Save thumbnail
-        BufferedImage thumbnailSourceImage;
-        if (capture.isVideo()) {
-            // TODO grab from rendered video, not from original
-            thumbnailSourceImage = Jaffree.grabImage(originalFile, 0);
-        }
-        else {
-            thumbnailSourceImage = capture.getRenderedImage();
-        }
-
-        BufferedImage thumbnailImage;
-
-        int sourceImageWidth = thumbnailSourceImage.getWidth();
-        int sourceImageHeight = thumbnailSourceImage.getHeight();
-        int thumbnailWidth = HistoryFrame.THUMBNAIL_SIZE.width;
-        int thumbnailHeight = HistoryFrame.THUMBNAIL_SIZE.height;
-
-        if (sourceImageWidth > thumbnailWidth || sourceImageHeight > thumbnailHeight) {
-            // Resize
-            double hScale = thumbnailWidth / ((double) sourceImageWidth);
-            double vScale = thumbnailHeight / ((double) sourceImageHeight);
-            double scale = Math.min(hScale, vScale);
-
-            int targetWidth = (int) (sourceImageWidth * scale);
-            int targetHeight = (int) (sourceImageHeight * scale);
-
-            thumbnailImage = new BufferedImage(targetWidth, targetHeight, thumbnailSourceImage.getType());
-            AffineTransform scaleInstance = AffineTransform.getScaleInstance(scale, scale);
-            AffineTransformOp scaleOp = new AffineTransformOp(scaleInstance, AffineTransformOp.TYPE_BILINEAR);
-            scaleOp.filter(thumbnailSourceImage, thumbnailImage);
-        }
-        else {
-            thumbnailImage = thumbnailSourceImage;
-        }
-
-        // Write the thumbnail to disk
-        // Compute filename (including version)
-        File thumbnailFile = new File(historyFolder, capture.getBaseFilename() + Misc.THUMBNAIL_EXTENSION);
-        try {
-            if (!ImageIO.write(thumbnailImage, Misc.IMAGE_FORMAT_PNG, thumbnailFile)) {
-                UI.alertError(parentFrame, "Save error", "Saving thumbnail to history failed (" + thumbnailFile.getAbsolutePath() + ")");
-                return false;
-            }
-        }
-        catch (IOException e) {
-            UI.alertException(parentFrame, "Save error", "Saving thumbnail to history failed (" + thumbnailFile.getAbsolutePath() + ")", e, logger);
-            return false;
-        }
-
-
-        if (Ginj.starWindow.getHistoryFrame() != null) {
-            Ginj.starWindow.getHistoryFrame().loadHistoryList();
-        }
-        return true;
-    }
-
-
     protected void failed(ExportContext context, String state) {
         logger.debug("Exporter.failed");
         if (context.getExportMonitor() != null) context.getExportMonitor().failed(state);
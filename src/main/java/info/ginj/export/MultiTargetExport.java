@@ -0,0 +1,191 @@
+package info.ginj.export;
+
+import info.ginj.history.HistoryWriter;
+import info.ginj.model.Capture;
+import info.ginj.model.Export;
+import info.ginj.model.Prefs;
+import info.ginj.model.Target;
+import info.ginj.ui.ExportFrame;
+import info.ginj.ui.StarWindow;
+import info.ginj.util.UI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class exports a capture to several targets at once.
+ * The capture is rendered (and encoded) once per distinct rendering - targets with the same resize settings share it -
+ * and the rendered image and file are shared read-only by the exporters of those targets, which run concurrently on a
+ * bounded pool of threads. The whole export thus takes about the time of the slowest target, not the sum of all.
+ * Each exporter works on its own copy of the capture, and the capture is saved to history once, with all its exports.
+ */
+public class MultiTargetExport {
+    private static final Logger logger = LoggerFactory.getLogger(MultiTargetExport.class);
+
+    private static ThreadPoolExecutor executor;
+
+    private final Capture capture;
+    private final BufferedImage sourceImage;
+    private final List<TargetExport> targetExports = new ArrayList<>();
+
+    /**
+     * Prepares the export of the given capture to the given targets.
+     * This method must be called from Swing's Event Dispatching Thread, because exporters may prompt the user
+     *
+     * @param parentFrame the window the export is launched from
+     * @param starWindow  the star window
+     * @param exportFrame the window monitoring the export, which gets one row per target
+     * @param capture     the capture to export, with its overlays and video bounds set
+     * @param sourceImage the original image, or null to use the one of the capture
+     * @param targets     the targets to export to
+     * @return the prepared export, or null if no target remains (all were cancelled by the user)
+     */
+    public static MultiTargetExport prepare(JFrame parentFrame, StarWindow starWindow, ExportFrame exportFrame, Capture capture, BufferedImage sourceImage, List<Target> targets) {
+        MultiTargetExport multiTargetExport = new MultiTargetExport(capture, sourceImage);
+        for (Target target : targets) {
+            final Capture targetCapture;
+            try {
+                targetCapture = capture.clone();
+            }
+            catch (CloneNotSupportedException e) {
+                // Cannot happen: Capture is Cloneable
+                throw new IllegalStateException(e);
+            }
+            final ExportMonitor monitor = exportFrame.addTargetRow(target.toString());
+            final ExportContext context = target.getExporter().prepare(parentFrame, starWindow, monitor, targetCapture, target);
+            if (context == null) {
+                logger.info("Export to " + target + " aborted");
+                monitor.failed("Cancelled");
+            }
+            else {
+                // Saved to history once all targets are done
+                context.setHistorySaveDeferred(true);
+                multiTargetExport.targetExports.add(new TargetExport(target, targetCapture, context));
+            }
+        }
+        return multiTargetExport.targetExports.isEmpty() ? null : multiTargetExport;
+    }
+
+    private MultiTargetExport(Capture capture, BufferedImage sourceImage) {
+        this.capture = capture;
+        this.sourceImage = sourceImage;
+    }
+
+    /**
+     * Renders the capture and exports it to all targets, then saves it to history.
+     * This method blocks until all exports are done, so it must be run in its own thread.
+     */
+    public void run() {
+        final long startTime = System.currentTimeMillis();
+        final int numExistingExports = capture.getExports().size();
+
+        // Group targets needing the same rendering
+        Map<String, List<TargetExport>> targetExportsByRenderKey = new LinkedHashMap<>();
+        for (TargetExport targetExport : targetExports) {
+            targetExportsByRenderKey.computeIfAbsent(RenderCache.computeRenderKey(capture, targetExport.target), k -> new ArrayList<>()).add(targetExport);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (List<TargetExport> group : targetExportsByRenderKey.values()) {
+            // Render once for the whole group, then start exporting before rendering the next group
+            final TargetExport first = group.get(0);
+            boolean isFileNeeded = false;
+            boolean isImageNeeded = false;
+            int numOnlineTargets = 0;
+            for (TargetExport targetExport : group) {
+                isFileNeeded |= targetExport.target.getExporter().isRenderedFileUsed(targetExport.target);
+                isImageNeeded |= targetExport.target.getExporter().isRenderedImageUsed(targetExport.target);
+                if (targetExport.target.getExporter().isOnlineService()) {
+                    numOnlineTargets++;
+                }
+            }
+            // Encoding while uploading only pays off for a single upload. Otherwise, encode once for all of them
+            isFileNeeded |= numOnlineTargets > 1;
+            try {
+                CaptureRenderer.render(first.capture, sourceImage, first.target, isFileNeeded, isImageNeeded);
+            }
+            catch (IOException e) {
+                UI.alertException(first.context.getParentFrame(), "Render error", "There was an error rendering the capture for " + first.target, e, logger);
+                for (TargetExport targetExport : group) {
+                    targetExport.context.getExportMonitor().failed("Render error");
+                }
+                continue;
+            }
+            for (TargetExport targetExport : group) {
+                if (targetExport != first) {
+                    targetExport.capture.setRenderKey(first.capture.getRenderKey());
+                    targetExport.capture.setRenderedImage(first.capture.getRenderedImage());
+                    targetExport.capture.setRenderedFile(first.capture.getRenderedFile());
+                    // Each export releases the rendering when done
+                    RenderCache.pin(first.capture.getRenderedFile());
+                }
+                futures.add(getExecutor().submit(() -> ExportQueue.getInstance().export(targetExport.context, targetExport.capture, targetExport.target)));
+            }
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for exports of " + capture + ". It will not be saved to history.");
+                return;
+            }
+            catch (ExecutionException e) {
+                logger.error("Error exporting " + capture, e.getCause());
+            }
+        }
+
+        // Save the capture to history once, with the exports to all targets
+        boolean isExported = false;
+        for (TargetExport targetExport : targetExports) {
+            final List<Export> exports = targetExport.capture.getExports();
+            for (Export export : exports.subList(numExistingExports, exports.size())) {
+                capture.addExport(export);
+                isExported = true;
+            }
+            if (capture.getRenderedImage() == null) {
+                // Used for the history thumbnail
+                capture.setRenderedImage(targetExport.capture.getRenderedImage());
+            }
+        }
+        if (isExported) {
+            HistoryWriter.getInstance().submit(capture);
+        }
+        logger.info("Exported " + capture + " to " + targetExports.size() + " target(s) in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final int numThreads = Math.max(1, Prefs.getAsInt(Prefs.Key.EXPORT_MAX_CONCURRENT_TARGETS));
+            final AtomicInteger threadNumber = new AtomicInteger();
+            executor = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "Exporter " + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private static class TargetExport {
+        private final Target target;
+        // The copy of the capture this target works on
+        private final Capture capture;
+        private final ExportContext context;
+
+        private TargetExport(Target target, Capture capture, ExportContext context) {
+            this.target = target;
+            this.capture = capture;
+            this.context = context;
+        }
+    }
+}
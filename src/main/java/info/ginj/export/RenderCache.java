@@ -0,0 +1,231 @@
+package info.ginj.export;
+
+import info.ginj.Ginj;
+import info.ginj.model.Capture;
+import info.ginj.model.ExportSettings;
+import info.ginj.model.Prefs;
+import info.ginj.model.Target;
+import info.ginj.tool.Overlay;
+import info.ginj.util.Misc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class keeps rendered captures on disk, so that exporting the same capture again (e.g. re-exporting it from
+ * the history) does not render it again.
+ * Renderings are stored by "render key", a hash of everything they depend on: the original media, the render state
+ * of the overlays and the export settings of the target. A modified capture gets a different key,
+ * so renderings never have to be invalidated: the least recently used ones are just evicted beyond a max total size.
+ * Renderings returned by the cache are pinned until the export using them is over, so that they are not evicted
+ * while in use (e.g. by another export storing its rendering).
+ */
+public class RenderCache {
+    private static final Logger logger = LoggerFactory.getLogger(RenderCache.class);
+
+    public static final String RENDER_CACHE_FOLDER_NAME = "rendered";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String TEMP_EXTENSION = ".tmp";
+    // Temp files older than that were left by a crash
+    private static final long STALE_TEMP_FILE_AGE_MS = 3_600_000;
+
+    // Number of users of each rendering in use, which must not be evicted
+    private static final Map<File, Integer> pinCounts = new HashMap<>();
+
+    /**
+     * Computes the key identifying the rendering of the given capture for the given target
+     * @param capture the capture, with its current overlays and video bounds
+     * @param target the target to render the capture for
+     * @return the key, as a lowercase hex string
+     */
+    public static String computeRenderKey(Capture capture, Target target) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Cannot happen: SHA-256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+        // Originals are never modified and all versions of a capture share the same one, so the id identifies it
+        digest.update(capture.getId().getBytes(StandardCharsets.UTF_8));
+        if (capture.isVideo()) {
+            // Overlays are not rendered on videos (yet)
+            digest.update((" " + capture.getVideoLowerBoundMs() + "-" + capture.getVideoHigherBoundMs()).getBytes(StandardCharsets.UTF_8));
+        }
+        else {
+            // Note: the XML serialization of overlays is not used, because it contains Swing properties that may differ
+            // between overlays being edited and the same ones decoded from history
+            for (Overlay overlay : capture.getOverlays()) {
+                digest.update(("\n" + overlay.getRenderState()).getBytes(StandardCharsets.UTF_8));
+            }
+            final ExportSettings settings = target.getSettings();
+            if (settings != null) {
+                digest.update((" " + settings.getResizeMode() + "-" + settings.getResizeValue()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return Misc.toHex(digest.digest());
+    }
+
+    /**
+     * Returns the cached rendering with the given key, if any. The returned file is pinned (see unpin())
+     * @param renderKey the key of the rendering
+     * @param extension the extension of the rendered file
+     * @return the cached file, or null if that rendering is not in cache
+     */
+    public static synchronized File get(String renderKey, String extension) {
+        final File file = new File(getCacheFolder(), renderKey + extension);
+        if (!file.exists()) {
+            return null;
+        }
+        // Mark as recently used
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        pin(file);
+        return file;
+    }
+
+    /**
+     * Prevents the given rendering from being evicted, e.g. because one more export uses it. Null is ignored
+     * @param file the cached file
+     */
+    public static synchronized void pin(File file) {
+        if (file != null) {
+            pinCounts.merge(file, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Releases a rendering returned by get(), store() or storeImage(), or pinned by pin(), once it is not used anymore.
+     * Files that are not in the cache (or null) are ignored
+     * @param file the cached file
+     */
+    public static synchronized void unpin(File file) {
+        if (file != null) {
+            pinCounts.computeIfPresent(file, (pinnedFile, count) -> (count > 1) ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Encodes the given rendered image to the cache as PNG
+     * @param renderKey the key of the rendering
+     * @param renderedImage the rendered image
+     * @return the cached file, pinned (see unpin())
+     */
+    public static File storeImage(String renderKey, BufferedImage renderedImage) throws IOException {
+        createCacheFolder();
+        final File tempFile = File.createTempFile("render", TEMP_EXTENSION, getCacheFolder());
+        try {
+            if (!ImageIO.write(renderedImage, Misc.IMAGE_FORMAT_PNG, tempFile)) {
+                throw new IOException("No PNG writer available");
+            }
+            return store(renderKey, Misc.IMAGE_EXTENSION_PNG, tempFile);
+        }
+        finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Moves the given rendered file to the cache
+     * @param renderKey the key of the rendering
+     * @param extension the extension of the rendered file
+     * @param renderedFile the rendered file. It is moved, not copied
+     * @return the cached file, pinned (see unpin())
+     */
+    public static File store(String renderKey, String extension, File renderedFile) throws IOException {
+        return store(renderKey, extension, renderedFile, true);
+    }
+
+    private static File store(String renderKey, String extension, File renderedFile, boolean isPinned) throws IOException {
+        createCacheFolder();
+        final File file = new File(getCacheFolder(), renderKey + extension);
+        Files.move(renderedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        synchronized (RenderCache.class) {
+            if (isPinned) {
+                pin(file);
+            }
+            evict(file);
+        }
+        return file;
+    }
+
+    /**
+     * Links (or copies, if it cannot be linked) the given rendered file to the cache, e.g. a file that is also used
+     * elsewhere
+     * @param renderKey the key of the rendering
+     * @param extension the extension of the rendered file
+     * @param renderedFile the rendered file. It is left in place
+     * @return the cached file, not pinned
+     */
+    public static File storeCopy(String renderKey, String extension, File renderedFile) throws IOException {
+        createCacheFolder();
+        final File tempFile = File.createTempFile("render", TEMP_EXTENSION, getCacheFolder());
+        try {
+            Files.delete(tempFile.toPath());
+            try {
+                Files.createLink(tempFile.toPath(), renderedFile.toPath());
+            }
+            catch (IOException | UnsupportedOperationException e) {
+                // E.g. different file systems
+                Files.copy(renderedFile.toPath(), tempFile.toPath());
+            }
+            return store(renderKey, extension, tempFile, false);
+        }
+        finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Deletes the least recently used renderings until the cache fits in its max size, except the pinned ones
+     * @param keptFile a file that must not be deleted (the one just stored)
+     */
+    private static synchronized void evict(File keptFile) {
+        final File[] files = getCacheFolder().listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        final long maxBytes = Prefs.getAsLong(Prefs.Key.RENDER_CACHE_MAX_BYTES);
+        final long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_EXTENSION)) {
+                if (now - file.lastModified() > STALE_TEMP_FILE_AGE_MS && !file.delete()) {
+                    logger.warn("Could not delete stale render file " + file.getAbsolutePath());
+                }
+                continue;
+            }
+            totalBytes += file.length();
+            if (totalBytes > maxBytes && !file.equals(keptFile) && !pinCounts.containsKey(file) && !file.delete()) {
+                logger.warn("Could not evict rendered capture " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static File getCacheFolder() {
+        return new File(Ginj.getHistoryFolder(), RENDER_CACHE_FOLDER_NAME);
+    }
+
+    private static void createCacheFolder() throws IOException {
+        final File cacheFolder = getCacheFolder();
+        if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+            throw new IOException("Could not create folder '" + cacheFolder.getAbsolutePath() + "'");
+        }
+    }
+}
@@ -89,8 +89,7 @@ public class ClipboardExporter extends Exporter {
             clipboard.setContents(transferableImage, (clipboard1, contents) -> {
                 // Do nothing. It's normal to lose ownership when another app copies something to the clipboard
             });
-            capture.addExport(new Export(getExporterName(), null, null, false));
-            complete(context, capture, "Image copied to clipboard");
+            complete(context, capture, new Export(getExporterName(), null, null, false), "Image copied to clipboard");
         }
         catch (Exception e) {
             UI.alertException(context.getParentFrame(), "Export error", "There was an error copying image to the clipboard", e, logger);
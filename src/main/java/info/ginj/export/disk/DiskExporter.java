@@ -6,6 +6,7 @@ import info.ginj.export.ExportMonitor;
 import info.ginj.export.Exporter;
 import info.ginj.model.Capture;
 import info.ginj.model.Export;
+import info.ginj.model.ExportSettings;
 import info.ginj.model.Target;
 import info.ginj.ui.StarWindow;
 import info.ginj.util.Misc;
@@ -21,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -50,6 +52,19 @@ public class DiskExporter extends Exporter {
         return "/img/icon/save.png";
     }
 
+    /**
+     * The rendered file is just copied when saving as PNG
+     */
+    @Override
+    public boolean isRenderedFileUsed(Target target) {
+        return target.getSettings().getPreferredFileFormat() != ExportSettings.FileFormat.JPEG;
+    }
+
+    @Override
+    public boolean isRenderedImageUsed(Target target) {
+        return target.getSettings().getPreferredFileFormat() != ExportSettings.FileFormat.PNG;
+    }
+
     @Override
     public boolean isOnlineService() {
         return false;
@@ -230,18 +245,18 @@ public class DiskExporter extends Exporter {
         File destinationFile = ((DiskExportContext)context).getDestinationFile();
         try {
             logProgress(context.getExportMonitor(), "Saving capture", PROGRESS_SAVE);
-            if (capture.isVideo() || capture.getRenderedImage() == null) {
+            if (capture.isVideo()) {
                 // TODO make this a block copy loop that can be cancelled (and doesn't freeze the UI) for large video files
                 Files.copy(capture.getRenderedFile().toPath(), destinationFile.toPath());
             }
             else {
                 // Save image
                 switch (target.getSettings().getPreferredFileFormat()) {
-                    case PNG -> ImageIO.write(capture.getRenderedImage(), Misc.IMAGE_FORMAT_PNG, destinationFile);
+                    case PNG -> writePng(capture, destinationFile);
                     case JPEG -> ImageIO.write(capture.getRenderedImage(), Misc.IMAGE_FORMAT_JPEG, destinationFile);
                     case SELECT_ON_SAVE -> {
                         if (destinationFile.getAbsolutePath().toLowerCase().endsWith(Misc.IMAGE_EXTENSION_PNG)) {
-                            ImageIO.write(capture.getRenderedImage(), Misc.IMAGE_FORMAT_PNG, destinationFile);
+                            writePng(capture, destinationFile);
                         }
                         else {
                             ImageIO.write(capture.getRenderedImage(), Misc.IMAGE_FORMAT_JPEG, destinationFile);
@@ -249,7 +264,7 @@ public class DiskExporter extends Exporter {
                     }
                     case SMALLEST -> {
                         File tmpPng = Files.createTempFile(Paths.get(destinationFile.getParent()), null, null).toFile();
-                        ImageIO.write(capture.getRenderedImage(), Misc.IMAGE_FORMAT_PNG, tmpPng);
+                        writePng(capture, tmpPng);
                         File tmpJpg = Files.createTempFile(Paths.get(destinationFile.getParent()), null, null).toFile();
                         ImageIO.write(capture.getRenderedImage(), Misc.IMAGE_FORMAT_JPEG, tmpJpg);
                         if (tmpJpg.length() < tmpPng.length()) {
@@ -287,8 +302,20 @@ public class DiskExporter extends Exporter {
             message += "\nPath was copied to clipboard";
         }
 
-        capture.addExport(export);
-        complete(context, capture, message);
+        complete(context, capture, export, message);
+    }
+
+    /**
+     * Writes the rendered image as PNG, just copying the rendered file if it was already encoded
+     */
+    private void writePng(Capture capture, File destinationFile) throws IOException {
+        final File renderedFile = capture.getRenderedFile();
+        if (renderedFile != null && renderedFile.getName().toLowerCase().endsWith(Misc.IMAGE_EXTENSION_PNG)) {
+            Files.copy(renderedFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else {
+            ImageIO.write(capture.getRenderedImage(), Misc.IMAGE_FORMAT_PNG, destinationFile);
+        }
     }
 
     private void keepFile(File targetFile, File fileToKeep, File fileToDelete) throws IOException {
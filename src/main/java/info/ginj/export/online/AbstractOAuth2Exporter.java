@@ -13,12 +13,12 @@ import info.ginj.model.Capture;
 import info.ginj.model.Profile;
 import info.ginj.model.Target;
 import info.ginj.ui.StarWindow;
+import info.ginj.util.HttpClientProvider;
 import info.ginj.util.UI;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.NameValuePair;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
@@ -198,7 +198,7 @@ public abstract class AbstractOAuth2Exporter extends AbstractOnlineExporter {
             logProgress(context.getExportMonitor(), "Getting tokens");
         }
 
-        CloseableHttpClient client = HttpClients.createDefault();
+        CloseableHttpClient client = HttpClientProvider.getClient();
 
         HttpPost httpPost = new HttpPost(getOAuth2TokenUrl());
 
@@ -362,7 +362,7 @@ public abstract class AbstractOAuth2Exporter extends AbstractOnlineExporter {
      * https://blog.timekit.io/google-oauth-invalid-grant-nightmare-and-how-to-fix-it-9f4efaf1da35
      */
     private String refreshAccessToken(Account account) throws AuthorizationException {
-        CloseableHttpClient client = HttpClients.createDefault();
+        CloseableHttpClient client = HttpClientProvider.getClient();
 
         HttpPost httpPost = new HttpPost(getOAuth2TokenUrl());
 
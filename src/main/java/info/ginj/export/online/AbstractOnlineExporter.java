@@ -8,11 +8,21 @@ import info.ginj.export.online.exception.UploadException;
 import info.ginj.model.Account;
 import info.ginj.model.Capture;
 import info.ginj.model.Export;
+import info.ginj.model.Prefs;
 import info.ginj.model.Target;
+import info.ginj.util.UI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractOnlineExporter extends Exporter {
+    private static final Logger logger = LoggerFactory.getLogger(AbstractOnlineExporter.class);
 
     public static final int PROGRESS_CHECK_AUTHORIZE_START = 2;
+    public static final int PROGRESS_CHECK_PREVIOUS_EXPORT = 4;
     public static final int PROGRESS_CREATING_ALBUM = 5;
     public static final int PROGRESS_GETTING_ALBUM = 6;
     public static final int PROGRESS_SHARING_ALBUM = 8;
@@ -21,14 +31,30 @@ public abstract class AbstractOnlineExporter extends Exporter {
     public static final int PROGRESS_UPLOAD_END = 90;
     public static final int PROGRESS_CREATING_MEDIA = 95;
 
-    /** The chunk size to use for data upload.
+    /** The initial chunk size to use for data upload, until a better one is learned (see AdaptiveChunkSizer).
      * Must be a multiple of 256*1024 for Google Drive
-     * TODO make it larger for better performance
      */
     public static final int CHUNK_SIZE = 256*1024;
 
+    /**
+     * Number of times an interrupted upload is resumed in a row before giving up the attempt (the ExportQueue may
+     * then retry it later, still resuming from the last acknowledged byte)
+     */
+    public static final int MAX_CONSECUTIVE_RESUMES = 3;
+    private static final long RESUME_DELAY_MS = 1_000;
+    private static final long PROGRESS_REPORT_INTERVAL_NANOS = 100_000_000;
+
     public abstract Account authorize(ExportContext context) throws AuthorizationException, CommunicationException;
 
+    /**
+     * Unless disabled in prefs, images are not encoded before exporting: the export queue encodes them in the
+     * background, so that the upload can start meanwhile
+     */
+    @Override
+    public boolean isRenderedFileUsed(Target target) {
+        return !Prefs.isTrue(Prefs.Key.EXPORT_UPLOAD_WHILE_ENCODING);
+    }
+
     /**
      * This method checks that the account is valid and authorized
      *
@@ -52,4 +78,229 @@ public abstract class AbstractOnlineExporter extends Exporter {
      * @throws CommunicationException in case a communication error occurs
      */
     public abstract Export uploadCapture(ExportContext context, Capture capture, Target target) throws AuthorizationException, UploadException, CommunicationException;
+
+    /**
+     * Uploads the given capture, copies its link if requested, and completes the export.
+     * This method is run in its own thread and should not access the GUI directly. All interaction
+     * should go through synchronized objects or be enclosed in a SwingUtilities.invokeLater() logic
+     *
+     * @param context the export context
+     * @param capture the capture to export
+     * @param target  the target to export this capture to
+     */
+    @Override
+    public void exportCapture(ExportContext context, Capture capture, Target target) {
+        try {
+            uploadAndComplete(context, capture, target);
+        }
+        catch (Exception e) {
+            UI.alertException(context.getParentFrame(), getExporterName() + " Error", "There was an error exporting to " + getExporterName(), e, logger);
+            failed(context, "Upload error");
+        }
+    }
+
+    /**
+     * Same as {@link #exportCapture(ExportContext, Capture, Target)}, but errors are thrown to the caller instead of
+     * being reported to the user, so that it can decide to retry the export (see ExportQueue)
+     *
+     * @param context the export context
+     * @param capture the capture to export
+     * @param target  the target to export this capture to
+     * @return true if the capture was exported, false if the upload was cancelled
+     * @throws AuthorizationException in case authorization fails
+     * @throws UploadException        if an upload-specific error occurs
+     * @throws CommunicationException in case a communication error occurs
+     */
+    public boolean uploadAndComplete(ExportContext context, Capture capture, Target target) throws AuthorizationException, UploadException, CommunicationException {
+        final Export export = uploadCapture(context, capture, target);
+        if (export == null) {
+            return false;
+        }
+        String message = "Upload successful.";
+        if (export.getLocation() != null && target.getSettings().getMustCopyPath()) {
+            copyTextToClipboard(export.getLocation());
+            export.setLocationCopied(true);
+            message += "\n" + getLinkCopiedMessage();
+        }
+        // Indicate export is complete.
+        complete(context, capture, export, message);
+        return true;
+    }
+
+    /**
+     * @return the message telling the user what link was copied to the clipboard
+     */
+    protected String getLinkCopiedMessage() {
+        return "A link to your capture was copied to the clipboard";
+    }
+
+    /**
+     * Returns the rendered file of the given capture, waiting for the end of its encoding if needed
+     *
+     * @param capture the capture to upload
+     * @return the rendered file
+     * @throws UploadException if the file could not be encoded
+     */
+    protected File toRenderedFile(Capture capture) throws UploadException {
+        try {
+            return capture.toRenderedFile();
+        }
+        catch (IOException e) {
+            throw new UploadException("Error preparing file to upload", e);
+        }
+    }
+
+    /**
+     * Waits a little before resuming an interrupted upload, longer at each consecutive attempt
+     *
+     * @param numConsecutiveResumes the number of times the upload was resumed without progress, from 1
+     */
+    protected void waitBeforeResuming(int numConsecutiveResumes) {
+        try {
+            Thread.sleep(RESUME_DELAY_MS * numConsecutiveResumes);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reports the progress of an upload to the export monitor as the bytes of its chunks are written to the connection,
+     * at most every {@link #PROGRESS_REPORT_INTERVAL_NANOS}. Several chunks may be sent at the same time, and a chunk
+     * sent again replaces its previous attempt.
+     */
+    protected class UploadProgress {
+        private final ExportContext context;
+        private final long fileLength;
+        private final AtomicLong uploadedBytes = new AtomicLong();
+        private final AtomicLong lastReportNanos = new AtomicLong();
+
+        public UploadProgress(ExportContext context, long fileLength) {
+            this.context = context;
+            this.fileLength = fileLength;
+        }
+
+        /**
+         * Sets the number of bytes uploaded so far, e.g. the offset acknowledged by the server
+         */
+        public void set(long numBytes) {
+            uploadedBytes.set(numBytes);
+            report(true);
+        }
+
+        /**
+         * @return a listener to pass to the entity of a chunk, adding its written bytes to the upload progress
+         */
+        public FileRegionEntity.ProgressListener forChunk() {
+            return new FileRegionEntity.ProgressListener() {
+                private long previousWrittenBytes = 0;
+
+                @Override
+                public void onBytesWritten(long writtenBytes) {
+                    uploadedBytes.addAndGet(writtenBytes - previousWrittenBytes);
+                    previousWrittenBytes = writtenBytes;
+                    report(false);
+                }
+            };
+        }
+
+        private void report(boolean force) {
+            final long now = System.nanoTime();
+            final long lastReport = lastReportNanos.get();
+            if (force || (now - lastReport >= PROGRESS_REPORT_INTERVAL_NANOS && lastReportNanos.compareAndSet(lastReport, now))) {
+                final long numBytes = Math.max(0, Math.min(uploadedBytes.get(), fileLength));
+                logProgress(context.getExportMonitor(), "Uploading", (int) (PROGRESS_UPLOAD_START + ((PROGRESS_UPLOAD_END - PROGRESS_UPLOAD_START) * numBytes) / fileLength), numBytes, fileLength);
+            }
+        }
+    }
+
+    /**
+     * @return the host name of the API of this service, to check if it can be reached, or null if unknown
+     */
+    public String getApiHost() {
+        return null;
+    }
+
+    /**
+     * Computes the hash of the given file the way this online service does, to be able to check later that the uploaded
+     * media is still there, unchanged (see {@link #getRemoteContentHash(Target, Export)}).
+     *
+     * @param file the file to upload
+     * @return the hash, or null if this service cannot check uploaded media
+     * @throws IOException if the file could not be read
+     */
+    public String computeContentHash(File file) throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the hash of a previously uploaded media, as computed by this online service
+     *
+     * @param target the target the media was exported to
+     * @param export the previous export
+     * @return the hash, or null if the media is not there anymore, or if this service cannot check uploaded media
+     * @throws AuthorizationException in case authorization fails
+     * @throws CommunicationException in case a communication error occurs
+     */
+    public String getRemoteContentHash(Target target, Export export) throws AuthorizationException, CommunicationException {
+        return null;
+    }
+
+    /**
+     * Shares a previously uploaded media
+     *
+     * @param target the target the media was exported to
+     * @param export the previous export
+     * @return a public URL to share to give access to the media
+     * @throws AuthorizationException in case authorization fails
+     * @throws CommunicationException in case a communication error occurs
+     */
+    public String shareExport(Target target, Export export) throws AuthorizationException, CommunicationException {
+        throw new CommunicationException("Sharing previously uploaded media is not supported by " + getExporterName());
+    }
+
+    /**
+     * Exports again a capture that was already uploaded to this service with the same rendering.
+     * If the uploaded media is still there, unchanged, the capture is not uploaded again: only the steps that were not
+     * performed by the previous export (sharing, copying the link) are performed.
+     * This method is run in its own thread and should not access the GUI directly. All interaction
+     * should go through synchronized objects or be enclosed in a SwingUtilities.invokeLater() logic
+     *
+     * @param context        the export context
+     * @param capture        the capture to export
+     * @param target         the target to export this capture to
+     * @param previousExport the previous export of the capture to this service, with the same render key
+     * @return false if the capture must be rendered and uploaded again, true if the export was handled (successfully or not)
+     */
+    public boolean reexportCapture(ExportContext context, Capture capture, Target target, Export previousExport) {
+        if (previousExport.getMediaId() == null || previousExport.getContentHash() == null) {
+            return false;
+        }
+        try {
+            logProgress(context.getExportMonitor(), "Checking previous export", PROGRESS_CHECK_PREVIOUS_EXPORT);
+            if (!previousExport.getContentHash().equals(getRemoteContentHash(target, previousExport))) {
+                logger.info("Previous export of " + capture + " to " + getExporterName() + " is missing or modified. Uploading it again.");
+                return false;
+            }
+            String message = "Capture was already uploaded.";
+            if (previousExport.getLocation() == null && target.getSettings().getMustShare()) {
+                logProgress(context.getExportMonitor(), "Sharing", PROGRESS_UPLOAD_END);
+                previousExport.setLocation(shareExport(target, previousExport));
+                message += "\nIt is now shared.";
+            }
+            if (previousExport.getLocation() != null && target.getSettings().getMustCopyPath()) {
+                copyTextToClipboard(previousExport.getLocation());
+                previousExport.setLocationCopied(true);
+                message += "\nA link to your capture was copied to the clipboard";
+            }
+            // Make it the last export
+            capture.getExports().remove(previousExport);
+            complete(context, capture, previousExport, message);
+        }
+        catch (Exception e) {
+            UI.alertException(context.getParentFrame(), getExporterName() + " Error", "There was an error exporting to " + getExporterName(), e, logger);
+            failed(context, "Export error");
+        }
+        return true;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package info.ginj.export.online;
+
+import info.ginj.Ginj;
+import info.ginj.model.Target;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class chooses the size of the chunks of an upload, based on the throughput measured on the previous chunks.
+ * Each chunk costs at least a round trip, so small chunks waste most of the time waiting on fast links, while large
+ * chunks lose more when interrupted. The size starts from the one learned by previous uploads to the same target, then
+ * doubles as long as the measured throughput (which includes the round trip of each request) improves significantly.
+ * When it does not, the size goes back to the previous one and stays there. It is halved when a chunk fails or takes
+ * too long.
+ * Sizes are multiples of 256KB, as required by Google Drive, and bounded to keep request durations and memory use
+ * reasonable (Dropbox accepts up to 150MB per request).
+ */
+public class AdaptiveChunkSizer {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveChunkSizer.class);
+
+    public static final int GRANULARITY = 256 * 1024;
+    public static final int MIN_CHUNK_SIZE = GRANULARITY;
+    public static final int MAX_CHUNK_SIZE = 32 * 1024 * 1024;
+
+    // Growing the chunks is only worth it if throughput improves by at least 10%
+    private static final double MIN_THROUGHPUT_IMPROVEMENT = 1.1;
+    // A chunk taking longer than that is too large
+    private static final long MAX_CHUNK_DURATION_NANOS = 10_000_000_000L;
+
+    private int chunkSize;
+    // Bytes per second measured at the previous chunk size, or 0 if unknown
+    private double previousThroughput = 0;
+    private boolean isGrowing = true;
+
+    /**
+     * @param target the target uploads go to, from which the learned chunk size is retrieved
+     */
+    public AdaptiveChunkSizer(Target target) {
+        this(target.getUploadChunkSize() > 0 ? target.getUploadChunkSize() : AbstractOnlineExporter.CHUNK_SIZE);
+    }
+
+    public AdaptiveChunkSizer(int initialChunkSize) {
+        chunkSize = round(initialChunkSize);
+    }
+
+    /**
+     * @return the size of the next chunk. Always a multiple of {@link #GRANULARITY}
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Adjusts the size after a successful chunk upload
+     *
+     * @param numBytes      the number of bytes sent and acknowledged
+     * @param durationNanos the time from the start of the request to the reception of the response
+     */
+    public void onChunkSent(long numBytes, long durationNanos) {
+        if (numBytes < chunkSize || durationNanos <= 0) {
+            // Last (shorter) chunk, or partially received chunk: not representative
+            return;
+        }
+        final double throughput = numBytes * 1_000_000_000.0 / durationNanos;
+        if (durationNanos > MAX_CHUNK_DURATION_NANOS) {
+            isGrowing = false;
+            previousThroughput = 0;
+            setChunkSize(chunkSize / 2, "chunk took " + durationNanos / 1_000_000 + "ms");
+        }
+        else if (isGrowing) {
+            if (previousThroughput == 0 || throughput >= previousThroughput * MIN_THROUGHPUT_IMPROVEMENT) {
+                previousThroughput = throughput;
+                if (chunkSize < MAX_CHUNK_SIZE && durationNanos * 2 <= MAX_CHUNK_DURATION_NANOS) {
+                    setChunkSize(chunkSize * 2, "throughput " + (long) (throughput / 1024) + "KB/s");
+                }
+                else {
+                    // Cannot grow further
+                    isGrowing = false;
+                }
+            }
+            else {
+                // Larger chunks did not help: go back to the previous size
+                isGrowing = false;
+                setChunkSize(chunkSize / 2, "throughput " + (long) (throughput / 1024) + "KB/s did not improve");
+            }
+        }
+    }
+
+    /**
+     * Adjusts the size after a failed chunk upload
+     */
+    public void onChunkFailed() {
+        isGrowing = false;
+        previousThroughput = 0;
+        setChunkSize(chunkSize / 2, "chunk failed");
+    }
+
+    /**
+     * Remembers the current chunk size in the given target, for its next uploads
+     *
+     * @param target the target uploads went to
+     */
+    public void saveTo(Target target) {
+        if (target.getUploadChunkSize() != chunkSize) {
+            target.setUploadChunkSize(chunkSize);
+            Ginj.getTargetPrefs().save();
+        }
+    }
+
+    private void setChunkSize(int newChunkSize, String reason) {
+        newChunkSize = round(newChunkSize);
+        if (newChunkSize != chunkSize) {
+            logger.debug("Chunk size " + chunkSize / 1024 + "KB -> " + newChunkSize / 1024 + "KB (" + reason + ")");
+            chunkSize = newChunkSize;
+        }
+    }
+
+    private static int round(long size) {
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, (size / GRANULARITY) * GRANULARITY));
+    }
+}
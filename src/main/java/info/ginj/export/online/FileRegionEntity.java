@@ -0,0 +1,121 @@
+package info.ginj.export.online;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An HTTP entity streaming a region of a file (typically an upload chunk) directly from its channel to the connection,
+ * instead of copying the whole region to a byte array first.
+ * The region is read by position, so the channel can be shared by several entities sent at the same time. Bytes go
+ * through a small per-thread transfer buffer, which is reused by all the requests of that thread.
+ * The file is never memory-mapped, so that it can be deleted as soon as the upload is over, even on Windows.
+ * The progress listener is told of the bytes actually written to the connection, as they are written.
+ */
+public class FileRegionEntity extends AbstractHttpEntity {
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> transferBuffer = ThreadLocal.withInitial(() -> new byte[TRANSFER_BUFFER_SIZE]);
+
+    private final FileChannel channel;
+    private final long position;
+    private final long length;
+    private final ProgressListener progressListener;
+
+    /**
+     * @param channel          the channel of the file. It is not closed by this entity
+     * @param position         the position of the region in the file
+     * @param length           the length of the region
+     * @param contentType      the content type
+     * @param progressListener the listener to notify of the bytes written, or null
+     */
+    public FileRegionEntity(FileChannel channel, long position, long length, ContentType contentType, ProgressListener progressListener) {
+        super(contentType, null);
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+        this.progressListener = progressListener;
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        final byte[] buffer = transferBuffer.get();
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long writtenBytes = 0;
+        while (writtenBytes < length) {
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(buffer.length, length - writtenBytes));
+            final int numBytes = channel.read(byteBuffer, position + writtenBytes);
+            if (numBytes < 0) {
+                throw new IOException("Unexpected end of file at byte " + (position + writtenBytes));
+            }
+            outStream.write(buffer, 0, numBytes);
+            writtenBytes += numBytes;
+            if (progressListener != null) {
+                progressListener.onBytesWritten(writtenBytes);
+            }
+        }
+        outStream.flush();
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new InputStream() {
+            private long readBytes = 0;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] singleByte = new byte[1];
+                return (read(singleByte, 0, 1) < 0) ? -1 : (singleByte[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int numBytes) throws IOException {
+                if (readBytes >= length) {
+                    return -1;
+                }
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(numBytes, length - readBytes));
+                final int read = channel.read(byteBuffer, position + readBytes);
+                if (read > 0) {
+                    readBytes += read;
+                }
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // The channel belongs to the caller
+    }
+
+    public interface ProgressListener {
+        /**
+         * Called each time bytes of the region are written to the connection
+         *
+         * @param writtenBytes the number of bytes of the region written so far
+         */
+        void onBytesWritten(long writtenBytes);
+    }
+}
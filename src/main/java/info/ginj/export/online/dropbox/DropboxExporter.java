@@ -6,19 +6,24 @@ import com.google.gson.annotations.SerializedName;
 import info.ginj.Ginj;
 import info.ginj.export.ExportContext;
 import info.ginj.export.online.AbstractOAuth2Exporter;
+import info.ginj.export.online.AdaptiveChunkSizer;
+import info.ginj.export.online.FileRegionEntity;
 import info.ginj.export.online.exception.AuthorizationException;
 import info.ginj.export.online.exception.CommunicationException;
 import info.ginj.export.online.exception.UploadException;
 import info.ginj.model.*;
-import info.ginj.util.UI;
+import info.ginj.util.HttpClientProvider;
+import info.ginj.util.ImageEncoding;
+import info.ginj.util.Misc;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
 import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
@@ -26,8 +31,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles interaction with Dropbox
@@ -41,6 +53,14 @@ public class DropboxExporter extends AbstractOAuth2Exporter {
     private static final String DROPBOX_OAUTH2_AUTH_URL = "https://www.dropbox.com/oauth2/authorize";
     private static final String DROPBOX_OAUTH2_TOKEN_URL = "https://api.dropboxapi.com/oauth2/token";
     private static final String DROPBOX_REVOKE_URL = "https://www.dropbox.com/account/connected_apps";
+    private static final String DROPBOX_CONTENT_API_URL = "https://content.dropboxapi.com/2";
+    private static final int CONTENT_HASH_BLOCK_SIZE = 4 * 1024 * 1024;
+    // All chunks of a concurrent upload session, except the last one, must be a multiple of this size
+    private static final int CONCURRENT_CHUNK_GRANULARITY = 4 * 1024 * 1024;
+    // Keep chunks short enough that sending one again costs little
+    private static final int MAX_CONCURRENT_CHUNK_SIZE = 2 * CONCURRENT_CHUNK_GRANULARITY;
+    // Max size of a file uploaded in a single request
+    private static final long MAX_SINGLE_UPLOAD_SIZE = 150 * 1024 * 1024;
 
     public static final String NAME = "Dropbox";
 
@@ -113,41 +133,13 @@ public class DropboxExporter extends AbstractOAuth2Exporter {
         return true;
     }
 
-
-    /**
-     * Exports the given capture
-     * This method is run in its own thread and should not access the GUI directly. All interaction
-     * should go through synchronized objects or be enclosed in a SwingUtilities.invokeLater() logic
-     *
-     * @param capture the capture to export
-     * @param target  the target to export this capture to
-     */
     @Override
-    public void exportCapture(ExportContext context, Capture capture, Target target) {
-        try {
-            final Export export = uploadCapture(context, capture, target);
-            if (export != null) {
-                String message = "Upload successful.";
-
-                if (export.getLocation() != null) {
-                    if (target.getSettings().getMustCopyPath()) {
-                        copyTextToClipboard(export.getLocation());
-                        export.setLocationCopied(true);
-                        message += "\nA link to your capture was copied to the clipboard";
-                    }
-                }
-                capture.addExport(export);
-                // Indicate export is complete.
-                complete(context, capture, message);
-            }
-        }
-        catch (Exception e) {
-            UI.alertException(context.getParentFrame(), getExporterName() + " Error", "There was an error exporting to " + getExporterName(), e, logger);
-            failed(context, "Upload error");
-        }
+    public String getApiHost() {
+        return "content.dropboxapi.com";
     }
 
 
+
     /**
      * This method checks that Dropbox authorizations are OK by fetching user info
      *
@@ -172,7 +164,7 @@ public class DropboxExporter extends AbstractOAuth2Exporter {
 
 
     protected Profile getProfile(String accessToken) throws CommunicationException, AuthorizationException {
-        CloseableHttpClient client = HttpClients.createDefault();
+        CloseableHttpClient client = HttpClientProvider.getClient();
 
         HttpPost httpPost;
         try {
@@ -227,13 +219,14 @@ public class DropboxExporter extends AbstractOAuth2Exporter {
      */
     @Override
     public Export uploadCapture(ExportContext context, Capture capture, Target target) throws AuthorizationException, UploadException, CommunicationException {
-        // We need an actual file (for now at least). Make sure we have or create one
         logProgress(context.getExportMonitor(), "Rendering file", PROGRESS_RENDER_START);
-        try {
-            capture.toRenderedFile();
-        }
-        catch (IOException e) {
-            throw new UploadException("Error preparing file to upload", e);
+        final ImageEncoding encoding = capture.getRenderedFileEncoding();
+        // A PNG is at most a few bytes larger than the raw pixels
+        final boolean isUploadedWhileEncoding = capture.getRenderedFile() == null && encoding != null
+                && capture.getRenderedImage() != null && 4L * capture.getRenderedImage().getWidth() * capture.getRenderedImage().getHeight() < MAX_SINGLE_UPLOAD_SIZE / 2;
+        if (!isUploadedWhileEncoding) {
+            // We need an actual file. Make sure we have or create one
+            toRenderedFile(capture);
         }
 
         if (isCancelRequested()) {
@@ -241,202 +234,513 @@ public class DropboxExporter extends AbstractOAuth2Exporter {
             return null;
         }
 
-        final CloseableHttpClient client = HttpClients.createDefault();
+        final CloseableHttpClient client = HttpClientProvider.getClient();
 
         // Step 1: Upload the file
-        final FileMetadata fileMetadata = uploadFile(context, client, target, capture);
+        final FileMetadata fileMetadata = isUploadedWhileEncoding ? uploadWhileEncoding(context, client, target, capture, encoding) : uploadFile(context, client, target, capture);
 
+        final Export export;
         if (target.getSettings().getMustShare()) {
             // Step 2: Share it
             SharedLinkMetadata sharedLinkMetadata = shareFile(client, target, fileMetadata.getPathDisplay());
 
-            return new Export(getExporterName(), fileMetadata.getPathDisplay(), sharedLinkMetadata.getUrl(), false);
+            export = new Export(getExporterName(), fileMetadata.getPathDisplay(), sharedLinkMetadata.getUrl(), false);
         }
         else {
-            return new Export(getExporterName(), fileMetadata.getPathDisplay(), null, false);
+            export = new Export(getExporterName(), fileMetadata.getPathDisplay(), null, false);
         }
+        // Dropbox returns the hash of what it received
+        export.setContentHash(fileMetadata.getContentHash());
+        return export;
     }
 
-    public FileMetadata uploadFile(ExportContext context, CloseableHttpClient client, Target target, Capture capture) throws AuthorizationException, UploadException, CommunicationException {
-        FileMetadata fileMetadata;
-
-        String sessionId;
-
-        final File file = capture.getRenderedFile();
+    /**
+     * This method implements https://www.dropbox.com/developers/reference/content-hash :
+     * the SHA-256 of the concatenated SHA-256 of each 4MB block of the file
+     */
+    @Override
+    public String computeContentHash(File file) throws IOException {
+        final MessageDigest fileDigest;
+        final MessageDigest blockDigest;
+        try {
+            fileDigest = MessageDigest.getInstance("SHA-256");
+            blockDigest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Cannot happen: SHA-256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+        try (InputStream is = new FileInputStream(file)) {
+            final byte[] buffer = new byte[CONTENT_HASH_BLOCK_SIZE];
+            int blockSize;
+            while ((blockSize = is.readNBytes(buffer, 0, buffer.length)) > 0) {
+                blockDigest.update(buffer, 0, blockSize);
+                fileDigest.update(blockDigest.digest());
+            }
+        }
+        return Misc.toHex(fileDigest.digest());
+    }
 
-        int maxChunkSize = CHUNK_SIZE;
-        byte[] buffer = new byte[maxChunkSize];
-        int offset = 0;
-        long remainingBytes = file.length();
+    @Override
+    public String getRemoteContentHash(Target target, Export export) throws AuthorizationException, CommunicationException {
+        try {
+            return getFileMetadata(HttpClientProvider.getClient(), target, export.getMediaId()).getContentHash();
+        }
+        catch (FileNotFoundException e) {
+            // Deleted or moved
+            return null;
+        }
+    }
 
-        try (InputStream is = new FileInputStream(file)) {
-            // Step 1: Initiating an upload session with the first CHUNK
-            logProgress(context.getExportMonitor(), "Uploading", PROGRESS_UPLOAD_START);
-            HttpPost httpPost = new HttpPost("https://content.dropboxapi.com/2/files/upload_session/start");
+    @Override
+    public String shareExport(Target target, Export export) throws AuthorizationException, CommunicationException {
+        return shareFile(HttpClientProvider.getClient(), target, export.getMediaId()).getUrl();
+    }
 
-            httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
-            //httpPost.addHeader("Content-Length", 0); // Don't put it here, it causes a "dupe header" error if there is an entity, and if there is no entity it's forbidden.
-            httpPost.addHeader("Dropbox-API-Arg", "{\"close\": false}");
+    /**
+     * @return the base URL of the content API (uploads)
+     */
+    protected String getContentApiUrl() {
+        return DROPBOX_CONTENT_API_URL;
+    }
 
-            // First chunk
-            int bytesRead = readBytes(is, buffer, maxChunkSize, remainingBytes);
-            httpPost.setEntity(new ByteArrayEntity(buffer, 0, bytesRead, ContentType.APPLICATION_OCTET_STREAM));
+    /**
+     * Uploads the rendered image of the given capture while it is being encoded, in a single request whose body is
+     * sent in chunked encoding as the file grows.
+     * If the upload fails, it is not resumed: the file will be complete for the next attempt, which will use an upload
+     * session.
+     * See https://www.dropbox.com/developers/documentation/http/documentation#files-upload
+     */
+    private FileMetadata uploadWhileEncoding(ExportContext context, CloseableHttpClient client, Target target, Capture capture, ImageEncoding encoding) throws AuthorizationException, UploadException, CommunicationException {
+        logProgress(context.getExportMonitor(), "Uploading", PROGRESS_UPLOAD_START);
+        final HttpPost httpPost = new HttpPost(getContentApiUrl() + "/files/upload");
+        httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+        httpPost.addHeader("Dropbox-API-Arg", getCommitArg("/Applications/" + Ginj.getAppName() + "/" + capture.computeUploadFilename()));
 
-            // Send request
+        try (InputStream in = encoding.openStream()) {
+            // Unknown length: the body is sent in chunked encoding
+            httpPost.setEntity(new InputStreamEntity(in, -1, ContentType.APPLICATION_OCTET_STREAM));
             try (CloseableHttpResponse response = client.execute(httpPost)) {
                 if (isStatusOK(response.getCode())) {
-                    final String responseText;
-                    try {
-                        responseText = EntityUtils.toString(response.getEntity());
-                        @SuppressWarnings("rawtypes")
-                        Map map = new Gson().fromJson(responseText, Map.class);
-                        sessionId = (String) map.get("session_id");
-                    }
-                    catch (ParseException e) {
-                        throw new CommunicationException("Could not parse start upload session response as String: " + response.getEntity());
-                    }
-                    if (sessionId == null) {
-                        throw new CommunicationException("Returned session id is null.");
+                    final FileMetadata fileMetadata = new Gson().fromJson(EntityUtils.toString(response.getEntity()), FileMetadata.class);
+                    if (fileMetadata == null) {
+                        throw new CommunicationException("Returned fileMetadata is null.");
                     }
+                    // Complete, since it was read to the end
+                    final File file = toRenderedFile(capture);
+                    logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, file.length(), file.length());
+                    return fileMetadata;
                 }
-                else {
-                    final String responseError = getResponseError(response);
-                    if ((response.getCode() / 100) == 5) {
-                        // Error 5xx
-                        // Don't know if Dropbox actually uses it but well
-                        throw new UploadException("Resuming not implemented yet:\n" + responseError);
-                    }
-                    throw new UploadException("The server returned the following error when starting file contents:\n" + responseError);
+                final String responseError = getResponseError(response);
+                if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                    // Server temporarily unavailable: the upload can be retried later
+                    throw new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
                 }
+                throw new UploadException("The server returned the following error when uploading file contents:\n" + responseError);
             }
-            catch (IOException e) {
-                throw new CommunicationException("Error starting file contents", e);
+            catch (ParseException e) {
+                throw new CommunicationException("Could not parse upload response as String", e);
+            }
+        }
+        catch (IOException e) {
+            if (encoding.isFailed()) {
+                throw new UploadException("Error preparing file to upload", e);
             }
+            throw new CommunicationException("Error uploading file contents", e);
+        }
+    }
 
-            // Update counters
-            offset += bytesRead;
-            remainingBytes = file.length() - offset;
+    /**
+     * Uploads the rendered file of the given capture using an upload session.
+     * If the upload is interrupted, it goes on from the offset the server reports (incorrect_offset error), and the
+     * session id is recorded in the context so that a later attempt can also resume it.
+     * Files larger than a chunk are uploaded using a concurrent session if enabled in prefs, unless a previous
+     * (sequential) session can be resumed.
+     */
+    public FileMetadata uploadFile(ExportContext context, CloseableHttpClient client, Target target, Capture capture) throws AuthorizationException, UploadException, CommunicationException {
+        FileMetadata fileMetadata = null;
 
+        String sessionId;
+
+        final File file = capture.getRenderedFile();
+        final long fileLength = file.length();
+
+        final AdaptiveChunkSizer chunkSizer = new AdaptiveChunkSizer(target);
+        final int numConcurrentChunks = Prefs.getAsInt(Prefs.Key.DROPBOX_CONCURRENT_CHUNKS);
+        final int concurrentChunkSize = Math.min(MAX_CONCURRENT_CHUNK_SIZE, Math.max(CONCURRENT_CHUNK_GRANULARITY, (chunkSizer.getChunkSize() / CONCURRENT_CHUNK_GRANULARITY) * CONCURRENT_CHUNK_GRANULARITY));
+        if (numConcurrentChunks > 1 && fileLength > concurrentChunkSize
+                && (context.getUploadSession() == null || !context.getUploadSession().isResumable(getExporterName(), fileLength))) {
+            return uploadFileConcurrently(context, client, target, capture, numConcurrentChunks, concurrentChunkSize);
+        }
+
+        final UploadProgress uploadProgress = new UploadProgress(context, fileLength);
+        long offset = 0;
+        int numConsecutiveResumes = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            logProgress(context.getExportMonitor(), "Uploading", PROGRESS_UPLOAD_START);
+            final UploadSession previousSession = context.getUploadSession();
+            if (previousSession != null && previousSession.isResumable(getExporterName(), fileLength)) {
+                // Step 1: Resume the session of a previous attempt.
+                // Its offset is unknown, but the server will tell it in reply to the first append
+                logger.info("Resuming upload session of " + capture);
+                sessionId = previousSession.getSessionId();
+            }
+            else {
+                // Step 1: Initiating an upload session with the first CHUNK
+                final int chunkSize = (int) Math.min(chunkSizer.getChunkSize(), fileLength);
+                sessionId = startUploadSession(client, target, new FileRegionEntity(channel, 0, chunkSize, ContentType.APPLICATION_OCTET_STREAM, uploadProgress.forChunk()), false);
+                context.setUploadSession(new UploadSession(getExporterName(), sessionId, fileLength));
+                offset = chunkSize;
+            }
+
+            // Step 2: Append to session with more CHUNKS, if needed, then finish session with the remaining bytes
+            final String destinationFileName = "/Applications/" + Ginj.getAppName() + "/" + capture.computeUploadFilename();
+            while (fileMetadata == null && !isCancelRequested()) {
+                uploadProgress.set(offset);
 
-            // Step 2: Append to session with more CHUNKS, if needed
-            while (remainingBytes > CHUNK_SIZE && !isCancelRequested()) {
-                logProgress(context.getExportMonitor(), "Uploading", (int) (PROGRESS_UPLOAD_START + ((PROGRESS_UPLOAD_END - PROGRESS_UPLOAD_START) * offset) / file.length()), offset, file.length());
-                httpPost = new HttpPost("https://content.dropboxapi.com/2/files/upload_session/append_v2");
+                final int chunkSize = (int) Math.min(chunkSizer.getChunkSize(), fileLength - offset);
+                final boolean isLastChunk = (offset + chunkSize >= fileLength);
 
+                final HttpPost httpPost;
+                if (isLastChunk) {
+                    httpPost = new HttpPost(getContentApiUrl() + "/files/upload_session/finish");
+                    httpPost.addHeader("Dropbox-API-Arg", getFinishArg(sessionId, offset, destinationFileName));
+                }
+                else {
+                    httpPost = new HttpPost(getContentApiUrl() + "/files/upload_session/append_v2");
+                    httpPost.addHeader("Dropbox-API-Arg", getAppendArg(sessionId, offset, false));
+                }
                 httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
                 //httpPost.addHeader("Content-Length", 0); // Don't put it here, it causes a "dupe header" error if there is an entity, and if there is no entity it's forbidden.
-                httpPost.addHeader("Dropbox-API-Arg",
-                        "{\"cursor\": " +
-                                "{\"session_id\": \"" + sessionId + "\"," +
-                                "\"offset\": " + offset + "}" +
-                                ",\"close\": false}");
-
-                // Next chunk
-                bytesRead = readBytes(is, buffer, maxChunkSize, remainingBytes);
-                httpPost.setEntity(new ByteArrayEntity(buffer, 0, bytesRead, ContentType.APPLICATION_OCTET_STREAM));
+                httpPost.setEntity(new FileRegionEntity(channel, offset, chunkSize, ContentType.APPLICATION_OCTET_STREAM, uploadProgress.forChunk()));
 
                 // Send request
+                CommunicationException interruption = null;
+                boolean isSessionLost = false;
+                final long chunkStartNanos = System.nanoTime();
                 try (CloseableHttpResponse response = client.execute(httpPost)) {
-                    if (!isStatusOK(response.getCode())) {
+                    if (isStatusOK(response.getCode())) {
+                        if (isLastChunk) {
+                            try {
+                                final String responseText = EntityUtils.toString(response.getEntity());
+                                fileMetadata = new Gson().fromJson(responseText, FileMetadata.class);
+                                if (fileMetadata == null) {
+                                    throw new CommunicationException("Returned fileMetadata is null.");
+                                }
+                            }
+                            catch (ParseException e) {
+                                throw new CommunicationException("Could not parse finish upload session response as String: " + response.getEntity());
+                            }
+                        }
+                        else {
+                            EntityUtils.consume(response.getEntity());
+                            chunkSizer.onChunkSent(chunkSize, System.nanoTime() - chunkStartNanos);
+                            offset += chunkSize;
+                        }
+                        numConsecutiveResumes = 0;
+                    }
+                    else if (response.getCode() == 409) {
+                        final String responseText = EntityUtils.toString(response.getEntity());
+                        final Map<?, ?> lookupError = getUploadSessionLookupError(responseText);
+                        final String errorTag = (lookupError == null) ? null : (String) lookupError.get(".tag");
+                        if ("incorrect_offset".equals(errorTag) && ++numConsecutiveResumes <= MAX_CONSECUTIVE_RESUMES) {
+                            // The server did not receive what we thought (e.g. a request was interrupted after its bytes
+                            // were received, or this is a resumed session): go on from where it actually is
+                            offset = ((Number) lookupError.get("correct_offset")).longValue();
+                            logger.info("Resuming upload of " + capture + " at byte " + offset + "/" + fileLength);
+                        }
+                        else if ("not_found".equals(errorTag) && previousSession != null && sessionId.equals(previousSession.getSessionId())) {
+                            // The session of the previous attempt expired
+                            isSessionLost = true;
+                        }
+                        else {
+                            throw new UploadException("The server returned the following error when " + (isLastChunk ? "finishing" : "appending") + " file contents:\n" + responseText);
+                        }
+                    }
+                    else {
                         final String responseError = getResponseError(response);
-                        if ((response.getCode() / 100) == 5) {
-                            // Error 5xx
-                            // Don't know if Dropbox actually uses it but well
-                            throw new UploadException("Resuming not implemented yet:\n" + responseError);
+                        if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                            // Server temporarily unavailable: the upload can be resumed
+                            interruption = new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
+                        }
+                        else {
+                            throw new UploadException("The server returned the following error when " + (isLastChunk ? "finishing" : "appending") + " file contents:\n" + responseError);
                         }
-                        throw new UploadException("The server returned the following error when appending file contents:\n" + responseError);
                     }
                 }
-                catch (IOException e) {
-                    throw new CommunicationException("Error appending file contents", e);
+                catch (IOException | ParseException e) {
+                    interruption = new CommunicationException("Error " + (isLastChunk ? "finishing" : "appending") + " file contents", e);
                 }
 
-                // Update counters
-                offset += bytesRead;
-                remainingBytes = file.length() - offset;
+                if (interruption != null) {
+                    chunkSizer.onChunkFailed();
+                    numConsecutiveResumes++;
+                    if (numConsecutiveResumes > MAX_CONSECUTIVE_RESUMES) {
+                        throw interruption;
+                    }
+                    // Send the same chunk again. If the server actually got it, it will answer with the correct offset
+                    logger.info("Upload of " + capture + " interrupted (" + interruption.getMessage() + "). Resuming.");
+                    waitBeforeResuming(numConsecutiveResumes);
+                }
+                else if (isSessionLost) {
+                    logger.info("Upload session of " + capture + " expired. Starting over.");
+                    final int firstChunkSize = (int) Math.min(chunkSizer.getChunkSize(), fileLength);
+                    uploadProgress.set(0);
+                    sessionId = startUploadSession(client, target, new FileRegionEntity(channel, 0, firstChunkSize, ContentType.APPLICATION_OCTET_STREAM, uploadProgress.forChunk()), false);
+                    context.setUploadSession(new UploadSession(getExporterName(), sessionId, fileLength));
+                    offset = firstChunkSize;
+                }
             }
 
-            if (isCancelRequested()) {
+            if (fileMetadata == null) {
                 cancel();
                 return null;
             }
 
-            // Step 3: Finish session (optionally with the remaining bytes)
-            logProgress(context.getExportMonitor(), "Uploading", (int) (PROGRESS_UPLOAD_START + ((PROGRESS_UPLOAD_END - PROGRESS_UPLOAD_START) * offset) / file.length()), offset, file.length());
+            logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, fileLength, fileLength);
+            chunkSizer.saveTo(target);
+        }
+        catch (NoSuchFileException e) {
+            throw new UploadException("File not found: " + file.getAbsolutePath(), e);
+        }
+        catch (IOException e) {
+            throw new UploadException(e);
+        }
 
-            final String destinationFileName = "/Applications/" + Ginj.getAppName() + "/" + capture.computeUploadFilename();
+        return fileMetadata;
+    }
 
-            httpPost = new HttpPost("https://content.dropboxapi.com/2/files/upload_session/finish");
+    /**
+     * Uploads the rendered file of the given capture using a concurrent upload session: several chunks are appended at
+     * the same time, each one streamed from its own region of the file. The session is finished once they are
+     * all acknowledged.
+     * A failed chunk is sent again a few times. Concurrent sessions are not recorded in the context, because the server
+     * cannot tell which chunks it received, so a later attempt starts over.
+     * See https://www.dropbox.com/developers/documentation/http/documentation#files-upload_session-start
+     *
+     * @param numConcurrentChunks the maximum number of chunks being sent at the same time
+     * @param chunkSize           the size of chunks, a multiple of 4MB
+     */
+    private FileMetadata uploadFileConcurrently(ExportContext context, CloseableHttpClient client, Target target, Capture capture, int numConcurrentChunks, int chunkSize) throws AuthorizationException, UploadException, CommunicationException {
+        final File file = capture.getRenderedFile();
+        final long fileLength = file.length();
+        final long numChunks = (fileLength + chunkSize - 1) / chunkSize;
+
+        logProgress(context.getExportMonitor(), "Uploading", PROGRESS_UPLOAD_START);
+        final UploadProgress uploadProgress = new UploadProgress(context, fileLength);
+        final String sessionId = startUploadSession(client, target, new ByteArrayEntity(new byte[0], ContentType.APPLICATION_OCTET_STREAM), true);
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(numConcurrentChunks, runnable -> {
+            Thread thread = new Thread(runnable, "Dropbox upload " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long nextChunk = 0;
+            int numChunksInFlight = 0;
+            while (nextChunk < numChunks || numChunksInFlight > 0) {
+                if (isCancelRequested()) {
+                    cancel();
+                    return null;
+                }
+                // Keep the maximum number of chunks in flight
+                while (nextChunk < numChunks && numChunksInFlight < numConcurrentChunks) {
+                    final long offset = nextChunk * chunkSize;
+                    final boolean isLastChunk = (nextChunk == numChunks - 1);
+                    final FileRegionEntity.ProgressListener progressListener = uploadProgress.forChunk();
+                    completionService.submit(() -> appendChunk(client, target, sessionId, channel, offset, (int) Math.min(chunkSize, fileLength - offset), isLastChunk, progressListener));
+                    nextChunk++;
+                    numChunksInFlight++;
+                }
+                // Wait for one of them to be acknowledged
+                completionService.take().get();
+                numChunksInFlight--;
+            }
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof AuthorizationException) {
+                throw (AuthorizationException) cause;
+            }
+            if (cause instanceof UploadException) {
+                throw (UploadException) cause;
+            }
+            if (cause instanceof CommunicationException) {
+                throw (CommunicationException) cause;
+            }
+            throw new UploadException(cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UploadException("Upload interrupted", e);
+        }
+        catch (IOException e) {
+            throw new UploadException(e);
+        }
+        finally {
+            // Stop the other chunks in case of error
+            executor.shutdownNow();
+        }
+
+        // All chunks were received: commit the file
+        final String destinationFileName = "/Applications/" + Ginj.getAppName() + "/" + capture.computeUploadFilename();
+        HttpPost httpPost = new HttpPost(getContentApiUrl() + "/files/upload_session/finish");
+        httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+        httpPost.addHeader("Dropbox-API-Arg", getFinishArg(sessionId, fileLength, destinationFileName));
+        httpPost.setEntity(new ByteArrayEntity(new byte[0], ContentType.APPLICATION_OCTET_STREAM));
+        try (CloseableHttpResponse response = client.execute(httpPost)) {
+            if (isStatusOK(response.getCode())) {
+                final FileMetadata fileMetadata = new Gson().fromJson(EntityUtils.toString(response.getEntity()), FileMetadata.class);
+                if (fileMetadata == null) {
+                    throw new CommunicationException("Returned fileMetadata is null.");
+                }
+                logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, fileLength, fileLength);
+                return fileMetadata;
+            }
+            else {
+                final String responseError = getResponseError(response);
+                if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                    // Server temporarily unavailable: the upload can be retried later
+                    throw new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
+                }
+                throw new UploadException("The server returned the following error when finishing file contents:\n" + responseError);
+            }
+        }
+        catch (IOException | ParseException e) {
+            throw new CommunicationException("Error finishing file contents", e);
+        }
+    }
+
+    /**
+     * Appends a chunk to a concurrent upload session, sending it again if the server is temporarily unavailable.
+     * This method is called by several threads at the same time.
+     *
+     * @return the size of the chunk
+     */
+    private int appendChunk(CloseableHttpClient client, Target target, String sessionId, FileChannel channel, long offset, int chunkSize, boolean isLastChunk, FileRegionEntity.ProgressListener progressListener) throws AuthorizationException, UploadException, CommunicationException {
+        int numAttempts = 0;
+        while (true) {
+            HttpPost httpPost = new HttpPost(getContentApiUrl() + "/files/upload_session/append_v2");
             httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
-            //httpPost.addHeader("Content-Length", 0); // Don't put it here, it causes a "dupe header" error if there is an entity, and if there is no entity it's forbidden.
-            httpPost.addHeader("Dropbox-API-Arg",
-                    "{\"cursor\": " +
-                            "{\"session_id\": \"" + sessionId + "\"," +
-                            "\"offset\": " + offset + "}" +
-                            ",\"commit\": " +
-                            "{\"path\": \"" + destinationFileName + "\"," +
-                            "\"mode\": \"add\"," +
-                            "\"autorename\": true," +
-                            "\"mute\": false," +
-                            "\"strict_conflict\": false}" +
-                            "}");
-
-            // Last chunk
-            bytesRead = readBytes(is, buffer, maxChunkSize, remainingBytes);
-            httpPost.setEntity(new ByteArrayEntity(buffer, 0, bytesRead, ContentType.APPLICATION_OCTET_STREAM));
-
-            // Send request
+            // The last chunk closes the session
+            httpPost.addHeader("Dropbox-API-Arg", getAppendArg(sessionId, offset, isLastChunk));
+            httpPost.setEntity(new FileRegionEntity(channel, offset, chunkSize, ContentType.APPLICATION_OCTET_STREAM, progressListener));
+
+            CommunicationException interruption;
             try (CloseableHttpResponse response = client.execute(httpPost)) {
                 if (isStatusOK(response.getCode())) {
-                    final String responseText;
-                    try {
-                        responseText = EntityUtils.toString(response.getEntity());
-                        fileMetadata = new Gson().fromJson(responseText, FileMetadata.class);
-                        if (fileMetadata == null) {
-                            throw new CommunicationException("Returned fileMetadata is null.");
-                        }
-                    }
-                    catch (ParseException e) {
-                        throw new CommunicationException("Could not parse finish upload session response as String: " + response.getEntity());
-                    }
+                    EntityUtils.consume(response.getEntity());
+                    return chunkSize;
+                }
+                final String responseError = getResponseError(response);
+                if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                    interruption = new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
                 }
                 else {
-                    final String responseError = getResponseError(response);
-                    if ((response.getCode() / 100) == 5) {
-                        // Error 5xx
-                        // Don't know if Dropbox actually uses it but well
-                        throw new UploadException("Resuming not implemented yet:\n" + responseError);
-                    }
-                    throw new UploadException("The server returned the following error when finishing file contents:\n" + responseError);
+                    throw new UploadException("The server returned the following error when appending file contents at byte " + offset + ":\n" + responseError);
                 }
             }
             catch (IOException e) {
-                throw new CommunicationException("Error finishing file contents", e);
+                interruption = new CommunicationException("Error appending file contents", e);
             }
 
-
-            logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, file.length(), file.length());
+            numAttempts++;
+            if (numAttempts > MAX_CONSECUTIVE_RESUMES || Thread.currentThread().isInterrupted()) {
+                throw interruption;
+            }
+            logger.info("Upload of chunk at byte " + offset + " interrupted (" + interruption.getMessage() + "). Sending it again.");
+            waitBeforeResuming(numAttempts);
         }
-        catch (FileNotFoundException e) {
-            throw new UploadException("File not found: " + file.getAbsolutePath(), e);
+    }
+
+    private static String getAppendArg(String sessionId, long offset, boolean close) {
+        return "{\"cursor\": {\"session_id\": \"" + sessionId + "\", \"offset\": " + offset + "}" +
+                ",\"close\": " + close + "}";
+    }
+
+    private static String getFinishArg(String sessionId, long offset, String destinationFileName) {
+        return "{\"cursor\": {\"session_id\": \"" + sessionId + "\", \"offset\": " + offset + "}" +
+                ",\"commit\": " + getCommitArg(destinationFileName) +
+                "}";
+    }
+
+    private static String getCommitArg(String destinationFileName) {
+        return "{\"path\": \"" + destinationFileName + "\"," +
+                "\"mode\": \"add\"," +
+                "\"autorename\": true," +
+                "\"mute\": false," +
+                "\"strict_conflict\": false}";
+    }
+
+    /**
+     * Starts an upload session with the given first chunk
+     *
+     * @param firstChunk   the entity of the first chunk
+     * @param isConcurrent true to start a concurrent session, which does not accept data in this request
+     * @return the session id
+     */
+    private String startUploadSession(CloseableHttpClient client, Target target, HttpEntity firstChunk, boolean isConcurrent) throws AuthorizationException, UploadException, CommunicationException {
+        HttpPost httpPost = new HttpPost(getContentApiUrl() + "/files/upload_session/start");
+
+        httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+        //httpPost.addHeader("Content-Length", 0); // Don't put it here, it causes a "dupe header" error if there is an entity, and if there is no entity it's forbidden.
+        httpPost.addHeader("Dropbox-API-Arg", isConcurrent ? "{\"close\": false, \"session_type\": \"concurrent\"}" : "{\"close\": false}");
+        httpPost.setEntity(firstChunk);
+
+        // Send request
+        try (CloseableHttpResponse response = client.execute(httpPost)) {
+            if (isStatusOK(response.getCode())) {
+                final String sessionId;
+                try {
+                    final String responseText = EntityUtils.toString(response.getEntity());
+                    @SuppressWarnings("rawtypes")
+                    Map map = new Gson().fromJson(responseText, Map.class);
+                    sessionId = (String) map.get("session_id");
+                }
+                catch (ParseException e) {
+                    throw new CommunicationException("Could not parse start upload session response as String: " + response.getEntity());
+                }
+                if (sessionId == null) {
+                    throw new CommunicationException("Returned session id is null.");
+                }
+                return sessionId;
+            }
+            else {
+                final String responseError = getResponseError(response);
+                if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                    // Server temporarily unavailable: the upload can be retried later
+                    throw new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
+                }
+                throw new UploadException("The server returned the following error when starting file contents:\n" + responseError);
+            }
         }
         catch (IOException e) {
-            throw new UploadException(e);
+            throw new CommunicationException("Error starting file contents", e);
         }
-
-        return fileMetadata;
     }
 
-    private int readBytes(InputStream is, byte[] buffer, int maxChunkSize, long remainingBytes) throws UploadException {
-        int chunkSize = (int) Math.min(maxChunkSize, remainingBytes);
-        final int bytesRead;
+    /**
+     * Extracts the session lookup error from a 409 response to an append or finish request. Errors are of the form
+     * {"error": {".tag": "incorrect_offset", "correct_offset": 123}} for appends and
+     * {"error": {".tag": "lookup_failed", "lookup_failed": {".tag": "incorrect_offset", "correct_offset": 123}}} for finish
+     *
+     * @return the lookup error, or null if the response is not a lookup error
+     */
+    private static Map<?, ?> getUploadSessionLookupError(String responseText) {
         try {
-            bytesRead = is.read(buffer, 0, chunkSize);
+            final Map<?, ?> messageMap = new Gson().fromJson(responseText, Map.class);
+            Map<?, ?> errorMap = (Map<?, ?>) messageMap.get("error");
+            if ("lookup_failed".equals(errorMap.get(".tag"))) {
+                errorMap = (Map<?, ?>) errorMap.get("lookup_failed");
+            }
+            return errorMap;
         }
-        catch (IOException e) {
-            throw new UploadException("Could not read bytes from file");
+        catch (Exception e) {
+            return null;
         }
-        return bytesRead;
     }
 
     public boolean fileExists(CloseableHttpClient client, Target target, String path) throws AuthorizationException, CommunicationException {
@@ -468,29 +772,29 @@ public class DropboxExporter extends AbstractOAuth2Exporter {
         ));
 
         // Send request
-        CloseableHttpResponse response;
-        try {
-            response = client.execute(httpPost);
-        }
-        catch (IOException e) {
-            throw new CommunicationException("Error getting metadata", e);
-        }
-        if (isStatusOK(response.getCode())) {
-            final String responseText;
-            try {
-                responseText = EntityUtils.toString(response.getEntity());
-                return new Gson().fromJson(responseText, FileMetadata.class);
+        try (CloseableHttpResponse response = client.execute(httpPost)) {
+            if (isStatusOK(response.getCode())) {
+                try {
+                    final String responseText = EntityUtils.toString(response.getEntity());
+                    return new Gson().fromJson(responseText, FileMetadata.class);
+                }
+                catch (ParseException e) {
+                    throw new CommunicationException("Could not parse metadata query response as String: " + response.getEntity());
+                }
             }
-            catch (ParseException | IOException e) {
-                throw new CommunicationException("Could not parse metadata query response as String: " + response.getEntity());
+            else {
+                String responseError = getResponseError(response);
+                if ("path".equals(responseError)) {
+                    throw new FileNotFoundException();
+                }
+                throw new CommunicationException("The server returned the following error when getting metadata:\n" + responseError);
             }
         }
-        else {
-            String responseError = getResponseError(response);
-            if ("path".equals(responseError)) {
-                throw new FileNotFoundException();
-            }
-            throw new CommunicationException("The server returned the following error when getting metadata:\n" + responseError);
+        catch (FileNotFoundException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw new CommunicationException("Error getting metadata", e);
         }
     }
 
@@ -1,6 +1,11 @@
 package info.ginj.export.online.exception;
 
+import java.io.IOException;
+
 public class CommunicationException extends OnlineServiceException {
+    // HTTP status returned by the server, or 0 if the error did not come from a server response
+    private int statusCode = 0;
+
     public CommunicationException() {
         super();
     }
@@ -9,6 +14,11 @@ public class CommunicationException extends OnlineServiceException {
         super(message);
     }
 
+    public CommunicationException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
     public CommunicationException(String message, Throwable cause) {
         super(message, cause);
     }
@@ -16,4 +26,18 @@ public class CommunicationException extends OnlineServiceException {
     public CommunicationException(Throwable cause) {
         super(cause);
     }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return true if the same request may succeed later: network errors, server errors (5xx) and rate limiting (429)
+     */
+    public boolean isTransient() {
+        if (statusCode != 0) {
+            return statusCode / 100 == 5 || statusCode == 429;
+        }
+        return getCause() instanceof IOException;
+    }
 }
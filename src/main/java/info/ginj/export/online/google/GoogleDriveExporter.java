@@ -4,40 +4,52 @@ import com.google.gson.Gson;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 import info.ginj.export.ExportContext;
+import info.ginj.export.online.AdaptiveChunkSizer;
+import info.ginj.export.online.FileRegionEntity;
 import info.ginj.export.online.exception.AuthorizationException;
 import info.ginj.export.online.exception.CommunicationException;
 import info.ginj.export.online.exception.UploadException;
 import info.ginj.model.Capture;
 import info.ginj.model.Export;
 import info.ginj.model.Target;
-import info.ginj.util.UI;
+import info.ginj.model.UploadSession;
+import info.ginj.util.HttpClientProvider;
+import info.ginj.util.ImageEncoding;
+import info.ginj.util.Misc;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.classic.methods.HttpPut;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.ProtocolException;
-import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
-import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.io.entity.*;
+import org.apache.hc.core5.http.message.BasicNameValuePair;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * See https://developers.google.com/drive/api/v3/manage-uploads#resumable
  * See https://developers.google.com/drive/api/v3/manage-sharing
+ * See https://developers.google.com/drive/api/v3/batch
  */
 public class GoogleDriveExporter extends AbstractGoogleExporter {
 
@@ -46,6 +58,19 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
     private static final String[] GOOGLE_DRIVE_REQUIRED_SCOPES = {"https://www.googleapis.com/auth/drive"};
     public static final String NAME = "Google Drive";
 
+    private static final String GOOGLE_API_URL = "https://www.googleapis.com";
+    // Files up to that size are uploaded in a single request. This is the limit documented for multipart uploads
+    private static final long MAX_MULTIPART_UPLOAD_SIZE = 5 * 1024 * 1024;
+    // Fields returned by uploads, so that the file does not have to be fetched again to get its link
+    private static final String UPLOADED_FILE_FIELDS = "id,name,webViewLink,md5Checksum";
+    // Maximum number of calls in a batch request
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final Pattern BATCH_RESPONSE_ID_PATTERN = Pattern.compile("Content-ID:\\s*<response-(\\d+)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BATCH_RESPONSE_STATUS_PATTERN = Pattern.compile("^HTTP/\\S+ (\\d{3})");
+
+    // Permission creations of each account, by account id
+    private static final Map<String, PermissionBatcher> permissionBatchers = new ConcurrentHashMap<>();
+
 
     @Override
     public String getExporterName() {
@@ -79,37 +104,16 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
         return true;
     }
 
+    @Override
+    public String getApiHost() {
+        return "www.googleapis.com";
+    }
+
     /**
-     * TODO pull this implementation up ! (to OnlineExporter ?)
-     * <p>
-     * Uploads the given capture to Google Drive.
-     * This method is run in its own thread and should not access the GUI directly. All interaction
-     * should go through synchronized objects or be enclosed in a SwingUtilities.invokeLater() logic
-     *
-     * @param capture the capture to export
-     * @param target  the target to export this capture to
+     * @return the base URL of the Drive API
      */
-    @Override
-    public void exportCapture(ExportContext context, Capture capture, Target target) {
-        try {
-            final Export export = uploadCapture(context, capture, target);
-            String message = "Upload successful.";
-
-            if (export.getLocation() != null) {
-                if (target.getSettings().getMustCopyPath()) {
-                    copyTextToClipboard(export.getLocation());
-                    export.setLocationCopied(true);
-                    message += "\nA link to your capture was copied to the clipboard";
-                }
-            }
-            capture.addExport(export);
-            // Indicate export is complete.
-            complete(context, capture, message);
-        }
-        catch (Exception e) {
-            UI.alertException(context.getParentFrame(), getExporterName() + " Error", "There was an error exporting to " + getExporterName(), e, logger);
-            failed(context, "Upload error");
-        }
+    protected String getApiUrl() {
+        return GOOGLE_API_URL;
     }
 
     /**
@@ -125,38 +129,123 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
      */
     @Override
     public Export uploadCapture(ExportContext context, Capture capture, Target target) throws AuthorizationException, UploadException, CommunicationException {
-        // We need an actual file (for now at least). Make sure we have or create one
         logProgress(context.getExportMonitor(), "Rendering file", PROGRESS_RENDER_START);
-        try {
-            capture.toRenderedFile();
-        }
-        catch (IOException e) {
-            throw new UploadException("Error preparing file to upload", e);
-        }
 
-        final CloseableHttpClient client = HttpClients.createDefault();
+        final CloseableHttpClient client = HttpClientProvider.getClient();
 
         // Step 1: Upload the file
 
-        FilesResource resource = uploadFile(context, client, target, capture);
+        final FilesResource resource = uploadFile(context, client, target, capture);
 
+        final Export export;
         if (target.getSettings().getMustShare()) {
             // Step 2: Share it
             @SuppressWarnings("unused")
             PermissionsResource permissionsResource = shareFile(client, target, resource.getId());
 
-            // Step 3: Refetch now that it's shared
-            resource = getFilesResource(client, target, resource.getId());
+            // The link returned by the upload does not change when the file is shared
+            String webViewLink = resource.getWebViewLink();
+            if (webViewLink == null) {
+                // Upload session started without the fields: refetch
+                webViewLink = getFilesResource(client, target, resource.getId()).getWebViewLink();
+            }
 
-            return new Export(getExporterName(), resource.getId(), resource.getWebViewLink() /*resource.getWebContentLink() is a download link */, false);
+            export = new Export(getExporterName(), resource.getId(), webViewLink /*resource.getWebContentLink() is a download link */, false);
+        }
+        else {
+            export = new Export(getExporterName(), resource.getId(), null, false);
+        }
+        if (resource.getMd5Checksum() != null) {
+            // Google Drive returns the hash of what it received
+            export.setContentHash(resource.getMd5Checksum());
         }
         else {
-            return new Export(getExporterName(), resource.getId(), null, false);
+            try {
+                export.setContentHash(computeContentHash(capture.getRenderedFile()));
+            }
+            catch (IOException e) {
+                logger.warn("Could not compute content hash of " + capture.getRenderedFile() + ". It will be uploaded again on next export.", e);
+            }
+        }
+        return export;
+    }
+
+    /**
+     * Google Drive returns the MD5 of each file as its "md5Checksum"
+     */
+    @Override
+    public String computeContentHash(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Cannot happen: MD5 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+        try (InputStream is = new DigestInputStream(new FileInputStream(file), digest)) {
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (is.read(buffer) != -1) {
+                // Just compute the hash
+            }
+        }
+        return Misc.toHex(digest.digest());
+    }
+
+    /**
+     * This method implements https://developers.google.com/drive/api/v3/reference/files/get
+     */
+    @Override
+    public String getRemoteContentHash(Target target, Export export) throws AuthorizationException, CommunicationException {
+        final CloseableHttpClient client = HttpClientProvider.getClient();
+        try {
+            URIBuilder builder = new URIBuilder(getApiUrl() + "/drive/v3/files/" + export.getMediaId());
+            builder.setParameter("fields", "md5Checksum, trashed");
+            HttpGet httpGet = new HttpGet(builder.build());
+            httpGet.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+
+            // Send request
+            try (CloseableHttpResponse response = client.execute(httpGet)) {
+                if (response.getCode() == 404) {
+                    // Deleted
+                    return null;
+                }
+                if (isStatusOK(response.getCode())) {
+                    try {
+                        final FilesResource resource = new Gson().fromJson(EntityUtils.toString(response.getEntity()), FilesResource.class);
+                        if (Boolean.TRUE.equals(resource.getTrashed())) {
+                            return null;
+                        }
+                        return resource.getMd5Checksum();
+                    }
+                    catch (ParseException e) {
+                        throw new CommunicationException("Could not parse file metadata response as String:\n" + response.getEntity());
+                    }
+                }
+                else {
+                    throw new CommunicationException("The server returned the following error when getting file metadata:\n" + getResponseError(response));
+                }
+            }
         }
+        catch (IOException | URISyntaxException e) {
+            throw new CommunicationException("Error getting file metadata", e);
+        }
+    }
+
+    @Override
+    public String shareExport(Target target, Export export) throws AuthorizationException, CommunicationException {
+        final CloseableHttpClient client = HttpClientProvider.getClient();
+        shareFile(client, target, export.getMediaId());
+        // Refetch now that it's shared
+        return getFilesResource(client, target, export.getMediaId()).getWebViewLink();
     }
 
     /**
      * This method implements https://developers.google.com/drive/api/v3/manage-uploads?authuser=1#resumable
+     * If the upload is interrupted, the number of bytes received by the server is queried and the upload goes on from
+     * there. The session URI is recorded in the context, so that a later attempt can also resume it.
+     * Small files are uploaded in a single multipart request instead, unless a previous session can be resumed.
      *
      * @param context
      * @param client  the {@link CloseableHttpClient}
@@ -168,99 +257,90 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
      * @throws UploadException        if an upload-specific error occurs
      */
     private FilesResource uploadFile(ExportContext context, CloseableHttpClient client, Target target, Capture capture) throws AuthorizationException, CommunicationException, UploadException {
-        final File file = capture.getRenderedFile();
-
-        // Step 1: Initiating an upload session
-        logProgress(context.getExportMonitor(), "Uploading", PROGRESS_UPLOAD_START);
-        HttpPost httpPost = new HttpPost("https://www.googleapis.com/upload/drive/v3/files?uploadType=resumable");
-
-        httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
-        httpPost.addHeader("X-Upload-Content-Type", capture.isVideo() ? "video/mp4" : "image/png");
-        httpPost.addHeader("X-Upload-Content-Length", file.length()); // Not mandatory
-
+        String uploadUrl = null;
+        final ImageEncoding encoding = capture.getRenderedFileEncoding();
+        if (capture.getRenderedFile() == null && encoding != null && !encoding.isDone() && context.getUploadSession() == null) {
+            // The file is being encoded in the background
+            // A PNG is at most a few bytes larger than the raw pixels (4 bytes each)
+            if (capture.getRenderedImage() != null && 5L * capture.getRenderedImage().getWidth() * capture.getRenderedImage().getHeight() <= MAX_MULTIPART_UPLOAD_SIZE) {
+                // Small enough to send it in a single request as it is encoded
+                return uploadMultipart(context, client, target, capture, encoding);
+            }
+            // Initiate the upload session meanwhile. Its length is only needed with the last chunk
+            uploadUrl = startUploadSession(client, target, capture, -1);
+        }
 
-        // Add file metadata in JSON as body. Something like:
-        httpPost.addHeader("Content-Type", "application/json; charset=UTF-8");
-        httpPost.setEntity(new StringEntity(
-                "{\"name\": \"" + capture.computeUploadFilename() + "\"}"
-        ));
+        // We need an actual file. Make sure we have or create one
+        final File file = toRenderedFile(capture);
+        final long fileLength = file.length();
+        if (uploadUrl != null) {
+            context.setUploadSession(new UploadSession(getExporterName(), uploadUrl, fileLength));
+        }
 
+        final UploadSession previousSession = context.getUploadSession();
+        final boolean isResumable = previousSession != null && previousSession.isResumable(getExporterName(), fileLength);
+        if (!isResumable && fileLength <= MAX_MULTIPART_UPLOAD_SIZE) {
+            return uploadMultipart(context, client, target, capture, null);
+        }
 
-        String uploadUrl;
-        try (CloseableHttpResponse response = client.execute(httpPost)) {
-            if (isStatusOK(response.getCode())) {
-                try {
-                    final Header locationHeader = response.getHeader("Location");
-                    if (locationHeader != null) {
-                        // Step 2: "Saving" the session URL
-                        uploadUrl = locationHeader.getValue();
-                    }
-                    else {
-                        throw new CommunicationException("Server did not return the expected 'Location' header");
-                    }
-                }
-                catch (ProtocolException e) {
-                    throw new CommunicationException("Protocol exception initializing upload:\n" + response.getEntity());
-                }
-            }
-            else {
-                throw new UploadException("The server returned the following error when uploading file contents:\n" + getResponseError(response));
+        logProgress(context.getExportMonitor(), "Uploading", PROGRESS_UPLOAD_START);
+        FilesResource fileResource = null; // Will be completed by the upload response
+        long offset = 0;
+
+        // Step 1: Resume the session of a previous attempt, if any
+        if (uploadUrl == null && isResumable) {
+            final UploadStatus status = queryUploadStatus(client, target, previousSession.getSessionId(), fileLength);
+            if (status != null) {
+                logger.info("Resuming upload of " + capture + " at byte " + status.receivedBytes + "/" + fileLength);
+                uploadUrl = previousSession.getSessionId();
+                offset = status.receivedBytes;
+                fileResource = status.fileResource;
             }
         }
-        catch (IOException e) {
-            throw new CommunicationException("Error uploading file contents", e);
+
+        // Step 2: Otherwise, initiate an upload session, and "save" the session URL
+        if (uploadUrl == null) {
+            uploadUrl = startUploadSession(client, target, capture, fileLength);
+            context.setUploadSession(new UploadSession(getExporterName(), uploadUrl, fileLength));
         }
 
         // Step 3: Uploading the file
 
-        FilesResource fileResource = null; // Will be completed by the upload response
-
-        int maxChunkSize = CHUNK_SIZE;
-        byte[] buffer = new byte[maxChunkSize];
-        int offset = 0;
-        long remainingBytes = file.length();
-
-        try (InputStream is = new FileInputStream(file)) {
-            while (remainingBytes > 0) {
+        final AdaptiveChunkSizer chunkSizer = new AdaptiveChunkSizer(target);
+        final UploadProgress uploadProgress = new UploadProgress(context, fileLength);
+        int numConsecutiveResumes = 0;
 
-                int chunkSize = (int) Math.min(maxChunkSize, remainingBytes);
-                final int bytesRead;
-                try {
-                    bytesRead = is.read(buffer, 0, chunkSize);
-                }
-                catch (IOException e) {
-                    throw new UploadException("Could not read bytes from file");
-                }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (fileResource == null) {
 
-                logProgress(context.getExportMonitor(), "Uploading", (int) (PROGRESS_UPLOAD_START + ((PROGRESS_UPLOAD_END - PROGRESS_UPLOAD_START) * offset) / file.length()), offset, file.length());
+                final int chunkSize = (int) Math.min(chunkSizer.getChunkSize(), fileLength - offset);
+                uploadProgress.set(offset);
 
                 HttpPut httpPut = new HttpPut(uploadUrl);
                 httpPut.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
                 //httpPost.addHeader("Content-Length", chunkSize); // Don't put it here, it causes a "dupe header" error as there is an entity.
-                httpPut.addHeader("Content-Range", "bytes " + offset + "-" + (Math.min(offset + CHUNK_SIZE, file.length()) - 1) + "/" + file.length());
+                httpPut.addHeader("Content-Range", "bytes " + offset + "-" + (offset + chunkSize - 1) + "/" + fileLength);
 
-                httpPut.setEntity(new ByteArrayEntity(buffer, 0, bytesRead, ContentType.APPLICATION_OCTET_STREAM));
+                httpPut.setEntity(new FileRegionEntity(channel, offset, chunkSize, ContentType.APPLICATION_OCTET_STREAM, uploadProgress.forChunk()));
 
-                try {
-                    CloseableHttpResponse response = client.execute(httpPut);
-                    if (offset + CHUNK_SIZE < file.length() && response.getCode() == 308) {
+                CommunicationException interruption = null;
+                final long chunkStartNanos = System.nanoTime();
+                try (CloseableHttpResponse response = client.execute(httpPut)) {
+                    if (response.getCode() == 308) {
                         // All chunks except the last should get a 308 Resume Incomplete - This is normal
-                        try {
-                            String responseText = EntityUtils.toString(response.getEntity());
-                            logger.debug("Response: " + responseText);
-                        }
-                        catch (ParseException e) {
-                            throw new CommunicationException("Could not parse media upload response as String:\n" + response.getEntity());
-                        }
+                        // The server tells how many bytes it actually kept
+                        final long receivedBytes = getReceivedBytes(response);
+                        EntityUtils.consume(response.getEntity());
+                        chunkSizer.onChunkSent(receivedBytes - offset, System.nanoTime() - chunkStartNanos);
+                        offset = receivedBytes;
+                        numConsecutiveResumes = 0;
                     }
-                    else if (offset + CHUNK_SIZE >= file.length() && isStatusOK(response.getCode())) {
+                    else if (isStatusOK(response.getCode())) {
                         // Last chunk should get a 200 OK
                         try {
                             String responseText = EntityUtils.toString(response.getEntity());
                             logger.info("Response: " + responseText);
-                            if (offset + CHUNK_SIZE >= file.length()) {
-                                fileResource = new Gson().fromJson(responseText, FilesResource.class);
-                            }
+                            fileResource = new Gson().fromJson(responseText, FilesResource.class);
                         }
                         catch (ParseException e) {
                             throw new CommunicationException("Could not parse media upload response as String:\n" + response.getEntity());
@@ -269,23 +349,44 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
                     else {
                         // All the rest is unexpected
                         final String responseError = getResponseError(response);
-                        if ((response.getCode() / 100) == 5) {
-                            // Error 5xx
-                            throw new UploadException("Resuming not implemented yet:\n" + responseError);
+                        if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                            // Server temporarily unavailable: the upload can be resumed
+                            interruption = new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
+                        }
+                        else {
+                            throw new UploadException("The server returned the following error when uploading file contents:\n" + responseError);
                         }
-                        throw new UploadException("The server returned the following error when uploading file contents:\n" + responseError);
                     }
                 }
                 catch (IOException e) {
-                    throw new CommunicationException("Error uploading file contents", e);
+                    interruption = new CommunicationException("Error uploading file contents", e);
                 }
 
-                offset += bytesRead;
-                remainingBytes = file.length() - offset;
+                if (interruption != null) {
+                    chunkSizer.onChunkFailed();
+                    numConsecutiveResumes++;
+                    if (numConsecutiveResumes > MAX_CONSECUTIVE_RESUMES) {
+                        throw interruption;
+                    }
+                    logger.info("Upload of " + capture + " interrupted (" + interruption.getMessage() + "). Resuming.");
+                    waitBeforeResuming(numConsecutiveResumes);
+                    final UploadStatus status = queryUploadStatus(client, target, uploadUrl, fileLength);
+                    if (status == null) {
+                        // Session expired: start over
+                        uploadUrl = startUploadSession(client, target, capture, fileLength);
+                        context.setUploadSession(new UploadSession(getExporterName(), uploadUrl, fileLength));
+                        offset = 0;
+                    }
+                    else {
+                        offset = status.receivedBytes;
+                        fileResource = status.fileResource;
+                    }
+                }
             }
-            logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, file.length(), file.length());
+            logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, fileLength, fileLength);
+            chunkSizer.saveTo(target);
         }
-        catch (FileNotFoundException e) {
+        catch (NoSuchFileException e) {
             throw new UploadException("File not found: " + file.getAbsolutePath());
         }
         catch (IOException e) {
@@ -295,19 +396,301 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
         return fileResource;
     }
 
+    /**
+     * This method implements https://developers.google.com/drive/api/v3/manage-uploads#multipart
+     * The metadata and the contents of the file are sent in a single request, which saves the round trip initiating a
+     * session but cannot be resumed.
+     *
+     * @param encoding the encoding of the file to stream as it is encoded, or null to send the rendered file
+     */
+    private FilesResource uploadMultipart(ExportContext context, CloseableHttpClient client, Target target, Capture capture, ImageEncoding encoding) throws AuthorizationException, CommunicationException, UploadException {
+        logProgress(context.getExportMonitor(), "Uploading", PROGRESS_UPLOAD_START);
+        final HttpPost httpPost = new HttpPost(getApiUrl() + "/upload/drive/v3/files?uploadType=multipart&fields=" + UPLOADED_FILE_FIELDS);
+        httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+        final ContentType mediaType = ContentType.create(getMediaType(capture));
+
+        try {
+            final FilesResource fileResource;
+            if (encoding != null) {
+                try (InputStream in = encoding.openStream()) {
+                    // Unknown length: the body is sent in chunked encoding
+                    fileResource = postMultipart(client, httpPost, capture, new InputStreamEntity(in, -1, mediaType));
+                }
+            }
+            else {
+                final File file = capture.getRenderedFile();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    final UploadProgress uploadProgress = new UploadProgress(context, file.length());
+                    fileResource = postMultipart(client, httpPost, capture, new FileRegionEntity(channel, 0, file.length(), mediaType, uploadProgress.forChunk()));
+                }
+            }
+            // Complete, since it was read to the end
+            final File file = toRenderedFile(capture);
+            logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, file.length(), file.length());
+            return fileResource;
+        }
+        catch (NoSuchFileException e) {
+            throw new UploadException("File not found: " + e.getFile());
+        }
+        catch (IOException e) {
+            if (encoding != null && encoding.isFailed()) {
+                throw new UploadException("Error preparing file to upload", e);
+            }
+            throw new CommunicationException("Error uploading file contents", e);
+        }
+    }
+
+    private FilesResource postMultipart(CloseableHttpClient client, HttpPost httpPost, Capture capture, HttpEntity media) throws IOException, CommunicationException, UploadException {
+        httpPost.setEntity(new MultipartRelatedEntity(getFileMetadata(capture), media));
+        try (CloseableHttpResponse response = client.execute(httpPost)) {
+            if (isStatusOK(response.getCode())) {
+                try {
+                    String responseText = EntityUtils.toString(response.getEntity());
+                    logger.info("Response: " + responseText);
+                    return new Gson().fromJson(responseText, FilesResource.class);
+                }
+                catch (ParseException e) {
+                    throw new CommunicationException("Could not parse media upload response as String:\n" + response.getEntity());
+                }
+            }
+            final String responseError = getResponseError(response);
+            if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                // Server temporarily unavailable: the upload can be retried later
+                throw new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
+            }
+            throw new UploadException("The server returned the following error when uploading file contents:\n" + responseError);
+        }
+    }
+
+    private static String getMediaType(Capture capture) {
+        return capture.isVideo() ? "video/mp4" : "image/png";
+    }
+
+    /**
+     * @return the metadata of the file to create, in JSON
+     */
+    private static String getFileMetadata(Capture capture) {
+        return "{\"name\": \"" + capture.computeUploadFilename() + "\"}";
+    }
+
+    /**
+     * Initiates a resumable upload session
+     *
+     * @param fileLength the length of the file to upload, or -1 if it is not known yet
+     * @return the session URI, to upload the file contents to
+     */
+    private String startUploadSession(CloseableHttpClient client, Target target, Capture capture, long fileLength) throws AuthorizationException, CommunicationException, UploadException {
+        // The fields apply to the response to the last chunk
+        HttpPost httpPost = new HttpPost(getApiUrl() + "/upload/drive/v3/files?uploadType=resumable&fields=" + UPLOADED_FILE_FIELDS);
+
+        httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+        httpPost.addHeader("X-Upload-Content-Type", getMediaType(capture));
+        if (fileLength >= 0) {
+            httpPost.addHeader("X-Upload-Content-Length", fileLength); // Not mandatory
+        }
+
+
+        // Add file metadata in JSON as body. Something like:
+        httpPost.addHeader("Content-Type", "application/json; charset=UTF-8");
+        httpPost.setEntity(new StringEntity(getFileMetadata(capture)));
+
+
+        try (CloseableHttpResponse response = client.execute(httpPost)) {
+            if (isStatusOK(response.getCode())) {
+                try {
+                    final Header locationHeader = response.getHeader("Location");
+                    if (locationHeader != null) {
+                        return locationHeader.getValue();
+                    }
+                    else {
+                        throw new CommunicationException("Server did not return the expected 'Location' header");
+                    }
+                }
+                catch (ProtocolException e) {
+                    throw new CommunicationException("Protocol exception initializing upload:\n" + response.getEntity());
+                }
+            }
+            else {
+                final String responseError = getResponseError(response);
+                if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                    // Server temporarily unavailable: the upload can be retried later
+                    throw new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
+                }
+                throw new UploadException("The server returned the following error when uploading file contents:\n" + responseError);
+            }
+        }
+        catch (IOException e) {
+            throw new CommunicationException("Error uploading file contents", e);
+        }
+    }
+
+    /**
+     * Asks the server how much of the file it received, by sending an empty chunk with a "bytes * /length" range.
+     * See https://developers.google.com/drive/api/v3/manage-uploads#resume-upload
+     *
+     * @return the upload status, or null if the session does not exist anymore (it expires after a week)
+     */
+    private UploadStatus queryUploadStatus(CloseableHttpClient client, Target target, String uploadUrl, long fileLength) throws AuthorizationException, CommunicationException {
+        HttpPut httpPut = new HttpPut(uploadUrl);
+        httpPut.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+        httpPut.addHeader("Content-Range", "bytes */" + fileLength);
+        httpPut.setEntity(new ByteArrayEntity(new byte[0], ContentType.APPLICATION_OCTET_STREAM));
+
+        try (CloseableHttpResponse response = client.execute(httpPut)) {
+            final UploadStatus status = new UploadStatus();
+            if (response.getCode() == 308) {
+                status.receivedBytes = getReceivedBytes(response);
+                EntityUtils.consume(response.getEntity());
+                return status;
+            }
+            else if (isStatusOK(response.getCode())) {
+                // Upload was actually complete
+                status.receivedBytes = fileLength;
+                status.fileResource = new Gson().fromJson(EntityUtils.toString(response.getEntity()), FilesResource.class);
+                return status;
+            }
+            else if (response.getCode() == 404 || response.getCode() == 410) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            else {
+                throw new CommunicationException("The server returned the following error when querying upload status:\n" + getResponseError(response), response.getCode());
+            }
+        }
+        catch (IOException | ParseException e) {
+            throw new CommunicationException("Error querying upload status", e);
+        }
+    }
+
+    /**
+     * @return the number of bytes received by the server, according to the "Range: bytes=0-n" header of a 308 response
+     */
+    private static long getReceivedBytes(CloseableHttpResponse response) throws CommunicationException {
+        final Header rangeHeader = response.getFirstHeader("Range");
+        if (rangeHeader == null) {
+            // Nothing received yet
+            return 0;
+        }
+        final String range = rangeHeader.getValue();
+        try {
+            return Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+        }
+        catch (NumberFormatException e) {
+            throw new CommunicationException("Unexpected Range header in upload response: " + range);
+        }
+    }
+
+    private static class UploadStatus {
+        private long receivedBytes;
+        // Only set if the upload is complete
+        private FilesResource fileResource;
+    }
+
+    /**
+     * Shares the given file with anyone having its link.
+     * Files shared by several exports of the same account at the same time are shared by a single batch request: while
+     * a request is in progress, the files to share are queued, and they are all sent by the next request.
+     */
+    public PermissionsResource shareFile(CloseableHttpClient client, Target target, String fileId) throws AuthorizationException, CommunicationException {
+        return permissionBatchers.computeIfAbsent(String.valueOf(target.getAccount().getId()), accountId -> new PermissionBatcher()).share(this, client, target, fileId);
+    }
+
+    /**
+     * Creates the given permissions, in a batch request if there are several of them.
+     * Each permission is completed with either the created resource or the error of its creation.
+     *
+     * @throws AuthorizationException if user has no, or insufficient, authorizations, or if a token error occurs
+     * @throws CommunicationException if the whole request failed
+     */
+    private void createPermissions(CloseableHttpClient client, Target target, List<PendingPermission> permissions) throws AuthorizationException, CommunicationException {
+        if (permissions.size() == 1) {
+            permissions.get(0).resource = createPermission(client, target, permissions.get(0).fileId);
+            return;
+        }
+
+        // This method implements https://developers.google.com/drive/api/v3/batch
+        final String boundary = "batch_" + UUID.randomUUID().toString().replace("-", "");
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < permissions.size(); i++) {
+            body.append("--").append(boundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <").append(i).append(">\r\n")
+                    .append("\r\n")
+                    .append("POST /drive/v3/files/").append(permissions.get(i).fileId).append("/permissions\r\n")
+                    .append("Content-Type: application/json\r\n")
+                    .append("\r\n")
+                    .append(getPermissionJson()).append("\r\n");
+        }
+        body.append("--").append(boundary).append("--\r\n");
+
+        HttpPost httpPost = new HttpPost(getApiUrl() + "/batch/drive/v3");
+        httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
+        httpPost.setEntity(new StringEntity(body.toString(), ContentType.create("multipart/mixed").withParameters(new BasicNameValuePair("boundary", boundary))));
+
+        try (CloseableHttpResponse response = client.execute(httpPost)) {
+            if (!isStatusOK(response.getCode())) {
+                throw new CommunicationException("The server returned the following error when creating shared links:\n" + getResponseError(response), response.getCode());
+            }
+            final String responseBoundary = ContentType.parse(response.getEntity().getContentType()).getParameter("boundary");
+            if (responseBoundary == null) {
+                throw new CommunicationException("Batch response has no boundary: " + response.getEntity().getContentType());
+            }
+            final Gson gson = new Gson();
+            for (BatchResponsePart part : parseBatchResponse(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8), responseBoundary)) {
+                if (part.index < 0 || part.index >= permissions.size()) {
+                    logger.warn("Ignoring batch response part with unknown id " + part.index);
+                    continue;
+                }
+                if (isStatusOK(part.statusCode)) {
+                    permissions.get(part.index).resource = gson.fromJson(part.body, PermissionsResource.class);
+                }
+                else {
+                    permissions.get(part.index).error = new CommunicationException("The server returned the following error when creating shared link:\n" + part.statusCode + " (" + part.body + ")", part.statusCode);
+                }
+            }
+        }
+        catch (IOException | ParseException e) {
+            throw new CommunicationException("Error creating shared links", e);
+        }
+    }
+
+    /**
+     * Splits the multipart/mixed response to a batch request into the responses to each call
+     */
+    private static List<BatchResponsePart> parseBatchResponse(String responseText, String boundary) throws CommunicationException {
+        final List<BatchResponsePart> parts = new ArrayList<>();
+        final String[] sections = responseText.split("(\r?\n)?--" + Pattern.quote(boundary));
+        // The first section is the preamble, and the last one starts with the "--" closing delimiter
+        for (int i = 1; i < sections.length && !sections[i].startsWith("--"); i++) {
+            // Part headers, then embedded response status line and headers, then body
+            final String[] blocks = sections[i].strip().split("\r?\n\r?\n", 3);
+            if (blocks.length < 2) {
+                throw new CommunicationException("Unexpected batch response part:\n" + sections[i]);
+            }
+            final BatchResponsePart part = new BatchResponsePart();
+            final Matcher idMatcher = BATCH_RESPONSE_ID_PATTERN.matcher(blocks[0]);
+            part.index = idMatcher.find() ? Integer.parseInt(idMatcher.group(1)) : -1;
+            final Matcher statusMatcher = BATCH_RESPONSE_STATUS_PATTERN.matcher(blocks[1]);
+            if (!statusMatcher.find()) {
+                throw new CommunicationException("Unexpected batch response part:\n" + sections[i]);
+            }
+            part.statusCode = Integer.parseInt(statusMatcher.group(1));
+            part.body = (blocks.length > 2) ? blocks[2].strip() : "";
+            parts.add(part);
+        }
+        return parts;
+    }
+
     /**
      * This method implements https://developers.google.com/drive/api/v3/reference/permissions/create
      * see https://stackoverflow.com/a/11669565/13551878
      */
-    public PermissionsResource shareFile(CloseableHttpClient client, Target target, String fileId) throws AuthorizationException, CommunicationException {
-        HttpPost httpPost = new HttpPost("https://www.googleapis.com/drive/v3/files/" + fileId + "/permissions");
+    private PermissionsResource createPermission(CloseableHttpClient client, Target target, String fileId) throws AuthorizationException, CommunicationException {
+        HttpPost httpPost = new HttpPost(getApiUrl() + "/drive/v3/files/" + fileId + "/permissions");
 
         httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
         httpPost.addHeader("Content-Type", "application/json");
-        httpPost.setEntity(new StringEntity(
-                "{\"role\": \"reader\"," +
-                        "\"type\": \"anyone\"}"
-        ));
+        httpPost.setEntity(new StringEntity(getPermissionJson()));
 
         // Send request
         try (CloseableHttpResponse response = client.execute(httpPost)) {
@@ -335,27 +718,28 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
      */
     public FilesResource getFilesResource(CloseableHttpClient client, Target target, String fileId) throws AuthorizationException, CommunicationException {
         try {
-            URIBuilder builder = new URIBuilder("https://www.googleapis.com/drive/v3/files/" + fileId);
+            URIBuilder builder = new URIBuilder(getApiUrl() + "/drive/v3/files/" + fileId);
             builder.setParameter("fields", "name, id, webViewLink, webContentLink");
             HttpGet httpGet = new HttpGet(builder.build());
             httpGet.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
             httpGet.setEntity(EMPTY_ENTITY);
 
             // Send request
-            CloseableHttpResponse response = client.execute(httpGet);
-            if (isStatusOK(response.getCode())) {
-                try {
-                    String responseText = EntityUtils.toString(response.getEntity());
-                    logger.info("Response: " + responseText);
-                    return new Gson().fromJson(responseText, FilesResource.class);
+            try (CloseableHttpResponse response = client.execute(httpGet)) {
+                if (isStatusOK(response.getCode())) {
+                    try {
+                        String responseText = EntityUtils.toString(response.getEntity());
+                        logger.info("Response: " + responseText);
+                        return new Gson().fromJson(responseText, FilesResource.class);
+                    }
+                    catch (ParseException e) {
+                        throw new CommunicationException("Could not parse media upload response as String:\n" + response.getEntity());
+                    }
                 }
-                catch (ParseException e) {
-                    throw new CommunicationException("Could not parse media upload response as String:\n" + response.getEntity());
+                else {
+                    throw new CommunicationException("The server returned the following error when creating shared link:\n" + getResponseError(response));
                 }
             }
-            else {
-                throw new CommunicationException("The server returned the following error when creating shared link:\n" + getResponseError(response));
-            }
         }
         catch (IOException | URISyntaxException e) {
             throw new CommunicationException("Error creating shared link", e);
@@ -363,6 +747,166 @@ public class GoogleDriveExporter extends AbstractGoogleExporter {
     }
 
 
+    private static String getPermissionJson() {
+        return "{\"role\": \"reader\"," +
+                "\"type\": \"anyone\"}";
+    }
+
+    /**
+     * Queues the permissions to create for an account, so that the ones requested while a request is in progress are
+     * all created by the next request, by whichever of the waiting threads sends it.
+     * A single permission is created immediately, so sharing one file is not delayed.
+     */
+    private static class PermissionBatcher {
+        // Guarded by this
+        private final List<PendingPermission> queuedPermissions = new ArrayList<>();
+        private boolean isSending = false;
+
+        PermissionsResource share(GoogleDriveExporter exporter, CloseableHttpClient client, Target target, String fileId) throws AuthorizationException, CommunicationException {
+            final PendingPermission permission = new PendingPermission(fileId);
+            synchronized (this) {
+                queuedPermissions.add(permission);
+            }
+            while (true) {
+                final List<PendingPermission> batch;
+                synchronized (this) {
+                    while (!permission.isDone && (isSending || permission.isSent)) {
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            queuedPermissions.remove(permission);
+                            throw new CommunicationException("Interrupted while waiting to share file", e);
+                        }
+                    }
+                    if (permission.isDone) {
+                        break;
+                    }
+                    // Send all queued permissions, including this one
+                    isSending = true;
+                    final List<PendingPermission> queuedBatch = queuedPermissions.subList(0, Math.min(queuedPermissions.size(), MAX_BATCH_SIZE));
+                    batch = new ArrayList<>(queuedBatch);
+                    queuedBatch.clear();
+                    batch.forEach(pendingPermission -> pendingPermission.isSent = true);
+                }
+                Exception batchError = null;
+                try {
+                    if (batch.size() > 1) {
+                        logger.debug("Sharing " + batch.size() + " files in a batch");
+                    }
+                    exporter.createPermissions(client, target, batch);
+                }
+                catch (AuthorizationException | CommunicationException | RuntimeException e) {
+                    batchError = e;
+                }
+                synchronized (this) {
+                    for (PendingPermission pendingPermission : batch) {
+                        if (pendingPermission.resource == null && pendingPermission.error == null) {
+                            pendingPermission.error = (batchError != null) ? batchError : new CommunicationException("No response to the creation of the shared link of " + pendingPermission.fileId);
+                        }
+                        pendingPermission.isDone = true;
+                    }
+                    isSending = false;
+                    notifyAll();
+                }
+            }
+            if (permission.error instanceof AuthorizationException) {
+                throw (AuthorizationException) permission.error;
+            }
+            if (permission.error instanceof CommunicationException) {
+                throw (CommunicationException) permission.error;
+            }
+            if (permission.error instanceof RuntimeException) {
+                throw (RuntimeException) permission.error;
+            }
+            return permission.resource;
+        }
+    }
+
+    private static class PendingPermission {
+        private final String fileId;
+        // Guarded by the PermissionBatcher
+        private boolean isSent = false;
+        private boolean isDone = false;
+        // Set by the thread sending it
+        private PermissionsResource resource;
+        private Exception error;
+
+        PendingPermission(String fileId) {
+            this.fileId = fileId;
+        }
+    }
+
+    private static class BatchResponsePart {
+        // Index of the call in the batch request
+        private int index;
+        private int statusCode;
+        private String body;
+    }
+
+    /**
+     * A multipart/related body made of the JSON metadata of a file followed by its contents, as expected by multipart
+     * uploads. The contents are streamed from the given entity.
+     */
+    private static class MultipartRelatedEntity extends AbstractHttpEntity {
+        private final HttpEntity media;
+        private final byte[] head;
+        private final byte[] tail;
+
+        MultipartRelatedEntity(String metadataJson, HttpEntity media) {
+            this(metadataJson, media, "ginj_" + UUID.randomUUID().toString().replace("-", ""));
+        }
+
+        private MultipartRelatedEntity(String metadataJson, HttpEntity media, String boundary) {
+            super(ContentType.create("multipart/related").withParameters(new BasicNameValuePair("boundary", boundary)), null);
+            this.media = media;
+            this.head = ("--" + boundary + "\r\n"
+                    + "Content-Type: application/json; charset=UTF-8\r\n"
+                    + "\r\n"
+                    + metadataJson + "\r\n"
+                    + "--" + boundary + "\r\n"
+                    + "Content-Type: " + media.getContentType() + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.UTF_8);
+            this.tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            outStream.write(head);
+            media.writeTo(outStream);
+            outStream.write(tail);
+            outStream.flush();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new SequenceInputStream(Collections.enumeration(List.of(new ByteArrayInputStream(head), media.getContent(), new ByteArrayInputStream(tail))));
+        }
+
+        @Override
+        public long getContentLength() {
+            final long mediaLength = media.getContentLength();
+            return (mediaLength < 0) ? -1 : head.length + mediaLength + tail.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return media.isRepeatable();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return media.isStreaming();
+        }
+
+        @Override
+        public void close() throws IOException {
+            media.close();
+        }
+    }
+
+
     ////////////////////////////////////////////////////
     // Autogenerated pojos for (non-Map) Json parsing
     // Created by http://jsonschema2pojo.org
@@ -7,23 +7,23 @@ import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 import info.ginj.Ginj;
 import info.ginj.export.ExportContext;
+import info.ginj.export.online.FileRegionEntity;
 import info.ginj.export.online.exception.AuthorizationException;
 import info.ginj.export.online.exception.CommunicationException;
 import info.ginj.export.online.exception.UploadException;
+import info.ginj.model.CachedAlbum;
 import info.ginj.model.Capture;
 import info.ginj.model.Export;
 import info.ginj.model.Target;
-import info.ginj.util.UI;
+import info.ginj.util.HttpClientProvider;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.ProtocolException;
-import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.net.URIBuilder;
@@ -32,10 +32,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 import static info.ginj.util.Misc.DATE_FORMAT_PATTERN;
@@ -56,6 +60,10 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
 
     public static final String NAME = "Google Photos";
 
+    // Cached albums are checked again (with a single request) after that delay
+    private static final long ALBUM_CACHE_CHECK_PERIOD_MS = 24 * 60 * 60 * 1000;
+    private static final int MAX_CACHED_ALBUMS = 20;
+
     public enum Granularity {
         APP("for " + Ginj.getAppName()),
         DAY("per day"),
@@ -107,34 +115,14 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
         return true;
     }
 
-    /**
-     * Uploads the given capture to Google Photos
-     * This method is run in its own thread and should not access the GUI directly. All interaction
-     * should go through synchronized objects or be enclosed in a SwingUtilities.invokeLater() logic
-     *
-     * @param capture the capture to export
-     * @param target  the target to export this capture to
-     */
     @Override
-    public void exportCapture(ExportContext context, Capture capture, Target target) {
-        try {
-            final Export export = uploadCapture(context, capture, target);
-            String message = "Upload successful.";
-            if (export.getLocation() != null) {
-                if (target.getSettings().getMustCopyPath()) {
-                    copyTextToClipboard(export.getLocation());
-                    export.setLocationCopied(true);
-                    message += "\nA link to the album containing your capture was copied to the clipboard";
-                }
-            }
-            capture.addExport(export);
-            // Indicate export is complete.
-            complete(context, capture, message);
-        }
-        catch (Exception e) {
-            UI.alertException(context.getParentFrame(), getExporterName() + " Error", "There was an error exporting to " + getExporterName(), e, logger);
-            failed(context, "Upload error");
-        }
+    public String getApiHost() {
+        return "photoslibrary.googleapis.com";
+    }
+
+    @Override
+    protected String getLinkCopiedMessage() {
+        return "A link to the album containing your capture was copied to the clipboard";
     }
 
 
@@ -156,27 +144,37 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
      */
     @Override
     public Export uploadCapture(ExportContext context, Capture capture, Target target) throws AuthorizationException, UploadException, CommunicationException {
-        // We need an actual file (for now at least). Make sure we have or create one
-        logProgress(context.getExportMonitor(), "Rendering file", PROGRESS_RENDER_START);
-        try {
-            capture.toRenderedFile();
-        }
-        catch (IOException e) {
-            throw new UploadException("Error preparing file to upload", e);
-        }
-
-        final CloseableHttpClient client = HttpClients.createDefault();
+        final CloseableHttpClient client = HttpClientProvider.getClient();
 
         // Step 1: Retrieve Ginj album ID, or create it if needed
         // + Optionally share the album (one cannot share a single media using the API)
-        final Album album = getOrCreateAlbum(context, client, target, capture);
+        // The rendered file may be encoded in the background meanwhile
+        Album album = getOrCreateAlbum(context, client, target, capture);
+
+        // We need an actual file. Make sure we have or create one
+        logProgress(context.getExportMonitor(), "Rendering file", PROGRESS_RENDER_START);
+        toRenderedFile(capture);
 
         // Step 2: Upload bytes
         final String uploadToken = uploadFileBytes(context, client, target, capture);
 
         // Step 3: Create a media item in the album
-        @SuppressWarnings("unused")
-        String mediaId = createMediaItem(context, client, target, capture, album.getId(), uploadToken);
+        String mediaId;
+        try {
+            mediaId = createMediaItem(context, client, target, capture, album.getId(), uploadToken);
+        }
+        catch (FileNotFoundException e) {
+            // The cached album was deleted: look for it again (or recreate it) and retry
+            logger.info("Album '" + album.getTitle() + "' not found. Looking for it again.");
+            forgetCachedAlbum(target, album.getId());
+            album = getOrCreateAlbum(context, client, target, capture);
+            try {
+                mediaId = createMediaItem(context, client, target, capture, album.getId(), uploadToken);
+            }
+            catch (FileNotFoundException ex) {
+                throw new UploadException("Album '" + album.getTitle() + "' was not found", ex);
+            }
+        }
         // Unfortunately, mediaId seems to be useless as we can only share the album...
 
         if (target.getSettings().getMustShare()) {
@@ -190,6 +188,7 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
     /**
      * Retrieves the album to upload image to, or create it if needed.
      * Also checks the album is shared, or shares it if needed.
+     * The album is remembered in the target, so that next exports to the same album do not have to list all albums.
      *
      *
      * @param context
@@ -211,6 +210,34 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
             case CAPTURE -> Ginj.getAppName() + " capture " + capture.getId();
         };
 
+        // First see if a previous export already found it
+        final CachedAlbum cachedAlbum = getCachedAlbum(target, albumName);
+        if (cachedAlbum != null && cachedAlbum.getShareableUrl() != null) {
+            if (System.currentTimeMillis() - cachedAlbum.getCheckedTime() < ALBUM_CACHE_CHECK_PERIOD_MS) {
+                // Trust it. If it was deleted meanwhile, media creation will fail and the album will be looked for again
+                final Album album = new Album();
+                album.setId(cachedAlbum.getId());
+                album.setTitle(cachedAlbum.getName());
+                final ShareInfo shareInfo = new ShareInfo();
+                shareInfo.setShareableUrl(cachedAlbum.getShareableUrl());
+                album.setShareInfo(shareInfo);
+                return album;
+            }
+            // Check it is still there
+            logProgress(context.getExportMonitor(), "Getting album", PROGRESS_GETTING_ALBUM);
+            try {
+                final Album album = getAlbumById(client, target, cachedAlbum.getId());
+                if (album.getShareInfo() != null && album.getShareInfo().getShareableUrl() != null) {
+                    cacheAlbum(target, albumName, album);
+                    return album;
+                }
+            }
+            catch (FileNotFoundException e) {
+                logger.info("Album '" + albumName + "' not found. Looking for it again.");
+            }
+            forgetCachedAlbum(target, cachedAlbum.getId());
+        }
+
         // Try to find the album in the list of existing albums
         logProgress(context.getExportMonitor(), "Getting album", PROGRESS_GETTING_ALBUM);
         Album album = getAlbumByName(client, target, albumName);
@@ -234,9 +261,49 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
             shareAlbum(client, target, album);
         }
 
+        cacheAlbum(target, albumName, album);
         return album;
     }
 
+    private static CachedAlbum getCachedAlbum(Target target, String albumName) {
+        synchronized (target) {
+            for (CachedAlbum cachedAlbum : target.getCachedAlbums()) {
+                if (albumName.equals(cachedAlbum.getName())) {
+                    return cachedAlbum;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the given album in the target, forgetting the least recently checked ones beyond a max number.
+     * Note: the list is replaced rather than modified, as it may be being saved by another export
+     */
+    private static void cacheAlbum(Target target, String albumName, Album album) {
+        synchronized (target) {
+            final List<CachedAlbum> cachedAlbums = new ArrayList<>(target.getCachedAlbums());
+            cachedAlbums.removeIf(cachedAlbum -> albumName.equals(cachedAlbum.getName()));
+            cachedAlbums.add(new CachedAlbum(albumName, album.getId(), album.getShareInfo() == null ? null : album.getShareInfo().getShareableUrl(), System.currentTimeMillis()));
+            while (cachedAlbums.size() > MAX_CACHED_ALBUMS) {
+                cachedAlbums.remove(cachedAlbums.stream().min(Comparator.comparingLong(CachedAlbum::getCheckedTime)).orElseThrow());
+            }
+            target.setCachedAlbums(cachedAlbums);
+        }
+        Ginj.getTargetPrefs().save();
+    }
+
+    private static void forgetCachedAlbum(Target target, String albumId) {
+        synchronized (target) {
+            final List<CachedAlbum> cachedAlbums = new ArrayList<>(target.getCachedAlbums());
+            if (!cachedAlbums.removeIf(cachedAlbum -> albumId.equals(cachedAlbum.getId()))) {
+                return;
+            }
+            target.setCachedAlbums(cachedAlbums);
+        }
+        Ginj.getTargetPrefs().save();
+    }
+
 
     /**
      * Lists all application albums and return the one with the given name.
@@ -293,8 +360,7 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
         httpGet.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
         httpGet.addHeader("Content-type", "application/json");
 
-        try {
-            CloseableHttpResponse response = client.execute(httpGet);
+        try (CloseableHttpResponse response = client.execute(httpGet)) {
             if (isStatusOK(response.getCode())) {
                 final String responseText;
                 try {
@@ -374,15 +440,15 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
      * @return the retrieved album
      * @throws AuthorizationException if user has no, or insufficient, authorizations, or if a token error occurs
      * @throws CommunicationException if an url, network or decoding error occurs
+     * @throws FileNotFoundException  if the album does not exist (anymore)
      */
-    private Album getAlbumById(CloseableHttpClient client, Target target, String albumId) throws AuthorizationException, CommunicationException {
+    private Album getAlbumById(CloseableHttpClient client, Target target, String albumId) throws AuthorizationException, CommunicationException, FileNotFoundException {
         HttpGet httpGet = new HttpGet("https://photoslibrary.googleapis.com/v1/albums/" + albumId);
 
         httpGet.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
         httpGet.addHeader("Content-type", "application/json");
 
-        try {
-            CloseableHttpResponse response = client.execute(httpGet);
+        try (CloseableHttpResponse response = client.execute(httpGet)) {
             if (isStatusOK(response.getCode())) {
                 final String responseText;
                 try {
@@ -393,10 +459,16 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
                 }
                 return new Gson().fromJson(responseText, Album.class);
             }
+            else if (response.getCode() == 404) {
+                throw new FileNotFoundException("Album " + albumId + " not found");
+            }
             else {
-                throw new CommunicationException("The server returned the following error when listing albums:\n" + getResponseError(response));
+                throw new CommunicationException("The server returned the following error when getting album:\n" + getResponseError(response));
             }
         }
+        catch (FileNotFoundException e) {
+            throw e;
+        }
         catch (IOException e) {
             throw new CommunicationException(e);
         }
@@ -563,22 +635,15 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
 
         int maxChunkSize = CHUNK_SIZE;
         maxChunkSize = (maxChunkSize / chunkGranularityBytes) * chunkGranularityBytes;
-        byte[] buffer = new byte[maxChunkSize];
-        int offset = 0;
+        final UploadProgress uploadProgress = new UploadProgress(context, file.length());
+        long offset = 0;
         long remainingBytes = file.length();
-        try (InputStream is = new FileInputStream(file)) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
             while (remainingBytes > 0) {
                 String command = (remainingBytes > maxChunkSize) ? "upload" : "upload, finalize";
                 int chunkSize = (int) Math.min(maxChunkSize, remainingBytes);
-                final int bytesRead;
-                try {
-                    bytesRead = is.read(buffer, 0, chunkSize);
-                }
-                catch (IOException e) {
-                    throw new UploadException("Could not read bytes from file");
-                }
 
-                logProgress(context.getExportMonitor(), "Uploading", (int) (PROGRESS_UPLOAD_START + ((PROGRESS_UPLOAD_END - PROGRESS_UPLOAD_START) * offset) / file.length()), offset, file.length());
+                uploadProgress.set(offset);
 
                 httpPost = new HttpPost(uploadUrl);
                 httpPost.addHeader("Authorization", "Bearer " + getAccessToken(target.getAccount()));
@@ -586,7 +651,7 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
                 httpPost.addHeader("X-Goog-Upload-Command", command);
                 httpPost.addHeader("X-Goog-Upload-Offset", offset);
 
-                httpPost.setEntity(new ByteArrayEntity(buffer, 0, bytesRead, ContentType.APPLICATION_OCTET_STREAM));
+                httpPost.setEntity(new FileRegionEntity(channel, offset, chunkSize, ContentType.APPLICATION_OCTET_STREAM, uploadProgress.forChunk()));
 
                 try (CloseableHttpResponse response = client.execute(httpPost)) {
                     if (isStatusOK(response.getCode())) {
@@ -599,9 +664,9 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
                     }
                     else {
                         final String responseError = getResponseError(response);
-                        if ((response.getCode() / 100) == 5) {
-                            // Error 5xx
-                            throw new UploadException("Resuming not implemented yet:\n" + responseError);
+                        if ((response.getCode() / 100) == 5 || response.getCode() == 429) {
+                            // Server temporarily unavailable: the upload can be retried later
+                            throw new CommunicationException("The server is temporarily unavailable:\n" + responseError, response.getCode());
                         }
                         throw new UploadException("The server returned the following error when uploading file contents:\n" + responseError);
                     }
@@ -611,12 +676,12 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
                 }
 
 
-                offset += bytesRead;
+                offset += chunkSize;
                 remainingBytes = file.length() - offset;
             }
             logProgress(context.getExportMonitor(), "Uploaded", PROGRESS_UPLOAD_END, file.length(), file.length());
         }
-        catch (FileNotFoundException e) {
+        catch (NoSuchFileException e) {
             throw new UploadException("File not found: " + file.getAbsolutePath());
         }
         catch (IOException e) {
@@ -641,8 +706,9 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
      * @throws AuthorizationException if user has no, or insufficient, authorizations, or if a token error occurs
      * @throws CommunicationException if an url, network or decoding error occurs
      * @throws UploadException        if an upload-specific error occurs
+     * @throws FileNotFoundException  if the album does not exist (anymore)
      */
-    private String createMediaItem(ExportContext context, CloseableHttpClient client, Target target, Capture capture, String albumId, String uploadToken) throws AuthorizationException, UploadException, CommunicationException {
+    private String createMediaItem(ExportContext context, CloseableHttpClient client, Target target, Capture capture, String albumId, String uploadToken) throws AuthorizationException, UploadException, CommunicationException, FileNotFoundException {
 
         logProgress(context.getExportMonitor(), "Creating media", PROGRESS_CREATING_MEDIA);
         HttpPost httpPost = new HttpPost("https://photoslibrary.googleapis.com/v1/mediaItems:batchCreate");
@@ -694,10 +760,16 @@ public class GooglePhotosExporter extends AbstractGoogleExporter {
 
                 return mediaItemResult.getMediaItem().getId();
             }
+            else if (response.getCode() == 404) {
+                throw new FileNotFoundException("Album " + albumId + " not found");
+            }
             else {
                 throw new UploadException("The server returned the following error when creating media:\n" + getResponseError(response));
             }
         }
+        catch (FileNotFoundException e) {
+            throw e;
+        }
         catch (IOException e) {
             throw new CommunicationException("Error creating media", e);
         }
@@ -0,0 +1,156 @@
+package info.ginj.history;
+
+import info.ginj.model.Capture;
+import info.ginj.util.Misc;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class stores the original media of historized captures by content: each original is named after the SHA-256
+ * of its bytes, so that captures sharing the same original (e.g. all versions of a capture, or the same image captured twice)
+ * only store it once. The history index counts the captures referencing each original, so that it is deleted
+ * together with the last of them.
+ * Originals of captures saved before this storage existed remain named after their capture id.
+ */
+public class BlobStore {
+
+    public static final String BLOBS_FOLDER_NAME = "blobs";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Returns the file holding the original media of the given capture in history
+     * @param historyFolder the history folder
+     * @param capture the capture
+     * @return the file (which does not exist if the capture was not saved yet)
+     */
+    public static File getOriginalFile(File historyFolder, Capture capture) {
+        return getOriginalFile(historyFolder, capture.getId(), capture.getOriginalHash(), capture.defaultExtension());
+    }
+
+    public static File getOriginalFile(File historyFolder, HistoryEntry entry) {
+        return getOriginalFile(historyFolder, entry.getId(), entry.getOriginalHash(), entry.defaultExtension());
+    }
+
+    private static File getOriginalFile(File historyFolder, String id, String hash, String extension) {
+        if (hash == null) {
+            // Legacy storage, by capture id
+            return new File(historyFolder, id + extension);
+        }
+        return new File(new File(historyFolder, BLOBS_FOLDER_NAME), hash + extension);
+    }
+
+    /**
+     * Links (or copies, if it cannot be linked) the given source file to the blob store, under a temp name.
+     * The source file is left untouched, so that it is still available if the temp file is lost: the caller is
+     * responsible for deleting it once the stored file is renamed.
+     * @param historyFolder the history folder
+     * @param sourceFile the file to store
+     * @param extension the extension of the original
+     * @param tempExtension the extension to add to the stored file, which the caller is responsible for renaming once synced
+     * @return the hash of the file, and the temp file written or null if it was already stored
+     */
+    static StoredBlob storeFile(File historyFolder, File sourceFile, String extension, String tempExtension) throws IOException {
+        final String hash = computeHash(sourceFile);
+        final File blobFile = getOriginalFile(historyFolder, null, hash, extension);
+        if (blobFile.exists()) {
+            return new StoredBlob(hash, null);
+        }
+        final File tempFile = new File(blobFile.getAbsolutePath() + tempExtension);
+        createBlobsFolder(historyFolder);
+        Files.deleteIfExists(tempFile.toPath());
+        try {
+            Files.createLink(tempFile.toPath(), sourceFile.toPath());
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            // E.g. source on another file system
+            Files.copy(sourceFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new StoredBlob(hash, tempFile);
+    }
+
+    /**
+     * Encodes the given image to the blob store as PNG, under a temp name, computing its hash while writing.
+     * If an identical original is already stored, the encoded file is just deleted.
+     * @param historyFolder the history folder
+     * @param image the image to store
+     * @param tempExtension the extension to add to the stored file, which the caller is responsible for renaming once synced
+     * @return the hash of the PNG file, and the temp file written or null if it was already stored
+     */
+    static StoredBlob storeImage(File historyFolder, BufferedImage image, String tempExtension) throws IOException {
+        createBlobsFolder(historyFolder);
+        // The name is only known once written
+        final File encodingFile = File.createTempFile("blob", tempExtension, new File(historyFolder, BLOBS_FOLDER_NAME));
+        final MessageDigest digest = newDigest();
+        try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(encodingFile), BUFFER_SIZE), digest)) {
+            if (!ImageIO.write(image, Misc.IMAGE_FORMAT_PNG, out)) {
+                throw new IOException("No PNG writer available");
+            }
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(encodingFile.toPath());
+            throw e;
+        }
+        final String hash = Misc.toHex(digest.digest());
+        final File blobFile = getOriginalFile(historyFolder, null, hash, Misc.IMAGE_EXTENSION_PNG);
+        if (blobFile.exists()) {
+            Files.delete(encodingFile.toPath());
+            return new StoredBlob(hash, null);
+        }
+        final File tempFile = new File(blobFile.getAbsolutePath() + tempExtension);
+        Files.move(encodingFile.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new StoredBlob(hash, tempFile);
+    }
+
+    /**
+     * @return the hash of the given file, as used to name blobs
+     */
+    static String computeHash(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), digest)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) != -1) {
+                // Just compute the hash
+            }
+        }
+        return Misc.toHex(digest.digest());
+    }
+
+    private static void createBlobsFolder(File historyFolder) throws IOException {
+        final File blobsFolder = new File(historyFolder, BLOBS_FOLDER_NAME);
+        if (!blobsFolder.exists() && !blobsFolder.mkdirs()) {
+            throw new IOException("Could not create folder '" + blobsFolder.getAbsolutePath() + "'");
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Cannot happen: SHA-256 is available on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static class StoredBlob {
+        final String hash;
+        // Null if the blob was already stored
+        final File tempFile;
+
+        StoredBlob(String hash, File tempFile) {
+            this.hash = hash;
+            this.tempFile = tempFile;
+        }
+    }
+}
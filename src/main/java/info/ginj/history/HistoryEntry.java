@@ -0,0 +1,303 @@
+package info.ginj.history;
+
+import info.ginj.model.Capture;
+import info.ginj.model.Export;
+import info.ginj.tool.Overlay;
+import info.ginj.tool.text.TextOverlay;
+import info.ginj.util.Misc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Summary of a historized capture, as stored in the history index.
+ * It holds everything needed to list, sort and filter the history without decoding the capture XML.
+ */
+public class HistoryEntry {
+
+    public static final long NO_THUMBNAIL_OFFSET = -1;
+    // Keeps the encoded text well below the 64kB limit of DataOutput.writeUTF()
+    private static final int MAX_OVERLAY_TEXT_LENGTH = 16 * 1024;
+
+    private String id;
+    private int version;
+    private String name;
+    private boolean isVideo;
+    private String originalHash;
+    private long captureSize;
+    private long metadataLastModified;
+    private List<Export> exports = new ArrayList<>();
+    private String overlayText;
+    private Long perceptualHash;
+    private long thumbnailOffset = NO_THUMBNAIL_OFFSET;
+
+    public HistoryEntry() {
+    }
+
+    /**
+     * Builds the entry describing the given capture, as it was saved to the history folder
+     * @param capture the capture
+     * @param historyFolder the history folder the capture was saved to
+     * @return the new entry
+     */
+    public static HistoryEntry of(Capture capture, File historyFolder) {
+        HistoryEntry entry = new HistoryEntry();
+        entry.id = capture.getId();
+        entry.version = capture.getVersion();
+        entry.name = capture.getName();
+        entry.isVideo = capture.isVideo();
+        entry.originalHash = capture.getOriginalHash();
+        entry.captureSize = BlobStore.getOriginalFile(historyFolder, capture).length();
+        entry.metadataLastModified = new File(historyFolder, capture.getBaseFilename() + Misc.METADATA_EXTENSION).lastModified();
+        if (capture.getExports() != null) {
+            entry.exports = new ArrayList<>(capture.getExports());
+        }
+        entry.overlayText = getOverlayText(capture);
+        return entry;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isVideo() {
+        return isVideo;
+    }
+
+    /**
+     * @return the SHA-256 of the original media, or null if it is stored by capture id (legacy)
+     */
+    public String getOriginalHash() {
+        return originalHash;
+    }
+
+    /**
+     * @return the size of the original file, in bytes
+     */
+    public long getCaptureSize() {
+        return captureSize;
+    }
+
+    /**
+     * @param captureSize the new size of the original file, in bytes
+     * @return a copy of this entry with the given capture size (see withThumbnail())
+     */
+    HistoryEntry withCaptureSize(long captureSize) {
+        final HistoryEntry entry = copy();
+        entry.captureSize = captureSize;
+        return entry;
+    }
+
+    /**
+     * @return the last modification date of the metadata file, which is also used to detect stale entries
+     */
+    public long getMetadataLastModified() {
+        return metadataLastModified;
+    }
+
+    public List<Export> getExports() {
+        return exports;
+    }
+
+    /**
+     * @return the texts of all text overlays, one per line, or null if there are none
+     */
+    public String getOverlayText() {
+        return overlayText;
+    }
+
+    /**
+     * @return the perceptual hash of the thumbnail (see PerceptualHash), or null if not computed yet
+     */
+    public Long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    public void setPerceptualHash(Long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+    }
+
+    /**
+     * @return the position of the thumbnail in the thumbnail store, or NO_THUMBNAIL_OFFSET
+     */
+    public long getThumbnailOffset() {
+        return thumbnailOffset;
+    }
+
+    public void setThumbnailOffset(long thumbnailOffset) {
+        this.thumbnailOffset = thumbnailOffset;
+    }
+
+    /**
+     * Entries held by the index are shared with other threads, so they are never modified: updated copies replace them
+     * @param thumbnailOffset the position of the thumbnail in the thumbnail store
+     * @param perceptualHash the perceptual hash of the thumbnail
+     * @return a copy of this entry pointing to the given thumbnail
+     */
+    HistoryEntry withThumbnail(long thumbnailOffset, Long perceptualHash) {
+        final HistoryEntry entry = copy();
+        entry.thumbnailOffset = thumbnailOffset;
+        entry.perceptualHash = perceptualHash;
+        return entry;
+    }
+
+    private HistoryEntry copy() {
+        HistoryEntry entry = new HistoryEntry();
+        entry.id = id;
+        entry.version = version;
+        entry.name = name;
+        entry.isVideo = isVideo;
+        entry.originalHash = originalHash;
+        entry.captureSize = captureSize;
+        entry.metadataLastModified = metadataLastModified;
+        entry.exports = new ArrayList<>(exports);
+        entry.overlayText = overlayText;
+        entry.perceptualHash = perceptualHash;
+        entry.thumbnailOffset = thumbnailOffset;
+        return entry;
+    }
+
+
+    // Utils
+
+    /**
+     * Same logic as Capture.getBaseFilename()
+     * @return the filename of the capture files, without extension
+     */
+    public String getBaseFilename() {
+        String baseFilename = id;
+        if (version > 1) {
+            baseFilename += Capture.VERSION_SEPARATOR + version;
+        }
+        return baseFilename;
+    }
+
+    /**
+     * Same logic as Capture.getDefaultName()
+     * @return the name of the capture, or its base filename if name is empty
+     */
+    public String getDefaultName() {
+        if (name == null || name.isBlank()) {
+            return getBaseFilename();
+        }
+        return name;
+    }
+
+    public String defaultExtension() {
+        return isVideo ? Misc.VIDEO_EXTENSION : Misc.IMAGE_EXTENSION_PNG;
+    }
+
+    /**
+     * Returns a key identifying the original media, shared by all captures pointing to the same one
+     * @return the hash of the original, or the capture id for legacy captures
+     */
+    public String getOriginalKey() {
+        return (originalHash == null) ? "id:" + id : originalHash;
+    }
+
+    public File getMetadataFile(File historyFolder) {
+        return new File(historyFolder, getBaseFilename() + Misc.METADATA_EXTENSION);
+    }
+
+    private static String getOverlayText(Capture capture) {
+        if (capture.getOverlays() == null) {
+            return null;
+        }
+        StringJoiner texts = new StringJoiner("\n");
+        for (Overlay overlay : capture.getOverlays()) {
+            if (overlay instanceof TextOverlay && ((TextOverlay) overlay).getTextArea() != null) {
+                texts.add(((TextOverlay) overlay).getTextArea().getText());
+            }
+        }
+        if (texts.length() == 0) {
+            return null;
+        }
+        final String text = texts.toString();
+        return (text.length() > MAX_OVERLAY_TEXT_LENGTH) ? text.substring(0, MAX_OVERLAY_TEXT_LENGTH) : text;
+    }
+
+
+    ////////////////////////////////
+    // Serialization
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(id);
+        out.writeInt(version);
+        writeNullableString(out, name);
+        out.writeBoolean(isVideo);
+        writeNullableString(out, originalHash);
+        out.writeLong(captureSize);
+        out.writeLong(metadataLastModified);
+        out.writeInt(exports.size());
+        for (Export export : exports) {
+            writeNullableString(out, export.getExporterName());
+            writeNullableString(out, export.getMediaId());
+            writeNullableString(out, export.getLocation());
+            out.writeBoolean(export.isLocationCopied());
+        }
+        writeNullableString(out, overlayText);
+        out.writeBoolean(perceptualHash != null);
+        if (perceptualHash != null) {
+            out.writeLong(perceptualHash);
+        }
+        out.writeLong(thumbnailOffset);
+    }
+
+    static HistoryEntry read(DataInput in) throws IOException {
+        HistoryEntry entry = new HistoryEntry();
+        entry.id = in.readUTF();
+        entry.version = in.readInt();
+        entry.name = readNullableString(in);
+        entry.isVideo = in.readBoolean();
+        entry.originalHash = readNullableString(in);
+        entry.captureSize = in.readLong();
+        entry.metadataLastModified = in.readLong();
+        final int numExports = in.readInt();
+        for (int i = 0; i < numExports; i++) {
+            final String exporterName = readNullableString(in);
+            final String mediaId = readNullableString(in);
+            final String location = readNullableString(in);
+            entry.exports.add(new Export(exporterName, mediaId, location, in.readBoolean()));
+        }
+        entry.overlayText = readNullableString(in);
+        if (in.readBoolean()) {
+            entry.perceptualHash = in.readLong();
+        }
+        entry.thumbnailOffset = in.readLong();
+        return entry;
+    }
+
+    private static void writeNullableString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryEntry{" +
+                "id='" + id + '\'' +
+                ", version=" + version +
+                ", name='" + name + '\'' +
+                ", isVideo=" + isVideo +
+                '}';
+    }
+}
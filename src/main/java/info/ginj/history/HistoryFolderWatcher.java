@@ -0,0 +1,96 @@
+package info.ginj.history;
+
+import info.ginj.util.Misc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * This class watches the history folder for capture metadata files created, modified or deleted by other processes,
+ * and applies these changes to the history index.
+ * Events are coalesced: the index is only refreshed once the folder has been quiet for a short delay, so that
+ * e.g. a sync tool downloading many captures, or a file written in several steps, only causes one refresh.
+ * Changes made by this application are already in the index, so refreshing them does not decode anything.
+ */
+public class HistoryFolderWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryFolderWatcher.class);
+
+    private static final long QUIET_PERIOD_MS = 500;
+
+    private final HistoryIndex index;
+    private WatchService watchService;
+
+    public HistoryFolderWatcher(HistoryIndex index) {
+        this.index = index;
+    }
+
+    public void start() throws IOException {
+        final Path historyPath = index.getHistoryFolder().toPath();
+        watchService = historyPath.getFileSystem().newWatchService();
+        historyPath.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        Thread watcherThread = new Thread(this::watch, "History folder watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public void stop() {
+        try {
+            watchService.close();
+        }
+        catch (IOException e) {
+            logger.warn("Error closing history folder watcher", e);
+        }
+    }
+
+    private void watch() {
+        Set<String> changedBaseFilenames = new HashSet<>();
+        boolean mustReconcile = false;
+        try {
+            while (true) {
+                // Wait indefinitely if nothing is pending, otherwise only until the folder has been quiet long enough
+                final WatchKey key = (changedBaseFilenames.isEmpty() && !mustReconcile) ? watchService.take() : watchService.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    if (mustReconcile) {
+                        index.reconcile();
+                    }
+                    else {
+                        index.refresh(changedBaseFilenames);
+                    }
+                    changedBaseFilenames.clear();
+                    mustReconcile = false;
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        // Some events were lost
+                        mustReconcile = true;
+                    }
+                    else {
+                        final String filename = event.context().toString();
+                        if (filename.toLowerCase().endsWith(Misc.METADATA_EXTENSION)) {
+                            changedBaseFilenames.add(filename.substring(0, filename.length() - Misc.METADATA_EXTENSION.length()));
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    logger.warn("History folder is not accessible anymore. Stopped watching it.");
+                    return;
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException e) {
+            // Stopped
+        }
+        catch (Exception e) {
+            logger.error("Error watching history folder", e);
+        }
+    }
+}
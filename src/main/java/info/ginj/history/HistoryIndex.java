@@ -0,0 +1,511 @@
+package info.ginj.history;
+
+import info.ginj.Ginj;
+import info.ginj.model.Capture;
+import info.ginj.util.Misc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.beans.XMLDecoder;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.UnaryOperator;
+
+/**
+ * This class maintains a single index file describing all captures of the history folder,
+ * so that the history can be listed, sorted and filtered without decoding each capture XML.
+ * <p>
+ * The file is append-only: it starts with a header (magic number + format version), followed by records,
+ * each record either adding/replacing an entry or deleting it. Each record is prefixed by its length so that
+ * a record truncated by a crash is detected and dropped.
+ * When the file is missing, has another format version or gets out of sync with the XML files
+ * (e.g. captures added or deleted by another instance), it is rebuilt from the XML files, decoding only the ones that changed.
+ * When the file contains too many obsolete records, it is compacted.
+ * Changes made to the history folder while the application is running are detected by a HistoryFolderWatcher,
+ * and all changes are reported to registered HistoryIndexListeners.
+ * The index also counts the captures referencing each original media (see BlobStore), so that deleting a capture
+ * can tell whether its original is still used without listing the history folder.
+ * Entries are also indexed for full-text search (see HistorySearchIndex) and by perceptual hash to find similar
+ * captures (see SimilarityIndex).
+ */
+public class HistoryIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryIndex.class);
+
+    public static final String INDEX_FILENAME = "history.idx";
+
+    private static final int MAGIC = 0x474E4A58; // "GNJX"
+    private static final int FORMAT_VERSION = 4;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    // Compact when there are more than that number of obsolete records per live entry
+    private static final int MAX_OBSOLETE_RECORDS_RATIO = 2;
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 64;
+
+    private static HistoryIndex instance;
+
+    private final File historyFolder;
+    private final File indexFile;
+    // Entries by base filename, in insertion order
+    private final Map<String, HistoryEntry> entries = new LinkedHashMap<>();
+    // Number of entries by original key
+    private final Map<String, Integer> referenceCounts = new HashMap<>();
+    private final HistorySearchIndex searchIndex = new HistorySearchIndex();
+    private final SimilarityIndex similarityIndex = new SimilarityIndex();
+    private int numRecords = 0;
+    private final List<HistoryIndexListener> listeners = new CopyOnWriteArrayList<>();
+    private HistoryFolderWatcher watcher;
+
+    /**
+     * Returns the index of the current history folder, loading (and if needed rebuilding) it on first call
+     * @return the index
+     */
+    public static synchronized HistoryIndex getInstance() {
+        final File historyFolder = Ginj.getHistoryFolder();
+        if (instance == null || !instance.historyFolder.equals(historyFolder)) {
+            if (instance != null) {
+                instance.stopWatching();
+            }
+            instance = new HistoryIndex(historyFolder);
+            instance.load();
+            instance.startWatching();
+        }
+        return instance;
+    }
+
+    public HistoryIndex(File historyFolder) {
+        this.historyFolder = historyFolder;
+        this.indexFile = new File(historyFolder, INDEX_FILENAME);
+    }
+
+    public File getHistoryFolder() {
+        return historyFolder;
+    }
+
+    /**
+     * @return a copy of all entries, in no particular order
+     */
+    public synchronized List<HistoryEntry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return the full-text index of the entries, always in sync with them
+     */
+    public HistorySearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Returns the entries looking like the given perceptual hash, most similar first
+     * @param perceptualHash the hash (see PerceptualHash)
+     * @param maxDistance the max number of bits differing between the hashes
+     * @return the entries found
+     */
+    public synchronized List<HistoryEntry> findSimilar(long perceptualHash, int maxDistance) {
+        final Map<String, Integer> distances = similarityIndex.search(perceptualHash, maxDistance);
+        List<HistoryEntry> similarEntries = new ArrayList<>();
+        for (String baseFilename : distances.keySet()) {
+            similarEntries.add(entries.get(baseFilename));
+        }
+        similarEntries.sort(Comparator.comparingInt(entry -> distances.get(entry.getBaseFilename())));
+        return similarEntries;
+    }
+
+    public synchronized HistoryEntry get(String baseFilename) {
+        return entries.get(baseFilename);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns all entries which are versions of the capture with the given id
+     * @param id the capture id
+     * @return the entries, including the one with the given id itself
+     */
+    public synchronized List<HistoryEntry> getVersions(String id) {
+        List<HistoryEntry> versions = new ArrayList<>();
+        for (HistoryEntry entry : entries.values()) {
+            if (entry.getId().equals(id)) {
+                versions.add(entry);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Returns the number of captures in history referencing the same original media as the given entry
+     * @param entry the entry
+     * @return the number of captures, including the given one if it is in the index
+     */
+    public synchronized int getReferenceCount(HistoryEntry entry) {
+        return referenceCounts.getOrDefault(entry.getOriginalKey(), 0);
+    }
+
+    /**
+     * Returns all other entries referencing the same original media as the given entry
+     * @param entry the entry
+     * @return the entries, excluding the given one
+     */
+    public synchronized List<HistoryEntry> getEntriesSharingOriginal(HistoryEntry entry) {
+        List<HistoryEntry> sharingEntries = new ArrayList<>();
+        if (getReferenceCount(entry) > 1) {
+            for (HistoryEntry otherEntry : entries.values()) {
+                if (otherEntry.getOriginalKey().equals(entry.getOriginalKey()) && !otherEntry.getBaseFilename().equals(entry.getBaseFilename())) {
+                    sharingEntries.add(otherEntry);
+                }
+            }
+        }
+        return sharingEntries;
+    }
+
+    /**
+     * Adds or replaces the entry of a capture that was just saved to history
+     * @param entry the entry describing the saved capture
+     */
+    public synchronized void put(HistoryEntry entry) {
+        putAll(Collections.singletonList(entry));
+    }
+
+    public synchronized void putAll(Collection<HistoryEntry> newEntries) {
+        for (HistoryEntry entry : newEntries) {
+            putEntry(entry);
+        }
+        append(newEntries, Collections.emptyList());
+        notifyListeners(newEntries, Collections.emptyList());
+    }
+
+    /**
+     * Updates existing entries all at once, with the index locked so that they cannot be replaced meanwhile.
+     * Entries are shared with other threads, so the updater must return updated copies instead of modifying them
+     * @param baseFilenames the base filenames of the entries to update. Removed ones are skipped
+     * @param updater returns the updated copy of the given current entry, or null to leave it unchanged
+     * @return the updated copies put in the index
+     */
+    public synchronized List<HistoryEntry> update(Collection<String> baseFilenames, UnaryOperator<HistoryEntry> updater) {
+        List<HistoryEntry> updatedEntries = new ArrayList<>();
+        for (String baseFilename : baseFilenames) {
+            final HistoryEntry entry = entries.get(baseFilename);
+            final HistoryEntry updatedEntry = (entry == null) ? null : updater.apply(entry);
+            if (updatedEntry != null) {
+                updatedEntries.add(updatedEntry);
+            }
+        }
+        if (!updatedEntries.isEmpty()) {
+            putAll(updatedEntries);
+        }
+        return updatedEntries;
+    }
+
+    /**
+     * Removes the entry of a capture deleted from history
+     * @param baseFilename the base filename of the deleted capture
+     */
+    public synchronized void remove(String baseFilename) {
+        if (removeEntry(baseFilename) != null) {
+            append(Collections.emptyList(), Collections.singletonList(baseFilename));
+            notifyListeners(Collections.emptyList(), Collections.singletonList(baseFilename));
+        }
+    }
+
+
+    ////////////////////////////////
+    // Listeners
+
+    /**
+     * Registers a listener to be notified of all changes to the index.
+     * Note: listeners are called on the thread performing the change, with the index locked
+     * @param listener the listener
+     */
+    public void addListener(HistoryIndexListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(HistoryIndexListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(Collection<HistoryEntry> putEntries, Collection<String> removedBaseFilenames) {
+        for (HistoryIndexListener listener : listeners) {
+            listener.onEntriesChanged(putEntries, removedBaseFilenames);
+        }
+    }
+
+
+    ////////////////////////////////
+    // Watching
+
+    /**
+     * Starts applying changes made to the history folder by other processes (sync tools, file explorer, other instances)
+     */
+    public synchronized void startWatching() {
+        if (watcher == null) {
+            watcher = new HistoryFolderWatcher(this);
+            try {
+                watcher.start();
+            }
+            catch (IOException e) {
+                logger.warn("Could not watch history folder '" + historyFolder.getAbsolutePath() + "'. External changes will only be detected on next start.", e);
+                watcher = null;
+            }
+        }
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+    }
+
+
+    ////////////////////////////////
+    // Loading
+
+    /**
+     * Loads the index file, then brings it back in sync with the XML files of the history folder
+     */
+    synchronized void load() {
+        final long startTime = System.currentTimeMillis();
+        boolean mustRewrite = !readIndexFile();
+        final int numChanges = reconcile();
+        if (mustRewrite || numRecords > MIN_RECORDS_BEFORE_COMPACTION && numRecords > entries.size() * (MAX_OBSOLETE_RECORDS_RATIO + 1)) {
+            compact();
+        }
+        logger.info("History index loaded in " + (System.currentTimeMillis() - startTime) + "ms: " + entries.size() + " entries, " + numChanges + " change(s) found in history folder");
+    }
+
+    /**
+     * Replays the index file into memory
+     * @return true if the file could be used, false if it must be rewritten from scratch
+     */
+    private boolean readIndexFile() {
+        entries.clear();
+        referenceCounts.clear();
+        searchIndex.clear();
+        similarityIndex.clear();
+        numRecords = 0;
+        if (!indexFile.exists()) {
+            logger.info("No history index found. Building it from history folder.");
+            return false;
+        }
+        long validLength = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                logger.warn("History index '" + indexFile.getAbsolutePath() + "' is corrupt. Rebuilding it.");
+                return false;
+            }
+            final int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                logger.info("History index has format version " + formatVersion + " instead of " + FORMAT_VERSION + ". Rebuilding it.");
+                return false;
+            }
+            while (true) {
+                final int type = in.read();
+                if (type == -1) {
+                    // Clean end of file
+                    break;
+                }
+                final int length;
+                final byte[] payload;
+                try {
+                    length = in.readInt();
+                    payload = in.readNBytes(length);
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                if (payload.length < length) {
+                    // Record interrupted by a crash
+                    break;
+                }
+                final DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(payload));
+                switch (type) {
+                    case RECORD_PUT -> {
+                        putEntry(HistoryEntry.read(recordIn));
+                    }
+                    case RECORD_DELETE -> removeEntry(recordIn.readUTF());
+                    default -> throw new IOException("Unknown record type " + type);
+                }
+                numRecords++;
+                validLength += 1 + 4 + length;
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Error reading history index '" + indexFile.getAbsolutePath() + "'. Rebuilding it.", e);
+            return false;
+        }
+
+        if (validLength < indexFile.length()) {
+            logger.warn("History index ends with an incomplete record. Truncating it.");
+            try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+                raf.setLength(validLength);
+            }
+            catch (IOException e) {
+                logger.warn("Error truncating history index", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the index with the XML files present in the history folder, and updates it accordingly.
+     * Only XML files that are unknown or modified since they were indexed are decoded.
+     * @return the number of entries added, updated or removed
+     */
+    public synchronized int reconcile() {
+        final File[] metadataFiles = historyFolder.listFiles((dir, name) -> name.toLowerCase().endsWith(Misc.METADATA_EXTENSION));
+        if (metadataFiles == null) {
+            logger.error("Could not list files in history folder '" + historyFolder.getAbsolutePath() + "'");
+            return 0;
+        }
+        Set<String> baseFilenames = new HashSet<>(entries.keySet());
+        for (File metadataFile : metadataFiles) {
+            final String filename = metadataFile.getName();
+            baseFilenames.add(filename.substring(0, filename.length() - Misc.METADATA_EXTENSION.length()));
+        }
+        return refresh(baseFilenames);
+    }
+
+    /**
+     * Updates the entries of the given captures according to their XML files, e.g. after they were modified by another process.
+     * XML files are only decoded if they were modified since they were indexed.
+     * @param baseFilenames the base filenames of the captures to check
+     * @return the number of entries added, updated or removed
+     */
+    public synchronized int refresh(Collection<String> baseFilenames) {
+        List<HistoryEntry> putEntries = new ArrayList<>();
+        List<String> removedBaseFilenames = new ArrayList<>();
+        for (String baseFilename : baseFilenames) {
+            final File metadataFile = new File(historyFolder, baseFilename + Misc.METADATA_EXTENSION);
+            final HistoryEntry entry = entries.get(baseFilename);
+            if (!metadataFile.exists()) {
+                if (entry != null) {
+                    removeEntry(baseFilename);
+                    removedBaseFilenames.add(baseFilename);
+                }
+            }
+            else if (entry == null || entry.getMetadataLastModified() != metadataFile.lastModified()) {
+                try (XMLDecoder xmlDecoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(metadataFile)))) {
+                    final Capture capture = (Capture) xmlDecoder.readObject();
+                    final HistoryEntry newEntry = HistoryEntry.of(capture, historyFolder);
+                    if (entry != null) {
+                        // The thumbnail is not regenerated
+                        newEntry.setThumbnailOffset(entry.getThumbnailOffset());
+                        newEntry.setPerceptualHash(entry.getPerceptualHash());
+                    }
+                    if (!newEntry.getBaseFilename().equals(baseFilename)) {
+                        logger.warn("Skipping '" + metadataFile.getAbsolutePath() + "' as it describes capture " + newEntry.getBaseFilename());
+                        continue;
+                    }
+                    putEntry(newEntry);
+                    putEntries.add(newEntry);
+                }
+                catch (Exception e) {
+                    logger.error("Error indexing capture '" + metadataFile.getAbsolutePath() + "'", e);
+                }
+            }
+        }
+        if (!putEntries.isEmpty() || !removedBaseFilenames.isEmpty()) {
+            append(putEntries, removedBaseFilenames);
+            notifyListeners(putEntries, removedBaseFilenames);
+        }
+        return putEntries.size() + removedBaseFilenames.size();
+    }
+
+    private void putEntry(HistoryEntry entry) {
+        removeEntry(entry.getBaseFilename());
+        entries.put(entry.getBaseFilename(), entry);
+        referenceCounts.merge(entry.getOriginalKey(), 1, Integer::sum);
+        searchIndex.add(entry);
+        if (entry.getPerceptualHash() != null) {
+            similarityIndex.add(entry.getBaseFilename(), entry.getPerceptualHash());
+        }
+    }
+
+    private HistoryEntry removeEntry(String baseFilename) {
+        final HistoryEntry entry = entries.remove(baseFilename);
+        if (entry != null) {
+            // Drop the count when it reaches 0
+            referenceCounts.computeIfPresent(entry.getOriginalKey(), (key, count) -> (count > 1) ? count - 1 : null);
+            searchIndex.remove(baseFilename);
+            similarityIndex.remove(baseFilename);
+        }
+        return entry;
+    }
+
+
+    ////////////////////////////////
+    // Writing
+
+    /**
+     * Appends records to the index file. Note: a missing or unusable file is written from scratch
+     */
+    private void append(Collection<HistoryEntry> putEntries, Collection<String> deletedBaseFilenames) {
+        if (!indexFile.exists()) {
+            compact();
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)))) {
+            for (HistoryEntry entry : putEntries) {
+                writePutRecord(out, entry);
+            }
+            for (String baseFilename : deletedBaseFilenames) {
+                writeDeleteRecord(out, baseFilename);
+            }
+        }
+        catch (IOException e) {
+            logger.error("Error writing history index '" + indexFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Rewrites the index file with only the current entries. The new file is written aside then moved in place,
+     * so that the previous version remains usable until the new one is complete
+     */
+    private void compact() {
+        final File tempFile = new File(historyFolder, INDEX_FILENAME + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                numRecords = 0;
+                for (HistoryEntry entry : entries.values()) {
+                    writePutRecord(out, entry);
+                }
+            }
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            logger.error("Error writing history index '" + indexFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    private void writePutRecord(DataOutputStream out, HistoryEntry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        entry.write(new DataOutputStream(payload));
+        writeRecord(out, RECORD_PUT, payload);
+    }
+
+    private void writeDeleteRecord(DataOutputStream out, String baseFilename) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        new DataOutputStream(payload).writeUTF(baseFilename);
+        writeRecord(out, RECORD_DELETE, payload);
+    }
+
+    private void writeRecord(DataOutputStream out, byte type, ByteArrayOutputStream payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        numRecords++;
+    }
+}
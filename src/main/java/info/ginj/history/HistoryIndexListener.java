@@ -0,0 +1,12 @@
+package info.ginj.history;
+
+import java.util.Collection;
+
+public interface HistoryIndexListener {
+    /**
+     * Called once for each change to the index, with all the entries it added, replaced or removed
+     * @param putEntries the entries added or replaced
+     * @param removedBaseFilenames the base filenames of the entries removed
+     */
+    void onEntriesChanged(Collection<HistoryEntry> putEntries, Collection<String> removedBaseFilenames);
+}
@@ -0,0 +1,395 @@
+package info.ginj.history;
+
+import info.ginj.model.Prefs;
+import info.ginj.export.ExportQueue;
+import info.ginj.ui.AbstractAllDisplaysFrame;
+import info.ginj.ui.CaptureEditingFrame;
+import info.ginj.util.Jaffree;
+import info.ginj.util.Misc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * This class keeps the history folder from growing forever. A low priority background job periodically:
+ * <ul>
+ *     <li>deletes captures according to the retention prefs (max age, max total size of originals, max number of captures with the same name),</li>
+ *     <li>recompresses old originals: PNGs are rewritten with maximum deflate, or as indexed-color PNGs when they have
+ *     at most 256 colors (which is lossless and common for screenshots), and videos can optionally be re-encoded at a lower quality.</li>
+ * </ul>
+ * The job is throttled: it waits between two files, and pauses as long as a capture is being performed, edited
+ * or exported, or the history writer is busy.
+ * Recompressed originals keep their name, even when it is a content hash (see BlobStore): the name identifies the
+ * original media, while the bytes are only the current encoding of it.
+ */
+public class HistoryMaintenance {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryMaintenance.class);
+
+    public static final String RECOMPRESSED_LIST_FILENAME = "recompressed.lst";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final long INITIAL_DELAY_MS = 2 * 60 * 1000;
+    private static final long PASS_INTERVAL_MS = 6 * 60 * 60 * 1000;
+    // Pause between two files, to keep disk and CPU usage low
+    private static final long ITEM_DELAY_MS = 500;
+    // Polling delay while the application is busy
+    private static final long BUSY_POLL_DELAY_MS = 5000;
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    private static final int MAX_INDEXED_COLORS = 256;
+
+    private static Thread maintenanceThread;
+
+    /**
+     * Starts, once, the background maintenance job
+     */
+    public static synchronized void start() {
+        if (maintenanceThread != null) {
+            return;
+        }
+        maintenanceThread = new Thread(() -> {
+            try {
+                Thread.sleep(INITIAL_DELAY_MS);
+                while (true) {
+                    try {
+                        runPass();
+                    }
+                    catch (InterruptedException e) {
+                        throw e;
+                    }
+                    catch (Exception e) {
+                        logger.error("Error during history maintenance", e);
+                    }
+                    Thread.sleep(PASS_INTERVAL_MS);
+                }
+            }
+            catch (InterruptedException e) {
+                // Stopped
+            }
+        }, "History maintenance");
+        maintenanceThread.setDaemon(true);
+        maintenanceThread.setPriority(Thread.MIN_PRIORITY);
+        maintenanceThread.start();
+    }
+
+    /**
+     * Deletes all files of the given capture from history, as well as its original if no other capture references it
+     * @param entry the history entry of the capture
+     * @return true if all files could be deleted
+     */
+    public static boolean deleteCapture(HistoryEntry entry) {
+        final HistoryIndex historyIndex = HistoryIndex.getInstance();
+        final File historyFolder = historyIndex.getHistoryFolder();
+        // The source media is only deleted with the last capture referencing it
+        final boolean isOriginalShared = !historyIndex.getEntriesSharingOriginal(entry).isEmpty();
+        boolean ok = entry.getMetadataFile(historyFolder).delete();
+        ok = ThumbnailStore.getInstance().delete(entry) && ok;
+        if (!isOriginalShared) {
+            ok = BlobStore.getOriginalFile(historyFolder, entry).delete() && ok;
+        }
+        historyIndex.remove(entry.getBaseFilename());
+        return ok;
+    }
+
+    static void runPass() throws InterruptedException {
+        applyRetention();
+        recompressOriginals();
+    }
+
+
+    ////////////////////////////////
+    // Retention
+
+    private static void applyRetention() throws InterruptedException {
+        final int maxAgeDays = Prefs.getAsInt(Prefs.Key.HISTORY_RETENTION_MAX_AGE_DAYS);
+        final long maxBytes = Prefs.getAsLong(Prefs.Key.HISTORY_RETENTION_MAX_BYTES);
+        final int keepLastPerName = Prefs.getAsInt(Prefs.Key.HISTORY_RETENTION_KEEP_LAST_PER_NAME);
+        if (maxAgeDays <= 0 && maxBytes <= 0 && keepLastPerName <= 0) {
+            return;
+        }
+
+        // Most recent first
+        List<HistoryEntry> entries = HistoryIndex.getInstance().getEntries();
+        entries.sort(Comparator.comparingLong(HistoryEntry::getMetadataLastModified).reversed());
+        Set<HistoryEntry> expiredEntries = new LinkedHashSet<>();
+
+        if (maxAgeDays > 0) {
+            final long oldestDate = System.currentTimeMillis() - maxAgeDays * DAY_MS;
+            for (HistoryEntry entry : entries) {
+                if (entry.getMetadataLastModified() < oldestDate) {
+                    expiredEntries.add(entry);
+                }
+            }
+        }
+
+        if (keepLastPerName > 0) {
+            Map<String, Integer> numEntriesByName = new HashMap<>();
+            for (HistoryEntry entry : entries) {
+                if (entry.getName() != null && !entry.getName().isBlank()
+                        && numEntriesByName.merge(entry.getName(), 1, Integer::sum) > keepLastPerName) {
+                    expiredEntries.add(entry);
+                }
+            }
+        }
+
+        if (maxBytes > 0) {
+            // Count each original once, even if shared, and only free it when its last capture is deleted
+            Map<String, Integer> numReferences = new HashMap<>();
+            long totalBytes = 0;
+            for (HistoryEntry entry : entries) {
+                if (!expiredEntries.contains(entry) && numReferences.merge(entry.getOriginalKey(), 1, Integer::sum) == 1) {
+                    totalBytes += entry.getCaptureSize();
+                }
+            }
+            for (int i = entries.size() - 1; i >= 0 && totalBytes > maxBytes; i--) {
+                final HistoryEntry entry = entries.get(i);
+                if (expiredEntries.add(entry) && numReferences.merge(entry.getOriginalKey(), -1, Integer::sum) == 0) {
+                    totalBytes -= entry.getCaptureSize();
+                }
+            }
+        }
+
+        if (expiredEntries.isEmpty()) {
+            return;
+        }
+        int numDeleted = 0;
+        for (HistoryEntry entry : expiredEntries) {
+            waitUntilIdle();
+            if (deleteCapture(entry)) {
+                numDeleted++;
+            }
+            else {
+                logger.warn("Could not delete all files of expired capture " + entry.getBaseFilename());
+            }
+        }
+        logger.info("History retention: deleted " + numDeleted + "/" + expiredEntries.size() + " expired capture(s)");
+    }
+
+
+    ////////////////////////////////
+    // Recompression
+
+    private static void recompressOriginals() throws InterruptedException {
+        final int recompressAfterDays = Prefs.getAsInt(Prefs.Key.HISTORY_RECOMPRESS_AFTER_DAYS);
+        if (recompressAfterDays <= 0) {
+            return;
+        }
+        final int videoCrf = Prefs.getAsInt(Prefs.Key.HISTORY_RECOMPRESS_VIDEO_CRF);
+        final HistoryIndex historyIndex = HistoryIndex.getInstance();
+        final File historyFolder = historyIndex.getHistoryFolder();
+        final File listFile = new File(historyFolder, RECOMPRESSED_LIST_FILENAME);
+        final Set<String> recompressedFilenames = readRecompressedList(listFile);
+
+        // Date of the most recent capture referencing each original
+        final long oldestDate = System.currentTimeMillis() - recompressAfterDays * DAY_MS;
+        Map<String, HistoryEntry> entriesByOriginal = new HashMap<>();
+        Map<String, Long> lastUseByOriginal = new HashMap<>();
+        for (HistoryEntry entry : historyIndex.getEntries()) {
+            entriesByOriginal.putIfAbsent(entry.getOriginalKey(), entry);
+            lastUseByOriginal.merge(entry.getOriginalKey(), entry.getMetadataLastModified(), Math::max);
+        }
+
+        long totalBytesBefore = 0;
+        long totalBytesAfter = 0;
+        int numRecompressed = 0;
+        for (Map.Entry<String, HistoryEntry> originalEntry : entriesByOriginal.entrySet()) {
+            final HistoryEntry entry = originalEntry.getValue();
+            final File originalFile = BlobStore.getOriginalFile(historyFolder, entry);
+            if (lastUseByOriginal.get(originalEntry.getKey()) > oldestDate
+                    || recompressedFilenames.contains(originalFile.getName())
+                    || (entry.isVideo() && (videoCrf <= 0 || !Jaffree.IS_AVAILABLE))
+                    || !originalFile.exists()) {
+                continue;
+            }
+            waitUntilIdle();
+            final long bytesBefore = originalFile.length();
+            try {
+                final long bytesAfter = entry.isVideo() ? recompressVideo(originalFile, videoCrf) : recompressImage(originalFile);
+                logger.info("Recompressed '" + originalFile.getName() + "': " + Misc.getPrettySize(bytesBefore) + " -> " + Misc.getPrettySize(bytesAfter));
+                totalBytesBefore += bytesBefore;
+                totalBytesAfter += bytesAfter;
+                numRecompressed++;
+                if (bytesAfter != bytesBefore) {
+                    updateCaptureSizes(historyIndex, originalEntry.getKey(), bytesAfter);
+                }
+            }
+            catch (Exception e) {
+                logger.error("Error recompressing '" + originalFile.getAbsolutePath() + "'", e);
+            }
+            // Never try again, whatever the result
+            recompressedFilenames.add(originalFile.getName());
+            appendToRecompressedList(listFile, originalFile.getName());
+            Thread.sleep(ITEM_DELAY_MS);
+        }
+        if (numRecompressed > 0) {
+            logger.info("History recompression: " + numRecompressed + " original(s), " + Misc.getPrettySize(totalBytesBefore) + " -> " + Misc.getPrettySize(totalBytesAfter)
+                    + " (" + Misc.getPrettySize(totalBytesBefore - totalBytesAfter) + " saved)");
+        }
+    }
+
+    /**
+     * Rewrites the given PNG file losslessly, as small as possible
+     * @return the new size of the file (unchanged if it could not be reduced)
+     */
+    private static long recompressImage(File file) throws IOException {
+        final BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unreadable image");
+        }
+        final BufferedImage indexedImage = toIndexedImage(image);
+        final File tempFile = new File(file.getAbsolutePath() + TEMP_EXTENSION);
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName(Misc.IMAGE_FORMAT_PNG).next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(tempFile)) {
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                // Quality 0 means maximum deflate level
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(0f);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage((indexedImage == null) ? image : indexedImage, null, null), param);
+        }
+        finally {
+            writer.dispose();
+        }
+        return replaceIfSmaller(file, tempFile);
+    }
+
+    /**
+     * Re-encodes the given video at the given quality
+     * @return the new size of the file (unchanged if it could not be reduced)
+     */
+    private static long recompressVideo(File file, int crf) throws IOException {
+        final File tempFile = new File(file.getAbsolutePath() + TEMP_EXTENSION + Misc.VIDEO_EXTENSION);
+        Jaffree.reencode(file, tempFile, crf);
+        return replaceIfSmaller(file, tempFile);
+    }
+
+    /**
+     * Returns a palette-based copy of the given image if it has at most 256 distinct colors (including alpha)
+     * @return the indexed image, or null if there are too many colors
+     */
+    static BufferedImage toIndexedImage(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        Map<Integer, Integer> colorIndexes = new HashMap<>();
+        for (int color : argb) {
+            if (colorIndexes.putIfAbsent(color, colorIndexes.size()) == null && colorIndexes.size() > MAX_INDEXED_COLORS) {
+                return null;
+            }
+        }
+        final int numColors = colorIndexes.size();
+        final byte[] reds = new byte[numColors];
+        final byte[] greens = new byte[numColors];
+        final byte[] blues = new byte[numColors];
+        final byte[] alphas = new byte[numColors];
+        for (Map.Entry<Integer, Integer> colorIndex : colorIndexes.entrySet()) {
+            final int color = colorIndex.getKey();
+            final int index = colorIndex.getValue();
+            alphas[index] = (byte) (color >>> 24);
+            reds[index] = (byte) (color >> 16);
+            greens[index] = (byte) (color >> 8);
+            blues[index] = (byte) color;
+        }
+        // Fewer bits per pixel for fewer colors
+        final int bits = (numColors <= 2) ? 1 : (numColors <= 4) ? 2 : (numColors <= 16) ? 4 : 8;
+        final IndexColorModel colorModel = new IndexColorModel(bits, numColors, reds, greens, blues, alphas);
+        final BufferedImage indexedImage = new BufferedImage(width, height, (bits == 8) ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, colorModel);
+        final WritableRaster raster = indexedImage.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.setSample(x, y, 0, colorIndexes.get(argb[y * width + x]));
+            }
+        }
+        return indexedImage;
+    }
+
+    /**
+     * Replaces the given file by the temp file if it is smaller, making sure the new version is on disk first
+     * @return the size of the resulting file
+     */
+    private static long replaceIfSmaller(File file, File tempFile) throws IOException {
+        final long originalSize = file.length();
+        final long newSize = tempFile.length();
+        if (newSize == 0 || newSize >= originalSize) {
+            Files.delete(tempFile.toPath());
+            return originalSize;
+        }
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return newSize;
+    }
+
+    private static void updateCaptureSizes(HistoryIndex historyIndex, String originalKey, long newSize) {
+        List<String> baseFilenames = new ArrayList<>();
+        for (HistoryEntry entry : historyIndex.getEntries()) {
+            if (entry.getOriginalKey().equals(originalKey)) {
+                baseFilenames.add(entry.getBaseFilename());
+            }
+        }
+        // Index entries are shared, so they are replaced by updated copies
+        historyIndex.update(baseFilenames, entry -> entry.getOriginalKey().equals(originalKey) ? entry.withCaptureSize(newSize) : null);
+    }
+
+    private static Set<String> readRecompressedList(File listFile) {
+        Set<String> filenames = new HashSet<>();
+        if (listFile.exists()) {
+            try {
+                filenames.addAll(Files.readAllLines(listFile.toPath(), StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                logger.warn("Error reading '" + listFile.getAbsolutePath() + "'", e);
+            }
+        }
+        return filenames;
+    }
+
+    private static void appendToRecompressedList(File listFile, String filename) {
+        try {
+            Files.writeString(listFile.toPath(), filename + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        catch (IOException e) {
+            logger.warn("Error writing '" + listFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+
+    ////////////////////////////////
+    // Throttling
+
+    /**
+     * Waits as long as the user is capturing, editing or exporting, or captures are being saved to history
+     */
+    private static void waitUntilIdle() throws InterruptedException {
+        while (isApplicationBusy()) {
+            Thread.sleep(BUSY_POLL_DELAY_MS);
+        }
+    }
+
+    private static boolean isApplicationBusy() {
+        return AbstractAllDisplaysFrame.isAnyOpen()
+                || CaptureEditingFrame.getNumOpenFrames() > 0
+                || ExportQueue.getInstance().size() > 0
+                || HistoryWriter.isBusy();
+    }
+}
@@ -0,0 +1,102 @@
+package info.ginj.history;
+
+import info.ginj.model.Export;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index of the words found in history entries: capture names, exporter names and export locations,
+ * and texts of text overlays.
+ * Words are lowercased and stripped of accents, then stored sorted, so that each query word matches all indexed words starting with it (search as you type).
+ * The index is maintained by the HistoryIndex, so it is always in sync with its entries.
+ */
+public class HistorySearchIndex {
+
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    // Base filenames of the entries containing each word
+    private final TreeMap<String, Set<String>> postings = new TreeMap<>();
+    // Words of each entry, to remove it
+    private final Map<String, Set<String>> wordsByEntry = new HashMap<>();
+
+    synchronized void add(HistoryEntry entry) {
+        remove(entry.getBaseFilename());
+        final Set<String> words = getWords(entry);
+        wordsByEntry.put(entry.getBaseFilename(), words);
+        for (String word : words) {
+            postings.computeIfAbsent(word, k -> new HashSet<>()).add(entry.getBaseFilename());
+        }
+    }
+
+    synchronized void remove(String baseFilename) {
+        final Set<String> words = wordsByEntry.remove(baseFilename);
+        if (words != null) {
+            for (String word : words) {
+                final Set<String> baseFilenames = postings.get(word);
+                baseFilenames.remove(baseFilename);
+                if (baseFilenames.isEmpty()) {
+                    postings.remove(word);
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        postings.clear();
+        wordsByEntry.clear();
+    }
+
+    /**
+     * Returns the entries matching all words of the given query.
+     * Each word of the query matches any indexed word it is a prefix of, case insensitively.
+     * @param query the words to search, as typed by the user
+     * @return the base filenames of the matching entries, or null if the query has no words (everything matches)
+     */
+    public synchronized Set<String> search(String query) {
+        Set<String> results = null;
+        for (String queryWord : tokenize(query)) {
+            Set<String> wordResults = new HashSet<>();
+            // All words starting with queryWord
+            for (Set<String> baseFilenames : postings.subMap(queryWord, true, queryWord + Character.MAX_VALUE, false).values()) {
+                wordResults.addAll(baseFilenames);
+            }
+            if (results == null) {
+                results = wordResults;
+            }
+            else {
+                results.retainAll(wordResults);
+            }
+            if (results.isEmpty()) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    private static Set<String> getWords(HistoryEntry entry) {
+        Set<String> words = new HashSet<>();
+        words.addAll(tokenize(entry.getDefaultName()));
+        for (Export export : entry.getExports()) {
+            words.addAll(tokenize(export.getExporterName()));
+            words.addAll(tokenize(export.getLocation()));
+        }
+        words.addAll(tokenize(entry.getOverlayText()));
+        return words;
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text != null) {
+            final String normalizedText = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+            for (String word : WORD_SEPARATOR.split(normalizedText)) {
+                if (!word.isEmpty()) {
+                    words.add(word);
+                }
+            }
+        }
+        return words;
+    }
+}
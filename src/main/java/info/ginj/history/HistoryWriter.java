@@ -0,0 +1,584 @@
+package info.ginj.history;
+
+import info.ginj.Ginj;
+import info.ginj.export.CaptureRenderer;
+import info.ginj.model.Capture;
+import info.ginj.ui.HistoryFrame;
+import info.ginj.util.ImageResizer;
+import info.ginj.util.Jaffree;
+import info.ginj.util.Misc;
+import info.ginj.util.UI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class saves exported captures to the history in the background, so that exports complete as soon as their
+ * target is done. Captures are written by a single thread, in batches:
+ * <ul>
+ *     <li>Each capture is first recorded in a write-ahead journal, synchronously but quickly (its metadata and source path only).
+ *     Tasks still in the journal at next start (e.g. after a crash) are executed again.</li>
+ *     <li>Files are written to a temp file, then all files of the batch are synced to disk at once,
+ *     and only then renamed to their final name, so that a history file is either complete or absent.</li>
+ *     <li>Originals are stored by content hash (see BlobStore). The hash of each stored original is recorded in the journal
+ *     before files are synced and renamed. At next start, a temp original matching a recorded hash is completed instead of
+ *     deleted, as it may be the only copy of an image that was only in memory.</li>
+ *     <li>Once the batch is safely stored, its tasks are marked done in the journal, and only then are the source files of
+ *     the originals deleted.</li>
+ * </ul>
+ * The queue is bounded: if the writer lags too much behind, submitting a capture waits for a slot.
+ */
+public class HistoryWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryWriter.class);
+
+    public static final String JOURNAL_FILENAME = "history.journal";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final int MAX_QUEUED_CAPTURES = 8;
+
+    private static final byte RECORD_PENDING = 1;
+    private static final byte RECORD_DONE = 2;
+    // Records the hash of an original written to the blob store
+    private static final byte RECORD_STORED = 3;
+
+    private static HistoryWriter instance;
+
+    private final File historyFolder;
+    private final File journalFile;
+    private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(MAX_QUEUED_CAPTURES);
+    // Tasks left over by the previous session, processed before the queue
+    private final List<Task> recoveredTasks = new ArrayList<>();
+    private int numPendingTasks = 0;
+    // Set when some tasks could not be completed, so that they are retried on next start
+    private boolean isJournalKept = false;
+    private long nextTaskId = 1;
+
+    public static synchronized HistoryWriter getInstance() {
+        if (instance == null) {
+            instance = new HistoryWriter(Ginj.getHistoryFolder());
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Waits until all submitted captures are written, e.g. before exiting
+     * @param timeoutMs the max delay to wait
+     */
+    public static void flush(long timeoutMs) {
+        final HistoryWriter writer;
+        synchronized (HistoryWriter.class) {
+            writer = instance;
+        }
+        if (writer != null) {
+            writer.waitUntilIdle(timeoutMs);
+        }
+    }
+
+    /**
+     * @return true if some submitted captures are not written yet
+     */
+    public static boolean isBusy() {
+        final HistoryWriter writer;
+        synchronized (HistoryWriter.class) {
+            writer = instance;
+        }
+        if (writer == null) {
+            return false;
+        }
+        synchronized (writer) {
+            return writer.numPendingTasks > 0;
+        }
+    }
+
+    private HistoryWriter(File historyFolder) {
+        this.historyFolder = historyFolder;
+        this.journalFile = new File(historyFolder, JOURNAL_FILENAME);
+    }
+
+    /**
+     * Queues the given capture for saving to history.
+     * Its metadata is serialized immediately, so the capture can be modified afterwards.
+     * @param capture the capture to save
+     */
+    public void submit(Capture capture) {
+        try {
+            final byte[] metadata = encode(capture);
+            final String sourcePath = (capture.getOriginalFile() == null) ? "" : capture.getOriginalFile().getAbsolutePath();
+            final Task task;
+            synchronized (this) {
+                // The writer works on its own copy, so the capture is only updated once it is in history
+                task = new Task(nextTaskId++, capture.clone(), metadata, capture);
+                appendToJournal(Collections.singletonList(journalRecord(RECORD_PENDING, task.id, sourcePath, metadata)));
+                numPendingTasks++;
+            }
+            queue.put(task);
+        }
+        catch (IOException | CloneNotSupportedException e) {
+            alertException("Saving capture to history failed", e);
+        }
+        catch (InterruptedException e) {
+            logger.warn("Interrupted while queuing capture " + capture + " for history. It will be saved on next start.");
+        }
+    }
+
+
+    ////////////////////////////////
+    // Writer thread
+
+    private void start() {
+        recoverJournal();
+        Thread writerThread = new Thread(this::run, "History writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void run() {
+        final List<Task> leftOverTasks;
+        synchronized (this) {
+            leftOverTasks = new ArrayList<>(recoveredTasks);
+            recoveredTasks.clear();
+        }
+        for (int i = 0; i < leftOverTasks.size(); i += MAX_QUEUED_CAPTURES) {
+            writeBatch(leftOverTasks.subList(i, Math.min(i + MAX_QUEUED_CAPTURES, leftOverTasks.size())));
+        }
+        while (true) {
+            List<Task> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            writeBatch(batch);
+        }
+    }
+
+    private void writeBatch(List<Task> batch) {
+        final long startTime = System.currentTimeMillis();
+        if (!historyFolder.exists() && !historyFolder.mkdirs()) {
+            SwingUtilities.invokeLater(() -> UI.alertError(null, "Save error", "Could not create history folder (" + historyFolder.getAbsolutePath() + ")"));
+        }
+
+        // 1. Write each file of each task aside
+        // Note: captures of the same batch may share the same original
+        Set<File> tempFiles = new LinkedHashSet<>();
+        List<Task> writtenTasks = new ArrayList<>();
+        for (Task task : batch) {
+            try {
+                tempFiles.addAll(writeToTempFiles(task));
+                writtenTasks.add(task);
+            }
+            catch (Exception e) {
+                // The task remains in the journal and will be retried on next start
+                alertException("Saving capture '" + task.capture.getDefaultName() + "' to history failed. It will be retried on next start", e);
+            }
+        }
+
+        // 2. Sync all of them to disk at once, then move them in place
+        boolean isBatchStored = true;
+        try {
+            List<byte[]> storedRecords = new ArrayList<>();
+            for (Task task : writtenTasks) {
+                if (task.capture.getOriginalHash() != null) {
+                    storedRecords.add(journalRecord(RECORD_STORED, task.id, "", task.capture.getOriginalHash().getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+            if (!storedRecords.isEmpty()) {
+                synchronized (this) {
+                    appendToJournal(storedRecords);
+                }
+            }
+            for (File tempFile : tempFiles) {
+                try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            for (File tempFile : tempFiles) {
+                final String tempPath = tempFile.getAbsolutePath();
+                final File finalFile = new File(tempPath.substring(0, tempPath.length() - TEMP_EXTENSION.length()));
+                Files.move(tempFile.toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            // Make the renames durable before the sources are deleted
+            syncFolder(historyFolder);
+            syncFolder(new File(historyFolder, BlobStore.BLOBS_FOLDER_NAME));
+        }
+        catch (IOException e) {
+            alertException("Saving captures to history failed. They will be retried on next start", e);
+            // Tasks remain in the journal and will be retried on next start
+            isBatchStored = false;
+            writtenTasks.clear();
+        }
+
+        // 3. Store the thumbnails, which also references captures in the history index
+        for (Task task : writtenTasks) {
+            try {
+                ThumbnailStore.getInstance().put(HistoryEntry.of(task.capture, historyFolder), createThumbnail(task.capture));
+            }
+            catch (Exception e) {
+                alertException("Saving thumbnail of '" + task.capture.getDefaultName() + "' to history failed", e);
+            }
+        }
+
+        // 4. Mark the stored tasks as done. The others remain in the journal
+        List<byte[]> doneRecords = new ArrayList<>();
+        for (Task task : writtenTasks) {
+            doneRecords.add(journalRecord(RECORD_DONE, task.id, "", new byte[0]));
+        }
+        synchronized (this) {
+            try {
+                numPendingTasks -= batch.size();
+                if (writtenTasks.size() < batch.size()) {
+                    isJournalKept = true;
+                }
+                if (isBatchStored) {
+                    if (numPendingTasks == 0 && !isJournalKept) {
+                        // Nothing left to recover: start a new journal
+                        Files.deleteIfExists(journalFile.toPath());
+                    }
+                    else {
+                        appendToJournal(doneRecords);
+                    }
+                }
+                else {
+                    isJournalKept = true;
+                }
+            }
+            catch (IOException e) {
+                logger.error("Error updating history journal", e);
+            }
+            notifyAll();
+        }
+
+        // 5. The originals are now in history: point the captures to them, and delete their sources
+        for (Task task : writtenTasks) {
+            if (task.sourceCapture != null) {
+                final String originalHash = task.capture.getOriginalHash();
+                final File originalFile = task.capture.getOriginalFile();
+                SwingUtilities.invokeLater(() -> {
+                    task.sourceCapture.setOriginalHash(originalHash);
+                    task.sourceCapture.setOriginalFile(originalFile);
+                });
+            }
+            if (task.storedSourceFile != null) {
+                try {
+                    Files.deleteIfExists(task.storedSourceFile.toPath());
+                }
+                catch (IOException e) {
+                    logger.warn("Could not delete '" + task.storedSourceFile.getAbsolutePath() + "'", e);
+                }
+            }
+        }
+        logger.info("Saved " + writtenTasks.size() + "/" + batch.size() + " capture(s) to history in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * Writes the original media (if not in history yet) and the metadata of a capture to temp files
+     * @return the temp files written
+     */
+    private List<File> writeToTempFiles(Task task) throws IOException {
+        final Capture capture = task.capture;
+        List<File> tempFiles = new ArrayList<>();
+
+        // Save the original file to history
+        // ENHANCEMENT we store the source, not the rendered version !
+        // Original file could be shared between multiple captures (e.g. versions), only store it once
+        byte[] metadata = task.metadata;
+        if (!BlobStore.getOriginalFile(historyFolder, capture).exists()) {
+            final BlobStore.StoredBlob blob;
+            if (capture.getOriginalFile() != null && capture.getOriginalFile().exists()) {
+                // Copy file to history. The source is only deleted once the batch is committed, as it is the only
+                // copy of the original until then
+                blob = BlobStore.storeFile(historyFolder, capture.getOriginalFile(), capture.defaultExtension(), TEMP_EXTENSION);
+                if (!isInHistory(capture.getOriginalFile())) {
+                    task.storedSourceFile = capture.getOriginalFile();
+                }
+            }
+            else if (capture.isVideo() || capture.getOriginalImage() == null) {
+                throw new IOException("Original media of capture " + capture + " is not available anymore");
+            }
+            else {
+                // No original file on disk, write image from memory
+                blob = BlobStore.storeImage(historyFolder, capture.getOriginalImage(), TEMP_EXTENSION);
+            }
+            if (blob.tempFile != null) {
+                tempFiles.add(blob.tempFile);
+            }
+            // The metadata must reference the stored original
+            capture.setOriginalHash(blob.hash);
+            metadata = withOriginalHash(task.metadata, blob.hash);
+        }
+
+        // Save metadata and overlays (already encoded to XML)
+        // Compute filename (including version)
+        final File tempMetadataFile = new File(historyFolder, capture.getBaseFilename() + Misc.METADATA_EXTENSION + TEMP_EXTENSION);
+        Files.write(tempMetadataFile.toPath(), metadata);
+        tempFiles.add(tempMetadataFile);
+
+        // From now on, the original is in history. The submitted capture is only updated once the batch is committed
+        capture.setOriginalFile(BlobStore.getOriginalFile(historyFolder, capture));
+        return tempFiles;
+    }
+
+    private static void alertException(String message, Exception e) {
+        SwingUtilities.invokeLater(() -> UI.alertException(null, "Save error", message, e, logger));
+    }
+
+    private boolean isInHistory(File file) {
+        return file.getAbsoluteFile().toPath().normalize().startsWith(historyFolder.getAbsoluteFile().toPath().normalize());
+    }
+
+    /**
+     * Forces the entries of the given folder (e.g. renames) to disk, where the platform supports it
+     */
+    private static void syncFolder(File folder) {
+        try (FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // Not supported on Windows, where renames are durable once done
+            logger.debug("Could not sync folder '" + folder.getAbsolutePath() + "'", e);
+        }
+    }
+
+    private BufferedImage createThumbnail(Capture capture) throws IOException {
+        BufferedImage thumbnailSourceImage;
+        if (capture.isVideo()) {
+            // TODO grab from rendered video, not from original
+            thumbnailSourceImage = Jaffree.grabImage(capture.getOriginalFile(), 0);
+        }
+        else {
+            thumbnailSourceImage = capture.getRenderedImage();
+            if (thumbnailSourceImage == null) {
+                thumbnailSourceImage = CaptureRenderer.render(capture);
+            }
+        }
+        return ImageResizer.fitWithin(thumbnailSourceImage, HistoryFrame.THUMBNAIL_SIZE.width, HistoryFrame.THUMBNAIL_SIZE.height);
+    }
+
+    private synchronized void waitUntilIdle(long timeoutMs) {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (numPendingTasks > 0) {
+            final long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                logger.warn(numPendingTasks + " capture(s) not saved to history yet. They will be saved on next start.");
+                return;
+            }
+            try {
+                wait(remainingMs);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+
+    ////////////////////////////////
+    // Journal
+
+    /**
+     * Re-queues the tasks that were not completed during the previous session.
+     * Note: must be called before the temp folder is cleaned, as it may contain the original files of these captures
+     */
+    private synchronized void recoverJournal() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        Map<Long, Task> pendingTasks = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                final byte type;
+                final long taskId;
+                final String sourcePath;
+                final byte[] metadata;
+                try {
+                    type = in.readByte();
+                    taskId = in.readLong();
+                    sourcePath = in.readUTF();
+                    metadata = new byte[in.readInt()];
+                    in.readFully(metadata);
+                }
+                catch (EOFException e) {
+                    // End of journal, or record interrupted by a crash
+                    break;
+                }
+                if (type == RECORD_STORED) {
+                    final Task task = pendingTasks.get(taskId);
+                    if (task != null) {
+                        // The original was written to the blob store. Its source file (if any) is kept until the task
+                        // is done, so the original can be stored again if its temp file is incomplete
+                        final String hash = new String(metadata, StandardCharsets.UTF_8);
+                        task.capture.setOriginalHash(hash);
+                        pendingTasks.put(taskId, new Task(taskId, task.capture, withOriginalHash(task.metadata, hash), null));
+                    }
+                }
+                else if (type == RECORD_PENDING) {
+                    try (XMLDecoder xmlDecoder = new XMLDecoder(new ByteArrayInputStream(metadata))) {
+                        final Capture capture = (Capture) xmlDecoder.readObject();
+                        if (!sourcePath.isEmpty()) {
+                            capture.setOriginalFile(new File(sourcePath));
+                        }
+                        pendingTasks.put(taskId, new Task(taskId, capture, metadata, null));
+                    }
+                    catch (Exception e) {
+                        logger.error("Skipping unreadable history journal record " + taskId, e);
+                    }
+                }
+                else {
+                    pendingTasks.remove(taskId);
+                }
+                nextTaskId = Math.max(nextTaskId, taskId + 1);
+            }
+        }
+        catch (IOException e) {
+            logger.error("Error reading history journal", e);
+        }
+
+        // Complete the originals of pending tasks, then remove the other files of the interrupted batch, which may be
+        // incomplete. They will be written again
+        Set<String> storedHashes = new HashSet<>();
+        for (Task task : pendingTasks.values()) {
+            if (task.capture.getOriginalHash() != null) {
+                storedHashes.add(task.capture.getOriginalHash());
+            }
+        }
+        for (File folder : new File[]{historyFolder, new File(historyFolder, BlobStore.BLOBS_FOLDER_NAME)}) {
+            final File[] tempFiles = folder.listFiles((dir, name) -> name.endsWith(TEMP_EXTENSION));
+            if (tempFiles != null) {
+                for (File tempFile : tempFiles) {
+                    if (folder != historyFolder && recoverBlob(tempFile, storedHashes)) {
+                        continue;
+                    }
+                    if (!tempFile.delete()) {
+                        logger.warn("Could not delete '" + tempFile.getAbsolutePath() + "'");
+                    }
+                }
+            }
+        }
+
+        try {
+            Files.delete(journalFile.toPath());
+            if (!pendingTasks.isEmpty()) {
+                logger.info("Saving " + pendingTasks.size() + " capture(s) left over by previous session to history");
+                List<byte[]> records = new ArrayList<>();
+                for (Task task : pendingTasks.values()) {
+                    final File sourceFile = task.capture.getOriginalFile();
+                    records.add(journalRecord(RECORD_PENDING, task.id, (sourceFile == null) ? "" : sourceFile.getAbsolutePath(), task.metadata));
+                }
+                appendToJournal(records);
+                numPendingTasks += pendingTasks.size();
+                recoveredTasks.addAll(pendingTasks.values());
+            }
+        }
+        catch (IOException e) {
+            logger.error("Error rewriting history journal", e);
+        }
+    }
+
+    /**
+     * Renames the given temp original to its final name if its hash was recorded in the journal and its contents match it
+     * @return true if it was renamed
+     */
+    private static boolean recoverBlob(File tempFile, Set<String> storedHashes) {
+        final String name = tempFile.getName();
+        final String hash = name.substring(0, name.indexOf('.'));
+        if (!storedHashes.contains(hash)) {
+            return false;
+        }
+        try {
+            if (!hash.equals(BlobStore.computeHash(tempFile))) {
+                // Interrupted while being written
+                return false;
+            }
+            final String tempPath = tempFile.getAbsolutePath();
+            Files.move(tempFile.toPath(), new File(tempPath.substring(0, tempPath.length() - TEMP_EXTENSION.length())).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Recovered original '" + name + "'");
+            return true;
+        }
+        catch (IOException e) {
+            logger.warn("Could not recover original '" + tempFile.getAbsolutePath() + "'", e);
+            return false;
+        }
+    }
+
+    private static byte[] journalRecord(byte type, long taskId, String sourcePath, byte[] metadata) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(metadata.length + 64);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(type);
+            out.writeLong(taskId);
+            out.writeUTF(sourcePath);
+            out.writeInt(metadata.length);
+            out.write(metadata);
+            return record.toByteArray();
+        }
+        catch (IOException e) {
+            // Cannot happen with a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends the given records to the journal, and makes sure they are on disk before returning
+     */
+    private void appendToJournal(List<byte[]> records) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            for (byte[] record : records) {
+                out.write(record);
+            }
+            out.getChannel().force(false);
+        }
+    }
+
+    private static byte[] encode(Capture capture) {
+        ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        try (XMLEncoder xmlEncoder = new XMLEncoder(metadata)) {
+            xmlEncoder.writeObject(capture);
+        }
+        return metadata.toByteArray();
+    }
+
+    /**
+     * Returns the given serialized capture, with its original hash set
+     */
+    private static byte[] withOriginalHash(byte[] metadata, String hash) {
+        try (XMLDecoder xmlDecoder = new XMLDecoder(new ByteArrayInputStream(metadata))) {
+            final Capture capture = (Capture) xmlDecoder.readObject();
+            capture.setOriginalHash(hash);
+            return encode(capture);
+        }
+    }
+
+    private static class Task {
+        private final long id;
+        private final Capture capture;
+        private final byte[] metadata;
+        // The capture submitted, to update once it is in history. Null for tasks recovered from the journal
+        private final Capture sourceCapture;
+        // Source of the original stored by this task, to delete once the batch is committed
+        private File storedSourceFile;
+
+        public Task(long id, Capture capture, byte[] metadata, Capture sourceCapture) {
+            this.id = id;
+            this.capture = capture;
+            this.metadata = metadata;
+            this.sourceCapture = sourceCapture;
+        }
+    }
+}
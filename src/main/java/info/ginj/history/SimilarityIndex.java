@@ -0,0 +1,135 @@
+package info.ginj.history;
+
+import info.ginj.util.PerceptualHash;
+
+import java.util.*;
+
+/**
+ * In-memory index of the perceptual hashes of history entries, to find near duplicates without comparing a hash
+ * with all others.
+ * It is a BK-tree: each child of a node is stored under its distance to that node, so that thanks to the triangle
+ * inequality, a search for hashes within distance d of a hash only has to explore children at distance [n-d, n+d]
+ * of each visited node, where n is the distance from that node to the searched hash.
+ * Removed entries leave empty nodes that still guide searches. The tree is rebuilt when there are too many of them.
+ * The index is maintained by the HistoryIndex, so it is always in sync with its entries.
+ */
+public class SimilarityIndex {
+
+    private Node root;
+    // Hash of each indexed entry, by base filename
+    private final Map<String, Long> hashes = new HashMap<>();
+    private int numNodes = 0;
+
+    synchronized void add(String baseFilename, long hash) {
+        remove(baseFilename);
+        hashes.put(baseFilename, hash);
+        insert(baseFilename, hash);
+    }
+
+    synchronized void remove(String baseFilename) {
+        final Long hash = hashes.remove(baseFilename);
+        if (hash == null) {
+            return;
+        }
+        final Node node = find(hash);
+        if (node != null) {
+            node.baseFilenames.remove(baseFilename);
+        }
+        // Rebuild when most nodes are empty
+        if (numNodes > 64 && numNodes > 2 * hashes.size()) {
+            rebuild();
+        }
+    }
+
+    synchronized void clear() {
+        root = null;
+        numNodes = 0;
+        hashes.clear();
+    }
+
+    /**
+     * Finds the entries whose hash is within the given distance of the given hash
+     * @param hash the perceptual hash to search
+     * @param maxDistance the max number of differing bits
+     * @return the distance to the given hash, by base filename
+     */
+    public synchronized Map<String, Integer> search(long hash, int maxDistance) {
+        Map<String, Integer> results = new HashMap<>();
+        if (root == null) {
+            return results;
+        }
+        Deque<Node> nodesToVisit = new ArrayDeque<>();
+        nodesToVisit.push(root);
+        while (!nodesToVisit.isEmpty()) {
+            final Node node = nodesToVisit.pop();
+            final int distance = PerceptualHash.distance(node.hash, hash);
+            if (distance <= maxDistance) {
+                for (String baseFilename : node.baseFilenames) {
+                    results.put(baseFilename, distance);
+                }
+            }
+            for (int childDistance = Math.max(1, distance - maxDistance); childDistance <= distance + maxDistance; childDistance++) {
+                final Node child = node.children.get(childDistance);
+                if (child != null) {
+                    nodesToVisit.push(child);
+                }
+            }
+        }
+        return results;
+    }
+
+    private void insert(String baseFilename, long hash) {
+        if (root == null) {
+            root = new Node(hash);
+            numNodes++;
+        }
+        Node node = root;
+        while (true) {
+            final int distance = PerceptualHash.distance(node.hash, hash);
+            if (distance == 0) {
+                node.baseFilenames.add(baseFilename);
+                return;
+            }
+            final Node child = node.children.get(distance);
+            if (child == null) {
+                final Node newNode = new Node(hash);
+                newNode.baseFilenames.add(baseFilename);
+                node.children.put(distance, newNode);
+                numNodes++;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private Node find(long hash) {
+        Node node = root;
+        while (node != null) {
+            final int distance = PerceptualHash.distance(node.hash, hash);
+            if (distance == 0) {
+                return node;
+            }
+            node = node.children.get(distance);
+        }
+        return null;
+    }
+
+    private void rebuild() {
+        root = null;
+        numNodes = 0;
+        for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+            insert(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static class Node {
+        private final long hash;
+        // Entries having exactly this hash. May be empty after removals
+        private final Set<String> baseFilenames = new HashSet<>(1);
+        private final Map<Integer, Node> children = new HashMap<>(4);
+
+        private Node(long hash) {
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package info.ginj.history;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Loads history thumbnails in the background, keeping the most recently used ones in memory.
+ * Thumbnails are decoded by a small pool of worker threads, never on the EDT. Requests for thumbnails which are
+ * not needed anymore (e.g. rows that were scrolled out of view) can be cancelled before they are decoded.
+ */
+public class ThumbnailLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailLoader.class);
+
+    private static final int MAX_PENDING_REQUESTS = 256;
+
+    private final Function<HistoryEntry, BufferedImage> reader;
+    private final Consumer<HistoryEntry> loadedCallback;
+    private final ThreadPoolExecutor executor;
+
+    // Decoded thumbnails by base filename, least recently used first
+    private final Map<String, BufferedImage> cache;
+    // Requests in progress by base filename
+    private final Map<String, Future<?>> pendingRequests = new HashMap<>();
+
+    /**
+     * @param maxCachedImages the number of decoded thumbnails to keep in memory
+     * @param reader the function reading the thumbnail of an entry, or returning null if there is none. It is called on a worker thread
+     * @param loadedCallback the function to call when the thumbnail of an entry is available. It is called on the EDT
+     */
+    public ThumbnailLoader(int maxCachedImages, Function<HistoryEntry, BufferedImage> reader, Consumer<HistoryEntry> loadedCallback) {
+        this.reader = reader;
+        this.loadedCallback = loadedCallback;
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > maxCachedImages;
+            }
+        };
+        final int numThreads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_REQUESTS),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "Thumbnail loader " + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                },
+                (runnable, threadPoolExecutor) -> {
+                    // Queue is full. Drop the request, it will be issued again when the cell is painted
+                    synchronized (this) {
+                        pendingRequests.remove(((LoadTask) runnable).entry.getBaseFilename(), runnable);
+                    }
+                });
+    }
+
+    /**
+     * Returns the thumbnail of the given entry if it is in memory, or schedules its loading otherwise
+     * @param entry the entry to get the thumbnail of
+     * @return the thumbnail, or null if it is not loaded yet
+     */
+    public synchronized BufferedImage get(HistoryEntry entry) {
+        final String key = entry.getBaseFilename();
+        final BufferedImage image = cache.get(key);
+        if (image == null && !cache.containsKey(key) && !pendingRequests.containsKey(key) && !executor.isShutdown()) {
+            final LoadTask task = new LoadTask(entry);
+            pendingRequests.put(key, task);
+            executor.execute(task);
+        }
+        return image;
+    }
+
+    /**
+     * Cancels all requests which are not for the given entries
+     * @param entries the entries whose thumbnails are still needed (e.g. the visible ones)
+     */
+    public synchronized void retainOnly(Collection<HistoryEntry> entries) {
+        Set<String> keys = new HashSet<>();
+        for (HistoryEntry entry : entries) {
+            keys.add(entry.getBaseFilename());
+        }
+        boolean cancelled = false;
+        for (Iterator<Map.Entry<String, Future<?>>> iterator = pendingRequests.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<String, Future<?>> pendingRequest = iterator.next();
+            if (!keys.contains(pendingRequest.getKey())) {
+                pendingRequest.getValue().cancel(false);
+                iterator.remove();
+                cancelled = true;
+            }
+        }
+        if (cancelled) {
+            executor.purge();
+        }
+    }
+
+    /**
+     * Forgets the thumbnail of the given entry, e.g. because it was replaced, and cancels its loading if in progress
+     * @param entry the entry
+     */
+    public synchronized void invalidate(HistoryEntry entry) {
+        final String key = entry.getBaseFilename();
+        cache.remove(key);
+        final Future<?> pendingRequest = pendingRequests.remove(key);
+        if (pendingRequest != null) {
+            pendingRequest.cancel(false);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private BufferedImage load(HistoryEntry entry) {
+        try {
+            return reader.apply(entry);
+        }
+        catch (Exception e) {
+            logger.error("Error loading thumbnail of " + entry.getBaseFilename(), e);
+            return null;
+        }
+    }
+
+    private void onLoaded(LoadTask task, BufferedImage image) {
+        final String key = task.entry.getBaseFilename();
+        synchronized (this) {
+            // Only the current request may fill the cache. This one may have been cancelled, or invalidated then issued again
+            if (!pendingRequests.remove(key, task)) {
+                return;
+            }
+            // Note: a missing thumbnail is cached as null so it is not requested again
+            cache.put(key, image);
+        }
+        SwingUtilities.invokeLater(() -> loadedCallback.accept(task.entry));
+    }
+
+    private class LoadTask extends FutureTask<BufferedImage> {
+        private final HistoryEntry entry;
+
+        public LoadTask(HistoryEntry entry) {
+            super(() -> load(entry));
+            this.entry = entry;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                onLoaded(this, get());
+            }
+            catch (InterruptedException | ExecutionException e) {
+                logger.error("Error loading thumbnail of " + entry.getBaseFilename(), e);
+            }
+        }
+    }
+}
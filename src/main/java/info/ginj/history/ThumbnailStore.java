@@ -0,0 +1,611 @@
+package info.ginj.history;
+
+import info.ginj.Ginj;
+import info.ginj.util.Misc;
+import info.ginj.util.PerceptualHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class stores all history thumbnails in a single "pack" file, instead of one PNG file per capture.
+ * <p>
+ * The pack is a header followed by blocks, each block holding the base filename of its capture and the RGB pixels of the
+ * thumbnail, lightly deflated. The pack is memory-mapped for reading, and the position of each block is stored in the
+ * history index (see HistoryEntry.getThumbnailOffset()). Blocks are self-describing, so those positions can be
+ * recovered by scanning the pack if the index is rebuilt.
+ * New thumbnails are appended, deleted ones are marked as such ("tombstone") and the space they use is reclaimed by
+ * compaction, which writes a new generation of the pack with only the live blocks.
+ * Existing PNG thumbnails are migrated to the pack in the background.
+ * The perceptual hash of each thumbnail is computed when it is stored, and back-filled in the background for
+ * thumbnails stored by previous versions.
+ */
+public class ThumbnailStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailStore.class);
+
+    public static final String PACK_FILENAME_PREFIX = "thumbnails-";
+    public static final String PACK_FILENAME_EXTENSION = ".pack";
+
+    private static final int MAGIC = 0x474E4A54; // "GNJT"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte STATUS_DELETED = 0;
+    private static final byte STATUS_LIVE = 1;
+    // Position of the status byte in a block, after the block length
+    private static final int STATUS_OFFSET = 4;
+
+    // Compact when deleted blocks take more space than live ones, and at least that size
+    private static final long MIN_RECLAIMABLE_BYTES_FOR_COMPACTION = 1024 * 1024;
+    // Delay between two thumbnail migrations, to keep disk usage low
+    private static final long MIGRATION_DELAY_MS = 20;
+    // Number of perceptual hashes computed before they are written to the index, and delay between two batches
+    private static final int HASH_BACKFILL_BATCH_SIZE = 50;
+    private static final long HASH_BACKFILL_DELAY_MS = 100;
+
+    private static ThumbnailStore instance;
+
+    private final File historyFolder;
+    private final HistoryIndex index;
+
+    private int generation;
+    private File packFile;
+    private FileChannel channel;
+    private MappedByteBuffer mappedBuffer;
+    private long liveBytes;
+    private long deletedBytes;
+    private boolean isMaintenanceStarted = false;
+
+    public static synchronized ThumbnailStore getInstance() {
+        final HistoryIndex index = HistoryIndex.getInstance();
+        if (instance == null || instance.index != index) {
+            if (instance != null) {
+                instance.close();
+            }
+            instance = new ThumbnailStore(index);
+            try {
+                instance.open();
+            }
+            catch (IOException e) {
+                logger.error("Error opening thumbnail store in '" + index.getHistoryFolder().getAbsolutePath() + "'", e);
+            }
+        }
+        return instance;
+    }
+
+    public ThumbnailStore(HistoryIndex index) {
+        this.index = index;
+        this.historyFolder = index.getHistoryFolder();
+    }
+
+
+    ////////////////////////////////
+    // Public API
+
+    /**
+     * Stores the thumbnail of the given entry, and adds or replaces that entry in the index
+     * @param entry the history entry
+     * @param thumbnail the thumbnail image
+     * @throws IOException in case the thumbnail could not be written
+     */
+    public synchronized void put(HistoryEntry entry, BufferedImage thumbnail) throws IOException {
+        final HistoryEntry previousEntry = index.get(entry.getBaseFilename());
+        index.put(entry.withThumbnail(append(entry.getBaseFilename(), thumbnail), PerceptualHash.dHash(thumbnail)));
+        if (previousEntry != null) {
+            markDeleted(previousEntry.getThumbnailOffset());
+        }
+    }
+
+    /**
+     * Reads the thumbnail of the given entry, from the pack or from a PNG file if it was not migrated yet
+     * @param entry the history entry
+     * @return the thumbnail, or null if there is none
+     */
+    public BufferedImage read(HistoryEntry entry) {
+        final String baseFilename = entry.getBaseFilename();
+        byte[] compressedPixels;
+        int width;
+        int height;
+        synchronized (this) {
+            // Always use the current offset, as the one in the given entry may have changed (e.g. by migration or compaction)
+            final HistoryEntry currentEntry = index.get(baseFilename);
+            final long offset = (currentEntry == null) ? entry.getThumbnailOffset() : currentEntry.getThumbnailOffset();
+            if (offset == HistoryEntry.NO_THUMBNAIL_OFFSET) {
+                compressedPixels = null;
+                width = 0;
+                height = 0;
+            }
+            else {
+                try {
+                    final ByteBuffer block = getBlock(offset);
+                    if (block.get() != STATUS_LIVE || !baseFilename.equals(readKey(block))) {
+                        logger.warn("Thumbnail block at " + offset + " does not belong to " + baseFilename);
+                        return null;
+                    }
+                    width = block.getShort();
+                    height = block.getShort();
+                    compressedPixels = new byte[block.getInt()];
+                    block.get(compressedPixels);
+                }
+                catch (IOException | RuntimeException e) {
+                    logger.error("Error reading thumbnail of " + baseFilename + " at " + offset, e);
+                    return null;
+                }
+            }
+        }
+        if (compressedPixels == null) {
+            return readPngThumbnail(baseFilename);
+        }
+        // Decoding takes place outside the lock
+        try {
+            return decode(compressedPixels, width, height);
+        }
+        catch (DataFormatException e) {
+            logger.error("Error decoding thumbnail of " + baseFilename, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the thumbnail of the given entry, wherever it is stored
+     * @param entry the history entry
+     * @return true if successful
+     */
+    public synchronized boolean delete(HistoryEntry entry) {
+        final File pngFile = getPngFile(entry.getBaseFilename());
+        boolean ok = !pngFile.exists() || pngFile.delete();
+        final HistoryEntry currentEntry = index.get(entry.getBaseFilename());
+        if (currentEntry != null) {
+            ok = markDeleted(currentEntry.getThumbnailOffset()) && ok;
+        }
+        return ok;
+    }
+
+    /**
+     * Starts, once, a low priority background thread migrating PNG thumbnails to the pack, computing missing
+     * perceptual hashes, then compacting the pack if needed
+     */
+    public synchronized void startMaintenance() {
+        if (isMaintenanceStarted) {
+            return;
+        }
+        isMaintenanceStarted = true;
+        Thread maintenanceThread = new Thread(() -> {
+            try {
+                migratePngThumbnails();
+                backfillPerceptualHashes();
+                if (mustCompact()) {
+                    compact();
+                }
+            }
+            catch (Exception e) {
+                logger.error("Error during thumbnail store maintenance", e);
+            }
+        }, "Thumbnail store maintenance");
+        maintenanceThread.setDaemon(true);
+        maintenanceThread.setPriority(Thread.MIN_PRIORITY);
+        maintenanceThread.start();
+    }
+
+    public synchronized void close() {
+        mappedBuffer = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                logger.warn("Error closing thumbnail store", e);
+            }
+            channel = null;
+        }
+    }
+
+
+    ////////////////////////////////
+    // Opening
+
+    /**
+     * Opens the most recent generation of the pack (creating it if needed), and makes sure the offsets stored in the
+     * index match the blocks of the pack
+     */
+    synchronized void open() throws IOException {
+        generation = 0;
+        final File[] packFiles = historyFolder.listFiles((dir, name) -> name.startsWith(PACK_FILENAME_PREFIX) && name.endsWith(PACK_FILENAME_EXTENSION));
+        if (packFiles != null) {
+            for (File file : packFiles) {
+                final int fileGeneration = getGeneration(file);
+                if (fileGeneration > generation) {
+                    generation = fileGeneration;
+                }
+            }
+            // Remove older generations (that could not be deleted after a compaction because they were still mapped)
+            for (File file : packFiles) {
+                if (getGeneration(file) < generation && !file.delete()) {
+                    logger.warn("Could not delete obsolete thumbnail pack '" + file.getAbsolutePath() + "'");
+                }
+            }
+        }
+        if (generation == 0) {
+            generation = 1;
+        }
+        packFile = getPackFile(generation);
+        channel = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+        }
+        else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IOException("'" + packFile.getAbsolutePath() + "' is not a thumbnail pack");
+            }
+        }
+        scan();
+    }
+
+    /**
+     * Walks through all blocks of the pack, recovering from an interrupted append, computing space statistics and
+     * fixing the offsets of index entries if needed
+     */
+    private void scan() throws IOException {
+        final long startTime = System.currentTimeMillis();
+        Map<String, Long> liveOffsets = new HashMap<>();
+        liveBytes = 0;
+        deletedBytes = 0;
+        final long size = channel.size();
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long offset = HEADER_SIZE;
+        while (offset + STATUS_OFFSET + 1 <= size) {
+            final int blockLength = buffer.getInt((int) offset);
+            if (blockLength <= 0 || offset + STATUS_OFFSET + blockLength > size) {
+                break;
+            }
+            if (buffer.get((int) offset + STATUS_OFFSET) == STATUS_LIVE) {
+                final ByteBuffer block = buffer.duplicate().position((int) offset + STATUS_OFFSET + 1);
+                liveOffsets.put(readKey(block), offset);
+                liveBytes += STATUS_OFFSET + blockLength;
+            }
+            else {
+                deletedBytes += STATUS_OFFSET + blockLength;
+            }
+            offset += STATUS_OFFSET + blockLength;
+        }
+        if (offset < size) {
+            logger.warn("Thumbnail pack ends with an incomplete block. Truncating it.");
+            channel.truncate(offset);
+        }
+        mappedBuffer = null;
+
+        // Make the index point to the right blocks
+        List<String> baseFilenames = new ArrayList<>();
+        for (HistoryEntry entry : index.getEntries()) {
+            baseFilenames.add(entry.getBaseFilename());
+        }
+        final List<HistoryEntry> fixedEntries = index.update(baseFilenames, entry -> {
+            final Long liveOffset = liveOffsets.get(entry.getBaseFilename());
+            final long expectedOffset = (liveOffset == null) ? HistoryEntry.NO_THUMBNAIL_OFFSET : liveOffset;
+            return (entry.getThumbnailOffset() == expectedOffset) ? null : entry.withThumbnail(expectedOffset, entry.getPerceptualHash());
+        });
+        logger.info("Thumbnail pack opened in " + (System.currentTimeMillis() - startTime) + "ms: " + liveOffsets.size() + " thumbnails, "
+                + Misc.getPrettySize(liveBytes) + " used, " + Misc.getPrettySize(deletedBytes) + " reclaimable, " + fixedEntries.size() + " index entries fixed");
+    }
+
+
+    ////////////////////////////////
+    // Blocks
+
+    private long append(String baseFilename, BufferedImage thumbnail) throws IOException {
+        final byte[] key = baseFilename.getBytes(StandardCharsets.UTF_8);
+        final byte[] compressedPixels = encode(thumbnail);
+        final int blockLength = 1 + 2 + key.length + 2 + 2 + 4 + compressedPixels.length;
+        ByteBuffer block = ByteBuffer.allocate(STATUS_OFFSET + blockLength);
+        block.putInt(blockLength);
+        block.put(STATUS_LIVE);
+        block.putShort((short) key.length);
+        block.put(key);
+        block.putShort((short) thumbnail.getWidth());
+        block.putShort((short) thumbnail.getHeight());
+        block.putInt(compressedPixels.length);
+        block.put(compressedPixels);
+        block.flip();
+
+        final long offset = channel.size();
+        while (block.hasRemaining()) {
+            channel.write(block, offset + block.position());
+        }
+        liveBytes += STATUS_OFFSET + blockLength;
+        return offset;
+    }
+
+    private boolean markDeleted(long offset) {
+        if (offset == HistoryEntry.NO_THUMBNAIL_OFFSET) {
+            return true;
+        }
+        try {
+            channel.write(ByteBuffer.wrap(new byte[]{STATUS_DELETED}), offset + STATUS_OFFSET);
+            final int blockLength = getBlock(offset).getInt(0);
+            liveBytes -= STATUS_OFFSET + blockLength;
+            deletedBytes += STATUS_OFFSET + blockLength;
+            return true;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("Error deleting thumbnail block at " + offset, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns a buffer on the block at the given offset, positioned on its status byte
+     */
+    private ByteBuffer getBlock(long offset) throws IOException {
+        if (mappedBuffer == null || offset + STATUS_OFFSET >= mappedBuffer.capacity()
+                || offset + STATUS_OFFSET + mappedBuffer.getInt((int) offset) > mappedBuffer.capacity()) {
+            // Pack has grown since it was mapped. Note: the previous mapping is released when garbage collected
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final int blockLength = mappedBuffer.getInt((int) offset);
+        return mappedBuffer.duplicate().position((int) offset).limit((int) offset + STATUS_OFFSET + blockLength).slice().position(STATUS_OFFSET);
+    }
+
+    private static String readKey(ByteBuffer block) {
+        final byte[] key = new byte[block.getShort()];
+        block.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encode(BufferedImage thumbnail) {
+        final int width = thumbnail.getWidth();
+        final int height = thumbnail.getHeight();
+        final int[] argb = thumbnail.getRGB(0, 0, width, height, null, 0, width);
+        final byte[] rgb = new byte[argb.length * 3];
+        for (int i = 0; i < argb.length; i++) {
+            rgb[i * 3] = (byte) (argb[i] >> 16);
+            rgb[i * 3 + 1] = (byte) (argb[i] >> 8);
+            rgb[i * 3 + 2] = (byte) argb[i];
+        }
+        // Fastest compression level: thumbnails are small and must be decoded quickly
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(rgb);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(rgb.length / 2);
+            final byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static BufferedImage decode(byte[] compressedPixels, int width, int height) throws DataFormatException {
+        final byte[] rgb = new byte[width * height * 3];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressedPixels);
+            int length = 0;
+            while (length < rgb.length && !inflater.finished()) {
+                length += inflater.inflate(rgb, length, rgb.length - length);
+            }
+        }
+        finally {
+            inflater.end();
+        }
+        final int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = 0xFF000000 | (rgb[i * 3] & 0xFF) << 16 | (rgb[i * 3 + 1] & 0xFF) << 8 | (rgb[i * 3 + 2] & 0xFF);
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        return image;
+    }
+
+
+    ////////////////////////////////
+    // Maintenance
+
+    /**
+     * Moves PNG thumbnails written by previous versions to the pack, one at a time
+     */
+    private void migratePngThumbnails() throws InterruptedException {
+        int numMigrated = 0;
+        for (HistoryEntry entry : index.getEntries()) {
+            if (entry.getThumbnailOffset() != HistoryEntry.NO_THUMBNAIL_OFFSET) {
+                continue;
+            }
+            final File pngFile = getPngFile(entry.getBaseFilename());
+            if (!pngFile.exists()) {
+                continue;
+            }
+            try {
+                final BufferedImage thumbnail = ImageIO.read(pngFile);
+                if (thumbnail != null) {
+                    synchronized (this) {
+                        final HistoryEntry currentEntry = index.get(entry.getBaseFilename());
+                        if (currentEntry == null || currentEntry.getThumbnailOffset() != HistoryEntry.NO_THUMBNAIL_OFFSET) {
+                            // Deleted or replaced in the meantime
+                            continue;
+                        }
+                        index.put(currentEntry.withThumbnail(append(currentEntry.getBaseFilename(), thumbnail), PerceptualHash.dHash(thumbnail)));
+                    }
+                    if (!pngFile.delete()) {
+                        logger.warn("Could not delete migrated thumbnail '" + pngFile.getAbsolutePath() + "'");
+                    }
+                    numMigrated++;
+                }
+            }
+            catch (IOException e) {
+                logger.error("Error migrating thumbnail '" + pngFile.getAbsolutePath() + "'", e);
+            }
+            Thread.sleep(MIGRATION_DELAY_MS);
+        }
+        if (numMigrated > 0) {
+            logger.info("Migrated " + numMigrated + " PNG thumbnails to the thumbnail pack");
+        }
+    }
+
+    /**
+     * Computes the perceptual hash of thumbnails stored before hashes existed, by batches
+     */
+    private void backfillPerceptualHashes() throws InterruptedException {
+        int numHashed = 0;
+        Map<String, HistoryEntry> hashedEntries = new HashMap<>();
+        for (HistoryEntry entry : index.getEntries()) {
+            if (entry.getPerceptualHash() != null) {
+                continue;
+            }
+            final BufferedImage thumbnail = read(entry);
+            if (thumbnail != null) {
+                hashedEntries.put(entry.getBaseFilename(), entry.withThumbnail(entry.getThumbnailOffset(), PerceptualHash.dHash(thumbnail)));
+            }
+            if (hashedEntries.size() == HASH_BACKFILL_BATCH_SIZE) {
+                numHashed += storeHashes(hashedEntries);
+                Thread.sleep(HASH_BACKFILL_DELAY_MS);
+            }
+        }
+        numHashed += storeHashes(hashedEntries);
+        if (numHashed > 0) {
+            logger.info("Computed perceptual hash of " + numHashed + " thumbnails");
+        }
+    }
+
+    /**
+     * Publishes a batch of hashed copies of entries, all at once
+     * @param hashedEntries the hashed copies, by base filename. Cleared when done
+     * @return the number of entries updated
+     */
+    private int storeHashes(Map<String, HistoryEntry> hashedEntries) {
+        final List<HistoryEntry> updatedEntries;
+        synchronized (this) {
+            updatedEntries = index.update(hashedEntries.keySet(), currentEntry -> {
+                final HistoryEntry hashedEntry = hashedEntries.get(currentEntry.getBaseFilename());
+                // Skip entries whose thumbnail was replaced in the meantime
+                if (currentEntry.getPerceptualHash() != null || currentEntry.getThumbnailOffset() != hashedEntry.getThumbnailOffset()) {
+                    return null;
+                }
+                return currentEntry.withThumbnail(currentEntry.getThumbnailOffset(), hashedEntry.getPerceptualHash());
+            });
+        }
+        hashedEntries.clear();
+        return updatedEntries.size();
+    }
+
+    private synchronized boolean mustCompact() {
+        return deletedBytes > MIN_RECLAIMABLE_BYTES_FOR_COMPACTION && deletedBytes > liveBytes;
+    }
+
+    /**
+     * Writes a new generation of the pack containing only the live blocks, then switches to it.
+     * The new pack is complete before the index is updated, and blocks are self-describing,
+     * so an interruption at any point leaves a usable pack
+     */
+    synchronized void compact() throws IOException {
+        final long startTime = System.currentTimeMillis();
+        final long previousSize = channel.size();
+        final File newPackFile = getPackFile(generation + 1);
+        Map<Long, Long> newOffsets = new HashMap<>();
+        List<String> movedBaseFilenames = new ArrayList<>();
+        try (FileChannel newChannel = FileChannel.open(newPackFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            newChannel.write(header);
+            for (HistoryEntry entry : index.getEntries()) {
+                if (entry.getThumbnailOffset() == HistoryEntry.NO_THUMBNAIL_OFFSET) {
+                    continue;
+                }
+                final ByteBuffer block = getBlock(entry.getThumbnailOffset());
+                if (block.get(STATUS_OFFSET) != STATUS_LIVE) {
+                    continue;
+                }
+                newOffsets.put(entry.getThumbnailOffset(), newChannel.position());
+                movedBaseFilenames.add(entry.getBaseFilename());
+                block.position(0);
+                while (block.hasRemaining()) {
+                    newChannel.write(block);
+                }
+            }
+            newChannel.force(true);
+        }
+
+        // Switch to the new pack
+        close();
+        final File previousPackFile = packFile;
+        generation++;
+        packFile = newPackFile;
+        channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Entries replaced meanwhile (e.g. by a refresh) keep their thumbnail, so they are matched by offset
+        index.update(movedBaseFilenames, entry -> {
+            final Long newOffset = newOffsets.get(entry.getThumbnailOffset());
+            return (newOffset == null) ? null : entry.withThumbnail(newOffset, entry.getPerceptualHash());
+        });
+        liveBytes = channel.size() - HEADER_SIZE;
+        deletedBytes = 0;
+        if (!previousPackFile.delete()) {
+            // Probably still mapped. Will be deleted next time
+            logger.info("Could not delete previous thumbnail pack '" + previousPackFile.getAbsolutePath() + "' yet");
+        }
+        logger.info("Thumbnail pack compacted in " + (System.currentTimeMillis() - startTime) + "ms: " + Misc.getPrettySize(previousSize) + " -> " + Misc.getPrettySize(channel.size()));
+    }
+
+
+    ////////////////////////////////
+    // Utils
+
+    private File getPackFile(int generation) {
+        return new File(historyFolder, PACK_FILENAME_PREFIX + generation + PACK_FILENAME_EXTENSION);
+    }
+
+    private static int getGeneration(File packFile) {
+        final String name = packFile.getName();
+        try {
+            return Integer.parseInt(name.substring(PACK_FILENAME_PREFIX.length(), name.length() - PACK_FILENAME_EXTENSION.length()));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private File getPngFile(String baseFilename) {
+        return new File(historyFolder, baseFilename + Misc.THUMBNAIL_EXTENSION);
+    }
+
+    private BufferedImage readPngThumbnail(String baseFilename) {
+        final File pngFile = getPngFile(baseFilename);
+        if (!pngFile.exists()) {
+            return null;
+        }
+        try {
+            return ImageIO.read(pngFile);
+        }
+        catch (IOException e) {
+            // Could have been migrated in the meantime
+            final HistoryEntry currentEntry = index.get(baseFilename);
+            if (currentEntry != null && currentEntry.getThumbnailOffset() != HistoryEntry.NO_THUMBNAIL_OFFSET) {
+                return read(currentEntry);
+            }
+            logger.error("Error reading '" + pngFile.getAbsolutePath() + "'...", e);
+            return null;
+        }
+    }
+}
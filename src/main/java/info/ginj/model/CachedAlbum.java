@@ -0,0 +1,65 @@
+package info.ginj.model;
+
+/**
+ * An album of an online service, remembered by its target so that exports to the same album do not have to look for
+ * it again, e.g. a Google Photos album.
+ */
+public class CachedAlbum {
+    private String name;
+    private String id;
+    private String shareableUrl;
+    // Time the album was last seen on the service
+    private long checkedTime;
+
+    public CachedAlbum() {
+    }
+
+    public CachedAlbum(String name, String id, String shareableUrl, long checkedTime) {
+        this.name = name;
+        this.id = id;
+        this.shareableUrl = shareableUrl;
+        this.checkedTime = checkedTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getShareableUrl() {
+        return shareableUrl;
+    }
+
+    public void setShareableUrl(String shareableUrl) {
+        this.shareableUrl = shareableUrl;
+    }
+
+    public long getCheckedTime() {
+        return checkedTime;
+    }
+
+    public void setCheckedTime(long checkedTime) {
+        this.checkedTime = checkedTime;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedAlbum{" +
+                "name='" + name + '\'' +
+                ", id='" + id + '\'' +
+                ", shareableUrl='" + shareableUrl + '\'' +
+                ", checkedTime=" + checkedTime +
+                '}';
+    }
+}
@@ -2,6 +2,7 @@ package info.ginj.model;
 
 import info.ginj.Ginj;
 import info.ginj.tool.Overlay;
+import info.ginj.util.ImageEncoding;
 import info.ginj.util.Misc;
 
 import javax.imageio.ImageIO;
@@ -24,10 +25,13 @@ public class Capture implements Cloneable {
     String name;
     List<Overlay> overlays = new ArrayList<>();
     List<Export> exports = new ArrayList<>();
+    String originalHash;
     File originalFile;
     BufferedImage originalImage;
     File renderedFile;
+    ImageEncoding renderedFileEncoding;
     BufferedImage renderedImage;
+    String renderKey;
     long videoDurationMs;
     long videoLowerBoundMs;
     long videoHigherBoundMs;
@@ -121,6 +125,19 @@ public class Capture implements Cloneable {
         this.videoHigherBoundMs = videoHigherBoundMs;
     }
 
+    /**
+     * The SHA-256 of the original media, which identifies it in the history storage.
+     * Null for captures not saved to history yet, or saved by versions storing originals by capture id
+     * @return the hash, as a lowercase hex string
+     */
+    public String getOriginalHash() {
+        return originalHash;
+    }
+
+    public void setOriginalHash(String originalHash) {
+        this.originalHash = originalHash;
+    }
+
     // Note: Transient to prevent being saved to disk
 
     @Transient
@@ -153,6 +170,19 @@ public class Capture implements Cloneable {
         this.renderedFile = renderedFile;
     }
 
+    /**
+     * @return the encoding of the rendered file, if it is being encoded in the background, or null
+     */
+    @Transient
+    public ImageEncoding getRenderedFileEncoding() {
+        return renderedFileEncoding;
+    }
+
+    @Transient
+    public void setRenderedFileEncoding(ImageEncoding renderedFileEncoding) {
+        this.renderedFileEncoding = renderedFileEncoding;
+    }
+
     @Transient
     public BufferedImage getRenderedImage() {
         return renderedImage;
@@ -163,9 +193,25 @@ public class Capture implements Cloneable {
         this.renderedImage = renderedImage;
     }
 
+    /**
+     * @return the key of the current rendering in the render cache, or null if not rendered yet
+     */
+    @Transient
+    public String getRenderKey() {
+        return renderKey;
+    }
+
+    @Transient
+    public void setRenderKey(String renderKey) {
+        this.renderKey = renderKey;
+    }
+
     @Override
     public Capture clone() throws CloneNotSupportedException {
-        return (Capture)super.clone();
+        final Capture clone = (Capture) super.clone();
+        // Exports of the clone must not be added to this capture
+        clone.exports = new ArrayList<>(exports);
+        return clone;
     }
 
 
@@ -177,12 +223,16 @@ public class Capture implements Cloneable {
 
 
     /**
-     * Returns the file of the capture, or writes the BufferedImage to a temp file and returns it if file was empty
+     * Returns the file of the capture, or writes the BufferedImage to a temp file and returns it if file was empty.
+     * If the file is being encoded in the background, waits for it.
      *
      * @return The file
      * @throws IOException in case file had to be created and an error occurred
      */
     public File toRenderedFile() throws IOException {
+        if (renderedFile == null && renderedFileEncoding != null) {
+            renderedFile = renderedFileEncoding.awaitFile();
+        }
         if (renderedFile == null) {
             renderedFile = new File(Ginj.getTempDir(), id + Misc.IMAGE_EXTENSION_PNG);
             ImageIO.write(renderedImage, Misc.IMAGE_FORMAT_PNG, renderedFile);
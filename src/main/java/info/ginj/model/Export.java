@@ -9,6 +9,8 @@ public class Export implements Serializable {
     private String location;
     private String mediaId;
     private boolean isLocationCopied;
+    private String renderKey;
+    private String contentHash;
 
     public Export() {
     }
@@ -57,6 +59,32 @@ public class Export implements Serializable {
         isLocationCopied = locationCopied;
     }
 
+    /**
+     * Identifies the rendering (original, overlays and export settings) that was exported, so that a re-export can tell
+     * whether the capture changed since then.
+     * Null for exports made before this was recorded
+     */
+    public String getRenderKey() {
+        return renderKey;
+    }
+
+    public void setRenderKey(String renderKey) {
+        this.renderKey = renderKey;
+    }
+
+    /**
+     * The hash of the exported file, computed the way the target service does (e.g. MD5 for Google Drive), so that
+     * it can be compared with the remote one to check that the exported media is still there, unchanged.
+     * Null if the exporter cannot check remote media
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
     @Override
     public String toString() {
         return "Export{" +
@@ -64,6 +92,8 @@ public class Export implements Serializable {
                 ", location='" + location + '\'' +
                 ", mediaId='" + mediaId + '\'' +
                 ", isLocationCopied=" + isLocationCopied +
+                ", renderKey='" + renderKey + '\'' +
+                ", contentHash='" + contentHash + '\'' +
                 '}';
     }
 
@@ -4,6 +4,7 @@ package info.ginj.model;
 // TODO we should probably have subclasses of ExportSettings per Exporter. Having Google Photos related info here is ugly
 import info.ginj.export.online.google.GooglePhotosExporter;
 
+import java.awt.*;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -28,6 +29,24 @@ public class ExportSettings {
         }
     }
 
+    public enum ResizeMode {
+        NONE("Keep original size"),
+        PERCENT("Scale to a percentage"),
+        MAX_WIDTH("Limit width (in pixels)"),
+        MAX_HEIGHT("Limit height (in pixels)");
+
+        private final String friendlyName;
+
+        ResizeMode(String friendlyName) {
+            this.friendlyName = friendlyName;
+        }
+
+        @Override
+        public String toString() {
+            return friendlyName;
+        }
+    }
+
     // Warning: all these fields must be handled by the copyToMap() & moveFromMap() methods
     public static final String MUST_ALWAYS_ASK_LOCATION_KEY = "must_always_ask_location";
     public static final String DEST_LOCATION_KEY = "dest_location";
@@ -36,6 +55,8 @@ public class ExportSettings {
     public static final String MUST_SHARE_KEY = "must_share";
     public static final String MUST_COPY_PATH_KEY = "must_copy_path";
     public static final String ALBUM_GRANULARITY_KEY = "album_granularity";
+    public static final String RESIZE_MODE_KEY = "resize_mode";
+    public static final String RESIZE_VALUE_KEY = "resize_value";
 
     private Boolean mustAlwaysAskLocation;
     private String destLocation;
@@ -48,6 +69,8 @@ public class ExportSettings {
     private Boolean mustShare;
     private Boolean mustCopyPath;
     private GooglePhotosExporter.Granularity albumGranularity;
+    private ResizeMode resizeMode = ResizeMode.NONE;
+    private Integer resizeValue;
 
 
     public ExportSettings() {
@@ -123,6 +146,46 @@ public class ExportSettings {
         this.albumGranularity = albumGranularity;
     }
 
+    public ResizeMode getResizeMode() {
+        return resizeMode;
+    }
+
+    public void setResizeMode(ResizeMode resizeMode) {
+        this.resizeMode = resizeMode;
+    }
+
+    public Integer getResizeValue() {
+        return resizeValue;
+    }
+
+    public void setResizeValue(Integer resizeValue) {
+        this.resizeValue = resizeValue;
+    }
+
+
+    /**
+     * Computes the size of the exported image according to the resize settings.
+     * Images are only reduced, never enlarged, and the aspect ratio is kept.
+     * @param width the width of the rendered capture
+     * @param height the height of the rendered capture
+     * @return the size to export the image at
+     */
+    public Dimension computeExportSize(int width, int height) {
+        double scale = 1;
+        if (resizeMode != null && resizeValue != null && resizeValue > 0) {
+            scale = switch (resizeMode) {
+                case NONE -> 1;
+                case PERCENT -> resizeValue / 100.0;
+                case MAX_WIDTH -> resizeValue / (double) width;
+                case MAX_HEIGHT -> resizeValue / (double) height;
+            };
+        }
+        if (scale >= 1) {
+            return new Dimension(width, height);
+        }
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)));
+    }
+
 
     /**
      * Fills the given Map with this object field's values
@@ -136,6 +199,9 @@ public class ExportSettings {
         if (getMustShare() != null) map.put(MUST_SHARE_KEY, getMustShare());
         if (getMustCopyPath() != null) map.put(MUST_COPY_PATH_KEY, getMustCopyPath());
         if (getAlbumGranularity() != null) map.put(ALBUM_GRANULARITY_KEY, getAlbumGranularity());
+        if (getResizeMode() != null) map.put(RESIZE_MODE_KEY, getResizeMode());
+        // Edited in a text field
+        if (getResizeValue() != null) map.put(RESIZE_VALUE_KEY, String.valueOf(getResizeValue()));
     }
 
 
@@ -214,6 +280,30 @@ public class ExportSettings {
         }
 
 
+        if (map.containsKey(RESIZE_MODE_KEY)) {
+            setResizeMode((ResizeMode) map.get(RESIZE_MODE_KEY));
+            map.remove(RESIZE_MODE_KEY);
+        }
+        else {
+            missingSettings.add(RESIZE_MODE_KEY);
+        }
+
+
+        if (map.containsKey(RESIZE_VALUE_KEY)) {
+            final String resizeValueStr = ((String) map.get(RESIZE_VALUE_KEY)).trim();
+            try {
+                setResizeValue(resizeValueStr.isEmpty() ? null : Integer.valueOf(resizeValueStr));
+            }
+            catch (NumberFormatException e) {
+                setResizeValue(null);
+            }
+            map.remove(RESIZE_VALUE_KEY);
+        }
+        else {
+            missingSettings.add(RESIZE_VALUE_KEY);
+        }
+
+
         return missingSettings;
     }
 }
@@ -3,8 +3,10 @@ package info.ginj.model;
 import info.ginj.Ginj;
 import info.ginj.tool.GinjTool;
 import info.ginj.tool.arrow.ArrowTool;
+import info.ginj.tool.blur.BlurTool;
 import info.ginj.tool.frame.FrameTool;
 import info.ginj.tool.highlight.HighlightTool;
+import info.ginj.tool.pixelate.PixelateTool;
 import info.ginj.tool.text.TextTool;
 import info.ginj.util.Misc;
 import info.ginj.util.UI;
@@ -29,7 +31,7 @@ public class Prefs {
     public enum Key {
         TOOL_COLOR_PREFIX("tool.color.", "The current color for the corresponding tool", false),
         FIXED_PALETTE_COLOR_PREFIX("fixed.palette.color.", "The color for the corresponding button in the fixed palette", true),
-        TOOL_LIST("tool.list", "The list of active overlays", false, ArrowTool.NAME + "," + TextTool.NAME + "," + FrameTool.NAME + "," + HighlightTool.NAME),
+        TOOL_LIST("tool.list", "The list of active overlays", false, ArrowTool.NAME + "," + TextTool.NAME + "," + FrameTool.NAME + "," + HighlightTool.NAME + "," + PixelateTool.NAME + "," + BlurTool.NAME),
         CAPTURE_HISTORY_PATH("capture.history.path", "The folder where all capture history is stored", true),
         USE_SMALL_BUTTONS_FOR_ONLINE_TARGETS("use.small.buttons.for.online.target", "If set, small buttons like are shown for online targets, like for save and copy", true, String.valueOf(false)),
         EXPORT_COMPLETE_AUTOHIDE_KEY("export.complete.autohide", "If set, the window displayed upon export completion will fade away and close when not hovered", true, String.valueOf(false)),
@@ -56,6 +58,28 @@ public class Prefs {
         LOGGING_LEVEL("logging.level", "The verbosity of the log file. Valid values are OFF, SEVERE, WARNING, INFO, CONFIG, FINE, FINER, FINEST and ALL", true),
         DEFAULT_TOOL_NAME("default.tool.name", "The tool that is selected by default after a new capture is performed" , true),
         REMEMBER_DEFAULT_TOOL("remember.default.tool", "Remember the default tool according to the first tool used in the previous capture" , true),
+        EDITOR_IMAGE_MEMORY_CEILING_BYTES("editor.image.memory.ceiling.bytes", "Maximum memory used by the images of all captures being edited. Beyond that, a warning is displayed when opening a new capture", true, String.valueOf(1024 * 1024 * 1024)),
+        EDITOR_POOL_MAX_IDLE_FRAMES("editor.pool.max.idle.frames", "Maximum number of closed capture editing windows kept for reuse", true, String.valueOf(2)),
+        EDITOR_POOL_IDLE_TIMEOUT_S("editor.pool.idle.timeout.s", "Delay after which a closed capture editing window that was not reused is disposed", true, String.valueOf(300)),
+        UNDO_HISTORY_MAX_BYTES("undo.history.max.bytes", "Maximum memory retained by the undo history of a capture being edited. Oldest actions are forgotten beyond that", true, String.valueOf(16 * 1024 * 1024)),
+        SIMILAR_CAPTURE_MAX_DISTANCE("similar.capture.max.distance", "Max number of bits (out of 64) differing between the perceptual hashes of two captures for them to be considered similar", true, String.valueOf(6)),
+        EXPORT_WARN_IF_SIMILAR_IN_HISTORY("export.warn.if.similar.in.history", "If set, a confirmation is requested before exporting an image that looks like a capture already in history", true, String.valueOf(false)),
+        HISTORY_RETENTION_MAX_AGE_DAYS("history.retention.max.age.days", "Captures older than that number of days are deleted from history. 0 keeps them forever", true, String.valueOf(0)),
+        HISTORY_RETENTION_MAX_BYTES("history.retention.max.bytes", "Oldest captures are deleted from history when their originals use more than that number of bytes. 0 means no limit", true, String.valueOf(0)),
+        HISTORY_RETENTION_KEEP_LAST_PER_NAME("history.retention.keep.last.per.name", "Only that number of most recent captures having the same name are kept in history. 0 keeps them all", true, String.valueOf(0)),
+        HISTORY_RECOMPRESS_AFTER_DAYS("history.recompress.after.days", "Originals of captures older than that number of days are recompressed (losslessly for images) in the background. 0 disables recompression", true, String.valueOf(30)),
+        HISTORY_RECOMPRESS_VIDEO_CRF("history.recompress.video.crf", "Quality (x264 CRF, higher is smaller) at which old videos are re-encoded when recompressing history. 0 leaves videos untouched", true, String.valueOf(0)),
+        EXPORT_MAX_CONCURRENT_TARGETS("export.max.concurrent.targets", "Maximum number of targets a capture is exported to at the same time when exporting it to several targets", true, String.valueOf(3)),
+        EXPORT_QUEUE_MAX_CONCURRENT_PER_EXPORTER("export.queue.max.concurrent.per.exporter", "Maximum number of queued exports running at the same time for each online service", true, String.valueOf(2)),
+        EXPORT_QUEUE_MAX_ATTEMPTS("export.queue.max.attempts", "Number of times an export failing with a server error is attempted before giving up. Exports waiting for the network are not limited", true, String.valueOf(8)),
+        EXPORT_QUEUE_RETRY_DELAY_MS("export.queue.retry.delay.ms", "Delay before retrying a failed export. It doubles at each attempt", true, String.valueOf(5_000)),
+        EXPORT_QUEUE_MAX_RETRY_DELAY_MS("export.queue.max.retry.delay.ms", "Maximum delay between two attempts of a failed export", true, String.valueOf(600_000)),
+        EXPORT_UPLOAD_WHILE_ENCODING("export.upload.while.encoding", "If set, images exported to an online service are encoded while the upload starts, instead of before it", true, String.valueOf(true)),
+        HTTP_CONNECT_TIMEOUT_MS("http.connect.timeout.ms", "Maximum time to establish a connection to an online service", true, String.valueOf(15_000)),
+        HTTP_RESPONSE_TIMEOUT_MS("http.response.timeout.ms", "Maximum time to wait for data from an online service once connected", true, String.valueOf(120_000)),
+        HTTP_MAX_CONNECTIONS_PER_HOST("http.max.connections.per.host", "Maximum number of connections kept open to each online service", true, String.valueOf(8)),
+        DROPBOX_CONCURRENT_CHUNKS("dropbox.concurrent.chunks", "Number of chunks of a large Dropbox upload sent at the same time. 1 sends them one after the other, which allows resuming an interrupted upload in a later attempt", true, String.valueOf(4)),
+        RENDER_CACHE_MAX_BYTES("render.cache.max.bytes", "Maximum disk space used to keep rendered captures, so that re-exporting them does not render them again", true, String.valueOf(256 * 1024 * 1024)),
         HISTORY_WINDOW_WIDTH("history.window.width", "Width of the history window", false),
         HISTORY_WINDOW_HEIGHT("history.window.height", "Height of the history window", false);
 
@@ -2,6 +2,9 @@ package info.ginj.model;
 
 import info.ginj.export.Exporter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * One Target is a specific instance that can be linked to an export button
  * It is linked to an exporter on creation
@@ -11,6 +14,10 @@ public class Target {
     private Exporter exporter;
     private ExportSettings settings;
     private Account account;
+    // Upload chunk size learned by previous uploads to this target (see AdaptiveChunkSizer), or 0
+    private int uploadChunkSize;
+    // Albums found or created by previous exports to this target, for services organizing media in albums
+    private List<CachedAlbum> cachedAlbums = new ArrayList<>();
 
     /**
      * A target should always have at least an ID and an Exporter, but this no-arg constructor is used for deserialization
@@ -55,6 +62,22 @@ public class Target {
         this.account = account;
     }
 
+    public int getUploadChunkSize() {
+        return uploadChunkSize;
+    }
+
+    public void setUploadChunkSize(int uploadChunkSize) {
+        this.uploadChunkSize = uploadChunkSize;
+    }
+
+    public List<CachedAlbum> getCachedAlbums() {
+        return cachedAlbums;
+    }
+
+    public void setCachedAlbums(List<CachedAlbum> cachedAlbums) {
+        this.cachedAlbums = cachedAlbums;
+    }
+
     @Override
     public String toString() {
         String text;
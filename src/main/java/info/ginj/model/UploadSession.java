@@ -0,0 +1,61 @@
+package info.ginj.model;
+
+/**
+ * A resumable upload in progress on an online service, e.g. a Google Drive session URI or a Dropbox session id.
+ * It is recorded by the ExportQueue, so that an interrupted upload can be resumed from the last byte acknowledged by
+ * the service, even after the application restarted.
+ */
+public class UploadSession {
+    private String exporterName;
+    private String sessionId;
+    private long fileLength;
+
+    public UploadSession() {
+    }
+
+    public UploadSession(String exporterName, String sessionId, long fileLength) {
+        this.exporterName = exporterName;
+        this.sessionId = sessionId;
+        this.fileLength = fileLength;
+    }
+
+    public String getExporterName() {
+        return exporterName;
+    }
+
+    public void setExporterName(String exporterName) {
+        this.exporterName = exporterName;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public void setFileLength(long fileLength) {
+        this.fileLength = fileLength;
+    }
+
+    /**
+     * @return true if this session can be used to resume the upload of a file of the given length with the given exporter
+     */
+    public boolean isResumable(String exporterName, long fileLength) {
+        return this.exporterName != null && this.exporterName.equals(exporterName) && this.fileLength == fileLength && sessionId != null;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadSession{" +
+                "exporterName='" + exporterName + '\'' +
+                ", sessionId='" + sessionId + '\'' +
+                ", fileLength=" + fileLength +
+                '}';
+    }
+}
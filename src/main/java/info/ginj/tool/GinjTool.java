@@ -1,9 +1,11 @@
 package info.ginj.tool;
 
 import info.ginj.tool.arrow.ArrowTool;
+import info.ginj.tool.blur.BlurTool;
 import info.ginj.tool.frame.FrameTool;
 import info.ginj.tool.highlight.HighlightTool;
 import info.ginj.tool.oval.OvalTool;
+import info.ginj.tool.pixelate.PixelateTool;
 import info.ginj.tool.text.TextTool;
 import info.ginj.ui.CaptureEditingFrame;
 import info.ginj.ui.ImageEditorPane;
@@ -34,6 +36,8 @@ public abstract class GinjTool {
             toolMap.put(FrameTool.NAME, new FrameTool());
             toolMap.put(OvalTool.NAME, new OvalTool());
             toolMap.put(HighlightTool.NAME, new HighlightTool());
+            toolMap.put(PixelateTool.NAME, new PixelateTool());
+            toolMap.put(BlurTool.NAME, new BlurTool());
         }
         return toolMap;
     }
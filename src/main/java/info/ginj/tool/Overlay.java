@@ -9,6 +9,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
+import java.util.Arrays;
 
 public abstract class Overlay extends JPanel {
 
@@ -21,6 +22,9 @@ public abstract class Overlay extends JPanel {
     public static final int SHADOW_BLUR_RADIUS = 8;
     public static final int SHADOW_OFFSET = 3;
 
+    // Rough size of the component itself (JPanel fields, listeners, etc.)
+    protected static final long BASE_ESTIMATED_SIZE = 2048;
+
     // Caching
     private Rectangle shadowBoundsCache;
     private BufferedImage shadowImageCache;
@@ -90,9 +94,7 @@ public abstract class Overlay extends JPanel {
 
         // Draw shadow
         if (!isEditInProgress() && mustDrawShadow()) {
-            final Rectangle shadowBounds = getShadowBounds();
-            final BufferedImage shadowImage = getShadowImage();
-            g2d.drawImage(shadowImage, shadowBounds.x, shadowBounds.y, this);
+            drawShadow(g2d);
         }
 
         // Draw component
@@ -106,6 +108,27 @@ public abstract class Overlay extends JPanel {
         }
     }
 
+    /**
+     * Renders this overlay outside of the Swing component hierarchy, e.g. to produce the exported image.
+     * This method draws the drop shadow (if required by the overlay) and the overlay itself, but never the handles,
+     * whatever the selection or edition state. It does not rely on child components being painted by Swing,
+     * so it can be called from any thread, including in headless mode.
+     * @param g2d the graphics canvas to draw on
+     */
+    public void render(Graphics2D g2d) {
+        g2d.setRenderingHints(UI.ANTI_ALIASING_ON);
+        if (mustDrawShadow()) {
+            drawShadow(g2d);
+        }
+        drawComponent(g2d, 0, 0);
+    }
+
+    private void drawShadow(Graphics2D g2d) {
+        final BufferedImage shadowImage = getShadowImage();
+        final Rectangle shadowBounds = getShadowBounds();
+        g2d.drawImage(shadowImage, shadowBounds.x, shadowBounds.y, null);
+    }
+
     private void drawHandle(Graphics2D graphics2D, Point point) {
         if (handleImg == null) {
             // Compute and cache handle graphics
@@ -274,6 +297,33 @@ public abstract class Overlay extends JPanel {
     }
 
 
+    /**
+     * Returns an estimate of the memory used by this overlay, including its cached images
+     * @return the estimated size, in bytes
+     */
+    @java.beans.Transient
+    public long getEstimatedSize() {
+        long size = BASE_ESTIMATED_SIZE;
+        final BufferedImage shadowImage = shadowImageCache;
+        if (shadowImage != null) {
+            size += (long) shadowImage.getWidth() * shadowImage.getHeight() * 4;
+        }
+        return size;
+    }
+
+
+    /**
+     * Returns a description of everything that affects the rendering of this overlay, so that two overlays with the same
+     * render state are known to render the same (e.g. to reuse a previous rendering of a capture).
+     * Overlays drawing something else than a shape defined by their handles and color must add it.
+     * @return the render state
+     */
+    @java.beans.Transient
+    public String getRenderState() {
+        return getClass().getName() + " " + getColor() + " " + Arrays.toString(getHandles());
+    }
+
+
     /**
      * Indicate if this overlay must have a shadow.
      * Can be overridden to disable shadow (e.g. for the "highlight" overlay)
@@ -0,0 +1,104 @@
+package info.ginj.tool;
+
+import info.ginj.util.SummedAreaTable;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Base class for overlays hiding a rectangular area of the capture (pixelate, blur).
+ * The redacted area is computed from the pixels of the captured image, never from other overlays,
+ * and it fully replaces the original pixels, so that once rendered, nothing of the original area leaks to the exported image.
+ * Computations rely on the summed-area table of the captured image, which is shared by all redactions of the same capture.
+ */
+public abstract class RedactionOverlay extends RectangleOverlay {
+
+    private BufferedImage sourceImage;
+
+    // Caching
+    private Rectangle redactedBoundsCache;
+    private BufferedImage redactedImageCache;
+
+    /**
+     * Sets the image this overlay is drawn over. Must be called before the overlay is drawn.
+     * @param sourceImage the captured image
+     */
+    @java.beans.Transient
+    public void setSourceImage(BufferedImage sourceImage) {
+        if (sourceImage != this.sourceImage) {
+            this.sourceImage = sourceImage;
+            redactedImageCache = null;
+        }
+    }
+
+    @java.beans.Transient
+    public BufferedImage getSourceImage() {
+        return sourceImage;
+    }
+
+    /**
+     * Simplified version as redactions don't have a shadow
+     * @param point the point to test
+     * @return true if the point is on the overlay
+     */
+    @Override
+    public boolean containsPoint(Point point) {
+        // First see if we're in a handle
+        if (isSelected() && getHandleIndexAt(point) != NO_INDEX) return true;
+
+        // Otherwise, see if we're in the rectangle
+        return rectangle.contains(point);
+    }
+
+    @Override
+    public void drawComponent(Graphics2D g2d, int xOffset, int yOffset) {
+        if (sourceImage == null) {
+            return;
+        }
+        final BufferedImage redactedImage = getRedactedImage();
+        if (redactedImage != null) {
+            g2d.drawImage(redactedImage, redactedBoundsCache.x + xOffset, redactedBoundsCache.y + yOffset, null);
+        }
+    }
+
+    private synchronized BufferedImage getRedactedImage() {
+        // Only redact the part of the rectangle which is over the image
+        final Rectangle bounds = rectangle.intersection(new Rectangle(0, 0, sourceImage.getWidth(), sourceImage.getHeight()));
+        if (bounds.isEmpty()) {
+            return null;
+        }
+        if (redactedImageCache == null || !bounds.equals(redactedBoundsCache)) {
+            final int[] pixels = new int[bounds.width * bounds.height];
+            redact(SummedAreaTable.of(sourceImage), bounds, pixels);
+            redactedImageCache = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_RGB);
+            redactedImageCache.setRGB(0, 0, bounds.width, bounds.height, pixels, 0, bounds.width);
+            redactedBoundsCache = bounds;
+        }
+        return redactedImageCache;
+    }
+
+    @java.beans.Transient
+    @Override
+    public long getEstimatedSize() {
+        long size = super.getEstimatedSize();
+        final BufferedImage redactedImage = redactedImageCache;
+        if (redactedImage != null) {
+            size += (long) redactedImage.getWidth() * redactedImage.getHeight() * 4;
+        }
+        return size;
+    }
+
+    @Override
+    protected boolean mustDrawShadow() {
+        return false;
+    }
+
+
+    /**
+     * Computes the redacted pixels for the given area
+     * @param table the summed-area table of the source image
+     * @param bounds the area to redact, in image coordinates, fully inside the image
+     * @param pixels the array to fill with the redacted pixels, as RGB ints, one line after the other
+     */
+    protected abstract void redact(SummedAreaTable table, Rectangle bounds, int[] pixels);
+}
@@ -0,0 +1,30 @@
+package info.ginj.tool.blur;
+
+import info.ginj.tool.RedactionOverlay;
+import info.ginj.util.SummedAreaTable;
+
+import java.awt.*;
+
+public class BlurOverlay extends RedactionOverlay {
+
+    public static final int BLUR_RADIUS = 16;
+
+    @Override
+    public String getPresentationName() {
+        return "Blur";
+    }
+
+    /**
+     * Replaces each pixel of the area by the average color of the square around it (box blur).
+     * Thanks to the summed-area table, the cost per pixel does not depend on the radius
+     */
+    @Override
+    protected void redact(SummedAreaTable table, Rectangle bounds, int[] pixels) {
+        int i = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                pixels[i++] = table.getAverageRgb(x - BLUR_RADIUS, y - BLUR_RADIUS, x + BLUR_RADIUS + 1, y + BLUR_RADIUS + 1);
+            }
+        }
+    }
+}
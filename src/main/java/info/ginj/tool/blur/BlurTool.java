@@ -0,0 +1,25 @@
+package info.ginj.tool.blur;
+
+import info.ginj.tool.GinjTool;
+import info.ginj.tool.Overlay;
+import info.ginj.ui.CaptureEditingFrame;
+import info.ginj.ui.ImageEditorPane;
+
+import java.awt.*;
+
+public class BlurTool extends GinjTool {
+
+    public static final String NAME = "Blur";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Overlay createComponent(Point initalPosition, Color initialColor, CaptureEditingFrame frame, ImageEditorPane imagePane) {
+        BlurOverlay overlay = new BlurOverlay();
+        overlay.setSourceImage(imagePane.getCapturedImg());
+        return overlay.initialize(initalPosition, initialColor);
+    }
+}
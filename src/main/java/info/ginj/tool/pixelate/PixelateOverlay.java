@@ -0,0 +1,42 @@
+package info.ginj.tool.pixelate;
+
+import info.ginj.tool.RedactionOverlay;
+import info.ginj.util.SummedAreaTable;
+
+import java.awt.*;
+
+public class PixelateOverlay extends RedactionOverlay {
+
+    public static final int BLOCK_SIZE = 12;
+
+    @Override
+    public String getPresentationName() {
+        return "Pixelate";
+    }
+
+    /**
+     * Replaces each block of the area by its average color.
+     * Blocks are aligned on the image grid so that moving the overlay does not make the mosaic "shimmer"
+     */
+    @Override
+    protected void redact(SummedAreaTable table, Rectangle bounds, int[] pixels) {
+        final int firstBlockX = Math.floorDiv(bounds.x, BLOCK_SIZE) * BLOCK_SIZE;
+        final int firstBlockY = Math.floorDiv(bounds.y, BLOCK_SIZE) * BLOCK_SIZE;
+        for (int blockY = firstBlockY; blockY < bounds.y + bounds.height; blockY += BLOCK_SIZE) {
+            final int y1 = Math.max(blockY, bounds.y);
+            final int y2 = Math.min(blockY + BLOCK_SIZE, bounds.y + bounds.height);
+            for (int blockX = firstBlockX; blockX < bounds.x + bounds.width; blockX += BLOCK_SIZE) {
+                final int x1 = Math.max(blockX, bounds.x);
+                final int x2 = Math.min(blockX + BLOCK_SIZE, bounds.x + bounds.width);
+                // Average on the full block, even if it is clipped, so that all pixels of a block are identical
+                final int rgb = table.getAverageRgb(blockX, blockY, blockX + BLOCK_SIZE, blockY + BLOCK_SIZE);
+                for (int y = y1; y < y2; y++) {
+                    final int lineStart = (y - bounds.y) * bounds.width;
+                    for (int x = x1; x < x2; x++) {
+                        pixels[lineStart + x - bounds.x] = rgb;
+                    }
+                }
+            }
+        }
+    }
+}
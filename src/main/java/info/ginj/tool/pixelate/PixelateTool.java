@@ -0,0 +1,25 @@
+package info.ginj.tool.pixelate;
+
+import info.ginj.tool.GinjTool;
+import info.ginj.tool.Overlay;
+import info.ginj.ui.CaptureEditingFrame;
+import info.ginj.ui.ImageEditorPane;
+
+import java.awt.*;
+
+public class PixelateTool extends GinjTool {
+
+    public static final String NAME = "Pixelate";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Overlay createComponent(Point initalPosition, Color initialColor, CaptureEditingFrame frame, ImageEditorPane imagePane) {
+        PixelateOverlay overlay = new PixelateOverlay();
+        overlay.setSourceImage(imagePane.getCapturedImg());
+        return overlay.initialize(initalPosition, initialColor);
+    }
+}
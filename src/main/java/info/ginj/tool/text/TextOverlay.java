@@ -1,5 +1,6 @@
 package info.ginj.tool.text;
 
+import info.ginj.action.EditTextAction;
 import info.ginj.tool.RectangleOverlay;
 import info.ginj.ui.CaptureEditingFrame;
 import info.ginj.ui.ImageEditorPane;
@@ -97,7 +98,7 @@ public class TextOverlay extends RectangleOverlay {
         textArea.setFocusable(true);
         textArea.requestFocusInWindow();
         textArea.getDocument().addUndoableEditListener(
-                e -> frame.addUndoableEdit(e.getEdit()));
+                e -> frame.addUndoableAction(new EditTextAction(this, e.getEdit())));
         add(textArea);
         return this;
     }
@@ -117,11 +118,66 @@ public class TextOverlay extends RectangleOverlay {
     }
 
     @Override
-    public void drawComponent(Graphics2D g2d, int xOffset, int yOffset) {
+    protected void paintComponent(Graphics g) {
+        // The text itself is painted by Swing as a child component: align it to the frame first
+        textArea.setBounds(getTextRectangle());
+        textArea.setForeground(getColor());
+        super.paintComponent(g);
+    }
+
+    /**
+     * In addition to the frame drawn by drawComponent(), draws the text itself,
+     * because the text area is not painted when rendering outside of the Swing hierarchy
+     * @param g2d the graphics canvas to draw on
+     */
+    @Override
+    public void render(Graphics2D g2d) {
+        super.render(g2d);
+        final String text = textArea.getText();
+        if (text.isEmpty()) {
+            return;
+        }
+        final Rectangle textRectangle = getTextRectangle();
+        final Insets insets = textArea.getInsets();
+        Graphics2D textG2d = (Graphics2D) g2d.create();
+        try {
+            textG2d.clipRect(textRectangle.x, textRectangle.y, textRectangle.width, textRectangle.height);
+            textG2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            textG2d.setFont(textArea.getFont());
+            textG2d.setColor(getColor());
+            final FontMetrics fontMetrics = textG2d.getFontMetrics();
+            int y = textRectangle.y + insets.top + fontMetrics.getAscent();
+            for (String line : text.split("\n", -1)) {
+                textG2d.drawString(line, textRectangle.x + insets.left, y);
+                y += fontMetrics.getHeight();
+            }
+        }
+        finally {
+            textG2d.dispose();
+        }
+    }
+
+    @java.beans.Transient
+    @Override
+    public long getEstimatedSize() {
+        // Add the text area component and its document
+        return super.getEstimatedSize() + BASE_ESTIMATED_SIZE + textArea.getDocument().getLength() * 2L;
+    }
+
+    @java.beans.Transient
+    @Override
+    public String getRenderState() {
+        return super.getRenderState() + " " + getFontName() + " " + getFontSize() + " " + getFontStyle() + " " + textArea.getText();
+    }
+
+    private Rectangle getTextRectangle() {
         Rectangle textRectangle = new Rectangle(rectangle);
         textRectangle.grow(-10, -8);
-        textArea.setBounds(textRectangle);
-        textArea.setForeground(getColor());
+        return textRectangle;
+    }
+
+    @Override
+    public void drawComponent(Graphics2D g2d, int xOffset, int yOffset) {
         g2d.setColor(Color.WHITE);
         g2d.fillRoundRect(rectangle.x + 2 + xOffset, rectangle.y + 2 + yOffset, rectangle.width - 4, rectangle.height - 4, 8, 8);
         g2d.setColor(getColor());
@@ -10,6 +10,7 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static info.ginj.model.Prefs.Key.USE_JNA_FOR_WINDOWS_MONITORS;
 
@@ -21,6 +22,10 @@ import static info.ginj.model.Prefs.Key.USE_JNA_FOR_WINDOWS_MONITORS;
  * and a self positioning button panel)
  */
 public abstract class AbstractAllDisplaysFrame extends JFrame {
+    // Number of such frames currently open, i.e. capture in progress
+    private static final AtomicInteger numOpenFrames = new AtomicInteger();
+    private boolean isOpen = false;
+
     // Caching
     protected DisplayConfiguration displayConfiguration;
     protected List<Rectangle> visibleAreas;
@@ -47,12 +52,24 @@ public abstract class AbstractAllDisplaysFrame extends JFrame {
 
     }
 
+    /**
+     * @return true while the user is selecting an area or recording a video, e.g. to pause background jobs
+     */
+    public static boolean isAnyOpen() {
+        return numOpenFrames.get() > 0;
+    }
+
     /**
      * Initialize and show the frame
      * As new JFrames reserve memory that is never garbage collected, we will reuse instances, and use open() and close()
      * to show or hide them, including initialization and cleanup.
      */
     protected void open() {
+        if (!isOpen) {
+            isOpen = true;
+            numOpenFrames.incrementAndGet();
+        }
+
         // Hide the star widget
         starWindow.setVisible(false);
 
@@ -87,6 +104,11 @@ public abstract class AbstractAllDisplaysFrame extends JFrame {
 
         // Restore the star widget
         starWindow.setVisible(true);
+
+        if (isOpen) {
+            isOpen = false;
+            numOpenFrames.decrementAndGet();
+        }
     }
 
     private void computeAllDisplayBounds() {
@@ -2,16 +2,26 @@ package info.ginj.ui;
 
 import info.ginj.Ginj;
 import info.ginj.action.AbstractUndoableAction;
+import info.ginj.action.UndoHistory;
+import info.ginj.export.CaptureRenderer;
 import info.ginj.export.ExportContext;
+import info.ginj.export.ExportQueue;
 import info.ginj.export.Exporter;
+import info.ginj.export.MultiTargetExport;
+import info.ginj.history.HistoryEntry;
+import info.ginj.history.HistoryIndex;
 import info.ginj.model.Capture;
 import info.ginj.model.Prefs;
 import info.ginj.model.Target;
 import info.ginj.tool.GinjTool;
 import info.ginj.tool.Overlay;
+import info.ginj.tool.RedactionOverlay;
 import info.ginj.ui.component.*;
+import info.ginj.util.ImageMemoryTracker;
+import info.ginj.util.ImageResizer;
 import info.ginj.util.Jaffree;
 import info.ginj.util.Misc;
+import info.ginj.util.PerceptualHash;
 import info.ginj.util.UI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,17 +32,17 @@ import javax.swing.border.EmptyBorder;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
-import javax.swing.undo.UndoManager;
-import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static info.ginj.ui.component.BoundedTimelineRangeModel.THUMB_NONE;
 
@@ -53,7 +63,7 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
     private ImageEditorPane imagePane;
     private MiniToolButton undoButton;
     private MiniToolButton redoButton;
-    private UndoManager undoManager;
+    private UndoHistory undoManager;
     private ToolButton colorToolButton;
     private JTextField nameTextField;
 
@@ -65,6 +75,8 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
     private int videoImageUpdateMs;
     private JTimelineSlider positionSlider = null;
     private boolean available;
+    private long idleSinceMs;
+    private String imageMemoryDescription;
 
 
     public CaptureEditingFrame(StarWindow starWindow) {
@@ -89,7 +101,7 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
 
         starWindow.addTargetChangeListener(this);
 
-        undoManager = new UndoManager();
+        undoManager = new UndoHistory(Prefs.getAsLong(Prefs.Key.UNDO_HISTORY_MAX_BYTES));
 
         videoImageUpdateMs = Prefs.getAsInt(Prefs.Key.VIDEO_IMAGE_UPDATE_DELAY_MS);
 
@@ -145,12 +157,20 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
         }
         imagePane = new ImageEditorPane(this, originalImage);
 
+        imageMemoryDescription = "editor of " + capture.getBaseFilename();
+        if (!ImageMemoryTracker.allocate(this, imageMemoryDescription, originalImage)) {
+            SwingUtilities.invokeLater(() -> UI.alertError(this, "Memory warning", "The images of all open captures now use " + Misc.getPrettySize(ImageMemoryTracker.getTotalAllocatedBytes()) + ".\nPlease export or cancel other captures to free some memory."));
+        }
+
 
         // Absolute positioning of components over the image
         imagePane.setLayout(null);
 
         // Restore overlays, if any
         for (Overlay overlay : capture.getOverlays()) {
+            if (overlay instanceof RedactionOverlay) {
+                ((RedactionOverlay) overlay).setSourceImage(originalImage);
+            }
             imagePane.add(overlay);
         }
 
@@ -422,8 +442,11 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
         nameTextField = null;
         actionPanel = null;
 
+        ImageMemoryTracker.release(this, imageMemoryDescription);
+        imageMemoryDescription = null;
+
         // "Return this window to the pool"
-        available = true;
+        returnToPool(this);
     }
 
     public boolean isAvailable() {
@@ -472,6 +495,10 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
             }
         }
 
+        final LowerButton multipleTargetsButton = new LowerButton("Several targets...", UI.createIcon(getClass().getResource("/img/icon/share.png"), 16, 16, UI.ICON_ENABLED_COLOR));
+        multipleTargetsButton.addActionListener(e -> onExportToSeveralTargets());
+        buttonBar.add(multipleTargetsButton);
+
         final JButton cancelButton = new LowerButton("Cancel", UI.createIcon(getClass().getResource("/img/icon/cancel.png"), 16, 16, UI.ICON_ENABLED_COLOR));
         cancelButton.addActionListener(e -> onCancel());
         buttonBar.add(cancelButton);
@@ -596,32 +623,18 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
         refreshUndoRedoButtons();
     }
 
+
     /**
-     * Add a standard edit in a textArea to the Undo stack
-     * <p>
-     *
-     * @param edit The undoable edit
+     * Collects the rendering parameters of the capture. Actual rendering is performed in the export thread
+     * @return the source image, or null if the export is aborted
      */
-    public void addUndoableEdit(UndoableEdit edit) {
-        undoManager.addEdit(edit);
-        refreshUndoRedoButtons();
-    }
-
-
-    private void onExport(Target target) {
-        // 1. Render image and overlays, but no handles
+    private BufferedImage prepareCaptureForExport() {
         imagePane.setSelectedOverlay(null);
         if (capture.isVideo()) {
             capture.setVideoLowerBoundMs(positionSlider.getLower());
             capture.setVideoHigherBoundMs(positionSlider.getHigher());
         }
-        else {
-            BufferedImage renderedImage = new BufferedImage(imagePane.getWidth(), imagePane.getHeight(), BufferedImage.TYPE_INT_RGB);
-            Graphics g = renderedImage.createGraphics();
-            imagePane.paint(g);
-            g.dispose();
-            capture.setRenderedImage(renderedImage);
-        }
+        final BufferedImage sourceImage = imagePane.getCapturedImg();
 
         // Save name and overlays
         capture.setName(nameTextField.getText());
@@ -634,6 +647,20 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
         }
         capture.setOverlays(overlays);
 
+        // Optionally avoid exporting the same thing twice
+        if (!capture.isVideo() && Prefs.isTrue(Prefs.Key.EXPORT_WARN_IF_SIMILAR_IN_HISTORY) && !confirmExportIfSimilarInHistory(sourceImage, overlays)) {
+            return null;
+        }
+        return sourceImage;
+    }
+
+    private void onExport(Target target) {
+        // 1. Collect rendering parameters
+        final BufferedImage sourceImage = prepareCaptureForExport();
+        if (sourceImage == null) {
+            return;
+        }
+
         // 2. Perform export
         Exporter exporter = target.getExporter();
 
@@ -647,9 +674,15 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
         if (exportContext != null) {
             Thread exportThread = new Thread(() -> {
                 logger.debug("ExportThread: renderCapture");
-                renderCapture(capture);
-                logger.debug("ExportThread: exportCapture");
-                exporter.exportCapture(exportContext, capture, target);
+                try {
+                    CaptureRenderer.render(capture, sourceImage, target);
+                    logger.debug("ExportThread: exportCapture");
+                    ExportQueue.getInstance().export(exportContext, capture, target);
+                }
+                catch (IOException e) {
+                    UI.alertException(this, "Render error", "There was an error rendering the capture", e, logger);
+                    exportFrame.failed("Render error");
+                }
                 logger.debug("ExportThread: done.");
                 // Close
                 close();
@@ -667,21 +700,80 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
         logger.debug("CaptureEditingFrame.onExport returning");
     }
 
-    private void renderCapture(Capture capture) {
-        if (capture.isVideo()) {
-            // By default, just point to the original file
-            File renderedFile = capture.getOriginalFile();
-
-            if (capture.getVideoLowerBoundMs() > 0 || capture.getVideoHigherBoundMs() < capture.getVideoDurationMs()) {
-                // TODO should also "render" video file if it has overlays
-                renderedFile = new File(Ginj.getTempDir(), capture.getId() + "_trim" +  Misc.VIDEO_EXTENSION);
-                Jaffree.trim(capture.getOriginalFile(), capture.getVideoLowerBoundMs(), capture.getVideoHigherBoundMs(), renderedFile);
+    private void onExportToSeveralTargets() {
+        // Let the user pick the targets
+        JPanel targetPanel = new JPanel();
+        targetPanel.setLayout(new BoxLayout(targetPanel, BoxLayout.Y_AXIS));
+        Map<JCheckBox, Target> targetsByCheckBox = new LinkedHashMap<>();
+        for (Target target : Ginj.getTargetPrefs().getTargetList()) {
+            Exporter exporter = target.getExporter();
+            if ((capture.isVideo() && exporter.isVideoSupported()) || (!capture.isVideo() && exporter.isImageSupported())) {
+                JCheckBox checkBox = new JCheckBox(target.getDisplayName(), exporter.getButtonIcon(16));
+                targetPanel.add(checkBox);
+                targetsByCheckBox.put(checkBox, target);
             }
+        }
+        if (targetsByCheckBox.isEmpty()) {
+            UI.alertError(this, "Export", "No target can export this capture.\nPlease add targets first.");
+            return;
+        }
+        if (JOptionPane.OK_OPTION != JOptionPane.showConfirmDialog(this, targetPanel, "Export to several targets", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE)) {
+            return;
+        }
+        List<Target> targets = new ArrayList<>();
+        targetsByCheckBox.forEach((checkBox, target) -> {
+            if (checkBox.isSelected()) {
+                targets.add(target);
+            }
+        });
+        if (targets.isEmpty()) {
+            return;
+        }
+        onExport(targets);
+    }
+
+    private void onExport(List<Target> targets) {
+        // 1. Collect rendering parameters
+        final BufferedImage sourceImage = prepareCaptureForExport();
+        if (sourceImage == null) {
+            return;
+        }
 
-            capture.setRenderedFile(renderedFile);
+        // 2. Perform export
+        ExportFrame exportFrame = new ExportFrame(this);
+        MultiTargetExport multiTargetExport = MultiTargetExport.prepare(this, starWindow, exportFrame, capture, sourceImage, targets);
+        if (multiTargetExport != null) {
+            Thread exportThread = new Thread(() -> {
+                multiTargetExport.run();
+                // Close
+                close();
+            });
+            exportThread.start();
+            setVisible(false);
+        }
+        else {
+            logger.info("Export aborted");
+            exportFrame.close();
         }
     }
 
+    /**
+     * Looks for captures in history that look like the given image, and if any, asks the user to confirm the export
+     * @return true if export must go on
+     */
+    private boolean confirmExportIfSimilarInHistory(BufferedImage sourceImage, List<Overlay> overlays) {
+        // Hash a thumbnail, like for captures saved to history, so that hashes are comparable
+        final BufferedImage thumbnail = ImageResizer.fitWithin(CaptureRenderer.render(sourceImage, overlays), HistoryFrame.THUMBNAIL_SIZE.width, HistoryFrame.THUMBNAIL_SIZE.height);
+        final List<HistoryEntry> similarEntries = HistoryIndex.getInstance().findSimilar(PerceptualHash.dHash(thumbnail), Prefs.getAsInt(Prefs.Key.SIMILAR_CAPTURE_MAX_DISTANCE));
+        // Other versions of the same capture are expected to look alike
+        similarEntries.removeIf(entry -> entry.getId().equals(capture.getId()));
+        if (similarEntries.isEmpty()) {
+            return true;
+        }
+        final List<String> names = similarEntries.stream().limit(5).map(HistoryEntry::getDefaultName).collect(Collectors.toList());
+        return JOptionPane.YES_OPTION == JOptionPane.showConfirmDialog(this, "This capture looks like the following capture(s) from history: " + names + "\nExport it anyway?", "Similar capture", JOptionPane.YES_NO_OPTION);
+    }
+
     private void onCancel() {
         // Close window
         close();
@@ -719,11 +811,18 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
     // We reuse "CaptureEditingFrame" windows, because creating and disposing them causes a memory leak.
     // See: https://stackoverflow.com/questions/39437481/jframe-is-never-garbage-collected
     // However, several can be open at the same time, so we're using a pool
-    // TODO Now that we clean up the CaptureEditingFrame after use, the mem leak is probably negligible
+    // The pool is bounded: windows that are not reused are disposed after some time, or if too many of them are idle
 
-    private static Set<CaptureEditingFrame> captureEditingFramePool = new HashSet<>();
+    private static final int POOL_EVICTION_CHECK_PERIOD_MS = 60_000;
+
+    private static final Set<CaptureEditingFrame> captureEditingFramePool = new HashSet<>();
+    private static Timer poolEvictionTimer = null;
 
     public synchronized static CaptureEditingFrame getInstance(StarWindow starWindow) {
+        if (poolEvictionTimer == null) {
+            poolEvictionTimer = new Timer(POOL_EVICTION_CHECK_PERIOD_MS, e -> evictIdleFrames());
+            poolEvictionTimer.start();
+        }
         for (CaptureEditingFrame captureEditingFrame : captureEditingFramePool) {
             if (captureEditingFrame.isAvailable()) {
                 captureEditingFrame.setAvailable(false);
@@ -740,4 +839,48 @@ public class CaptureEditingFrame extends JFrame implements TargetListChangeListe
         return captureEditingFrame;
     }
 
+    /**
+     * @return the number of capture editing windows currently in use, e.g. to pause background jobs
+     */
+    public synchronized static int getNumOpenFrames() {
+        int numOpenFrames = 0;
+        for (CaptureEditingFrame captureEditingFrame : captureEditingFramePool) {
+            if (!captureEditingFrame.isAvailable()) {
+                numOpenFrames++;
+            }
+        }
+        return numOpenFrames;
+    }
+
+    private synchronized static void returnToPool(CaptureEditingFrame captureEditingFrame) {
+        captureEditingFrame.idleSinceMs = System.currentTimeMillis();
+        captureEditingFrame.setAvailable(true);
+        evictIdleFrames();
+    }
+
+    /**
+     * Disposes idle windows that have not been reused for too long, and the oldest idle ones beyond the max number to keep
+     */
+    private synchronized static void evictIdleFrames() {
+        final int maxIdleFrames = (int) Prefs.getAsLong(Prefs.Key.EDITOR_POOL_MAX_IDLE_FRAMES);
+        final long idleTimeoutMs = Prefs.getAsLong(Prefs.Key.EDITOR_POOL_IDLE_TIMEOUT_S) * 1000;
+        final long now = System.currentTimeMillis();
+
+        List<CaptureEditingFrame> idleFrames = new ArrayList<>();
+        for (CaptureEditingFrame captureEditingFrame : captureEditingFramePool) {
+            if (captureEditingFrame.isAvailable()) {
+                idleFrames.add(captureEditingFrame);
+            }
+        }
+        // Most recently used first
+        idleFrames.sort((frame1, frame2) -> Long.compare(frame2.idleSinceMs, frame1.idleSinceMs));
+        for (int i = 0; i < idleFrames.size(); i++) {
+            final CaptureEditingFrame captureEditingFrame = idleFrames.get(i);
+            if (i >= maxIdleFrames || now - captureEditingFrame.idleSinceMs > idleTimeoutMs) {
+                captureEditingFramePool.remove(captureEditingFrame);
+                logger.debug("Disposing idle capture editing window. " + captureEditingFramePool.size() + " window(s) left in pool");
+                SwingUtilities.invokeLater(captureEditingFrame::dispose);
+            }
+        }
+    }
 }
@@ -10,6 +10,7 @@ import info.ginj.ui.component.DoubleBorderedPanel;
 import info.ginj.ui.component.LowerButton;
 import info.ginj.ui.component.LowerButtonBar;
 import info.ginj.util.Coords;
+import info.ginj.util.ImageMemoryTracker;
 import info.ginj.util.Jaffree;
 import info.ginj.util.Misc;
 import info.ginj.util.UI;
@@ -614,7 +615,8 @@ public class CaptureSelectionFrame extends AbstractAllDisplaysFrame {
 
     private void onCaptureImage() {
         final Rectangle croppedSelection = getCroppedSelection();
-        final BufferedImage capturedImg = capturedScreenImg.getSubimage(croppedSelection.x, croppedSelection.y, croppedSelection.width, croppedSelection.height);
+        // Copy the selection to its own raster, so that the full screen image can be garbage collected
+        final BufferedImage capturedImg = ImageMemoryTracker.compact(capturedScreenImg.getSubimage(croppedSelection.x, croppedSelection.y, croppedSelection.width, croppedSelection.height));
         final Capture capture = createNewCapture(false);
         capture.setOriginalImage(capturedImg);
         final CaptureEditingFrame captureEditingFrame = CaptureEditingFrame.getInstance(starWindow);
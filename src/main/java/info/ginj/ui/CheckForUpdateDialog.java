@@ -2,11 +2,10 @@ package info.ginj.ui;
 
 import info.ginj.Ginj;
 import info.ginj.ui.component.DoubleBorderedPanel;
+import info.ginj.util.HttpClientProvider;
 import info.ginj.util.UI;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -99,24 +98,23 @@ public class CheckForUpdateDialog extends JDialog {
                 DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
                 DocumentBuilder db = dbf.newDocumentBuilder();
 
-                CloseableHttpClient httpClient = HttpClients.createDefault();
                 HttpGet httpGet = new HttpGet(GINJ_UPDATES_XML_URL);
 
                 //Set the API media type in http accept header
                 httpGet.addHeader("accept", "application/xml");
 
                 //Send the request; It will immediately return the response in HttpResponse object
-                CloseableHttpResponse response = httpClient.execute(httpGet);
-
-                //verify the valid error code first
-                int statusCode = response.getCode();
-                if (statusCode == 200) {
-                    Document doc = db.parse(response.getEntity().getContent());
-                    XPathFactory xpf = XPathFactory.newInstance();
-                    XPath xp = xpf.newXPath();
-                    latestVersion = xp.evaluate("//updateDescriptor/entry[1]/@newVersion", doc.getDocumentElement());
-                    editorPane.setText("<html><body>" + getHtmlMessage() + "</body></html>");
-                    editorPane.revalidate();
+                try (CloseableHttpResponse response = HttpClientProvider.getClient().execute(httpGet)) {
+                    //verify the valid error code first
+                    int statusCode = response.getCode();
+                    if (statusCode == 200) {
+                        Document doc = db.parse(response.getEntity().getContent());
+                        XPathFactory xpf = XPathFactory.newInstance();
+                        XPath xp = xpf.newXPath();
+                        latestVersion = xp.evaluate("//updateDescriptor/entry[1]/@newVersion", doc.getDocumentElement());
+                        editorPane.setText("<html><body>" + getHtmlMessage() + "</body></html>");
+                        editorPane.revalidate();
+                    }
                 }
             }
             catch (IOException | ParserConfigurationException | SAXException | XPathExpressionException e) {
@@ -10,6 +10,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This "small" progress window is responsible for starting, monitoring, and controlling an export in background.
@@ -18,6 +20,7 @@ public class ExportFrame extends JFrame implements ExportMonitor {
 
     private static final Logger logger = LoggerFactory.getLogger(ExportFrame.class);
     public static final String MSG_CANCELLATION_REQUESTED = "Cancellation requested";
+    private static final int TARGET_ROW_HEIGHT = 36;
 
     private JLabel stateLabel;
     private JLabel sizeLabel;
@@ -25,6 +28,9 @@ public class ExportFrame extends JFrame implements ExportMonitor {
     private Window parentWindow;
     private boolean isCancelRequested = false;
     private final JButton cancelButton;
+    private final JPanel targetsPanel;
+    // Rows of a multi-target export
+    private final List<TargetRow> targetRows = new ArrayList<>();
 
     public ExportFrame(Window parentWindow) {
         super();
@@ -89,6 +95,18 @@ public class ExportFrame extends JFrame implements ExportMonitor {
         c.insets = new Insets(0, 16, 4, 16);
         mainPanel.add(sizeLabel, c);
 
+        // Add per-target rows, only used by multi-target exports
+        targetsPanel = new JPanel(new GridBagLayout());
+        targetsPanel.setOpaque(false);
+
+        c = new GridBagConstraints();
+        c.gridx = 0;
+        c.gridy = 3;
+        c.gridwidth = 2;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.insets = new Insets(0, 16, 4, 16);
+        mainPanel.add(targetsPanel, c);
+
 
         // Add default "draggable window" behaviour
         UI.addDraggableWindowMouseBehaviour(this, mainPanel);
@@ -132,6 +150,64 @@ public class ExportFrame extends JFrame implements ExportMonitor {
         stateLabel.setText(state);
     }
 
+    /**
+     * Adds a row showing the progress of the export to one of the targets of a multi-target export.
+     * The main progress bar then shows the average progress of all targets, and this window closes when they are all done.
+     * This method must be called from the EDT.
+     *
+     * @param targetName the name of the target
+     * @return the monitor of that target, to pass to its exporter
+     */
+    public ExportMonitor addTargetRow(String targetName) {
+        TargetRow row = new TargetRow(targetName);
+        targetRows.add(row);
+
+        GridBagConstraints c = new GridBagConstraints();
+        c.gridx = 0;
+        c.gridy = 2 * (targetRows.size() - 1);
+        c.weightx = 1;
+        c.anchor = GridBagConstraints.WEST;
+        targetsPanel.add(row.label, c);
+
+        c = new GridBagConstraints();
+        c.gridx = 0;
+        c.gridy = 2 * (targetRows.size() - 1) + 1;
+        c.weightx = 1;
+        c.fill = GridBagConstraints.HORIZONTAL;
+        targetsPanel.add(new JProgressBar(row.progressModel), c);
+
+        stateLabel.setText("Exporting to " + targetRows.size() + " target(s)");
+        setSize(280, 70 + targetRows.size() * TARGET_ROW_HEIGHT);
+        return row;
+    }
+
+    /**
+     * Called on the EDT when a target row changed
+     */
+    private void onTargetRowChanged() {
+        if (progressModel == null) {
+            // Already closed
+            return;
+        }
+        int totalProgress = 0;
+        boolean isAllDone = true;
+        boolean isAnyFailed = false;
+        for (TargetRow row : targetRows) {
+            totalProgress += row.progressModel.getValue();
+            isAllDone &= row.isDone;
+            isAnyFailed |= row.isFailed;
+        }
+        progressModel.setValue(totalProgress / targetRows.size());
+        if (isAllDone) {
+            if (isAnyFailed) {
+                failed("Export failed for some targets");
+            }
+            else {
+                complete("Export completed");
+            }
+        }
+    }
+
     private void onCancel() {
         logger.debug("ExportFrame.onCancel");
         isCancelRequested = true;
@@ -174,6 +250,82 @@ public class ExportFrame extends JFrame implements ExportMonitor {
         close();
     }
 
+    /**
+     * Monitor of the export to one of the targets of a multi-target export.
+     * It can be called from any thread.
+     */
+    private class TargetRow implements ExportMonitor {
+        private final String targetName;
+        private final JLabel label;
+        private final BoundedRangeModel progressModel = new DefaultBoundedRangeModel();
+        // Only accessed from the EDT
+        private boolean isDone = false;
+        private boolean isFailed = false;
+
+        private TargetRow(String targetName) {
+            this.targetName = targetName;
+            label = new YellowLabel(targetName);
+        }
+
+        @Override
+        public void log(String state, int progress, long currentSizeBytes, long totalSizeBytes) {
+            update(state + " (" + Misc.getPrettySizeRatio(currentSizeBytes, totalSizeBytes) + ")", progress);
+        }
+
+        @Override
+        public void log(String state, int progress, String sizeProgress) {
+            update(state + " (" + sizeProgress + ")", progress);
+        }
+
+        @Override
+        public void log(String state, int progress) {
+            update(state, progress);
+        }
+
+        @Override
+        public void log(String state) {
+            update(state, -1);
+        }
+
+        @Override
+        public boolean isCancelRequested() {
+            return isCancelRequested;
+        }
+
+        @Override
+        public void complete(String state) {
+            SwingUtilities.invokeLater(() -> {
+                label.setText(targetName + ": done");
+                progressModel.setValue(progressModel.getMaximum());
+                isDone = true;
+                onTargetRowChanged();
+            });
+        }
+
+        @Override
+        public void failed(String state) {
+            SwingUtilities.invokeLater(() -> {
+                label.setText(targetName + ": " + state);
+                isDone = true;
+                isFailed = true;
+                onTargetRowChanged();
+            });
+        }
+
+        private void update(String state, int progress) {
+            SwingUtilities.invokeLater(() -> {
+                if (isDone) {
+                    return;
+                }
+                label.setText(targetName + ": " + state);
+                if (progress >= 0) {
+                    progressModel.setValue(progress);
+                }
+                onTargetRowChanged();
+            });
+        }
+    }
+
     public void close() {
         logger.debug("ExportFrame.close");
         stateLabel = null;
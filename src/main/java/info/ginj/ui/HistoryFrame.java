@@ -1,21 +1,36 @@
 package info.ginj.ui;
 
 import info.ginj.Ginj;
+import info.ginj.export.CaptureRenderer;
+import info.ginj.export.ExportContext;
+import info.ginj.export.ExportQueue;
+import info.ginj.export.Exporter;
+import info.ginj.export.RenderCache;
+import info.ginj.export.online.AbstractOnlineExporter;
+import info.ginj.history.BlobStore;
+import info.ginj.history.HistoryEntry;
+import info.ginj.history.HistoryIndex;
+import info.ginj.history.HistoryIndexListener;
+import info.ginj.history.HistoryMaintenance;
+import info.ginj.history.ThumbnailLoader;
+import info.ginj.history.ThumbnailStore;
 import info.ginj.model.Capture;
+import info.ginj.model.Export;
 import info.ginj.model.Prefs;
+import info.ginj.model.Target;
 import info.ginj.ui.component.BorderedLabel;
 import info.ginj.ui.component.HistoryButtonPanel;
 import info.ginj.ui.component.HistoryToggleButton;
 import info.ginj.ui.component.YellowLabel;
-import info.ginj.ui.layout.WrapLayout;
 import info.ginj.util.Misc;
 import info.ginj.util.UI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -24,16 +39,17 @@ import java.beans.XMLDecoder;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.io.IOException;
 import java.util.List;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
  * This window displays and manages the historized captures
  */
-public class HistoryFrame extends JFrame {
+public class HistoryFrame extends JFrame implements HistoryIndexListener {
 
     private static final Logger logger = LoggerFactory.getLogger(HistoryFrame.class);
 
@@ -51,9 +67,30 @@ public class HistoryFrame extends JFrame {
     private final ImageIcon editIcon;
     private final ImageIcon deleteIcon;
 
+    // Number of decoded thumbnails kept in memory (about 40kB each)
+    private static final int MAX_CACHED_THUMBNAILS = 300;
+    // Index changes larger than that refresh the whole list instead of moving entries one by one
+    private static final int MAX_INCREMENTAL_LIST_CHANGES = 10;
+
     private final StarWindow starWindow;
-    private HistoryItemWidget selectedItem;
-    private final JPanel historyList;
+    private final JList<HistoryEntry> historyList;
+    private final HistoryCellRenderer historyCellRenderer;
+    private final ThumbnailLoader thumbnailLoader;
+    // Index of the selected cell when the mouse was last pressed, to only activate the buttons of an already selected cell
+    private int selectedIndexOnPress = -1;
+    // All entries of the index, by base filename
+    private final Map<String, HistoryEntry> allEntries = new LinkedHashMap<>();
+    // Row of each listed entry in the list model, by base filename, or null if it must be computed again
+    private Map<String, Integer> listRows = null;
+    private SortOrder sortOrder = SortOrder.DATE;
+    private Filter filter = Filter.BOTH;
+    // Base filenames of the entries matching the search field, or null if it is empty
+    private Set<String> searchResults = null;
+    // Entry whose similar captures are listed, or null to list all captures
+    private HistoryEntry similarityReference = null;
+    // Base filenames of the entries similar to similarityReference
+    private Set<String> similarResults = null;
+    private final JTextField searchField;
     private final HistoryToggleButton sortByDateButton;
     private final HistoryToggleButton filterBothButton;
 
@@ -112,6 +149,30 @@ public class HistoryFrame extends JFrame {
 
         buttonBar.add(Box.createHorizontalGlue());
 
+        // Results are updated as the user types
+        searchField = new JTextField(12);
+        searchField.setToolTipText("Search capture names, export destinations and texts");
+        searchField.setMaximumSize(searchField.getPreferredSize());
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                onSearch();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                onSearch();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                onSearch();
+            }
+        });
+        buttonBar.add(searchField);
+
+        buttonBar.add(Box.createHorizontalGlue());
+
         ButtonGroup filterGroup = new ButtonGroup();
 
         final HistoryToggleButton filterImageButton = new HistoryToggleButton("Images");
@@ -137,7 +198,33 @@ public class HistoryFrame extends JFrame {
         c.fill = GridBagConstraints.HORIZONTAL;
         contentPane.add(buttonBar, c);
 
-        historyList = new JPanel(new WrapLayout(WrapLayout.LEFT));
+        // Thumbnails are decoded on worker threads, then the list is repainted
+        thumbnailLoader = new ThumbnailLoader(MAX_CACHED_THUMBNAILS, entry -> ThumbnailStore.getInstance().read(entry), this::onThumbnailLoaded);
+
+        // The list only renders visible cells, using a single renderer component "stamped" on each of them
+        historyList = new JList<>() {
+            @Override
+            protected void processMouseEvent(MouseEvent e) {
+                if (e.getID() == MouseEvent.MOUSE_PRESSED) {
+                    selectedIndexOnPress = getSelectedIndex();
+                }
+                super.processMouseEvent(e);
+            }
+        };
+        historyList.setName("HistoryList"); // To be addressed in synth.xml
+        historyList.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        historyList.setVisibleRowCount(-1);
+        historyList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        historyList.setFixedCellWidth(HISTORY_CELL_SIZE.width);
+        historyList.setFixedCellHeight(HISTORY_CELL_SIZE.height);
+        historyCellRenderer = new HistoryCellRenderer();
+        historyList.setCellRenderer(historyCellRenderer);
+        historyList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                onListClicked(e);
+            }
+        });
 
         historyPanel = new JScrollPane(historyList);
         historyPanel.getVerticalScrollBar().setUnitIncrement(HISTORY_CELL_SIZE.height);
@@ -149,12 +236,8 @@ public class HistoryFrame extends JFrame {
         catch (Exception e) {
             historyPanel.setPreferredSize(MAIN_AREA_DEFAULT_SIZE);
         }
-        historyPanel.addMouseListener(new MouseAdapter() {
-            @Override
-            public void mouseReleased(MouseEvent e) {
-                setSelectedItem(null);
-            }
-        });
+        // Forget about thumbnails of cells scrolled out of view before they are loaded
+        historyPanel.getViewport().addChangeListener(e -> thumbnailLoader.retainOnly(getVisibleEntries()));
 
         c = new GridBagConstraints();
         c.gridx = 0;
@@ -197,70 +280,127 @@ public class HistoryFrame extends JFrame {
         starWindow.centerFrameOnStarIconDisplay(this);
     }
 
-    public void loadHistoryList() {
+    private void loadHistoryList() {
         // Default is show all, by date
         sortByDateButton.setSelected(true);
         filterBothButton.setSelected(true);
 
-        historyList.removeAll();
-        final File[] files = Ginj.getHistoryFolder().listFiles((dir, name) -> name.toLowerCase().endsWith(Misc.METADATA_EXTENSION));
+        sortOrder = SortOrder.DATE;
+        filter = Filter.BOTH;
 
-        if (files == null) {
-            UI.alertError(this, "History error", "Could not list files in history folder '" + Ginj.getHistoryFolder().getAbsolutePath() +"'");
-            historyList.add(new JLabel("Error"));
+        // No XML is decoded here: everything needed to list, sort and filter captures comes from the index
+        final HistoryIndex historyIndex = HistoryIndex.getInstance();
+        allEntries.clear();
+        for (HistoryEntry entry : historyIndex.getEntries()) {
+            allEntries.put(entry.getBaseFilename(), entry);
         }
-        else {
-            Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed()); // Sort most recent first
+        refreshList();
+        // From now on, only apply changes
+        historyIndex.addListener(this);
 
-            for (File file : files) {
-                historyList.add(new HistoryItemWidget(this, file));
-            }
-            updateNumCaptures(files.length);
+        // Move old PNG thumbnails to the thumbnail pack and reclaim space, if needed
+        ThumbnailStore.getInstance().startMaintenance();
+    }
+
+    /**
+     * Fills the list with the entries matching the current filter, in the current sort order
+     */
+    private void refreshList() {
+        final List<HistoryEntry> visibleEntries = allEntries.values().stream()
+                .filter(this::matchesFilter)
+                .sorted(getComparator())
+                .collect(Collectors.toList());
+
+        DefaultListModel<HistoryEntry> model = new DefaultListModel<>();
+        model.addAll(visibleEntries);
+        historyList.setModel(model);
+        listRows = null;
+        updateNumCaptures(visibleEntries.size());
+    }
+
+    private Comparator<HistoryEntry> getComparator() {
+        return switch (sortOrder) {
+            case DATE -> Comparator.comparingLong(HistoryEntry::getMetadataLastModified).reversed(); // Most recent first
+            case SIZE -> Comparator.comparingLong(HistoryEntry::getCaptureSize).reversed(); // Largest first
+            case NAME -> Comparator.comparing(HistoryEntry::getDefaultName, String.CASE_INSENSITIVE_ORDER);
+        };
+    }
+
+    private boolean matchesFilter(HistoryEntry entry) {
+        if (searchResults != null && !searchResults.contains(entry.getBaseFilename())) {
+            return false;
         }
-        historyList.validate();
+        if (similarResults != null && !similarResults.contains(entry.getBaseFilename())) {
+            return false;
+        }
+        return switch (filter) {
+            case BOTH -> true;
+            case VIDEO -> entry.isVideo();
+            case IMAGE -> !entry.isVideo();
+        };
     }
 
-    private void updateNumCaptures(int numVisibleComponents) {
-        statusLabel.setText(numVisibleComponents + " captures listed.");
+    private DefaultListModel<HistoryEntry> getListModel() {
+        return (DefaultListModel<HistoryEntry>) historyList.getModel();
     }
 
-    private List<Capture> getCapturesSharingSourceFile(Capture mainCapture) {
-        // Find all other metadata files sharing the same ID
-        final File[] metadataFiles = Ginj.getHistoryFolder().listFiles((dir, name) -> name.startsWith(mainCapture.getId()) && name.endsWith(Misc.METADATA_EXTENSION) && !name.equals(mainCapture.getBaseFilename() + Misc.METADATA_EXTENSION));
-        List<Capture> siblingCaptures = new ArrayList<>();
-        try {
-            //noinspection ConstantConditions will be caught later
-            for (File metadataFile : metadataFiles) {
-                try (XMLDecoder xmlDecoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(metadataFile)))) {
-                    Capture siblingCapture = (Capture) xmlDecoder.readObject();
-                    siblingCaptures.add(siblingCapture);
-                }
+    private int getListIndex(String baseFilename) {
+        if (listRows == null) {
+            final DefaultListModel<HistoryEntry> model = getListModel();
+            listRows = new HashMap<>();
+            for (int i = 0; i < model.size(); i++) {
+                listRows.put(model.get(i).getBaseFilename(), i);
             }
         }
-        catch (Exception e) {
-            UI.alertException(this, "Error", "Error determining captures sharing the same file", e, logger);
+        return listRows.getOrDefault(baseFilename, -1);
+    }
+
+    private List<HistoryEntry> getVisibleEntries() {
+        List<HistoryEntry> visibleEntries = new ArrayList<>();
+        final int firstVisibleIndex = historyList.getFirstVisibleIndex();
+        final int lastVisibleIndex = historyList.getLastVisibleIndex();
+        if (firstVisibleIndex >= 0) {
+            for (int i = firstVisibleIndex; i <= lastVisibleIndex; i++) {
+                visibleEntries.add(historyList.getModel().getElementAt(i));
+            }
         }
-        return siblingCaptures;
+        return visibleEntries;
     }
 
-    private File getCaptureFile(Capture capture) {
-        return new File(Ginj.getHistoryFolder(), capture.getId() + capture.defaultExtension());
+    private void updateNumCaptures(int numVisibleComponents) {
+        if (similarityReference != null) {
+            statusLabel.setText(numVisibleComponents + " captures similar to '" + similarityReference.getDefaultName() + "'.");
+        }
+        else {
+            statusLabel.setText(numVisibleComponents + ((searchResults == null) ? " captures listed." : " captures found."));
+        }
     }
 
-    public void setSelectedItem(HistoryItemWidget selectedItem) {
-        // Deselect previous one, if any
-        if (this.selectedItem != null) {
-            this.selectedItem.setSelected(false);
+    /**
+     * Queries the similarity index again, e.g. after the entries changed
+     */
+    private void updateSimilarResults() {
+        if (similarityReference == null || similarityReference.getPerceptualHash() == null) {
+            similarResults = null;
+            return;
         }
-        // Select new one, if any
-        if (selectedItem != null) {
-            selectedItem.setSelected(true);
+        similarResults = new HashSet<>();
+        similarResults.add(similarityReference.getBaseFilename());
+        for (HistoryEntry similarEntry : HistoryIndex.getInstance().findSimilar(similarityReference.getPerceptualHash(), Prefs.getAsInt(Prefs.Key.SIMILAR_CAPTURE_MAX_DISTANCE))) {
+            similarResults.add(similarEntry.getBaseFilename());
         }
-        // and remember it
-        this.selectedItem = selectedItem;
     }
 
+    /**
+     * Queries the search index again, e.g. after the search text or the entries changed
+     */
+    private void updateSearchResults() {
+        searchResults = HistoryIndex.getInstance().getSearchIndex().search(searchField.getText());
+    }
 
+    private File getCaptureFile(Capture capture) {
+        return BlobStore.getOriginalFile(Ginj.getHistoryFolder(), capture);
+    }
 
     //////////////////////////////
     // Event handlers
@@ -272,17 +412,18 @@ public class HistoryFrame extends JFrame {
         Prefs.set(Prefs.Key.HISTORY_WINDOW_HEIGHT, String.valueOf(size.height));
 
         starWindow.setHistoryFrame(null);
+        HistoryIndex.getInstance().removeListener(this);
+        thumbnailLoader.shutdown();
         // Close window
         dispose();
     }
 
     private void onEdit(Capture capture) {
         try {
-            // Find captures sharing the same source to determine new version (max+1)
-            final List<Capture> sharingCaptures = getCapturesSharingSourceFile(capture);
+            // Find other versions of this capture to determine new version (max+1)
             int maxCaptureVersion = capture.getVersion();
-            for (Capture sharingCapture : sharingCaptures) {
-                if (sharingCapture.getVersion() > maxCaptureVersion) maxCaptureVersion = sharingCapture.getVersion();
+            for (HistoryEntry version : HistoryIndex.getInstance().getVersions(capture.getId())) {
+                if (version.getVersion() > maxCaptureVersion) maxCaptureVersion = version.getVersion();
             }
 
             // Find if the name ends with a version
@@ -312,113 +453,313 @@ public class HistoryFrame extends JFrame {
         }
     }
 
-    private void onExport(Capture capture) {
-        // TODO should copy the shared URL back to the clipboard, except for Clipboard that should re-execute an "export"
-        UI.featureNotImplementedDialog(this);
+    private void onExport(Capture capture, Point point) {
+        // Choose the target among the ones supporting this kind of capture
+        JPopupMenu popup = new JPopupMenu();
+        for (Target target : Ginj.getTargetPrefs().getTargetList()) {
+            Exporter exporter = target.getExporter();
+            if ((capture.isVideo() && exporter.isVideoSupported()) || (!capture.isVideo() && exporter.isImageSupported())) {
+                JMenuItem menuItem = new JMenuItem(target.getDisplayName(), exporter.getButtonIcon(24));
+                menuItem.addActionListener(e -> onExport(capture, target));
+                popup.add(menuItem);
+            }
+        }
+        popup.show(historyList, point.x, point.y);
+    }
+
+    /**
+     * Exports a capture from history again, only performing what the previous exports did not:
+     * if the capture was already uploaded to the same service with the same rendering, and the uploaded media is still there,
+     * unchanged, it is not uploaded again (it is just shared and/or its link copied, if needed).
+     * Otherwise, it is exported normally, reusing the rendering of a previous export if it is still in the render cache.
+     */
+    private void onExport(Capture capture, Target target) {
+        capture.setOriginalFile(getCaptureFile(capture));
+        final Exporter exporter = target.getExporter();
+
+        ExportFrame exportFrame = new ExportFrame(this);
+        ExportContext exportContext = exporter.prepare(this, starWindow, exportFrame, capture, target);
+        if (exportContext == null) {
+            logger.info("Export aborted");
+            exportFrame.close();
+            return;
+        }
+        // Rendering and exporting are done in the background, and errors are reported on the EDT
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                capture.setRenderKey(RenderCache.computeRenderKey(capture, target));
+                if (exporter instanceof AbstractOnlineExporter) {
+                    final Export previousExport = findPreviousExport(capture, exporter);
+                    if (previousExport != null && ((AbstractOnlineExporter) exporter).reexportCapture(exportContext, capture, target, previousExport)) {
+                        return null;
+                    }
+                }
+                CaptureRenderer.render(capture, null, target);
+                ExportQueue.getInstance().export(exportContext, capture, target);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        UI.alertException(HistoryFrame.this, "Render error", "There was an error rendering the capture", (IOException) e.getCause(), logger);
+                        exportFrame.failed("Render error");
+                    }
+                    else {
+                        logger.error("Error exporting " + capture.getDefaultName(), e.getCause());
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Cannot happen: the worker is done
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * @return the most recent export of the given capture with the given exporter and the current rendering, or null if none
+     */
+    private Export findPreviousExport(Capture capture, Exporter exporter) {
+        final List<Export> exports = capture.getExports();
+        for (int i = exports.size() - 1; i >= 0; i--) {
+            final Export export = exports.get(i);
+            if (exporter.getExporterName().equals(export.getExporterName()) && capture.getRenderKey().equals(export.getRenderKey())) {
+                return export;
+            }
+        }
+        return null;
     }
 
 
     private void onDelete(Capture capture) {
         // TODO ask the question: Also delete from storages (and list them) ?
-        // TODO if re-exported captures point to the same source, only delete the source media when it's the last one
-        final List<Capture> sharingCaptures = getCapturesSharingSourceFile(capture);
+        final HistoryIndex historyIndex = HistoryIndex.getInstance();
+        HistoryEntry entry = historyIndex.get(capture.getBaseFilename());
+        if (entry == null) {
+            entry = HistoryEntry.of(capture, Ginj.getHistoryFolder());
+        }
+        // The source media is only deleted with the last capture referencing it
+        final List<HistoryEntry> sharingEntries = historyIndex.getEntriesSharingOriginal(entry);
         String message = "The selected capture will be deleted from the history.\n";
         message += "The exported version (if any) will remain untouched.\n";
-        if (!sharingCaptures.isEmpty()) {
-            message += "NOTE: the source file will remain on disk because it is shared with the following capture(s): " + sharingCaptures.stream().map(Capture::getName).collect(Collectors.toList()) + "\n";
+        if (!sharingEntries.isEmpty()) {
+            message += "NOTE: the source file will remain on disk because it is shared with the following capture(s): " + sharingEntries.stream().map(HistoryEntry::getDefaultName).collect(Collectors.toList()) + "\n";
         }
         message += "Are you sure you want to delete capture '" + capture.getName() + "'?";
         if (JOptionPane.YES_OPTION == JOptionPane.showConfirmDialog(this, message, "Delete Capture", JOptionPane.YES_NO_OPTION)) {
-            boolean ok = new File(Ginj.getHistoryFolder(), capture.getBaseFilename() + Misc.METADATA_EXTENSION).delete();
-            ok = ok && new File(Ginj.getHistoryFolder(), capture.getBaseFilename() + Misc.THUMBNAIL_EXTENSION).delete();
-            if (sharingCaptures.isEmpty()) {
-                ok = ok && getCaptureFile(capture).delete();
-            }
-            if (!ok) {
+            // The list will be updated by the index
+            if (!HistoryMaintenance.deleteCapture(entry)) {
                 UI.alertError(this, "Delete error", "There was an error deleting history files for capture\n" + capture.toString());
             }
-            loadHistoryList();
         }
     }
 
     private void onSort(SortOrder order) {
-        List<Component> components = new ArrayList<>(Arrays.asList(historyList.getComponents()));
-        Comparator<Component> comparator = switch (order) {
-            case DATE -> (o1, o2) -> {
-                HistoryItemWidget historyItemWidget1 = (HistoryItemWidget) o1;
-                HistoryItemWidget historyItemWidget2 = (HistoryItemWidget) o2;
-                return Long.compare(historyItemWidget2.getFile().lastModified(), historyItemWidget1.getFile().lastModified());
-            };
-            case SIZE -> (o1, o2) -> {
-                HistoryItemWidget historyItemWidget1 = (HistoryItemWidget) o1;
-                HistoryItemWidget historyItemWidget2 = (HistoryItemWidget) o2;
-                return Long.compare(historyItemWidget2.getCaptureSize(), historyItemWidget1.getCaptureSize());
-            };
-            case NAME -> (o1, o2) -> {
-                HistoryItemWidget historyItemWidget1 = (HistoryItemWidget) o1;
-                HistoryItemWidget historyItemWidget2 = (HistoryItemWidget) o2;
-                return historyItemWidget1.getOrLoadCapture().getName().compareTo(historyItemWidget2.getOrLoadCapture().getName());
-            };
-        };
-        components.sort(comparator);
-        historyList.removeAll();
-        for (Component component : components) {
-            historyList.add(component);
-        }
-        historyList.revalidate();
-        historyList.repaint();
+        sortOrder = order;
+        refreshList();
     }
 
     private void onFilter(Filter filter) {
-        int numVisibleComponents = 0;
-        for (Component component : historyList.getComponents()) {
-            HistoryItemWidget historyItemWidget = (HistoryItemWidget) component;
-            switch (filter) {
-                case BOTH -> {
-                    historyItemWidget.setVisible(true);
-                    numVisibleComponents++;
+        this.filter = filter;
+        refreshList();
+    }
+
+    private void onShowSimilar(HistoryEntry entry) {
+        similarityReference = entry;
+        updateSimilarResults();
+        refreshList();
+    }
+
+    private void onSearch() {
+        updateSearchResults();
+        refreshList();
+    }
+
+    @Override
+    public void onEntriesChanged(Collection<HistoryEntry> putEntries, Collection<String> removedBaseFilenames) {
+        // Copied, as the index goes on changing while the event is queued
+        final List<HistoryEntry> puts = new ArrayList<>(putEntries);
+        final List<String> removals = new ArrayList<>(removedBaseFilenames);
+        SwingUtilities.invokeLater(() -> {
+            for (HistoryEntry entry : puts) {
+                allEntries.put(entry.getBaseFilename(), entry);
+                // Thumbnail may have changed
+                thumbnailLoader.invalidate(entry);
+            }
+            for (String baseFilename : removals) {
+                allEntries.remove(baseFilename);
+            }
+            // The entries may match the search differently
+            if (searchResults != null) {
+                updateSearchResults();
+            }
+            if (similarityReference != null) {
+                updateSimilarResults();
+            }
+
+            if (puts.size() + removals.size() > MAX_INCREMENTAL_LIST_CHANGES) {
+                // Cheaper to list everything again (e.g. thumbnail migration or index rebuild)
+                final HistoryEntry selectedEntry = historyList.getSelectedValue();
+                refreshList();
+                if (selectedEntry != null) {
+                    final int index = getListIndex(selectedEntry.getBaseFilename());
+                    if (index >= 0) {
+                        historyList.setSelectedIndex(index);
+                    }
+                }
+                return;
+            }
+            for (HistoryEntry entry : puts) {
+                applyPut(entry);
+            }
+            for (String baseFilename : removals) {
+                final int index = getListIndex(baseFilename);
+                if (index >= 0) {
+                    getListModel().remove(index);
+                    listRows = null;
                 }
-                case VIDEO -> {
-                    final boolean visible = historyItemWidget.getOrLoadCapture().isVideo();
-                    historyItemWidget.setVisible(visible);
-                    if (visible) numVisibleComponents++;
+            }
+            updateNumCaptures(getListModel().size());
+        });
+    }
+
+    /**
+     * Moves, updates, inserts or removes the given entry in the list, according to the current filter and sort order
+     */
+    private void applyPut(HistoryEntry entry) {
+        final DefaultListModel<HistoryEntry> model = getListModel();
+        final int index = getListIndex(entry.getBaseFilename());
+        if (!matchesFilter(entry)) {
+            if (index >= 0) {
+                model.remove(index);
+                listRows = null;
+            }
+        }
+        else {
+            final Comparator<HistoryEntry> comparator = getComparator();
+            if (index >= 0
+                    && (index == 0 || comparator.compare(model.get(index - 1), entry) <= 0)
+                    && (index == model.size() - 1 || comparator.compare(entry, model.get(index + 1)) <= 0)) {
+                // Still at the right place: update in place, which also keeps the selection
+                model.set(index, entry);
+            }
+            else {
+                if (index >= 0) {
+                    model.remove(index);
                 }
-                case IMAGE -> {
-                    final boolean visible = !historyItemWidget.getOrLoadCapture().isVideo();
-                    historyItemWidget.setVisible(visible);
-                    if (visible) numVisibleComponents++;
+                // Binary search of insertion point
+                int low = 0;
+                int high = model.size();
+                while (low < high) {
+                    final int middle = (low + high) >>> 1;
+                    if (comparator.compare(model.get(middle), entry) <= 0) {
+                        low = middle + 1;
+                    }
+                    else {
+                        high = middle;
+                    }
                 }
+                model.add(low, entry);
+                listRows = null;
+            }
+        }
+    }
+
+    private void onThumbnailLoaded(HistoryEntry entry) {
+        // Only repaint the cell of that entry, if it is still displayed
+        final int index = getListIndex(entry.getBaseFilename());
+        if (index >= 0) {
+            final Rectangle cellBounds = historyList.getCellBounds(index, index);
+            if (cellBounds != null) {
+                historyList.repaint(cellBounds);
+            }
+        }
+    }
+
+    private void onListClicked(MouseEvent e) {
+        final int index = historyList.locationToIndex(e.getPoint());
+        final Rectangle cellBounds = (index == -1) ? null : historyList.getCellBounds(index, index);
+        if (cellBounds == null || !cellBounds.contains(e.getPoint())) {
+            // Click outside any cell
+            historyList.clearSelection();
+            return;
+        }
+        final HistoryEntry entry = historyList.getModel().getElementAt(index);
+        if (SwingUtilities.isRightMouseButton(e)) {
+            historyList.setSelectedIndex(index);
+            showContextMenu(entry, e.getPoint());
+        }
+        else if (e.getClickCount() == 2) {
+            withCapture(entry, this::onEdit);
+        }
+        else if (index == selectedIndexOnPress) {
+            // Cells are only painted, so find out which button (if any) of the selected cell was clicked
+            switch (historyCellRenderer.getButtonAt(historyList, entry, index, cellBounds, e.getPoint())) {
+                case EDIT -> withCapture(entry, this::onEdit);
+                case EXPORT -> withCapture(entry, capture -> onExport(capture, e.getPoint()));
+                case DELETE -> withCapture(entry, this::onDelete);
             }
         }
-        historyList.revalidate();
-        historyList.repaint();
+    }
+
+    private void showContextMenu(HistoryEntry entry, Point point) {
+        JPopupMenu popup = new JPopupMenu();
+
+        JMenuItem similarMenuItem = new JMenuItem("Show similar captures");
+        similarMenuItem.addActionListener(e -> onShowSimilar(entry));
+        if (entry.getPerceptualHash() == null) {
+            // Not computed yet
+            similarMenuItem.setEnabled(false);
+        }
+        popup.add(similarMenuItem);
+
+        if (similarityReference != null) {
+            JMenuItem allMenuItem = new JMenuItem("Show all captures");
+            allMenuItem.addActionListener(e -> onShowSimilar(null));
+            popup.add(allMenuItem);
+        }
 
-        updateNumCaptures(numVisibleComponents);
+        popup.show(historyList, point.x, point.y);
+    }
+
+    /**
+     * Decodes the full capture of an entry, and passes it to the given action.
+     * This is the only place where the capture XML is decoded
+     */
+    private void withCapture(HistoryEntry entry, Consumer<Capture> action) {
+        final File metadataFile = entry.getMetadataFile(Ginj.getHistoryFolder());
+        try (XMLDecoder xmlDecoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(metadataFile)))) {
+            action.accept((Capture) xmlDecoder.readObject());
+        }
+        catch (Exception e) {
+            UI.alertException(this, "Load error", "Error loading capture '" + metadataFile.getAbsolutePath() + "'", e, logger);
+        }
     }
 
 
     //////////////////////////////
     // Inner classes
 
-    private class HistoryItemWidget extends JPanel {
-        private final HistoryFrame historyFrame;
-        private final File file;
-
-        private Capture capture = null;
-        private long captureSize;
+    private enum CellButton {NONE, EDIT, EXPORT, DELETE}
 
+    /**
+     * Component used to paint each cell of the history list
+     */
+    private class HistoryCellRenderer extends JPanel implements ListCellRenderer<HistoryEntry> {
         private final JLabel nameLabel;
         private final JLabel sizeLabel;
         private final ThumbnailPanel imagePanel;
-        private final JPanel buttonBar;
-        private JButton editButton;
-        private JButton exportButton;
-        private JButton deleteButton;
+        private final JButton editButton;
+        private final JButton exportButton;
+        private final JButton deleteButton;
 
-        public HistoryItemWidget(HistoryFrame historyFrame, File file) {
+        public HistoryCellRenderer() {
             super();
-            this.historyFrame = historyFrame;
-            this.file = file;
 
             setLayout(new GridBagLayout());
             setBorder(new EmptyBorder(5, 5, 5, 5));
@@ -432,7 +773,7 @@ public class HistoryFrame extends JFrame {
             c.insets = new Insets(10, 10, 10, 10);
             add(imagePanel, c);
 
-            nameLabel = new YellowLabel(file.getName()); // Use filename at first. Will be replaced asynchronously
+            nameLabel = new YellowLabel(" ");
             nameLabel.setBackground(null);
             nameLabel.setPreferredSize(new Dimension(90, 16));
             c = new GridBagConstraints();
@@ -442,7 +783,7 @@ public class HistoryFrame extends JFrame {
             c.anchor = GridBagConstraints.WEST;
             add(nameLabel, c);
 
-            sizeLabel = new YellowLabel("?");
+            sizeLabel = new YellowLabel(" ");
             sizeLabel.setBackground(null);
             sizeLabel.setPreferredSize(new Dimension(55, 16));
             sizeLabel.setHorizontalAlignment(SwingConstants.RIGHT);
@@ -453,7 +794,15 @@ public class HistoryFrame extends JFrame {
             c.anchor = GridBagConstraints.EAST;
             add(sizeLabel, c);
 
-            buttonBar = new JPanel(new GridLayout(1, 3, 5, 0));
+            JPanel buttonBar = new JPanel(new GridLayout(1, 3, 5, 0));
+            buttonBar.setBackground(null);
+            buttonBar.setBorder(new EmptyBorder(2, 0, 0, 0));
+            editButton = new JButton(editIcon);
+            exportButton = new JButton(exportIcon);
+            deleteButton = new JButton(deleteIcon);
+            buttonBar.add(editButton);
+            buttonBar.add(exportButton);
+            buttonBar.add(deleteButton);
 
             c = new GridBagConstraints();
             c.gridx = 0;
@@ -462,113 +811,54 @@ public class HistoryFrame extends JFrame {
             c.weightx = 1;
             c.anchor = GridBagConstraints.WEST;
             add(buttonBar, c);
-
         }
 
         @Override
-        public Dimension getPreferredSize() {
-            return HISTORY_CELL_SIZE;
-        }
-
-        public long getCaptureSize() {
-            getOrLoadCapture(); // Makes sure capture is loaded, which means captureSize has been computed
-            return captureSize;
-        }
-
-        public File getFile() {
-            return file;
-        }
-
-        public void loadCapture() {
-            try (XMLDecoder xmlDecoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(file)))) {
-                capture = (Capture) xmlDecoder.readObject();
-                nameLabel.setText(capture.getName());
-                nameLabel.setToolTipText(capture.getName());
-                nameLabel.addMouseListener(new MouseAdapter() {
-                    // Trick to keep clickability while showing tooltip, taken from https://stackoverflow.com/a/14932443/13551878
-                    public void mouseReleased(MouseEvent e) {
-                        // Let clicks pass trhough to the panel
-                        HistoryItemWidget.this.dispatchEvent(SwingUtilities.convertMouseEvent(e.getComponent(), e, HistoryItemWidget.this));
-                    }
-                });
-                String xmlFilename = file.getAbsolutePath();
-
-                String basename = xmlFilename.substring(0, xmlFilename.lastIndexOf('.'));
-                imagePanel.setImagePath(basename + Misc.THUMBNAIL_EXTENSION);
-
-                int versionPos = basename.lastIndexOf("_v");
-                if (versionPos != -1) {
-                    basename = basename.substring(0, versionPos);
-                }
-                File captureFile = new File(basename + capture.defaultExtension());
-                captureSize = captureFile.length();
-                sizeLabel.setText(Misc.getPrettySize(captureSize));
-                addMouseListener(new MouseAdapter() {
-                    @Override
-                    public void mouseClicked(MouseEvent e) {
-                        historyFrame.setSelectedItem(HistoryItemWidget.this);
-                        if (e.getClickCount() == 2) {
-                            onEdit(HistoryItemWidget.this.capture);
-                        }
-                    }
-                });
-
-                buttonBar.setBackground(null);
-                buttonBar.setBorder(new EmptyBorder(2, 0, 0, 0));
-                editButton = new JButton(editIcon);
-                exportButton = new JButton(exportIcon);
-                deleteButton = new JButton(deleteIcon);
-                // Hide buttons by default
-                editButton.setVisible(false);
-                exportButton.setVisible(false);
-                deleteButton.setVisible(false);
-                buttonBar.add(editButton);
-                buttonBar.add(exportButton);
-                buttonBar.add(deleteButton);
-
-                editButton.addActionListener(e -> onEdit(capture));
-                exportButton.addActionListener(e -> onExport(capture));
-                deleteButton.addActionListener(e -> onDelete(capture));
-            }
-            catch (Exception e) {
-                UI.alertException(HistoryFrame.this, "Load error", "Error loading capture '" + file.getAbsolutePath() + "'", e, logger);
-            }
-        }
-
-        public void setSelected(boolean selected) {
-            if (selected) {
-                this.setBackground(UI.HISTORY_SELECTED_ITEM_BACKGROUND_COLOR);
+        public Component getListCellRendererComponent(JList<? extends HistoryEntry> list, HistoryEntry entry, int index, boolean isSelected, boolean cellHasFocus) {
+            nameLabel.setText(entry.getDefaultName());
+            setToolTipText(entry.getDefaultName());
+            sizeLabel.setText(Misc.getPrettySize(entry.getCaptureSize()));
+            // Returns null and requests loading if thumbnail is not in memory yet
+            imagePanel.setImage(thumbnailLoader.get(entry));
+
+            if (isSelected) {
+                setBackground(UI.HISTORY_SELECTED_ITEM_BACKGROUND_COLOR);
                 nameLabel.setForeground(Color.BLACK);
                 sizeLabel.setForeground(Color.BLACK);
-                editButton.setVisible(true);
-                exportButton.setVisible(true);
-                deleteButton.setVisible(true);
             }
             else {
-                this.setBackground(null);
+                setBackground(list.getBackground());
                 nameLabel.setForeground(UI.LABEL_FOREGROUND_COLOR);
                 sizeLabel.setForeground(UI.LABEL_FOREGROUND_COLOR);
-                editButton.setVisible(false);
-                exportButton.setVisible(false);
-                deleteButton.setVisible(false);
             }
+            // Buttons are only shown on the selected cell
+            editButton.setVisible(isSelected);
+            exportButton.setVisible(isSelected);
+            deleteButton.setVisible(isSelected);
+            return this;
         }
 
-        @Override
-        public void paint(Graphics g) {
-            // Delay loading until display
-            getOrLoadCapture();
-            super.paint(g);
+        /**
+         * Lays out the renderer as the selected cell, and returns the button under the given point
+         */
+        public CellButton getButtonAt(JList<HistoryEntry> list, HistoryEntry entry, int index, Rectangle cellBounds, Point point) {
+            getListCellRendererComponent(list, entry, index, true, false);
+            setBounds(cellBounds);
+            layoutTree(this);
+            final Component component = SwingUtilities.getDeepestComponentAt(this, point.x - cellBounds.x, point.y - cellBounds.y);
+            if (component == editButton) return CellButton.EDIT;
+            if (component == exportButton) return CellButton.EXPORT;
+            if (component == deleteButton) return CellButton.DELETE;
+            return CellButton.NONE;
         }
 
-        public Capture getOrLoadCapture() {
-            synchronized (this) { // in case we reorder while loading is in progress
-                if (capture == null) {
-                    loadCapture();
-                    //Logger.info("Loaded " + capture);
+        private void layoutTree(Container container) {
+            container.doLayout();
+            for (Component child : container.getComponents()) {
+                if (child instanceof Container) {
+                    layoutTree((Container) child);
                 }
             }
-            return capture;
         }
     }
 
@@ -592,19 +882,14 @@ public class HistoryFrame extends JFrame {
                 g.drawImage(image, x, y, image.getWidth(), image.getHeight(), this);
             }
             else {
-                // Draw Text
-                g.drawString("Image not loaded", 0, THUMBNAIL_SIZE.height/2);
+                // Placeholder until the thumbnail is loaded
+                g.setColor(UI.LABEL_FOREGROUND_COLOR);
+                g.drawRect(0, 0, THUMBNAIL_SIZE.width - 1, THUMBNAIL_SIZE.height - 1);
             }
         }
 
-        public void setImagePath(String imagePath) {
-            try {
-                image = ImageIO.read(new File(imagePath));
-            }
-            catch (Exception e) {
-                logger.error("Error reading '" + imagePath + "'...", e);
-            }
-            repaint();
+        public void setImage(BufferedImage image) {
+            this.image = image;
         }
     }
 }
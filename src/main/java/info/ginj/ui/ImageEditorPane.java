@@ -37,6 +37,10 @@ public class ImageEditorPane extends JLayeredPane {
         addKeyboardShortcuts(this);
     }
 
+    public BufferedImage getCapturedImg() {
+        return capturedImg;
+    }
+
     public void setCapturedImg(BufferedImage capturedImg) {
         this.capturedImg = capturedImg;
         capturedImgSize = new Dimension(capturedImg.getWidth(), capturedImg.getHeight());
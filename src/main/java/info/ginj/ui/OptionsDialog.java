@@ -3,7 +3,9 @@ package info.ginj.ui;
 import info.ginj.Ginj;
 import info.ginj.model.Prefs;
 import info.ginj.tool.GinjTool;
+import info.ginj.tool.blur.BlurTool;
 import info.ginj.tool.oval.OvalTool;
+import info.ginj.tool.pixelate.PixelateTool;
 import info.ginj.ui.component.DoubleBorderedPanel;
 import info.ginj.util.UI;
 import org.slf4j.Logger;
@@ -36,6 +38,7 @@ public class OptionsDialog extends JDialog {
     private final JTextField hotKeyTextField;
     private final JCheckBox useTrayNotificationsOnExportCompletion;
     private final JCheckBox ovalOverlayCheckBox;
+    private final JCheckBox redactionOverlaysCheckBox;
     private final JCheckBox videoCursorCheckBox;
     private final JSpinner videoFramerateSpinner;
     private final JCheckBox useJNACheckbox;
@@ -144,6 +147,12 @@ public class OptionsDialog extends JDialog {
         ovalOverlayCheckBox.setSelected(Prefs.getToolSet().contains(ovalTool));
         ovalOverlayCheckBox.setToolTipText("If true, an additional 'Oval' tool is made available in the overlay bar");
 
+        redactionOverlaysCheckBox = new JCheckBox();
+        GinjTool pixelateTool = GinjTool.getMap().get(PixelateTool.NAME);
+        GinjTool blurTool = GinjTool.getMap().get(BlurTool.NAME);
+        redactionOverlaysCheckBox.setSelected(Prefs.getToolSet().contains(pixelateTool) && Prefs.getToolSet().contains(blurTool));
+        redactionOverlaysCheckBox.setToolTipText("If true, 'Pixelate' and 'Blur' tools are made available in the overlay bar to hide sensitive areas");
+
         videoCursorCheckBox = new JCheckBox();
         videoCursorCheckBox.setSelected(Prefs.isTrue(Prefs.Key.VIDEO_CAPTURE_MOUSE_CURSOR));
         videoCursorCheckBox.setToolTipText(Prefs.Key.VIDEO_CAPTURE_MOUSE_CURSOR.getHelp());
@@ -182,6 +191,7 @@ public class OptionsDialog extends JDialog {
         mainPanel.add(UI.createFieldPanel(
                 "Capture hotkey", hotKeyFieldPanel,
                 "Enable Oval Overlay", ovalOverlayCheckBox,
+                "Enable Redaction Overlays", redactionOverlaysCheckBox,
                 "Use tray notification on export", useTrayNotificationsOnExportCompletion,
                 "Capture mouse cursor in video", videoCursorCheckBox,
                 "Video frame rate", videoFramerateSpinner,
@@ -258,6 +268,16 @@ public class OptionsDialog extends JDialog {
         else {
             toolSet.remove(ovalTool);
         }
+        GinjTool pixelateTool = GinjTool.getMap().get(PixelateTool.NAME);
+        GinjTool blurTool = GinjTool.getMap().get(BlurTool.NAME);
+        if (redactionOverlaysCheckBox.isSelected()) {
+            toolSet.add(pixelateTool);
+            toolSet.add(blurTool);
+        }
+        else {
+            toolSet.remove(pixelateTool);
+            toolSet.remove(blurTool);
+        }
         Prefs.setToolSet(toolSet);
 
         Prefs.set(Prefs.Key.VIDEO_CAPTURE_MOUSE_CURSOR, String.valueOf(videoCursorCheckBox.isSelected()));
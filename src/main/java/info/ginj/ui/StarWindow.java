@@ -3,9 +3,12 @@ package info.ginj.ui;
 import com.github.jjYBdx4IL.utils.awt.Desktop;
 import com.tulskiy.keymaster.common.Provider;
 import info.ginj.Ginj;
+import info.ginj.export.ExportQueue;
+import info.ginj.history.HistoryWriter;
 import info.ginj.model.Export;
 import info.ginj.model.Prefs;
 import info.ginj.ui.listener.DragInsensitiveMouseClickListener;
+import info.ginj.util.HttpClientProvider;
 import info.ginj.util.Misc;
 import info.ginj.util.UI;
 import org.apache.commons.lang3.SystemUtils;
@@ -22,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -48,6 +52,10 @@ public class StarWindow extends JWindow {
 
     public static final Dimension SPLASH_SIZE = new Dimension(508, 292);
 
+    private static final long HISTORY_FLUSH_TIMEOUT_MS = 10_000;
+
+    private static final String PENDING_EXPORTS_TEXT = "Pending exports";
+
     public static final int CIRCLE_WIDTH_PIXELS = 50;
     public static final int CIRCLE_HEIGHT_PIXELS = 50;
 
@@ -171,11 +179,13 @@ public class StarWindow extends JWindow {
             // Create a popup menu components
             MenuItem captureItem = new MenuItem("Capture");
             MenuItem historyItem = new MenuItem("History");
+            MenuItem pendingExportsItem = new MenuItem(PENDING_EXPORTS_TEXT);
             MenuItem moreItem = new MenuItem("More");
             MenuItem checkForUpdatesItem = new MenuItem("Check for updates");
             MenuItem exitItem = new MenuItem(Misc.getExitQuitText());
             popup.add(captureItem);
             popup.add(historyItem);
+            popup.add(pendingExportsItem);
             popup.add(moreItem);
             popup.add(checkForUpdatesItem);
             popup.add(exitItem);
@@ -238,6 +248,15 @@ public class StarWindow extends JWindow {
                 if (SystemUtils.IS_OS_MAC) recoverWidget();
                 onHistory();
             });
+            pendingExportsItem.addActionListener(e -> onPendingExports());
+            // Only show the number of exports in queue, and enable the item if there are some
+            final Runnable pendingExportsUpdater = () -> EventQueue.invokeLater(() -> {
+                final int numPendingExports = ExportQueue.getInstance().size();
+                pendingExportsItem.setLabel(PENDING_EXPORTS_TEXT + (numPendingExports > 0 ? " (" + numPendingExports + ")" : ""));
+                pendingExportsItem.setEnabled(numPendingExports > 0);
+            });
+            ExportQueue.getInstance().addListener(pendingExportsUpdater);
+            pendingExportsUpdater.run();
             moreItem.addActionListener(e -> {
                 if (SystemUtils.IS_OS_MAC) recoverWidget();
                 onMore();
@@ -278,6 +297,10 @@ public class StarWindow extends JWindow {
         lastExport = export;
     }
 
+    public void popupTrayMessage(String caption, String text, TrayIcon.MessageType messageType) {
+        trayIcon.displayMessage(caption, text, messageType);
+    }
+
 
     void registerHotKey() {
         // Add hotkey hook from Preferences
@@ -870,6 +893,9 @@ public class StarWindow extends JWindow {
             SystemTray.getSystemTray().remove(trayIcon);
         }
         logger.info("StarWindow disposed.");
+        // Give the captures being saved to history a chance to complete
+        HistoryWriter.flush(HISTORY_FLUSH_TIMEOUT_MS);
+        HttpClientProvider.close();
         System.exit(Ginj.ERR_STATUS_OK);
     }
 
@@ -917,6 +943,22 @@ public class StarWindow extends JWindow {
     }
 
 
+    private void onPendingExports() {
+        final ExportQueue exportQueue = ExportQueue.getInstance();
+        final List<String> descriptions = exportQueue.getJobDescriptions();
+        if (descriptions.isEmpty()) {
+            return;
+        }
+        final String[] options = {"Retry now", "Cancel waiting exports", "Close"};
+        final int choice = JOptionPane.showOptionDialog(this, String.join("\n", descriptions), PENDING_EXPORTS_TEXT, JOptionPane.DEFAULT_OPTION, JOptionPane.INFORMATION_MESSAGE, null, options, options[2]);
+        if (choice == 0) {
+            exportQueue.retryNow();
+        }
+        else if (choice == 1) {
+            exportQueue.cancelWaiting();
+        }
+    }
+
     private void onMore() {
         openMoreFrame();
     }
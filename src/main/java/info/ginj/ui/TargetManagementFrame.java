@@ -517,6 +517,8 @@ public class TargetManagementFrame extends JFrame implements TargetListChangeLis
                     "Ask for save location:", alwaysAskCheckBox,
                     "Remember save location:", UI.createWizardCheckBox(ExportSettings.MUST_REMEMBER_LAST_LOCATION_KEY, getWizardDataMap(), true, alwaysAskCheckBox, true),
                     "Preferred image file format:", UI.createWizardList(ExportSettings.PREFERRED_FILE_FORMAT_KEY, ExportSettings.FileFormat.values(), getWizardDataMap(), 0, true, true),
+                    "Resize image:", UI.createWizardList(ExportSettings.RESIZE_MODE_KEY, ExportSettings.ResizeMode.values(), getWizardDataMap(), 0, true, true),
+                    "Resize value (% or pixels):", UI.createWizardTextField(ExportSettings.RESIZE_VALUE_KEY, getWizardDataMap(), "", true, true),
                     "Copy path to clipboard:", UI.createWizardCheckBox(ExportSettings.MUST_COPY_PATH_KEY, getWizardDataMap(), true, true, true)
             );
 
@@ -548,7 +550,9 @@ public class TargetManagementFrame extends JFrame implements TargetListChangeLis
             }
 
             JPanel fieldsPanel = UI.createFieldPanel(
-                    "Display as:", UI.createWizardTextField(TargetPrefs.DISPLAY_NAME_KEY, getWizardDataMap(), displayName, true, true)
+                    "Display as:", UI.createWizardTextField(TargetPrefs.DISPLAY_NAME_KEY, getWizardDataMap(), displayName, true, true),
+                    "Resize image:", UI.createWizardList(ExportSettings.RESIZE_MODE_KEY, ExportSettings.ResizeMode.values(), getWizardDataMap(), 0, true, true),
+                    "Resize value (% or pixels):", UI.createWizardTextField(ExportSettings.RESIZE_VALUE_KEY, getWizardDataMap(), "", true, true)
             );
 
 
@@ -586,7 +590,9 @@ public class TargetManagementFrame extends JFrame implements TargetListChangeLis
                         "Email:", UI.createWizardTextField(TargetPrefs.ACCOUNT_EMAIL_KEY, getWizardDataMap(), account.getEmail(), false, true),
                         "Display as:", UI.createWizardTextField(TargetPrefs.DISPLAY_NAME_KEY, getWizardDataMap(), displayName, true, true),
                         "Share capture:", shareCaptureCheckbox,
-                        "Copy link to clipboard:", UI.createWizardCheckBox(ExportSettings.MUST_COPY_PATH_KEY, getWizardDataMap(), true, shareCaptureCheckbox, true)
+                        "Copy link to clipboard:", UI.createWizardCheckBox(ExportSettings.MUST_COPY_PATH_KEY, getWizardDataMap(), true, shareCaptureCheckbox, true),
+                        "Resize image:", UI.createWizardList(ExportSettings.RESIZE_MODE_KEY, ExportSettings.ResizeMode.values(), getWizardDataMap(), 0, true, true),
+                        "Resize value (% or pixels):", UI.createWizardTextField(ExportSettings.RESIZE_VALUE_KEY, getWizardDataMap(), "", true, true)
                 );
 
                 intermediatePanel.add(fieldsPanel);
@@ -629,7 +635,9 @@ public class TargetManagementFrame extends JFrame implements TargetListChangeLis
                         "Display as:", UI.createWizardTextField(TargetPrefs.DISPLAY_NAME_KEY, getWizardDataMap(), displayName, true, true),
                         "Create one album:", UI.createWizardList(ExportSettings.ALBUM_GRANULARITY_KEY, GooglePhotosExporter.Granularity.values(), getWizardDataMap(), 0, true, true),
                         "Share album:", shareAlbumCheckbox,
-                        "Copy link to clipboard:", UI.createWizardCheckBox(ExportSettings.MUST_COPY_PATH_KEY, getWizardDataMap(), true, shareAlbumCheckbox, true)
+                        "Copy link to clipboard:", UI.createWizardCheckBox(ExportSettings.MUST_COPY_PATH_KEY, getWizardDataMap(), true, shareAlbumCheckbox, true),
+                        "Resize image:", UI.createWizardList(ExportSettings.RESIZE_MODE_KEY, ExportSettings.ResizeMode.values(), getWizardDataMap(), 0, true, true),
+                        "Resize value (% or pixels):", UI.createWizardTextField(ExportSettings.RESIZE_VALUE_KEY, getWizardDataMap(), "", true, true)
                 );
 
                 intermediatePanel.add(fieldsPanel);
@@ -671,7 +679,9 @@ public class TargetManagementFrame extends JFrame implements TargetListChangeLis
                         "Email:", UI.createWizardTextField(TargetPrefs.ACCOUNT_EMAIL_KEY, getWizardDataMap(), account.getEmail(), false, true),
                         "Display as:", UI.createWizardTextField(TargetPrefs.DISPLAY_NAME_KEY, getWizardDataMap(), displayName, true, true),
                         "Share capture:", shareCaptureCheckbox,
-                        "Copy link to clipboard:", UI.createWizardCheckBox(ExportSettings.MUST_COPY_PATH_KEY, getWizardDataMap(), true, shareCaptureCheckbox, true)
+                        "Copy link to clipboard:", UI.createWizardCheckBox(ExportSettings.MUST_COPY_PATH_KEY, getWizardDataMap(), true, shareCaptureCheckbox, true),
+                        "Resize image:", UI.createWizardList(ExportSettings.RESIZE_MODE_KEY, ExportSettings.ResizeMode.values(), getWizardDataMap(), 0, true, true),
+                        "Resize value (% or pixels):", UI.createWizardTextField(ExportSettings.RESIZE_VALUE_KEY, getWizardDataMap(), "", true, true)
                 );
 
                 intermediatePanel.add(fieldsPanel);
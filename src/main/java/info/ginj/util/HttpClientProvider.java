@@ -0,0 +1,266 @@
+package info.ginj.util;
+
+import info.ginj.Ginj;
+import info.ginj.model.Prefs;
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.client5.http.SystemDefaultDnsResolver;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
+import org.apache.hc.client5.http.socket.PlainConnectionSocketFactory;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.config.Registry;
+import org.apache.hc.core5.http.config.RegistryBuilder;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
+import org.apache.hc.core5.pool.PoolReusePolicy;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class provides the HTTP client shared by all online exporters and other network calls.
+ * Connections are pooled and kept alive, so that the successive calls of an export (authorization check, upload,
+ * sharing...) and successive exports reuse them instead of paying a new TCP and TLS handshake each time.
+ * The client also measures the time spent resolving names, connecting, negotiating TLS and waiting for the response of
+ * each request. Details are logged at debug level, and a summary is logged when the client is closed.
+ */
+public class HttpClientProvider {
+    private static final Logger logger = LoggerFactory.getLogger(HttpClientProvider.class);
+
+    private static final int MAX_CONNECTIONS_TOTAL = 20;
+    private static final TimeValue VALIDATE_AFTER_INACTIVITY = TimeValue.ofSeconds(1);
+    private static final TimeValue MAX_IDLE_TIME = TimeValue.ofMinutes(1);
+
+    private static CloseableHttpClient client;
+
+    // Timings of the request being executed by the current thread (classic clients execute requests synchronously)
+    private static final ThreadLocal<RequestTiming> currentTiming = new ThreadLocal<>();
+
+    // Global metrics
+    private static final AtomicLong requestCount = new AtomicLong();
+    private static final AtomicLong connectionCount = new AtomicLong();
+    private static final AtomicLong totalDnsNanos = new AtomicLong();
+    private static final AtomicLong totalConnectNanos = new AtomicLong();
+    private static final AtomicLong totalTlsNanos = new AtomicLong();
+    private static final AtomicLong totalWaitNanos = new AtomicLong();
+
+    /**
+     * Returns the shared client, creating it upon first call.
+     * The returned client must not be closed by callers, but the responses it returns must be.
+     *
+     * @return the shared client
+     */
+    public static synchronized CloseableHttpClient getClient() {
+        if (client == null) {
+            final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register(URIScheme.HTTP.id, new TimingPlainConnectionSocketFactory())
+                    .register(URIScheme.HTTPS.id, new TimingSSLConnectionSocketFactory())
+                    .build();
+            final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry,
+                    PoolConcurrencyPolicy.STRICT, PoolReusePolicy.LIFO, TimeValue.NEG_ONE_MILLISECOND,
+                    null, new TimingDnsResolver(), null);
+            connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+            connectionManager.setDefaultMaxPerRoute(Math.max(1, Prefs.getAsInt(Prefs.Key.HTTP_MAX_CONNECTIONS_PER_HOST)));
+            connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                    .setSoTimeout(Timeout.ofMilliseconds(Prefs.getAsLong(Prefs.Key.HTTP_RESPONSE_TIMEOUT_MS)))
+                    .build());
+            connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+            final RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(Timeout.ofMilliseconds(Prefs.getAsLong(Prefs.Key.HTTP_CONNECT_TIMEOUT_MS)))
+                    .setResponseTimeout(Timeout.ofMilliseconds(Prefs.getAsLong(Prefs.Key.HTTP_RESPONSE_TIMEOUT_MS)))
+                    .build();
+
+            client = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setUserAgent(Ginj.getAppName() + "/" + Ginj.getVersion())
+                    .evictExpiredConnections()
+                    .evictIdleConnections(MAX_IDLE_TIME)
+                    .addRequestInterceptorFirst((request, entity, context) -> {
+                        final String path = request.getPath();
+                        // Strip parameters, which may contain tokens
+                        final int queryStart = (path == null) ? -1 : path.indexOf('?');
+                        currentTiming.set(new RequestTiming(request.getMethod() + " " + request.getAuthority() + (queryStart < 0 ? path : path.substring(0, queryStart))));
+                    })
+                    .addResponseInterceptorLast((response, entity, context) -> {
+                        final RequestTiming timing = currentTiming.get();
+                        if (timing != null) {
+                            currentTiming.remove();
+                            timing.onResponse(response.getCode());
+                        }
+                    })
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * Closes the shared client and its pooled connections, and logs the collected metrics.
+     * Called upon exit.
+     */
+    public static synchronized void close() {
+        if (client != null) {
+            client.close(CloseMode.GRACEFUL);
+            client = null;
+            logger.info("HTTP client closed. " + getStatistics());
+        }
+    }
+
+    /**
+     * @return a human-readable summary of the requests executed so far
+     */
+    public static String getStatistics() {
+        final long requests = requestCount.get();
+        final long connections = connectionCount.get();
+        if (requests == 0) {
+            return "No request was sent.";
+        }
+        String statistics = requests + " request(s) over " + connections + " connection(s)"
+                + " (" + (100 * (requests - connections) / requests) + "% reused)"
+                + ", average wait for response " + toMillis(totalWaitNanos.get() / requests) + "ms";
+        if (connections > 0) {
+            statistics += ", average connection setup: DNS " + toMillis(totalDnsNanos.get() / connections) + "ms"
+                    + ", connect " + toMillis(totalConnectNanos.get() / connections) + "ms"
+                    + ", TLS " + toMillis(totalTlsNanos.get() / connections) + "ms";
+        }
+        return statistics + ".";
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+
+    ////////////////////////////////
+    // Timing
+
+    private static class RequestTiming {
+        private final String description;
+        private final long startNanos = System.nanoTime();
+        private long dnsNanos = 0;
+        private long connectNanos = 0;
+        private long tlsNanos = 0;
+        private boolean isNewConnection = false;
+
+        private RequestTiming(String description) {
+            this.description = description;
+        }
+
+        private void onResponse(int code) {
+            // Time between the end of connection setup (if any) and the reception of the response headers.
+            // Note: this includes sending the request body
+            final long waitNanos = System.nanoTime() - startNanos - dnsNanos - connectNanos - tlsNanos;
+            requestCount.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            if (isNewConnection) {
+                connectionCount.incrementAndGet();
+                totalDnsNanos.addAndGet(dnsNanos);
+                totalConnectNanos.addAndGet(connectNanos);
+                totalTlsNanos.addAndGet(tlsNanos);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(description + ": " + code + " - "
+                        + (isNewConnection ? ("new connection: DNS " + toMillis(dnsNanos) + "ms, connect " + toMillis(connectNanos) + "ms, TLS " + toMillis(tlsNanos) + "ms") : "reused connection")
+                        + ", response after " + toMillis(waitNanos) + "ms");
+            }
+        }
+    }
+
+    private static class TimingDnsResolver implements DnsResolver {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            final long start = System.nanoTime();
+            try {
+                return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            }
+            finally {
+                final RequestTiming timing = currentTiming.get();
+                if (timing != null) {
+                    timing.dnsNanos += System.nanoTime() - start;
+                }
+            }
+        }
+
+        @Override
+        public String resolveCanonicalHostname(String host) throws UnknownHostException {
+            return SystemDefaultDnsResolver.INSTANCE.resolveCanonicalHostname(host);
+        }
+    }
+
+    private static void onConnected(long startNanos) {
+        final RequestTiming timing = currentTiming.get();
+        if (timing != null) {
+            timing.isNewConnection = true;
+            // The TLS part, if any, is measured separately by createLayeredSocket()
+            timing.connectNanos += System.nanoTime() - startNanos - timing.tlsNanos;
+        }
+    }
+
+    /**
+     * The default plain socket factory, measuring the time spent connecting.
+     */
+    private static class TimingPlainConnectionSocketFactory extends PlainConnectionSocketFactory {
+        @Override
+        public Socket connectSocket(TimeValue connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            }
+            finally {
+                onConnected(start);
+            }
+        }
+    }
+
+    /**
+     * The default SSL socket factory, measuring the time spent connecting and negotiating TLS.
+     * Note: connectSocket() connects the plain socket and then calls createLayeredSocket() for the TLS handshake.
+     */
+    private static class TimingSSLConnectionSocketFactory extends SSLConnectionSocketFactory {
+        private TimingSSLConnectionSocketFactory() {
+            super(SSLContexts.createDefault());
+        }
+
+        @Override
+        public Socket connectSocket(TimeValue connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            }
+            finally {
+                onConnected(start);
+            }
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return super.createLayeredSocket(socket, target, port, context);
+            }
+            finally {
+                final RequestTiming timing = currentTiming.get();
+                if (timing != null) {
+                    timing.tlsNanos += System.nanoTime() - start;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package info.ginj.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * This class encodes an image to a PNG file in the background, and lets readers stream the file while it is being
+ * written, so that an upload can start sending the image without waiting for the end of the encoding.
+ * Readers only see bytes that are final: the encoder writes through a memory cache, which only passes each PNG chunk
+ * to the file once its length has been filled in.
+ * The file is written under a temporary name and renamed once complete, so that an interrupted encoding never
+ * leaves a truncated file under the final name.
+ */
+public class ImageEncoding {
+    private static final Logger logger = LoggerFactory.getLogger(ImageEncoding.class);
+
+    private static final String PART_EXTENSION = ".part";
+
+    private static final ExecutorService encoders = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "Image encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final File partFile;
+
+    // Guarded by this
+    private long encodedLength = 0;
+    private boolean isDone = false;
+    private IOException error = null;
+
+    private ImageEncoding(File file) {
+        this.file = file;
+        this.partFile = new File(file.getParentFile(), file.getName() + PART_EXTENSION);
+    }
+
+    /**
+     * Starts encoding the given image as PNG to the given file
+     *
+     * @param image the image to encode. It must not be modified until the encoding is done
+     * @param file  the file to write
+     * @return the encoding in progress
+     * @throws IOException if the file could not be created
+     */
+    public static ImageEncoding start(BufferedImage image, File file) throws IOException {
+        return start(image, file, null);
+    }
+
+    /**
+     * Starts encoding the given image as PNG to the given file
+     *
+     * @param image     the image to encode. It must not be modified until the encoding is done
+     * @param file      the file to write
+     * @param onEncoded called by the encoding thread with the complete file, if the encoding succeeds, or null
+     * @return the encoding in progress
+     * @throws IOException if the file could not be created
+     */
+    public static ImageEncoding start(BufferedImage image, File file, Consumer<File> onEncoded) throws IOException {
+        final ImageEncoding encoding = new ImageEncoding(file);
+        // Created now, so that it can be opened by readers before the encoder starts
+        final FileOutputStream partFileOut = new FileOutputStream(encoding.partFile);
+        encoders.execute(() -> encoding.encode(image, partFileOut, onEncoded));
+        return encoding;
+    }
+
+    private void encode(BufferedImage image, FileOutputStream partFileOut, Consumer<File> onEncoded) {
+        final long startNanos = System.nanoTime();
+        try {
+            // The file is closed before being renamed, which is not possible while it is open on Windows
+            try (partFileOut) {
+                write(image, partFileOut);
+            }
+            synchronized (this) {
+                // Renamed under lock, so that readers know which name to open
+                Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                isDone = true;
+                notifyAll();
+                logger.debug("Encoded " + file.getName() + " (" + encodedLength + " bytes) in " + (System.nanoTime() - startNanos) / 1_000_000 + "ms");
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("Error encoding " + file.getAbsolutePath(), e);
+            try {
+                Files.deleteIfExists(partFile.toPath());
+            }
+            catch (IOException ex) {
+                logger.warn("Could not delete " + partFile.getAbsolutePath(), ex);
+            }
+            synchronized (this) {
+                error = (e instanceof IOException) ? (IOException) e : new IOException("Error encoding image", e);
+                isDone = true;
+                notifyAll();
+            }
+            return;
+        }
+        if (onEncoded != null) {
+            try {
+                onEncoded.accept(file);
+            }
+            catch (RuntimeException e) {
+                logger.warn("Error processing encoded file " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private void write(BufferedImage image, FileOutputStream partFileOut) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(Misc.IMAGE_FORMAT_PNG);
+        if (!writers.hasNext()) {
+            throw new IOException("No PNG writer available");
+        }
+        final ImageWriter writer = writers.next();
+        try (OutputStream out = new FilterOutputStream(partFileOut) {
+            @Override
+            public void write(int b) throws IOException {
+                super.write(b);
+                onEncoded(1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                this.out.write(bytes, offset, length);
+                onEncoded(length);
+            }
+        }; ImageOutputStream imageOut = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            writer.write(image);
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+
+    private synchronized void onEncoded(int numBytes) {
+        encodedLength += numBytes;
+        notifyAll();
+    }
+
+    /**
+     * @return true if the encoding is over, successfully or not
+     */
+    public synchronized boolean isDone() {
+        return isDone;
+    }
+
+    /**
+     * @return true if the encoding is over and failed
+     */
+    public synchronized boolean isFailed() {
+        return error != null;
+    }
+
+    /**
+     * Waits for the end of the encoding
+     *
+     * @return the complete file
+     * @throws IOException if the encoding failed, or the wait was interrupted
+     */
+    public synchronized File awaitFile() throws IOException {
+        while (!isDone) {
+            waitForProgress();
+        }
+        if (error != null) {
+            throw error;
+        }
+        return file;
+    }
+
+    /**
+     * Opens a stream on the encoded file. Reads block until the requested bytes are encoded, and the stream ends when
+     * the encoding is complete.
+     *
+     * @return the stream, to be closed by the caller
+     * @throws IOException if the encoding already failed, or the file could not be opened
+     */
+    public InputStream openStream() throws IOException {
+        final FileChannel channel;
+        synchronized (this) {
+            if (error != null) {
+                throw error;
+            }
+            channel = FileChannel.open((isDone ? file : partFile).toPath(), StandardOpenOption.READ);
+        }
+        return new InputStream() {
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] singleByte = new byte[1];
+                return (read(singleByte, 0, 1) < 0) ? -1 : (singleByte[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                final long availableBytes = awaitBytes(position);
+                if (availableBytes == 0) {
+                    return -1;
+                }
+                final int numBytes = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, availableBytes)), position);
+                if (numBytes > 0) {
+                    position += numBytes;
+                }
+                return numBytes;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Waits until bytes after the given position are encoded, or the encoding is over
+     *
+     * @return the number of encoded bytes after the position, 0 meaning the end of the file
+     */
+    private synchronized long awaitBytes(long position) throws IOException {
+        while (!isDone && encodedLength <= position) {
+            waitForProgress();
+        }
+        if (error != null) {
+            throw error;
+        }
+        return encodedLength - position;
+    }
+
+    private void waitForProgress() throws InterruptedIOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + file.getName() + " to be encoded");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package info.ginj.util;
+
+import info.ginj.model.Prefs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the memory used by the images held by open editors.
+ * Each image is registered by its owner (e.g. the editor holding it), and the total is compared to a configurable ceiling.
+ */
+public class ImageMemoryTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageMemoryTracker.class);
+
+    // By owner instance, as several owners may hold the same capture (e.g. two editors)
+    private static final Map<Object, Long> allocatedBytesByOwner = new IdentityHashMap<>();
+    private static long totalAllocatedBytes = 0;
+
+    /**
+     * Registers an image as being held by the given owner
+     * @param owner the holder of the image (e.g. the editing window)
+     * @param description a description of the holder, for logging
+     * @param image the image being held
+     * @return true if the total is still below the ceiling, false if the ceiling is exceeded
+     */
+    public static synchronized boolean allocate(Object owner, String description, BufferedImage image) {
+        final long bytes = getRetainedBytes(image);
+        final Long previousBytes = allocatedBytesByOwner.put(owner, bytes);
+        if (previousBytes != null) {
+            totalAllocatedBytes -= previousBytes;
+        }
+        totalAllocatedBytes += bytes;
+        final long ceiling = Prefs.getAsLong(Prefs.Key.EDITOR_IMAGE_MEMORY_CEILING_BYTES);
+        logger.info("Image memory: +" + Misc.getPrettySize(bytes) + " for " + description + " (" + image.getWidth() + "x" + image.getHeight() + "), total " + Misc.getPrettySize(totalAllocatedBytes) + " / " + Misc.getPrettySize(ceiling));
+        if (totalAllocatedBytes > ceiling) {
+            logger.warn("Image memory ceiling exceeded: " + Misc.getPrettySize(totalAllocatedBytes) + " held by " + allocatedBytesByOwner.size() + " editor(s)");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters the image held by the given owner
+     * @param owner the holder used when allocating
+     * @param description a description of the holder, for logging
+     */
+    public static synchronized void release(Object owner, String description) {
+        final Long bytes = allocatedBytesByOwner.remove(owner);
+        if (bytes != null) {
+            totalAllocatedBytes -= bytes;
+            logger.info("Image memory: -" + Misc.getPrettySize(bytes) + " for " + description + ", total " + Misc.getPrettySize(totalAllocatedBytes));
+        }
+    }
+
+    public static synchronized long getTotalAllocatedBytes() {
+        return totalAllocatedBytes;
+    }
+
+    /**
+     * Returns the size of the data buffer behind the given image.
+     * Note: for an image obtained by getSubimage(), this is the size of the whole parent image.
+     * @param image the image
+     * @return the size in bytes
+     */
+    public static long getRetainedBytes(BufferedImage image) {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    /**
+     * Returns an image whose raster is exactly the size of its visible area.
+     * Images obtained by getSubimage() share the raster of their parent, keeping it fully in memory.
+     * @param image the image to compact
+     * @return a right-sized copy of the image, or the image itself if it already is
+     */
+    public static BufferedImage compact(BufferedImage image) {
+        if (image.getRaster().getParent() == null) {
+            // Not a subimage
+            return image;
+        }
+        final int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_ARGB : image.getType();
+        BufferedImage compactImage = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g2d = compactImage.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        logger.debug("Compacted image from " + Misc.getPrettySize(getRetainedBytes(image)) + " to " + Misc.getPrettySize(getRetainedBytes(compactImage)));
+        return compactImage;
+    }
+}
@@ -0,0 +1,260 @@
+package info.ginj.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * High quality image downscaler, based on a separable Lanczos (a=3) filter.
+ * When reducing, the filter is stretched by the reduction factor, so that each destination pixel
+ * takes into account all the source pixels it covers. This keeps small text legible instead of the aliasing
+ * produced by a single bilinear pass.
+ * Both passes (horizontal then vertical) work directly on the int arrays of the images, by bands of rows processed in parallel.
+ */
+public class ImageResizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageResizer.class);
+
+    private static final int LANCZOS_LOBES = 3;
+    private static final int ROWS_PER_BAND = 32;
+    // Weights are fixed-point numbers with 14 fractional bits, so that 255 * sum of weights fits in an int
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ROUNDING = 1 << (WEIGHT_BITS - 1);
+
+    /**
+     * Resizes the given image so that it fits within the given bounds, keeping its aspect ratio.
+     * Images that already fit are returned as is (they are never enlarged).
+     * @param source the image to resize
+     * @param maxWidth the maximum width of the result
+     * @param maxHeight the maximum height of the result
+     * @return the resized image, or the source image if it already fits
+     */
+    public static BufferedImage fitWithin(BufferedImage source, int maxWidth, int maxHeight) {
+        final int sourceWidth = source.getWidth();
+        final int sourceHeight = source.getHeight();
+        if (sourceWidth <= maxWidth && sourceHeight <= maxHeight) {
+            return source;
+        }
+        final double scale = Math.min(maxWidth / (double) sourceWidth, maxHeight / (double) sourceHeight);
+        return resize(source, Math.max(1, (int) (sourceWidth * scale)), Math.max(1, (int) (sourceHeight * scale)));
+    }
+
+    /**
+     * Resizes the given image to the given dimensions
+     * @param source the image to resize
+     * @param targetWidth the width of the result
+     * @param targetHeight the height of the result
+     * @return a new image of type TYPE_INT_ARGB if the source has an alpha channel, or TYPE_INT_RGB otherwise
+     */
+    public static BufferedImage resize(BufferedImage source, int targetWidth, int targetHeight) {
+        final long start = System.currentTimeMillis();
+        final boolean hasAlpha = source.getColorModel().hasAlpha();
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int[] sourcePixels = getPixels(source, hasAlpha);
+
+        // Multi-step: for large reductions, first average blocks of pixels so that the Lanczos pass only has to reduce by 2 to 4 times
+        final int boxFactor = Math.min(sourceWidth / targetWidth, sourceHeight / targetHeight) / 2;
+        if (boxFactor >= 2) {
+            final int reducedWidth = sourceWidth / boxFactor;
+            final int reducedHeight = sourceHeight / boxFactor;
+            sourcePixels = boxReduce(sourcePixels, sourceWidth, boxFactor, reducedWidth, reducedHeight, hasAlpha);
+            sourceWidth = reducedWidth;
+            sourceHeight = reducedHeight;
+        }
+
+        // Horizontal pass: sourceWidth x sourceHeight => targetWidth x sourceHeight
+        final Filter horizontalFilter = new Filter(sourceWidth, targetWidth);
+        final int[] intermediatePixels = new int[targetWidth * sourceHeight];
+        final int[] horizontalSource = sourcePixels;
+        final int horizontalSourceWidth = sourceWidth;
+        forEachBand(sourceHeight, (firstRow, lastRow) -> {
+            for (int y = firstRow; y < lastRow; y++) {
+                horizontalFilter.applyToRow(horizontalSource, y * horizontalSourceWidth, intermediatePixels, y * targetWidth, hasAlpha);
+            }
+        });
+
+        // Vertical pass: targetWidth x sourceHeight => targetWidth x targetHeight, one full row at a time to read memory sequentially
+        final Filter verticalFilter = new Filter(sourceHeight, targetHeight);
+        final BufferedImage target = new BufferedImage(targetWidth, targetHeight, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] targetPixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+        forEachBand(targetHeight, (firstRow, lastRow) -> {
+            final int[][] accumulators = new int[4][targetWidth];
+            for (int y = firstRow; y < lastRow; y++) {
+                verticalFilter.applyToColumns(y, intermediatePixels, targetWidth, accumulators, targetPixels, y * targetWidth, hasAlpha);
+            }
+        });
+
+        logger.debug("Resized " + source.getWidth() + "x" + source.getHeight() + " to " + targetWidth + "x" + targetHeight + " in " + (System.currentTimeMillis() - start) + "ms");
+        return target;
+    }
+
+
+    ////////////////////////////////
+    // Utils
+
+    /**
+     * Returns the pixels of the image as a packed int array, with no padding between lines.
+     * The array of the image itself is used when possible, otherwise the image is converted.
+     */
+    private static int[] getPixels(BufferedImage image, boolean hasAlpha) {
+        final int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getRaster().getSampleModelTranslateX() == 0
+                && image.getRaster().getSampleModelTranslateY() == 0
+                && ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride() == image.getWidth()) {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = converted.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        return ((DataBufferInt) converted.getRaster().getDataBuffer()).getData();
+    }
+
+    private interface BandProcessor {
+        void process(int first, int last);
+    }
+
+    private static void forEachBand(int count, BandProcessor processor) {
+        final int bandCount = (count + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        IntStream.range(0, bandCount).parallel().forEach(band ->
+                processor.process(band * ROWS_PER_BAND, Math.min(count, (band + 1) * ROWS_PER_BAND)));
+    }
+
+    private static double lanczos(double x) {
+        if (x == 0) return 1;
+        if (x <= -LANCZOS_LOBES || x >= LANCZOS_LOBES) return 0;
+        final double piX = Math.PI * x;
+        return LANCZOS_LOBES * Math.sin(piX) * Math.sin(piX / LANCZOS_LOBES) / (piX * piX);
+    }
+
+    private static int toChannel(int accumulator) {
+        final int value = (accumulator + WEIGHT_ROUNDING) >> WEIGHT_BITS;
+        return value < 0 ? 0 : Math.min(value, 255);
+    }
+
+    private static int[] boxReduce(int[] pixels, int width, int factor, int reducedWidth, int reducedHeight, boolean hasAlpha) {
+        final int[] reducedPixels = new int[reducedWidth * reducedHeight];
+        final int area = factor * factor;
+        forEachBand(reducedHeight, (firstRow, lastRow) -> {
+            final int[][] sums = new int[4][reducedWidth];
+            for (int y = firstRow; y < lastRow; y++) {
+                for (int[] channelSums : sums) {
+                    Arrays.fill(channelSums, 0);
+                }
+                for (int sourceY = y * factor; sourceY < (y + 1) * factor; sourceY++) {
+                    int index = sourceY * width;
+                    for (int x = 0; x < reducedWidth; x++) {
+                        for (int i = 0; i < factor; i++) {
+                            final int argb = pixels[index++];
+                            sums[0][x] += argb >>> 24;
+                            sums[1][x] += (argb >> 16) & 0xFF;
+                            sums[2][x] += (argb >> 8) & 0xFF;
+                            sums[3][x] += argb & 0xFF;
+                        }
+                    }
+                }
+                final int rowOffset = y * reducedWidth;
+                for (int x = 0; x < reducedWidth; x++) {
+                    reducedPixels[rowOffset + x] = (hasAlpha ? (sums[0][x] / area) << 24 : 0xFF000000)
+                            | ((sums[1][x] / area) << 16) | ((sums[2][x] / area) << 8) | (sums[3][x] / area);
+                }
+            }
+        });
+        return reducedPixels;
+    }
+
+    /**
+     * Precomputed fixed-point weights to resample one dimension from a given size to another.
+     * Destination index i is computed from source indices first[i] to first[i] + count[i] - 1.
+     */
+    private static class Filter {
+        private final int maxTaps;
+        private final int[] first;
+        private final int[] count;
+        private final int[] weights;
+
+        Filter(int sourceSize, int targetSize) {
+            final double scale = targetSize / (double) sourceSize;
+            // When reducing, stretch the filter so that it covers all source pixels
+            final double filterScale = Math.min(scale, 1.0);
+            final double support = LANCZOS_LOBES / filterScale;
+            maxTaps = (int) Math.ceil(support) * 2 + 1;
+            first = new int[targetSize];
+            count = new int[targetSize];
+            weights = new int[targetSize * maxTaps];
+            final double[] tapWeights = new double[maxTaps];
+            for (int i = 0; i < targetSize; i++) {
+                final double center = (i + 0.5) / scale - 0.5;
+                final int left = Math.max(0, (int) Math.ceil(center - support));
+                final int right = Math.min(sourceSize - 1, (int) Math.floor(center + support));
+                final int tapCount = Math.min(maxTaps, right - left + 1);
+                double total = 0;
+                for (int tap = 0; tap < tapCount; tap++) {
+                    tapWeights[tap] = lanczos((left + tap - center) * filterScale);
+                    total += tapWeights[tap];
+                }
+                // Normalize and convert to fixed point
+                first[i] = left;
+                count[i] = tapCount;
+                for (int tap = 0; tap < tapCount; tap++) {
+                    weights[i * maxTaps + tap] = (int) Math.round(tapWeights[tap] / total * (1 << WEIGHT_BITS));
+                }
+            }
+        }
+
+        /**
+         * Resamples a row of pixels
+         */
+        void applyToRow(int[] source, int sourceOffset, int[] target, int targetOffset, boolean hasAlpha) {
+            for (int i = 0; i < first.length; i++) {
+                int alpha = 0, red = 0, green = 0, blue = 0;
+                int weightIndex = i * maxTaps;
+                int sourceIndex = sourceOffset + first[i];
+                for (int tap = 0; tap < count[i]; tap++) {
+                    final int weight = weights[weightIndex++];
+                    final int argb = source[sourceIndex++];
+                    alpha += weight * (argb >>> 24);
+                    red += weight * ((argb >> 16) & 0xFF);
+                    green += weight * ((argb >> 8) & 0xFF);
+                    blue += weight * (argb & 0xFF);
+                }
+                target[targetOffset + i] = (hasAlpha ? toChannel(alpha) << 24 : 0xFF000000)
+                        | (toChannel(red) << 16) | (toChannel(green) << 8) | toChannel(blue);
+            }
+        }
+
+        /**
+         * Computes destination row i by combining full source rows
+         */
+        void applyToColumns(int i, int[] source, int width, int[][] accumulators, int[] target, int targetOffset, boolean hasAlpha) {
+            final int[] alpha = accumulators[0], red = accumulators[1], green = accumulators[2], blue = accumulators[3];
+            for (int[] accumulator : accumulators) {
+                Arrays.fill(accumulator, 0);
+            }
+            for (int tap = 0; tap < count[i]; tap++) {
+                final int weight = weights[i * maxTaps + tap];
+                int sourceIndex = (first[i] + tap) * width;
+                for (int x = 0; x < width; x++) {
+                    final int argb = source[sourceIndex++];
+                    alpha[x] += weight * (argb >>> 24);
+                    red[x] += weight * ((argb >> 16) & 0xFF);
+                    green[x] += weight * ((argb >> 8) & 0xFF);
+                    blue[x] += weight * (argb & 0xFF);
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                target[targetOffset + x] = (hasAlpha ? toChannel(alpha[x]) << 24 : 0xFF000000)
+                        | (toChannel(red[x]) << 16) | (toChannel(green[x]) << 8) | toChannel(blue[x]);
+            }
+        }
+    }
+}
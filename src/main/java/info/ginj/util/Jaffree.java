@@ -202,6 +202,24 @@ public class Jaffree {
         return durationMillis.get();
     }
 
+    /**
+     * Re-encodes the given video with x264 at the given quality, using a single thread so that it stays in the background
+     * @param crf the x264 constant rate factor (18 is visually lossless, each +6 roughly halves the size)
+     */
+    public static void reencode(File sourceFile, File targetFile, int crf) {
+        getFFmpeg()
+                .addInput(UrlInput.fromPath(sourceFile.toPath()))
+                .addOutput(
+                        UrlOutput.toPath(targetFile.toPath())
+                                .setCodec(StreamType.VIDEO, "libx264")
+                                .addArguments("-crf", String.valueOf(crf))
+                                .addArguments("-preset", "slow")
+                                .addArguments("-threads", "1")
+                )
+                .setOverwriteOutput(true)
+                .execute();
+    }
+
     public static void trim(File sourceFile, long startInMillis, long endInMillis, File targetFile) {
         getFFmpeg()
                 .addInput(
@@ -2,6 +2,7 @@ package info.ginj.util;
 
 import org.apache.commons.lang3.SystemUtils;
 
+import java.io.File;
 import java.util.Locale;
 
 public class Misc {
@@ -16,6 +17,17 @@ public class Misc {
     public static final String METADATA_EXTENSION = ".xml";
     public static final String THUMBNAIL_EXTENSION = ".thumb.png";
 
+    /**
+     * @return the given bytes as a lowercase hexadecimal string
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
     public static String getPrettySize(double bytes) {
         if (bytes < 1024) return bytes + " B";
         var i = -1;
@@ -53,6 +65,15 @@ public class Misc {
         else return "Quit";
     }
 
+    /**
+     * @return the extension of the given file, including the dot, or an empty string if it has none
+     */
+    public static String getExtension(File file) {
+        final String name = file.getName();
+        final int dotIndex = name.lastIndexOf('.');
+        return (dotIndex < 0) ? "" : name.substring(dotIndex);
+    }
+
     public static String cleanupFilename(String filename) {
         if (filename == null) {
             return null;
@@ -0,0 +1,47 @@
+package info.ginj.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Perceptual hash of images ("difference hash", or dHash): the image is reduced to 9x8 pixels, and each bit of the hash
+ * tells whether a pixel is brighter than its right neighbour.
+ * Contrary to a cryptographic hash, similar images get similar hashes: the number of differing bits (Hamming distance)
+ * measures how different they look, whatever their size or compression.
+ */
+public class PerceptualHash {
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+    /**
+     * Computes the hash of the given image. Thumbnails are fine, and faster
+     * @param image the image
+     * @return the 64-bit hash
+     */
+    public static long dHash(BufferedImage image) {
+        final BufferedImage reducedImage = ImageResizer.resize(image, WIDTH, HEIGHT);
+        final int[] rgb = reducedImage.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (getLuminance(rgb[y * WIDTH + x]) > getLuminance(rgb[y * WIDTH + x + 1])) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return the number of bits differing between the given hashes, from 0 (identical looking images) to 64
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    private static int getLuminance(int rgb) {
+        // ITU-R BT.601 weights, in integer arithmetic
+        return 299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF);
+    }
+}
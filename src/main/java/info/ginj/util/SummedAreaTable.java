@@ -0,0 +1,103 @@
+package info.ginj.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A summed-area table (a.k.a. integral image) of the red, green and blue channels of an image.
+ * Once built, the average color of any rectangular area is obtained in constant time (4 lookups per channel),
+ * which makes pixelation and box blur cost proportional to the area redacted, whatever the block size or radius.
+ * <p>
+ * Sums are stored in ints and are allowed to overflow: thanks to modular arithmetic, the difference computed for an area
+ * is exact as long as the real sum for that area fits in 32 bits, that is for areas smaller than 16 million pixels.
+ * <p>
+ * Tables are computed once per image and cached as long as the image itself is referenced.
+ */
+public class SummedAreaTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SummedAreaTable.class);
+
+    private static final Map<BufferedImage, SummedAreaTable> tableCache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final int width;
+    private final int height;
+    // (width + 1) * (height + 1) cells per channel, with an all-zero first row and column
+    private final int[] sums;
+
+    /**
+     * Returns the table of the given image, computing it on first call
+     * @param image the source image
+     * @return the corresponding table
+     */
+    public static SummedAreaTable of(BufferedImage image) {
+        return tableCache.computeIfAbsent(image, SummedAreaTable::new);
+    }
+
+    private SummedAreaTable(BufferedImage image) {
+        final long start = System.currentTimeMillis();
+        width = image.getWidth();
+        height = image.getHeight();
+        final int stride = (width + 1) * 3;
+        sums = new int[stride * (height + 1)];
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int rowRed = 0, rowGreen = 0, rowBlue = 0;
+            int previousLine = y * stride + 3;
+            int currentLine = previousLine + stride;
+            for (int x = 0; x < width; x++) {
+                final int rgb = row[x];
+                rowRed += (rgb >> 16) & 0xFF;
+                rowGreen += (rgb >> 8) & 0xFF;
+                rowBlue += rgb & 0xFF;
+                sums[currentLine] = sums[previousLine] + rowRed;
+                sums[currentLine + 1] = sums[previousLine + 1] + rowGreen;
+                sums[currentLine + 2] = sums[previousLine + 2] + rowBlue;
+                previousLine += 3;
+                currentLine += 3;
+            }
+        }
+        logger.debug("Summed-area table of " + width + "x" + height + " image computed in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Computes the average color of a rectangular area. The area is clipped to the image bounds.
+     * @param x1 the left coordinate (inclusive)
+     * @param y1 the top coordinate (inclusive)
+     * @param x2 the right coordinate (exclusive)
+     * @param y2 the bottom coordinate (exclusive)
+     * @return the average color of the area, as an opaque RGB int
+     */
+    public int getAverageRgb(int x1, int y1, int x2, int y2) {
+        x1 = Math.max(0, x1);
+        y1 = Math.max(0, y1);
+        x2 = Math.min(width, x2);
+        y2 = Math.min(height, y2);
+        final int area = (x2 - x1) * (y2 - y1);
+        if (area <= 0) {
+            return 0xFF000000;
+        }
+        final int stride = (width + 1) * 3;
+        final int topLeft = y1 * stride + x1 * 3;
+        final int topRight = y1 * stride + x2 * 3;
+        final int bottomLeft = y2 * stride + x1 * 3;
+        final int bottomRight = y2 * stride + x2 * 3;
+        final int red = Integer.divideUnsigned(sums[bottomRight] - sums[bottomLeft] - sums[topRight] + sums[topLeft], area);
+        final int green = Integer.divideUnsigned(sums[bottomRight + 1] - sums[bottomLeft + 1] - sums[topRight + 1] + sums[topLeft + 1], area);
+        final int blue = Integer.divideUnsigned(sums[bottomRight + 2] - sums[bottomLeft + 2] - sums[topRight + 2] + sums[topLeft + 2], area);
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+}
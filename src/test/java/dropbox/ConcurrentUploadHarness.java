@@ -0,0 +1,187 @@
+package dropbox;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import info.ginj.export.ExportContext;
+import info.ginj.export.online.OAuthAccount;
+import info.ginj.export.online.dropbox.DropboxExporter;
+import info.ginj.model.Capture;
+import info.ginj.model.Prefs;
+import info.ginj.model.Target;
+import info.ginj.util.HttpClientProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manual test of concurrent Dropbox uploads against a local stand-in of the upload_session API.
+ * The server answers chunks in random order, refuses the first attempt of one chunk with a 503, and checks that:
+ * - all chunks but the last are multiples of 4MB, and only the last one closes the session,
+ * - several chunks are in flight at the same time,
+ * - the session is finished only once all chunks are received, and the received file is identical to the sent one.
+ * Run main() and check the last line of output.
+ */
+public class ConcurrentUploadHarness {
+    private static final int CHUNK_GRANULARITY = 4 * 1024 * 1024;
+    private static final String SESSION_ID = "harness-session";
+
+    private final Map<Long, byte[]> receivedChunks = Collections.synchronizedMap(new TreeMap<>());
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger numChunksInFlight = new AtomicInteger();
+    private final AtomicInteger maxChunksInFlight = new AtomicInteger();
+    private final AtomicInteger numAttemptsOfRefusedChunk = new AtomicInteger();
+    private final Random random = new Random();
+    private volatile Long closingChunkOffset = null;
+    private volatile byte[] committedFile = null;
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new ConcurrentUploadHarness().run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        Prefs.load();
+        Prefs.set(Prefs.Key.DROPBOX_CONCURRENT_CHUNKS, "4");
+
+        final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.createContext("/2/files/upload_session/start", this::onStart);
+        server.createContext("/2/files/upload_session/append_v2", this::onAppend);
+        server.createContext("/2/files/upload_session/finish", this::onFinish);
+        server.start();
+
+        // 5 chunks, the last one being shorter
+        final byte[] content = new byte[4 * CHUNK_GRANULARITY + 12345];
+        random.nextBytes(content);
+        final File file = File.createTempFile("harness", ".mp4");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+
+        // Note: exporters have their own "server" field
+        final String contentApiUrl = "http://localhost:" + server.getAddress().getPort() + "/2";
+        final DropboxExporter exporter = new DropboxExporter() {
+            @Override
+            protected String getContentApiUrl() {
+                return contentApiUrl;
+            }
+        };
+        final Target target = new Target(exporter, new OAuthAccount("harness", "Harness", null, "token", new Date(System.currentTimeMillis() + 3_600_000), "refresh", List.of()));
+        final Capture capture = new Capture("harness");
+        capture.setName("harness");
+        capture.setVideo(true);
+        capture.setRenderedFile(file);
+
+        try {
+            final DropboxExporter.FileMetadata fileMetadata = exporter.uploadFile(new ExportContext(null, null, null), HttpClientProvider.getClient(), target, capture);
+            check(fileMetadata != null && fileMetadata.getPathDisplay() != null, "No file metadata returned");
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            errors.add("Upload failed: " + e.getMessage());
+        }
+        finally {
+            server.stop(0);
+            HttpClientProvider.close();
+        }
+
+        check(committedFile != null && Arrays.equals(content, committedFile), "Committed file differs from the uploaded one");
+        check(maxChunksInFlight.get() > 1, "Chunks were not sent concurrently");
+        check(numAttemptsOfRefusedChunk.get() == 2, "The refused chunk was not sent again");
+
+        System.out.println("Max chunks in flight: " + maxChunksInFlight.get());
+        if (errors.isEmpty()) {
+            System.out.println("OK");
+            return true;
+        }
+        errors.forEach(error -> System.out.println("FAILED: " + error));
+        return false;
+    }
+
+    private void onStart(HttpExchange exchange) throws IOException {
+        final Map<?, ?> arg = getArg(exchange);
+        check("concurrent".equals(arg.get("session_type")), "Session is not concurrent: " + arg);
+        check(exchange.getRequestBody().readAllBytes().length == 0, "Data sent when starting a concurrent session");
+        reply(exchange, 200, "{\"session_id\": \"" + SESSION_ID + "\"}");
+    }
+
+    private void onAppend(HttpExchange exchange) throws IOException {
+        final int inFlight = numChunksInFlight.incrementAndGet();
+        maxChunksInFlight.accumulateAndGet(inFlight, Math::max);
+        try {
+            final Map<?, ?> arg = getArg(exchange);
+            final Map<?, ?> cursor = (Map<?, ?>) arg.get("cursor");
+            final long offset = ((Number) cursor.get("offset")).longValue();
+            final boolean close = Boolean.TRUE.equals(arg.get("close"));
+            final byte[] chunk = exchange.getRequestBody().readAllBytes();
+
+            // Answer in random order
+            Thread.sleep(random.nextInt(200));
+
+            if (offset == CHUNK_GRANULARITY && numAttemptsOfRefusedChunk.getAndIncrement() == 0) {
+                reply(exchange, 503, "Harness refuses the first attempt of the second chunk");
+                return;
+            }
+            check(SESSION_ID.equals(cursor.get("session_id")), "Unknown session " + cursor.get("session_id"));
+            check(offset % CHUNK_GRANULARITY == 0, "Chunk offset " + offset + " is not a multiple of 4MB");
+            check(close || chunk.length % CHUNK_GRANULARITY == 0, "Chunk at " + offset + " is not a multiple of 4MB");
+            if (close) {
+                check(closingChunkOffset == null, "Session closed twice");
+                closingChunkOffset = offset;
+            }
+            receivedChunks.put(offset, chunk);
+            reply(exchange, 200, "null");
+        }
+        catch (InterruptedException e) {
+            reply(exchange, 500, "Interrupted");
+        }
+        finally {
+            numChunksInFlight.decrementAndGet();
+        }
+    }
+
+    private void onFinish(HttpExchange exchange) throws IOException {
+        final Map<?, ?> arg = getArg(exchange);
+        final long offset = ((Number) ((Map<?, ?>) arg.get("cursor")).get("offset")).longValue();
+        check(exchange.getRequestBody().readAllBytes().length == 0, "Data sent when finishing a concurrent session");
+        check(numChunksInFlight.get() == 0, "Session finished while chunks are in flight");
+
+        // Reassemble the file, checking chunks are contiguous
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        synchronized (receivedChunks) {
+            for (Map.Entry<Long, byte[]> entry : receivedChunks.entrySet()) {
+                check(entry.getKey() == file.size(), "Missing data before byte " + entry.getKey());
+                file.write(entry.getValue());
+            }
+        }
+        check(file.size() == offset, "Finish offset " + offset + " does not match received size " + file.size());
+        check(closingChunkOffset != null && receivedChunks.get(closingChunkOffset).length + closingChunkOffset == offset, "The session was not closed by the last chunk");
+        committedFile = file.toByteArray();
+        reply(exchange, 200, "{\"name\": \"harness.mp4\", \"path_display\": " + new Gson().toJson(((Map<?, ?>) arg.get("commit")).get("path")) + "}");
+    }
+
+    private static Map<?, ?> getArg(HttpExchange exchange) {
+        return new Gson().fromJson(exchange.getRequestHeaders().getFirst("Dropbox-API-Arg"), Map.class);
+    }
+
+    private static void reply(HttpExchange exchange, int code, String text) throws IOException {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void check(boolean condition, String error) {
+        if (!condition) {
+            errors.add(error);
+        }
+    }
+}